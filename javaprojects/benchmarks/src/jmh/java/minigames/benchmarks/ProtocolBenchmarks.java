@@ -0,0 +1,96 @@
+package minigames.benchmarks;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import minigames.codec.JsonWriter;
+import minigames.commands.CommandPackage;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.NativeCommands;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Parsing and encoding the packages that go over the wire, with a typical Muddle-sized payload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProtocolBenchmarks {
+
+    JsonObject commandJson;
+    JsonObject renderingJson;
+    RenderingPackage renderingPackage;
+
+    JsonObject loadClient;
+    JsonObject showMenuError;
+    JsonObject appendText;
+
+    @Setup
+    public void setup() {
+        // Parsed from text, as it would be off the wire
+        commandJson = new JsonObject(Json.encode(new CommandPackage("Muddle", "game42", "Algernon", List.of(
+            new JsonObject().put("command", "N")
+        ))));
+        loadClient = new NativeCommands.LoadClient("MuddleText", "Muddle", "game42", "Algernon").toJson();
+        showMenuError = new NativeCommands.ShowMenuError("That name's not available").toJson();
+        appendText = new JsonObject().put("command", "appendText").put("text", "[0,1] \n\nYou are in a maze of twisting passages that weren't so alike after all");
+        renderingPackage = new RenderingPackage(
+            new GameMetadata("Muddle", "game42", new String[] { "Algernon", "Bertie" }, true),
+            List.of(
+                loadClient,
+                new JsonObject().put("command", "clearText"),
+                appendText,
+                new JsonObject().put("command", "setDirections").put("directions", "NE")
+            )
+        );
+        renderingJson = new JsonObject(Json.encode(renderingPackage));
+    }
+
+    @Benchmark
+    public CommandPackage commandPackageFromJson() {
+        return CommandPackage.fromJson(commandJson);
+    }
+
+    @Benchmark
+    public RenderingPackage renderingPackageFromJson() {
+        return RenderingPackage.fromJson(renderingJson);
+    }
+
+    /** Jackson databind, as Vert.x encodes a POJO */
+    @Benchmark
+    public String renderingPackageJackson() {
+        return Json.encode(renderingPackage);
+    }
+
+    /** The server's own writer, for comparison with Jackson */
+    @Benchmark
+    public Buffer renderingPackageJsonWriter() {
+        return JsonWriter.encode(renderingPackage, 512);
+    }
+
+    @Benchmark
+    public Optional<NativeCommands.LoadClient> loadClientTryParsing() {
+        return NativeCommands.LoadClient.tryParsing(loadClient);
+    }
+
+    @Benchmark
+    public Optional<NativeCommands.ShowMenuError> showMenuErrorTryParsing() {
+        return NativeCommands.ShowMenuError.tryParsing(showMenuError);
+    }
+
+    /** A game's own command, which every native parser has to look at and turn down */
+    @Benchmark
+    public Object tryParsingMiss() {
+        Optional<?> a = NativeCommands.LoadClient.tryParsing(appendText);
+        Optional<?> b = NativeCommands.ShowMenuError.tryParsing(appendText);
+        Optional<?> c = NativeCommands.QuitToMenu.tryParsing(appendText);
+        return a.isPresent() || b.isPresent() || c.isPresent() ? a : null;
+    }
+
+}
@@ -0,0 +1,57 @@
+package minigames.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.RenderingPackage;
+import minigames.server.ClientType;
+import minigames.server.GameRegistry;
+import minigames.server.GameServer;
+import minigames.server.muddle.MuddleGame;
+import minigames.server.muddle.MuddleServer;
+
+/**
+ * The server's per-request work that doesn't touch the network: finding GameServers, and running a game's commands.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ServerBenchmarks {
+
+    /** About as many GameServers as a busy term's worth of groups would register */
+    @Param({ "20" })
+    int gameServers;
+
+    GameRegistry registry;
+    MuddleGame game;
+    CommandPackage move;
+
+    @Setup
+    public void setup() {
+        registry = new GameRegistry();
+        for (int i = 0; i < gameServers; i++) {
+            registry.registerGameServer("Muddle" + i, new MuddleServer());
+        }
+
+        game = new MuddleGame("game42");
+        for (String player : new String[] { "Algernon", "Bertie", "Cuthbert", "Dorothea" }) {
+            game.joinGame(player);
+        }
+        move = new CommandPackage("Muddle", "game42", "Algernon", List.of(new JsonObject().put("command", "N")));
+    }
+
+    @Benchmark
+    public List<GameServer> getGamesForPlatform() {
+        return registry.getGamesForPlatform(ClientType.Swing);
+    }
+
+    @Benchmark
+    public RenderingPackage muddleRunCommands() {
+        return game.runCommands(move);
+    }
+
+}
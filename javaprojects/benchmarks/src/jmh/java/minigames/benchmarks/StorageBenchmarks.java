@@ -0,0 +1,99 @@
+package minigames.benchmarks;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import minigames.server.database.Database;
+import minigames.server.database.ExampleRecord;
+import minigames.server.database.ExampleTable;
+
+/**
+ * DatabaseTable's create and retrieve against embedded Derby, kept in memory so the disk isn't what's measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StorageBenchmarks {
+
+    /** An in-memory Derby database, pooled the same way as DerbyDatabase */
+    static class MemoryDatabase extends Database {
+
+        private final HikariDataSource dataSource;
+
+        MemoryDatabase() {
+            HikariConfig config = new HikariConfig();
+            config.setJdbcUrl("jdbc:derby:memory:benchmarks;create=true");
+            config.setDriverClassName("org.apache.derby.jdbc.EmbeddedDriver");
+            config.setMaximumPoolSize(4);
+            dataSource = new HikariDataSource(config);
+            closed = false;
+        }
+
+        @Override
+        public Connection getConnection() {
+            try {
+                return dataSource.getConnection();
+            } catch (SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public boolean closeConnection(Connection connection) {
+            try {
+                connection.close();
+                return true;
+            } catch (SQLException ex) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            dataSource.close();
+        }
+    }
+
+    /** Rows already in the table when retrieving */
+    static final int ROWS = 10_000;
+
+    MemoryDatabase database;
+    ExampleTable table;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        database = new MemoryDatabase();
+        table = new ExampleTable(database, "BENCHMARK_TABLE");
+        table.createTable();
+        table.clearTable();
+        for (int i = 0; i < ROWS; i++) {
+            table.create(new ExampleRecord("key" + i, i));
+        }
+        next = ROWS;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        table.destroyTable();
+        database.close();
+    }
+
+    @Benchmark
+    public void create() {
+        table.create(new ExampleRecord("key" + next, next));
+        next++;
+    }
+
+    @Benchmark
+    public ExampleRecord retrieveOne() {
+        return table.retrieveOne(new ExampleRecord("key" + (next++ % ROWS), 0));
+    }
+
+}
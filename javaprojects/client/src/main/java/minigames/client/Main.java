@@ -5,6 +5,8 @@ import io.vertx.core.Promise;
 import minigames.client.muddletext.MuddleText;
 import io.vertx.core.Launcher;
 
+import java.util.Arrays;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -32,6 +34,12 @@ public class Main extends AbstractVerticle {
     }
 
     public static void main(String... args) {
+        // --binary switches the client to the compact binary wire format
+        if (args.length > 0 && args[args.length - 1].equals("--binary")) {
+            MinigameNetworkClient.binaryProtocol = true;
+            args = Arrays.copyOf(args, args.length - 1);
+        }
+
         if (args.length > 0) {
             String[] parts = args[0].split(":");
             switch (parts.length) {
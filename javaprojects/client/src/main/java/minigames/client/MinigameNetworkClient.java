@@ -1,5 +1,8 @@
 package minigames.client;
 
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -9,11 +12,18 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.WebSocket;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
 import io.vertx.ext.web.client.WebClient;
 
+import minigames.codec.BinaryCodec;
 import minigames.commands.CommandPackage;
 import minigames.rendering.GameMetadata;
 import minigames.rendering.GameServerDetails;
@@ -45,17 +55,41 @@ public class MinigameNetworkClient {
      */
     public static int port = 8080;
 
+    /**
+     * Whether to talk to the server in the compact binary format instead of JSON. Updated from Main.
+     */
+    public static boolean binaryProtocol = false;
+
     Vertx vertx;
     WebClient webClient;
+    HttpClient httpClient;
     MinigameNetworkClientWindow mainWindow;
     Animator animator;
 
     Optional<GameClient> gameClient;
 
+    /** The push channel for the game we're in, if one is open. The server sends updates caused by other players down this. */
+    Optional<WebSocket> pushChannel;
+
+    /**
+     * The server only sends what has changed since our last update. If the push channel drops, or a command gets
+     * no answer or an error back, we may have missed some, so the next command we send asks for our full state again.
+     */
+    boolean resyncNeeded = false;
+
+    /**
+     * The handle the server gave us for the game we're in (0 if it didn't give us one), and the game it's for.
+     * We send it with our commands so the server doesn't need to look the game up by name.
+     */
+    long handle = 0;
+    String handleGame = null;
+
     public MinigameNetworkClient(Vertx vertx) {
         this.vertx = vertx;
         this.webClient = WebClient.create(vertx);
+        this.httpClient = vertx.createHttpClient();
         this.gameClient = Optional.empty();
+        this.pushChannel = Optional.empty();
 
         animator = new Animator();
         vertx.setPeriodic(16, (id) -> animator.tick());
@@ -127,17 +161,28 @@ public class MinigameNetworkClient {
             });
     }
 
+    /** Asks for responses in the binary format, if we're using it */
+    private HttpRequest<Buffer> negotiate(HttpRequest<Buffer> request) {
+        return binaryProtocol ? request.putHeader(HttpHeaders.ACCEPT.toString(), BinaryCodec.MEDIA_TYPE) : request;
+    }
+
+    /** Reads a RenderingPackage from a response, in whichever format the server sent it */
+    private static RenderingPackage readRenderingPackage(HttpResponse<Buffer> resp) {
+        String type = resp.getHeader(HttpHeaders.CONTENT_TYPE.toString());
+        if (type != null && type.startsWith(BinaryCodec.MEDIA_TYPE)) {
+            RenderingPackage rp = BinaryCodec.decodeRenderingPackage(resp.body());
+            logger.info("{}", rp);
+            return rp;
+        }
+        logger.info(resp.bodyAsString());
+        return RenderingPackage.fromJson(resp.bodyAsJsonObject());
+    }
+
     /** Creates a new game on the server, running any commands that come back */
     public Future<RenderingPackage> newGame(String gameServer, String playerName) {
-        return webClient.post(port, host, "/newGame/" + gameServer)
+        return negotiate(webClient.post(port, host, "/newGame/" + gameServer))
             .sendBuffer(Buffer.buffer(playerName))
-            .onSuccess((resp) -> {
-                logger.info(resp.bodyAsString());
-            })
-            .map((resp) -> {
-                JsonObject rpj = resp.bodyAsJsonObject();
-                return RenderingPackage.fromJson(rpj);
-            })
+            .map(MinigameNetworkClient::readRenderingPackage)
             .onSuccess((rp) -> runRenderingPackage(rp))
             .onFailure((resp) -> {
                 logger.error("Failed: {} ", resp.getMessage());
@@ -146,15 +191,9 @@ public class MinigameNetworkClient {
 
     /** Joins a game on the server, running any commands that come back */
     public Future<RenderingPackage> joinGame(String gameServer, String game, String playerName) {
-        return webClient.post(port, host, "/joinGame/" + gameServer + "/" + game)
+        return negotiate(webClient.post(port, host, "/joinGame/" + gameServer + "/" + game))
             .sendBuffer(Buffer.buffer(playerName))
-            .onSuccess((resp) -> {
-                logger.info(resp.bodyAsString());
-            })
-            .map((resp) -> {
-                JsonObject rpj = resp.bodyAsJsonObject();
-                return RenderingPackage.fromJson(rpj);
-            })
+            .map(MinigameNetworkClient::readRenderingPackage)
             .onSuccess((rp) -> runRenderingPackage(rp))
             .onFailure((resp) -> {
                 logger.error("Failed: {} ", resp.getMessage());
@@ -163,21 +202,90 @@ public class MinigameNetworkClient {
 
     /** Sends a CommandPackage to the server, running any commands that come back */
     public Future<RenderingPackage> send(CommandPackage cp) {
-        return webClient.post(port, host, "/command")
-            .sendJson(cp)
-            .onSuccess((resp) -> {
-                logger.info(resp.bodyAsString());
-            })
-            .map((resp) -> {
-                JsonObject rpj = resp.bodyAsJsonObject();
-                return RenderingPackage.fromJson(rpj);
-            })
+        if (handle != 0 && cp.handle() == 0 && cp.gameId() != null && cp.gameId().equals(handleGame)) {
+            cp = cp.withHandle(handle);
+        }
+        if (resyncNeeded) {
+            resyncNeeded = false;
+            List<JsonObject> commands = new ArrayList<>(cp.commands());
+            commands.add(new JsonObject().put("command", CommandPackage.RESYNC));
+            cp = new CommandPackage(cp.gameServer(), cp.gameId(), cp.player(), commands, cp.handle());
+        }
+
+        return post(cp, RETRIES)
+            .compose((resp) -> resp.statusCode() / 100 == 2 ? Future.succeededFuture(resp)
+                : Future.failedFuture("The server answered " + resp.statusCode() + ": " + resp.bodyAsString()))
+            .map(MinigameNetworkClient::readRenderingPackage)
             .onSuccess((rp) -> runRenderingPackage(rp))
             .onFailure((resp) -> {
+                // The server may have counted what it sent us, even though we never got it
+                resyncNeeded = true;
                 logger.error("Failed: {} ", resp.getMessage());
             });
     }
 
+    /** How many times a command the server turns away with a 503 (e.g. while its game moves between servers) is tried again */
+    static final int RETRIES = 3;
+
+    /** POSTs a CommandPackage, trying again after the Retry-After the server gives if it answers 503 */
+    private Future<HttpResponse<Buffer>> post(CommandPackage cp, int retries) {
+        HttpRequest<Buffer> request = negotiate(webClient.post(port, host, "/command"));
+        Future<HttpResponse<Buffer>> response = binaryProtocol
+            ? request.putHeader(HttpHeaders.CONTENT_TYPE.toString(), BinaryCodec.MEDIA_TYPE).sendBuffer(BinaryCodec.encode(cp))
+            : request.sendJson(cp);
+
+        return response.compose((resp) -> {
+            if (resp.statusCode() != 503 || retries == 0) return Future.succeededFuture(resp);
+            long seconds = 1;
+            try {
+                seconds = Math.max(Long.parseLong(resp.getHeader("Retry-After")), 1);
+            } catch (NumberFormatException ex) {
+                // Wait the default
+            }
+            logger.info("Server is busy, trying again in {}s: {}", seconds, resp.bodyAsString());
+            Promise<HttpResponse<Buffer>> retried = Promise.promise();
+            vertx.setTimer(seconds * 1000, (id) -> post(cp, retries - 1).onComplete(retried));
+            return retried.future();
+        });
+    }
+
+    /**
+     * Opens a WebSocket to the server for a game we've joined.
+     * Any RenderingPackages that arrive on it are run just as if they'd come back from a command.
+     */
+    private void openPushChannel(String gameServer, String game, String player) {
+        closePushChannel();
+        String uri = "/ws/" + encodePathSegment(gameServer) + "/" + encodePathSegment(game) + "/" + encodePathSegment(player)
+            + (binaryProtocol ? "?format=binary" : "");
+        httpClient.webSocket(port, host, uri)
+            .onSuccess((ws) -> {
+                logger.info("Push channel open for {}", uri);
+                pushChannel = Optional.of(ws);
+                ws.textMessageHandler((text) -> runRenderingPackage(RenderingPackage.fromJson(new JsonObject(text))));
+                ws.binaryMessageHandler((buffer) -> runRenderingPackage(BinaryCodec.decodeRenderingPackage(buffer)));
+                ws.closeHandler((v) -> {
+                    // If we didn't close it ourselves, we may have missed updates
+                    if (pushChannel.orElse(null) == ws) {
+                        pushChannel = Optional.empty();
+                        resyncNeeded = true;
+                    }
+                });
+            })
+            .onFailure((ex) -> {
+                logger.error("Could not open push channel: {} ", ex.getMessage());
+            });
+    }
+
+    /** Closes the push channel, if there is one */
+    private void closePushChannel() {
+        pushChannel.ifPresent((ws) -> ws.close());
+        pushChannel = Optional.empty();
+    }
+
+    private static String encodePathSegment(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
     /**
      * Runs the sequence that opens the main menu - starting with a title card before communicating with
      * the server to get a list of available games.
@@ -200,13 +308,19 @@ public class MinigameNetworkClient {
         mainWindow.clearAll();
         GameClient gc = Main.clientRegistry.getGameClient(lc.clientName());
         gameClient = Optional.of(gc);
+        handle = lc.handle();
+        handleGame = lc.game();
         gc.load(this, metadata, lc.player());
+        openPushChannel(lc.gameServer(), lc.game(), lc.player());
     }
 
     /** Executes the QuitToMenu command */
     private void execute(QuitToMenu qtm) {
         gameClient.ifPresent((gc) -> gc.closeGame());
         gameClient = Optional.empty();
+        handle = 0;
+        handleGame = null;
+        closePushChannel();
 
         runMainMenuSequence();
     }
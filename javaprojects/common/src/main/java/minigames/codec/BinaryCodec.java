@@ -0,0 +1,394 @@
+package minigames.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * A compact binary encoding of CommandPackages and RenderingPackages, as an alternative to JSON on the wire.
+ * Single JsonObjects can be encoded the same way, for storing them compactly.
+ *
+ * Values are written MessagePack-style: a one-byte tag followed by the value. Integers and lengths are varints.
+ * Strings that appear in almost every message ("command", "appendText", "nativeCommand", ...) are in a shared
+ * dictionary and are written as a single index byte instead of the text.
+ *
+ * Clients ask for this encoding by sending Content-Type and/or Accept headers of MEDIA_TYPE. JSON stays the default.
+ */
+public class BinaryCodec {
+
+    /** The media type for Content-Type and Accept headers */
+    public static final String MEDIA_TYPE = "application/x-minigames-binary";
+
+    /** First byte of every message, so we can spot a JSON body sent by mistake */
+    static final byte MAGIC = (byte) 0xB1;
+
+    /** Format version. Bump it if the dictionary or the tags change in an incompatible way */
+    static final byte VERSION = 1;
+
+    static final byte COMMAND_PACKAGE = 'C';
+    static final byte RENDERING_PACKAGE = 'R';
+    static final byte OBJECT_MESSAGE = 'O';
+
+    // Value tags
+    static final byte NULL = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+    static final byte INTEGER = 3;
+    static final byte DOUBLE = 4;
+    static final byte STRING = 5;
+    static final byte DICTIONARY_STRING = 6;
+    static final byte OBJECT = 7;
+    static final byte ARRAY = 8;
+
+    /**
+     * Strings common to most messages. Only ever append to this list: a string's index is its encoding,
+     * so reordering it would break clients that were built against an older copy.
+     */
+    static final String[] DICTIONARY = {
+        // Rendering and command keys
+        "command", "nativeCommand", "text", "directions", "message",
+        // Muddle's rendering commands
+        "clearText", "appendText", "setDirections",
+        // Native commands
+        "client.loadClient", "client.showMenuError", "client.quitToMGNMenu",
+        "clientName", "gameServer", "game", "player",
+        // Common game and client names
+        "Muddle", "MuddleText",
+        // Muddle's directions
+        "NORTH", "SOUTH", "EAST", "WEST",
+        // Handles issued in LoadClient
+        "handle"
+    };
+
+    /**
+     * How deeply objects and arrays can nest in a message we decode. Real messages nest two or three deep; the limit
+     * stops a hostile frame of nested arrays from overflowing the decoder's stack.
+     */
+    static final int MAX_DEPTH = 64;
+
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_INDEX.put(DICTIONARY[i], i);
+        }
+    }
+
+// Encoding
+
+    /** Encodes a CommandPackage */
+    public static Buffer encode(CommandPackage cp) {
+        Buffer b = Buffer.buffer(128);
+        writeHeader(b, COMMAND_PACKAGE);
+        writeString(b, cp.gameServer());
+        writeString(b, cp.gameId());
+        writeString(b, cp.player());
+        writeObjects(b, cp.commands());
+        // Only sent if there is one, so packages from older clients (which stop here) still read the same
+        if (cp.handle() != 0) writeVarint(b, cp.handle());
+        return b;
+    }
+
+    /** Encodes a RenderingPackage */
+    public static Buffer encode(RenderingPackage rp) {
+        Buffer b = Buffer.buffer(256);
+        writeHeader(b, RENDERING_PACKAGE);
+        writeMetadata(b, rp.metadata());
+        writeObjects(b, rp.renderingCommands());
+        return b;
+    }
+
+    /** Encodes a JsonObject on its own, e.g. a game's saved state */
+    public static Buffer encode(JsonObject json) {
+        Buffer b = Buffer.buffer(256);
+        writeHeader(b, OBJECT_MESSAGE);
+        writeMap(b, json.getMap());
+        return b;
+    }
+
+    private static void writeHeader(Buffer b, byte type) {
+        b.appendByte(MAGIC).appendByte(VERSION).appendByte(type);
+    }
+
+    private static void writeMetadata(Buffer b, GameMetadata gm) {
+        writeString(b, gm.gameServer());
+        writeString(b, gm.name());
+        String[] players = gm.players() == null ? new String[0] : gm.players();
+        writeVarint(b, players.length);
+        for (String p : players) {
+            writeString(b, p);
+        }
+        b.appendByte(gm.joinable() ? TRUE : FALSE);
+    }
+
+    private static void writeObjects(Buffer b, List<JsonObject> objects) {
+        writeVarint(b, objects.size());
+        for (JsonObject o : objects) {
+            writeMap(b, o.getMap());
+        }
+    }
+
+    private static void writeMap(Buffer b, Map<String, Object> map) {
+        b.appendByte(OBJECT);
+        writeVarint(b, map.size());
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            writeString(b, e.getKey());
+            writeValue(b, e.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static void writeValue(Buffer b, Object value) {
+        if (value == null) {
+            b.appendByte(NULL);
+        } else if (value instanceof Boolean bool) {
+            b.appendByte(bool ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            b.appendByte(INTEGER);
+            long n = ((Number) value).longValue();
+            writeVarint(b, (n << 1) ^ (n >> 63)); // zig-zag, so small negative numbers stay small
+        } else if (value instanceof Number n) {
+            b.appendByte(DOUBLE).appendDouble(n.doubleValue());
+        } else if (value instanceof CharSequence || value instanceof Enum) {
+            writeString(b, value.toString());
+        } else if (value instanceof JsonObject o) {
+            writeMap(b, o.getMap());
+        } else if (value instanceof Map) {
+            writeMap(b, (Map<String, Object>) value);
+        } else if (value instanceof JsonArray a) {
+            writeList(b, a.getList());
+        } else if (value instanceof List) {
+            writeList(b, (List<Object>) value);
+        } else {
+            throw new IllegalArgumentException("Cannot encode a " + value.getClass().getName());
+        }
+    }
+
+    private static void writeList(Buffer b, List<Object> list) {
+        b.appendByte(ARRAY);
+        writeVarint(b, list.size());
+        for (Object o : list) {
+            writeValue(b, o);
+        }
+    }
+
+    /** Writes a string, tagged. Dictionary strings take two bytes; ASCII strings are copied without an intermediate array */
+    static void writeString(Buffer b, String s) {
+        if (s == null) {
+            b.appendByte(NULL);
+            return;
+        }
+        Integer index = DICTIONARY_INDEX.get(s);
+        if (index != null) {
+            b.appendByte(DICTIONARY_STRING).appendByte((byte) index.intValue());
+            return;
+        }
+
+        b.appendByte(STRING);
+        int n = s.length();
+        boolean ascii = true;
+        for (int i = 0; i < n && ascii; i++) {
+            ascii = s.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            writeVarint(b, n);
+            for (int i = 0; i < n; i++) {
+                b.appendByte((byte) s.charAt(i));
+            }
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(b, bytes.length);
+            b.appendBytes(bytes);
+        }
+    }
+
+    static void writeVarint(Buffer b, long n) {
+        while ((n & ~0x7FL) != 0) {
+            b.appendByte((byte) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        b.appendByte((byte) n);
+    }
+
+// Decoding
+
+    /** Decodes a CommandPackage */
+    public static CommandPackage decodeCommandPackage(Buffer b) {
+        Reader r = new Reader(b);
+        r.header(COMMAND_PACKAGE);
+        CommandPackage cp = new CommandPackage(r.string(), r.string(), r.string(), r.objects());
+        return r.remaining() > 0 ? cp.withHandle(r.varint()) : cp;
+    }
+
+    /** Decodes a RenderingPackage */
+    public static RenderingPackage decodeRenderingPackage(Buffer b) {
+        Reader r = new Reader(b);
+        r.header(RENDERING_PACKAGE);
+        GameMetadata gm = r.metadata();
+        return new RenderingPackage(gm, r.objects());
+    }
+
+    /** Decodes a JsonObject encoded on its own */
+    public static JsonObject decodeObject(Buffer b) {
+        Reader r = new Reader(b);
+        r.header(OBJECT_MESSAGE);
+        if (!(r.value() instanceof JsonObject json)) throw new IllegalArgumentException("Expected an object");
+        return json;
+    }
+
+    /** Reads values from a buffer, keeping track of the position */
+    private static class Reader {
+        final Buffer b;
+        int pos = 0;
+
+        /** How many objects and arrays we're inside */
+        int depth = 0;
+
+        Reader(Buffer b) {
+            this.b = b;
+        }
+
+        void header(byte expectedType) {
+            if (b.length() < 3 || b.getByte(0) != MAGIC) {
+                throw new IllegalArgumentException("Not a binary minigames message");
+            }
+            if (b.getByte(1) != VERSION) {
+                throw new IllegalArgumentException("Unsupported binary format version " + b.getByte(1));
+            }
+            if (b.getByte(2) != expectedType) {
+                throw new IllegalArgumentException("Expected message type " + (char) expectedType + " but got " + (char) b.getByte(2));
+            }
+            pos = 3;
+        }
+
+        int remaining() {
+            return b.length() - pos;
+        }
+
+        byte next() {
+            if (pos >= b.length()) throw new IllegalArgumentException("Binary message is truncated");
+            return b.getByte(pos++);
+        }
+
+        long varint() {
+            long n = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte x = next();
+                n |= (long) (x & 0x7F) << shift;
+                if ((x & 0x80) == 0) return n;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        /** Reads a length or count. Every element takes at least a byte, so it can't be more than what's left. */
+        int length() {
+            long n = varint();
+            if (n < 0 || n > b.length() - pos) {
+                throw new IllegalArgumentException("Malformed length " + n);
+            }
+            return (int) n;
+        }
+
+        String string() {
+            Object o = value();
+            if (o == null || o instanceof String) return (String) o;
+            throw new IllegalArgumentException("Expected a string");
+        }
+
+        GameMetadata metadata() {
+            String gameServer = string();
+            String name = string();
+            String[] players = new String[length()];
+            for (int i = 0; i < players.length; i++) {
+                players[i] = string();
+            }
+            boolean joinable = next() == TRUE;
+            return new GameMetadata(gameServer, name, players, joinable);
+        }
+
+        List<JsonObject> objects() {
+            int n = length();
+            List<JsonObject> list = new ArrayList<>(Math.min(n, 64));
+            for (int i = 0; i < n; i++) {
+                Object o = value();
+                if (!(o instanceof JsonObject)) throw new IllegalArgumentException("Expected an object");
+                list.add((JsonObject) o);
+            }
+            return list;
+        }
+
+        /** Goes into an object or array, unless that would nest them too deeply */
+        void enter() {
+            if (++depth > MAX_DEPTH) {
+                throw new DecodeException("Binary message nests more than " + MAX_DEPTH + " deep");
+            }
+        }
+
+        Object value() {
+            byte tag = next();
+            switch (tag) {
+                case NULL: return null;
+                case FALSE: return Boolean.FALSE;
+                case TRUE: return Boolean.TRUE;
+                case INTEGER: {
+                    long z = varint();
+                    long n = (z >>> 1) ^ -(z & 1);
+                    if (n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE) return (int) n;
+                    return n;
+                }
+                case DOUBLE: {
+                    if (pos + 8 > b.length()) throw new IllegalArgumentException("Binary message is truncated");
+                    double d = b.getDouble(pos);
+                    pos += 8;
+                    return d;
+                }
+                case STRING: {
+                    int n = length();
+                    if (pos + n > b.length()) throw new IllegalArgumentException("Binary message is truncated");
+                    String s = b.getString(pos, pos + n, "UTF-8");
+                    pos += n;
+                    return s;
+                }
+                case DICTIONARY_STRING: {
+                    int i = next() & 0xFF;
+                    if (i >= DICTIONARY.length) throw new IllegalArgumentException("Unknown dictionary string " + i);
+                    return DICTIONARY[i];
+                }
+                case OBJECT: {
+                    enter();
+                    int n = length();
+                    Map<String, Object> map = new LinkedHashMap<>(Math.min(n, 64) * 2);
+                    for (int i = 0; i < n; i++) {
+                        String key = string();
+                        map.put(key, value());
+                    }
+                    depth--;
+                    return new JsonObject(map);
+                }
+                case ARRAY: {
+                    enter();
+                    int n = length();
+                    List<Object> list = new ArrayList<>(Math.min(n, 64));
+                    for (int i = 0; i < n; i++) {
+                        list.add(value());
+                    }
+                    depth--;
+                    return new JsonArray(list);
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown value tag " + tag);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package minigames.codec;
+
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.GameServerDetails;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Writes RenderingPackages (and the JSON inside them, and the other records we send) straight into a Buffer as UTF-8 JSON.
+ *
+ * The output is the same JSON Jackson produces for these records, but it is written byte by byte into the
+ * Buffer that gets sent, with no intermediate String, char[] or tree. Strings, integers and booleans are
+ * written without allocating at all; only doubles and unusual value types (which fall back to Json.encode) do.
+ *
+ * Callers pass a size hint so the Buffer can be allocated once at the right size rather than grown and copied.
+ */
+public class JsonWriter {
+
+    /** The media type for Content-Type headers */
+    public static final String MEDIA_TYPE = "application/json";
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    /** Encodes a value (usually a RenderingPackage, or a list of them) into a new Buffer */
+    public static Buffer encode(Object value, int sizeHint) {
+        Buffer b = Buffer.buffer(Math.max(sizeHint, 16));
+        write(b, value);
+        return b;
+    }
+
+    /** Appends a value to a Buffer as JSON */
+    @SuppressWarnings("unchecked")
+    public static void write(Buffer b, Object value) {
+        if (value == null) {
+            b.appendByte((byte) 'n').appendByte((byte) 'u').appendByte((byte) 'l').appendByte((byte) 'l');
+        } else if (value instanceof CharSequence s) {
+            writeString(b, s);
+        } else if (value instanceof Boolean bool) {
+            writeRaw(b, bool ? "true" : "false");
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeLong(b, ((Number) value).longValue());
+        } else if (value instanceof Number n) {
+            writeRaw(b, n.toString());
+        } else if (value instanceof JsonObject o) {
+            writeMap(b, o.getMap());
+        } else if (value instanceof Map) {
+            writeMap(b, (Map<String, Object>) value);
+        } else if (value instanceof JsonArray a) {
+            writeList(b, a.getList());
+        } else if (value instanceof List) {
+            writeList(b, (List<Object>) value);
+        } else if (value instanceof RenderingPackage rp) {
+            writeRenderingPackage(b, rp);
+        } else if (value instanceof GameMetadata gm) {
+            writeMetadata(b, gm);
+        } else if (value instanceof CommandPackage cp) {
+            writeCommandPackage(b, cp);
+        } else if (value instanceof GameServerDetails gsd) {
+            writeDetails(b, gsd);
+        } else if (value instanceof Object[] array) {
+            writeList(b, List.of(array));
+        } else if (value instanceof Enum<?> e) {
+            writeString(b, e.name());
+        } else {
+            // Anything else (Instants, byte arrays, ...) is rare enough to go the slow way
+            writeRaw(b, Json.encode(value));
+        }
+    }
+
+    private static void writeRenderingPackage(Buffer b, RenderingPackage rp) {
+        b.appendByte((byte) '{');
+        writeKey(b, "metadata");
+        write(b, rp.metadata());
+        b.appendByte((byte) ',');
+        writeKey(b, "renderingCommands");
+        write(b, rp.renderingCommands());
+        b.appendByte((byte) '}');
+    }
+
+    private static void writeMetadata(Buffer b, GameMetadata gm) {
+        b.appendByte((byte) '{');
+        writeKey(b, "gameServer");
+        write(b, gm.gameServer());
+        b.appendByte((byte) ',');
+        writeKey(b, "name");
+        write(b, gm.name());
+        b.appendByte((byte) ',');
+        writeKey(b, "players");
+        if (gm.players() == null) {
+            write(b, null);
+        } else {
+            b.appendByte((byte) '[');
+            for (int i = 0; i < gm.players().length; i++) {
+                if (i > 0) b.appendByte((byte) ',');
+                write(b, gm.players()[i]);
+            }
+            b.appendByte((byte) ']');
+        }
+        b.appendByte((byte) ',');
+        writeKey(b, "joinable");
+        write(b, gm.joinable());
+        b.appendByte((byte) '}');
+    }
+
+    private static void writeCommandPackage(Buffer b, CommandPackage cp) {
+        b.appendByte((byte) '{');
+        writeKey(b, "gameServer");
+        write(b, cp.gameServer());
+        b.appendByte((byte) ',');
+        writeKey(b, "gameId");
+        write(b, cp.gameId());
+        b.appendByte((byte) ',');
+        writeKey(b, "player");
+        write(b, cp.player());
+        b.appendByte((byte) ',');
+        writeKey(b, "commands");
+        write(b, cp.commands());
+        if (cp.handle() != 0) {
+            b.appendByte((byte) ',');
+            writeKey(b, "handle");
+            writeLong(b, cp.handle());
+        }
+        b.appendByte((byte) '}');
+    }
+
+    private static void writeDetails(Buffer b, GameServerDetails gsd) {
+        b.appendByte((byte) '{');
+        writeKey(b, "name");
+        write(b, gsd.name());
+        b.appendByte((byte) ',');
+        writeKey(b, "description");
+        write(b, gsd.description());
+        b.appendByte((byte) '}');
+    }
+
+    private static void writeMap(Buffer b, Map<String, Object> map) {
+        b.appendByte((byte) '{');
+        boolean first = true;
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            if (!first) b.appendByte((byte) ',');
+            first = false;
+            writeKey(b, e.getKey());
+            write(b, e.getValue());
+        }
+        b.appendByte((byte) '}');
+    }
+
+    private static void writeList(Buffer b, List<Object> list) {
+        b.appendByte((byte) '[');
+        for (int i = 0; i < list.size(); i++) {
+            if (i > 0) b.appendByte((byte) ',');
+            write(b, list.get(i));
+        }
+        b.appendByte((byte) ']');
+    }
+
+    private static void writeKey(Buffer b, String key) {
+        writeString(b, key);
+        b.appendByte((byte) ':');
+    }
+
+    /** Writes text we know needs no escaping (numbers, literals) */
+    private static void writeRaw(Buffer b, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            b.appendByte((byte) s.charAt(i));
+        }
+    }
+
+    /** Writes digits from the right, into space reserved at the end of the buffer */
+    static void writeLong(Buffer b, long n) {
+        if (n == Long.MIN_VALUE) {
+            writeRaw(b, Long.toString(n));
+            return;
+        }
+        if (n < 0) {
+            b.appendByte((byte) '-');
+            n = -n;
+        }
+        int digits = 1;
+        for (long m = n; m >= 10; m /= 10) digits++;
+
+        int end = b.length() + digits;
+        for (int i = 0; i < digits; i++) b.appendByte((byte) '0');
+        for (int pos = end - 1; n > 0; pos--) {
+            b.setByte(pos, (byte) ('0' + n % 10));
+            n /= 10;
+        }
+    }
+
+    /** Writes a quoted string, escaped as Jackson does and encoded as UTF-8 as it goes */
+    static void writeString(Buffer b, CharSequence s) {
+        b.appendByte((byte) '"');
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    b.appendByte((byte) c);
+                } else {
+                    writeEscape(b, c);
+                }
+            } else if (c < 0x800) {
+                b.appendByte((byte) (0xC0 | (c >> 6)));
+                b.appendByte((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b.appendByte((byte) (0xF0 | (cp >> 18)));
+                b.appendByte((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                b.appendByte((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                b.appendByte((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                b.appendByte((byte) '?'); // Unpaired surrogate, as String.getBytes would write it
+            } else {
+                b.appendByte((byte) (0xE0 | (c >> 12)));
+                b.appendByte((byte) (0x80 | ((c >> 6) & 0x3F)));
+                b.appendByte((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        b.appendByte((byte) '"');
+    }
+
+    private static void writeEscape(Buffer b, char c) {
+        b.appendByte((byte) '\\');
+        switch (c) {
+            case '"' -> b.appendByte((byte) '"');
+            case '\\' -> b.appendByte((byte) '\\');
+            case '\n' -> b.appendByte((byte) 'n');
+            case '\r' -> b.appendByte((byte) 'r');
+            case '\t' -> b.appendByte((byte) 't');
+            case '\b' -> b.appendByte((byte) 'b');
+            case '\f' -> b.appendByte((byte) 'f');
+            default -> b.appendByte((byte) 'u').appendByte((byte) '0').appendByte((byte) '0')
+                .appendByte(HEX[c >> 4]).appendByte(HEX[c & 0xF]);
+        }
+    }
+
+}
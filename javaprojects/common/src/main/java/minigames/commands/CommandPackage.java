@@ -8,20 +8,43 @@ import io.vertx.core.json.JsonObject;
  * 
  * Commands are just given as a list of JSON objects. 
  * This lets GameClients and GameServers implement bespoke commands at will.
+ *
+ * A handle is the number the server gave the player when they joined (in their LoadClient command). The server
+ * finds the game and player from it without looking up any names. It's 0 if the client doesn't have one, and
+ * the server goes by the names instead.
  */
 public record CommandPackage(
     String gameServer,
     String gameId,
     String player,
-    List<JsonObject> commands
+    List<JsonObject> commands,
+    long handle
 ) {
-    
+
+    /** A package without a handle */
+    public CommandPackage(String gameServer, String gameId, String player, List<JsonObject> commands) {
+        this(gameServer, gameId, player, commands, 0);
+    }
+
+    /** The same package, carrying a handle */
+    public CommandPackage withHandle(long handle) {
+        return new CommandPackage(gameServer, gameId, player, commands, handle);
+    }
+
+    /**
+     * A command a client can add to a package if it thinks it has missed an update.
+     * The server then replies with the player's full state instead of only what has changed.
+     * The server removes it before the package reaches the game.
+     */
+    public static final String RESYNC = "server.resync";
+
     public static CommandPackage fromJson(JsonObject json) {
         return new CommandPackage(
             json.getString("gameServer"),
             json.getString("gameId"),
             json.getString("player"),
-            json.getJsonArray("commands").stream().map((o) -> (JsonObject)o).toList()
+            json.getJsonArray("commands").stream().map((o) -> (JsonObject)o).toList(),
+            json.getLong("handle", 0L)
         );
       }
 }
@@ -8,15 +8,25 @@ import io.vertx.core.json.JsonObject;
  */
 public class NativeCommands {
 
-    /** Loads a client */
-    public record LoadClient(String clientName, String gameServer, String game, String player) implements RenderingCommand {
+    /**
+     * Loads a client.
+     * handle is what the client should put in its CommandPackages for this game, or 0 if the server didn't give one
+     */
+    public record LoadClient(String clientName, String gameServer, String game, String player, long handle) implements RenderingCommand {
+
+        public LoadClient(String clientName, String gameServer, String game, String player) {
+            this(clientName, gameServer, game, player, 0);
+        }
+
         public JsonObject toJson() {
-            return new JsonObject()
+            JsonObject json = new JsonObject()
                 .put("nativeCommand", "client.loadClient")
                 .put("clientName", clientName)
                 .put("gameServer", gameServer)
                 .put("game", game)
                 .put("player", player);
+            if (handle != 0) json.put("handle", handle);
+            return json;
         }
 
         /** Attempts to parse a json object, returning a filled Optional if it found a LoadClient command, and an empty one otherwise */
@@ -28,7 +38,8 @@ public class NativeCommands {
                     json.getString("clientName"), 
                     json.getString("gameServer"), 
                     json.getString("game"), 
-                    json.getString("player"))
+                    json.getString("player"),
+                    json.getLong("handle", 0L))
                 );
                 default -> Optional.empty();
             };
@@ -0,0 +1,122 @@
+package minigames.codec;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.NativeCommands.LoadClient;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Tests of the binary wire format.
+ */
+public class BinaryCodecTests {
+
+    static final RenderingPackage rp = new RenderingPackage(
+        new GameMetadata("Muddle", "abcdefghijkl", new String[] { "Alice", "B\u00f8b" }, true),
+        List.of(
+            new LoadClient("MuddleText", "Muddle", "abcdefghijkl", "Alice").toJson(),
+            new JsonObject().put("command", "clearText"),
+            new JsonObject().put("command", "appendText").put("text", "[0,0] \n\nYou are in a maze of twisting passages, all alike"),
+            new JsonObject().put("command", "setDirections").put("directions", "ES"),
+            new JsonObject()
+                .put("numbers", new JsonArray().add(0).add(-1).add(300).add(Long.MAX_VALUE).add(2.5))
+                .put("nested", new JsonObject().put("flag", false).putNull("nothing"))
+        )
+    );
+
+    @Test
+    @DisplayName("RenderingPackages survive a round trip")
+    public void renderingPackageRoundTrip() {
+        RenderingPackage decoded = BinaryCodec.decodeRenderingPackage(BinaryCodec.encode(rp));
+
+        assertEquals(rp.metadata().gameServer(), decoded.metadata().gameServer());
+        assertEquals(rp.metadata().name(), decoded.metadata().name());
+        assertArrayEquals(rp.metadata().players(), decoded.metadata().players());
+        assertEquals(rp.metadata().joinable(), decoded.metadata().joinable());
+        assertEquals(rp.renderingCommands(), decoded.renderingCommands());
+    }
+
+    @Test
+    @DisplayName("CommandPackages survive a round trip")
+    public void commandPackageRoundTrip() {
+        CommandPackage cp = new CommandPackage("Muddle", "abcdefghijkl", "Alice",
+            List.of(new JsonObject().put("command", "NORTH")));
+
+        assertEquals(cp, BinaryCodec.decodeCommandPackage(BinaryCodec.encode(cp)));
+    }
+
+    @Test
+    @DisplayName("Handles survive a round trip, and packages without one still read the same")
+    public void commandPackageHandles() {
+        CommandPackage cp = new CommandPackage("Muddle", "abcdefghijkl", "Alice",
+            List.of(new JsonObject().put("command", "NORTH")));
+        CommandPackage withHandle = cp.withHandle(0xBEEF_0001_0000_002AL);
+        CommandPackage onlyHandle = new CommandPackage(null, null, null, cp.commands(), 42);
+
+        assertEquals(withHandle, BinaryCodec.decodeCommandPackage(BinaryCodec.encode(withHandle)));
+        assertEquals(onlyHandle, BinaryCodec.decodeCommandPackage(BinaryCodec.encode(onlyHandle)));
+        assertEquals(BinaryCodec.encode(cp).length() + 1, BinaryCodec.encode(cp.withHandle(1)).length());
+        assertEquals(0, BinaryCodec.decodeCommandPackage(BinaryCodec.encode(cp)).handle());
+    }
+
+    @Test
+    @DisplayName("JsonObjects on their own survive a round trip")
+    public void objectRoundTrip() {
+        JsonObject state = new JsonObject()
+            .put("players", new JsonObject().put("Alice", new JsonObject().put("x", 1).put("inventory", new JsonArray().add("lamp"))))
+            .put("items", new JsonArray().add(new JsonArray()).add(new JsonArray().add("leaflet")));
+
+        assertEquals(state, BinaryCodec.decodeObject(BinaryCodec.encode(state)));
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeObject(BinaryCodec.encode(rp)));
+    }
+
+    @Test
+    @DisplayName("The binary form is smaller than the JSON form")
+    public void smallerThanJson() {
+        JsonObject json = new JsonObject()
+            .put("metadata", new JsonObject()
+                .put("gameServer", rp.metadata().gameServer())
+                .put("name", rp.metadata().name())
+                .put("players", new JsonArray(List.of(rp.metadata().players())))
+                .put("joinable", rp.metadata().joinable()))
+            .put("renderingCommands", new JsonArray(new ArrayList<>(rp.renderingCommands())));
+
+        assertTrue(BinaryCodec.encode(rp).length() < json.toBuffer().length());
+    }
+
+    @Test
+    @DisplayName("Malformed and mismatched messages are rejected")
+    public void rejectsBadInput() {
+        Buffer encoded = BinaryCodec.encode(rp);
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeCommandPackage(encoded));
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeRenderingPackage(Buffer.buffer("{\"metadata\":{}}")));
+        assertThrows(IllegalArgumentException.class,
+            () -> BinaryCodec.decodeRenderingPackage(encoded.getBuffer(0, encoded.length() - 3)));
+    }
+
+    @Test
+    @DisplayName("Values nested too deeply are rejected rather than overflowing the stack")
+    public void rejectsDeepNesting() {
+        Object nested = null;
+        for (int i = 1; i < BinaryCodec.MAX_DEPTH; i++) nested = new JsonArray().add(nested);
+        JsonObject deepest = new JsonObject().put("nested", nested);
+        assertEquals(deepest, BinaryCodec.decodeObject(BinaryCodec.encode(deepest)));
+
+        Buffer hostile = Buffer.buffer().appendByte(BinaryCodec.MAGIC).appendByte(BinaryCodec.VERSION).appendByte(BinaryCodec.OBJECT_MESSAGE);
+        for (int i = 0; i < 100_000; i++) hostile.appendByte(BinaryCodec.ARRAY).appendByte((byte) 1);
+        hostile.appendByte(BinaryCodec.NULL);
+        assertThrows(DecodeException.class, () -> BinaryCodec.decodeObject(hostile));
+        Buffer tooDeep = BinaryCodec.encode(new JsonObject().put("nested", new JsonArray().add(nested)));
+        assertThrows(DecodeException.class, () -> BinaryCodec.decodeObject(tooDeep));
+    }
+
+}
@@ -0,0 +1,51 @@
+package minigames.codec;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Tests of writing JSON straight into Buffers.
+ */
+public class JsonWriterTests {
+
+    @Test
+    @DisplayName("JSON values are written exactly as Vert.x would encode them")
+    public void matchesVertxEncoding() {
+        JsonObject json = new JsonObject()
+            .put("command", "appendText")
+            .put("text", "[0,0] \n\n\"Quoted\" \\ tab\t bell\u0007 caf\u00e9 \u20ac \ud83d\ude00")
+            .put("numbers", new JsonArray().add(0).add(-7).add(1234567890123L).add(Long.MIN_VALUE).add(2.5))
+            .put("nested", new JsonObject().put("flag", true).putNull("nothing"));
+
+        assertEquals(json.encode(), JsonWriter.encode(json, 0).toString("UTF-8"));
+    }
+
+    @Test
+    @DisplayName("RenderingPackages are written in the same shape Jackson gives the record")
+    public void writesRenderingPackages() {
+        RenderingPackage rp = new RenderingPackage(
+            new GameMetadata("Muddle", "abcdefghijkl", new String[] { "Alice", "Bob" }, true),
+            List.of(new JsonObject().put("command", "setDirections").put("directions", "NS"))
+        );
+        Buffer b = JsonWriter.encode(rp, 16);
+
+        JsonObject expected = new JsonObject()
+            .put("metadata", new JsonObject()
+                .put("gameServer", "Muddle")
+                .put("name", "abcdefghijkl")
+                .put("players", new JsonArray().add("Alice").add("Bob"))
+                .put("joinable", true))
+            .put("renderingCommands", new JsonArray(new ArrayList<>(rp.renderingCommands())));
+        assertEquals(expected.encode(), b.toString("UTF-8"));
+    }
+
+}
@@ -0,0 +1,121 @@
+package minigames.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Keeps every latency measured for each route, so that percentiles are exact rather than estimated.
+ *
+ * A run of a few thousand players sends a few hundred thousand requests at most, which is a few megabytes of
+ * longs, so there's no need for a histogram.
+ */
+public class LatencyRecorder {
+
+    /** Latencies and outcomes for one route */
+    static class Route {
+        long[] samples = new long[1024];
+        int count = 0;
+        int errors = 0;
+        final Map<Integer, Integer> statuses = new TreeMap<>();
+
+        void add(long nanos) {
+            if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+            samples[count++] = nanos;
+        }
+    }
+
+    /** A route's figures at the end of a run. Latencies are in milliseconds */
+    public record Summary(
+        String route, int count, int errors, double perSecond,
+        double p50, double p99, double p999, double max,
+        Map<Integer, Integer> statuses
+    ) {
+
+        public JsonObject toJson() {
+            JsonObject s = new JsonObject();
+            statuses.forEach((status, n) -> s.put(String.valueOf(status), n));
+            return new JsonObject()
+                .put("route", route)
+                .put("count", count)
+                .put("errors", errors)
+                .put("perSecond", perSecond)
+                .put("p50", p50)
+                .put("p99", p99)
+                .put("p999", p999)
+                .put("max", max)
+                .put("statuses", s);
+        }
+    }
+
+    private final Map<String, Route> routes = new TreeMap<>();
+
+    /**
+     * Records a response.
+     * @param route Which route it was (e.g. "command")
+     * @param nanos From when the request should have been sent to when the response arrived
+     * @param status The HTTP status, or 0 if there was no response at all
+     */
+    public synchronized void record(String route, long nanos, int status) {
+        Route r = routes.computeIfAbsent(route, (k) -> new Route());
+        r.add(nanos);
+        r.statuses.merge(status, 1, Integer::sum);
+        if (status / 100 != 2) r.errors++;
+    }
+
+    /** The value below which a fraction q of the sorted samples fall (nearest rank) */
+    static long percentile(long[] sorted, int count, double q) {
+        if (count == 0) return 0;
+        int rank = (int) Math.ceil(q * count);
+        return sorted[Math.min(count, Math.max(1, rank)) - 1];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /** Every route's figures, given how long the run took */
+    public synchronized Summary[] summarise(long elapsedNanos) {
+        double seconds = Math.max(1e-9, elapsedNanos / 1e9);
+        return routes.entrySet().stream().map((e) -> {
+            Route r = e.getValue();
+            long[] sorted = Arrays.copyOf(r.samples, r.count);
+            Arrays.sort(sorted);
+            return new Summary(
+                e.getKey(), r.count, r.errors, r.count / seconds,
+                millis(percentile(sorted, r.count, 0.50)),
+                millis(percentile(sorted, r.count, 0.99)),
+                millis(percentile(sorted, r.count, 0.999)),
+                millis(r.count == 0 ? 0 : sorted[r.count - 1]),
+                new TreeMap<>(r.statuses)
+            );
+        }).toArray(Summary[]::new);
+    }
+
+    /** A table for the terminal */
+    public static String toText(Summary[] summaries, long elapsedNanos) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Ran for %.1fs%n", elapsedNanos / 1e9));
+        sb.append(String.format("%-10s %8s %7s %9s %9s %9s %9s %9s  %s%n",
+            "route", "count", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "statuses"));
+        for (Summary s : summaries) {
+            sb.append(String.format("%-10s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f  %s%n",
+                s.route(), s.count(), s.errors(), s.perSecond(), s.p50(), s.p99(), s.p999(), s.max(), s.statuses()));
+        }
+        return sb.toString();
+    }
+
+    /** The same report, for saving and comparing between runs */
+    public static JsonObject toJson(Summary[] summaries, long elapsedNanos, LoadConfig config) {
+        JsonObject routes = new JsonObject();
+        for (Summary s : summaries) routes.put(s.route(), s.toJson());
+        return new JsonObject()
+            .put("config", JsonObject.mapFrom(config))
+            .put("seconds", elapsedNanos / 1e9)
+            .put("routes", routes);
+    }
+
+}
@@ -0,0 +1,78 @@
+package minigames.loadtest;
+
+/**
+ * What load to put on the server.
+ *
+ * Players arrive at a steady rate, whether or not the server is keeping up. Each one plays a short scripted
+ * session: the first player of every table starts a game (newGame), the rest join it (joinGame), and then every
+ * player sends a number of commands, thinkMillis apart.
+ *
+ * @param host Server to test. The harness is meant for a server on this machine
+ * @param port Its port
+ * @param gameServer The GameServer to play
+ * @param players How many player sessions to run in total
+ * @param arrivalsPerSecond How many new players arrive each second
+ * @param maxConcurrent How many sessions may be in progress at once. Players who arrive while this many are
+ *                      playing wait, and the wait counts against the server's latency
+ * @param playersPerGame How many players share each game
+ * @param commandsPerPlayer How many commands each player sends after joining
+ * @param thinkMillis How long a player waits between commands
+ * @param jsonFile Where to write the JSON report, or null for none
+ */
+public record LoadConfig(
+    String host,
+    int port,
+    String gameServer,
+    int players,
+    double arrivalsPerSecond,
+    int maxConcurrent,
+    int playersPerGame,
+    int commandsPerPlayer,
+    long thinkMillis,
+    String jsonFile
+) {
+
+    public static final LoadConfig DEFAULTS = new LoadConfig("localhost", 8080, "Muddle", 2000, 200, 1000, 4, 20, 250, null);
+
+    /** What --help prints */
+    public static final String USAGE = """
+        Usage: ./gradlew :loadtest:run --args="[--option=value ...]"
+          --host=localhost        Server to test
+          --port=8080             Its port
+          --gameServer=Muddle     GameServer to play
+          --players=2000          Player sessions to run
+          --rate=200              New players arriving each second
+          --concurrency=1000      Sessions that may be in progress at once
+          --playersPerGame=4      Players sharing each game
+          --commands=20           Commands each player sends
+          --think=250             Milliseconds between a player's commands
+          --json=report.json      Also write the report as JSON
+        """;
+
+    /** Reads --option=value arguments over the defaults */
+    public static LoadConfig parse(String... args) {
+        LoadConfig c = DEFAULTS;
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value, not " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            c = switch (key) {
+                case "host" -> new LoadConfig(value, c.port, c.gameServer, c.players, c.arrivalsPerSecond, c.maxConcurrent, c.playersPerGame, c.commandsPerPlayer, c.thinkMillis, c.jsonFile);
+                case "port" -> new LoadConfig(c.host, Integer.parseInt(value), c.gameServer, c.players, c.arrivalsPerSecond, c.maxConcurrent, c.playersPerGame, c.commandsPerPlayer, c.thinkMillis, c.jsonFile);
+                case "gameServer" -> new LoadConfig(c.host, c.port, value, c.players, c.arrivalsPerSecond, c.maxConcurrent, c.playersPerGame, c.commandsPerPlayer, c.thinkMillis, c.jsonFile);
+                case "players" -> new LoadConfig(c.host, c.port, c.gameServer, Integer.parseInt(value), c.arrivalsPerSecond, c.maxConcurrent, c.playersPerGame, c.commandsPerPlayer, c.thinkMillis, c.jsonFile);
+                case "rate" -> new LoadConfig(c.host, c.port, c.gameServer, c.players, Double.parseDouble(value), c.maxConcurrent, c.playersPerGame, c.commandsPerPlayer, c.thinkMillis, c.jsonFile);
+                case "concurrency" -> new LoadConfig(c.host, c.port, c.gameServer, c.players, c.arrivalsPerSecond, Integer.parseInt(value), c.playersPerGame, c.commandsPerPlayer, c.thinkMillis, c.jsonFile);
+                case "playersPerGame" -> new LoadConfig(c.host, c.port, c.gameServer, c.players, c.arrivalsPerSecond, c.maxConcurrent, Math.max(1, Integer.parseInt(value)), c.commandsPerPlayer, c.thinkMillis, c.jsonFile);
+                case "commands" -> new LoadConfig(c.host, c.port, c.gameServer, c.players, c.arrivalsPerSecond, c.maxConcurrent, c.playersPerGame, Integer.parseInt(value), c.thinkMillis, c.jsonFile);
+                case "think" -> new LoadConfig(c.host, c.port, c.gameServer, c.players, c.arrivalsPerSecond, c.maxConcurrent, c.playersPerGame, c.commandsPerPlayer, Long.parseLong(value), c.jsonFile);
+                case "json" -> new LoadConfig(c.host, c.port, c.gameServer, c.players, c.arrivalsPerSecond, c.maxConcurrent, c.playersPerGame, c.commandsPerPlayer, c.thinkMillis, value);
+                default -> throw new IllegalArgumentException("Unknown option --" + key);
+            };
+        }
+        return c;
+    }
+
+}
@@ -0,0 +1,210 @@
+package minigames.loadtest;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+
+/**
+ * Plays many bot players against a server at once, and times every request.
+ *
+ * The load is open-loop: players arrive on a fixed schedule (one every 1/rate seconds), and each of a player's
+ * commands is due a fixed think time after the last one was due, whether or not the server has answered yet.
+ * Every latency is measured from when the request was due, not from when it was actually sent. So if the server
+ * stalls for a second, the requests that should have gone out during that second all count the stall, as a real
+ * player's would, instead of quietly not being sent (coordinated omission).
+ *
+ * Everything runs on one Vert.x event loop, so the generator itself needs very little.
+ */
+public class LoadGenerator {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(LoadGenerator.class);
+
+    /** Directions the bots wander in, and a look round. Muddle answers anything else with "I don't understand that." */
+    static final String[] MOVES = { "N", "E", "S", "W", "look" };
+
+    private final Vertx vertx;
+    private final LoadConfig config;
+    private final WebClient client;
+    private final LatencyRecorder recorder = new LatencyRecorder();
+
+    /** The game each table of players is in, once its first player has made it */
+    private final List<Future<String>> tables;
+
+    /** Players who have arrived but can't start until a session finishes (maxConcurrent) */
+    private final Queue<Integer> waiting = new ArrayDeque<>();
+    private int active = 0;
+    private int finished = 0;
+
+    private long startNanos;
+    private final Promise<Void> done = Promise.promise();
+
+    @SuppressWarnings("unchecked")
+    public LoadGenerator(Vertx vertx, LoadConfig config) {
+        this.vertx = vertx;
+        this.config = config;
+        this.client = WebClient.create(vertx, new WebClientOptions()
+            .setDefaultHost(config.host())
+            .setDefaultPort(config.port())
+            .setKeepAlive(true)
+            // A connection for each session in progress. A session only has more than one request out when
+            // the server is already late, and time spent queued here counts against it either way
+            .setMaxPoolSize(Math.max(1, config.maxConcurrent()))
+            .setPipelining(false));
+        this.tables = new ArrayList<>(Collections.nCopies((config.players() + config.playersPerGame() - 1) / config.playersPerGame(), null));
+    }
+
+    public LatencyRecorder recorder() {
+        return recorder;
+    }
+
+    /** Runs every session, completing with how long the run took in nanoseconds */
+    public Future<Long> run() {
+        if (config.players() <= 0) return Future.succeededFuture(0L);
+        vertx.runOnContext((v) -> {
+            startNanos = System.nanoTime();
+            arrive(0);
+        });
+        return done.future().map((v) -> System.nanoTime() - startNanos);
+    }
+
+    /** When something scheduled to happen at the given offset from the start of the run is due */
+    private long dueAt(double secondsFromStart) {
+        return startNanos + (long) (secondsFromStart * 1e9);
+    }
+
+    /** Runs a task when it's due (straight away if it's already late) */
+    private void at(long dueNanos, Runnable task) {
+        long delayMillis = TimeUnit.NANOSECONDS.toMillis(dueNanos - System.nanoTime());
+        if (delayMillis < 1) {
+            task.run();
+        } else {
+            vertx.setTimer(delayMillis, (id) -> task.run());
+        }
+    }
+
+// Arrivals
+
+    /** Player i arrives. Schedules the next arrival from the fixed timetable, not from now */
+    private void arrive(int i) {
+        long due = dueAt(i / config.arrivalsPerSecond());
+        if (i + 1 < config.players()) {
+            at(dueAt((i + 1) / config.arrivalsPerSecond()), () -> arrive(i + 1));
+        }
+        if (active < config.maxConcurrent()) {
+            start(i, due);
+        } else {
+            waiting.add(i);
+        }
+    }
+
+    private void start(int i, long due) {
+        active++;
+        session(i, due).onComplete((ar) -> {
+            if (ar.failed()) logger.debug("bot{} gave up: {}", i, ar.cause().getMessage());
+            active--;
+            finished++;
+            Integer next = waiting.poll();
+            if (next != null) {
+                // It has been due since it arrived, so its first request counts the wait
+                start(next, dueAt(next / config.arrivalsPerSecond()));
+            } else if (finished == config.players()) {
+                done.complete();
+            }
+        });
+    }
+
+// Sessions
+
+    /** One player's script: make or join their table's game, then send commands */
+    private Future<Void> session(int i, long due) {
+        String player = "bot" + i;
+        int table = i / config.playersPerGame();
+        Future<String> game;
+        if (i % config.playersPerGame() == 0) {
+            game = newGame(player, due);
+            tables.set(table, game);
+        } else {
+            game = tables.get(table).compose((id) -> joinGame(id, player, due));
+        }
+        return game.compose((id) -> commands(id, player, due));
+    }
+
+    private Future<String> newGame(String player, long due) {
+        return timed("newGame", due, client.post("/newGame/" + encode(config.gameServer())).sendBuffer(Buffer.buffer(player)))
+            .map((resp) -> resp.bodyAsJsonObject().getJsonObject("metadata").getString("name"));
+    }
+
+    private Future<String> joinGame(String game, String player, long due) {
+        return timed("joinGame", due, client.post("/joinGame/" + encode(config.gameServer()) + "/" + encode(game)).sendBuffer(Buffer.buffer(player)))
+            .map(game);
+    }
+
+    /** Sends a player's commands, each due thinkMillis after the one before was due, completing once all are answered */
+    private Future<Void> commands(String game, String player, long sessionDue) {
+        if (config.commandsPerPlayer() <= 0) return Future.succeededFuture();
+        Promise<Void> answered = Promise.promise();
+        command(game, player, sessionDue, 0, new int[] { config.commandsPerPlayer() }, answered);
+        return answered.future();
+    }
+
+    /**
+     * Sends command n when it's due, and schedules command n+1 from the timetable straight away, without waiting
+     * for the answer. unanswered counts down as answers come in (all on the one event loop).
+     */
+    private void command(String game, String player, long sessionDue, int n, int[] unanswered, Promise<Void> answered) {
+        long due = sessionDue + TimeUnit.MILLISECONDS.toNanos(config.thinkMillis() * (n + 1));
+        at(due, () -> {
+            if (n + 1 < config.commandsPerPlayer()) command(game, player, sessionDue, n + 1, unanswered, answered);
+
+            JsonObject cp = new JsonObject()
+                .put("gameServer", config.gameServer())
+                .put("gameId", game)
+                .put("player", player)
+                .put("commands", new JsonArray().add(new JsonObject().put("command", MOVES[n % MOVES.length])));
+            // A failed command doesn't end the session; the player carries on with the next one
+            timed("command", due, client.post("/command").sendJsonObject(cp)).onComplete((ar) -> {
+                if (--unanswered[0] == 0) answered.complete();
+            });
+        });
+    }
+
+    /** Records a request's latency from when it was due, failing unless it was answered 2xx */
+    private Future<HttpResponse<Buffer>> timed(String route, long due, Future<HttpResponse<Buffer>> request) {
+        return request.transform((ar) -> {
+            long latency = System.nanoTime() - due;
+            if (ar.failed()) {
+                recorder.record(route, latency, 0);
+                return Future.failedFuture(ar.cause());
+            }
+            HttpResponse<Buffer> resp = ar.result();
+            recorder.record(route, latency, resp.statusCode());
+            return resp.statusCode() / 100 == 2
+                ? Future.succeededFuture(resp)
+                : Future.failedFuture(route + " answered " + resp.statusCode());
+        });
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+}
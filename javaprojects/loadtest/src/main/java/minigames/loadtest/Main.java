@@ -0,0 +1,60 @@
+package minigames.loadtest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.Vertx;
+
+/**
+ * Runs the load test from the command line, against a server that's already running, and prints the report.
+ *
+ * e.g. ./gradlew :loadtest:run --args="--players=5000 --rate=500 --json=build/load.json"
+ */
+public class Main {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(Main.class);
+
+    public static void main(String... args) {
+        if (Arrays.asList(args).contains("--help")) {
+            System.out.print(LoadConfig.USAGE);
+            return;
+        }
+
+        LoadConfig config;
+        try {
+            config = LoadConfig.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(LoadConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        logger.info("Starting {} players at {}/s against {}:{}", config.players(), config.arrivalsPerSecond(), config.host(), config.port());
+        Vertx vertx = Vertx.vertx();
+        LoadGenerator generator = new LoadGenerator(vertx, config);
+        generator.run()
+            .onSuccess((elapsed) -> {
+                LatencyRecorder.Summary[] summaries = generator.recorder().summarise(elapsed);
+                System.out.print(LatencyRecorder.toText(summaries, elapsed));
+                if (config.jsonFile() != null) {
+                    try {
+                        Files.writeString(Path.of(config.jsonFile()),
+                            LatencyRecorder.toJson(summaries, elapsed, config).encodePrettily(), StandardCharsets.UTF_8);
+                    } catch (IOException ex) {
+                        logger.error("Could not write {}: {}", config.jsonFile(), ex.getMessage());
+                    }
+                }
+            })
+            .onFailure((ex) -> logger.error("Load test failed", ex))
+            .onComplete((ar) -> vertx.close());
+    }
+
+}
@@ -0,0 +1,52 @@
+package minigames.loadtest;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the load test's report, and how it reads its options.
+ */
+public class LatencyRecorderTests {
+
+    @Test
+    @DisplayName("Percentiles are exact, by nearest rank")
+    public void percentiles() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int i = 1; i <= 1000; i++) {
+            recorder.record("command", TimeUnit.MILLISECONDS.toNanos(i), i <= 990 ? 200 : 503);
+        }
+        recorder.record("newGame", TimeUnit.MILLISECONDS.toNanos(5), 0);
+
+        LatencyRecorder.Summary[] summaries = recorder.summarise(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(2, summaries.length);
+
+        LatencyRecorder.Summary command = summaries[0];
+        assertEquals("command", command.route());
+        assertEquals(1000, command.count());
+        assertEquals(10, command.errors());
+        assertEquals(100.0, command.perSecond(), 1e-9);
+        assertEquals(500.0, command.p50(), 1e-9);
+        assertEquals(990.0, command.p99(), 1e-9);
+        assertEquals(999.0, command.p999(), 1e-9);
+        assertEquals(1000.0, command.max(), 1e-9);
+        assertEquals(Map.of(200, 990, 503, 10), command.statuses());
+
+        // No response at all counts as an error
+        assertEquals(1, summaries[1].errors());
+    }
+
+    @Test
+    @DisplayName("Options override the defaults, and unknown ones are refused")
+    public void options() {
+        LoadConfig c = LoadConfig.parse("--players=10", "--rate=2.5", "--json=out.json");
+        assertEquals(10, c.players());
+        assertEquals(2.5, c.arrivalsPerSecond());
+        assertEquals("out.json", c.jsonFile());
+        assertEquals(LoadConfig.DEFAULTS.port(), c.port());
+        assertThrows(IllegalArgumentException.class, () -> LoadConfig.parse("--nope=1"));
+    }
+
+}
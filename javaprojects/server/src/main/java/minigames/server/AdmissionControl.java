@@ -0,0 +1,234 @@
+package minigames.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import minigames.server.utilities.Utilities;
+
+/**
+ * Decides whether a call into a GameServer may be queued, so that a flood of commands is turned away quickly
+ * rather than piling up on the scheduler until everyone's latency explodes.
+ *
+ * There are three limits, each of which can be switched off by setting it to 0:
+ * - Each player has a token bucket. A player who sends too fast gets 429 Too Many Requests.
+ * - Each game has a token bucket, shared by its players. A game that's too busy gets 429 as well.
+ * - Each GameServer has a bound on calls that have been admitted but haven't finished.
+ *   If it's full, the server is overloaded and the call gets 503 Service Unavailable.
+ * Rejections say how many seconds to wait before trying again, for the Retry-After header.
+ *
+ * Every admitted call must be matched by a call to done() (or be wrapped with track()) when it finishes.
+ */
+public class AdmissionControl {
+
+    /** The limits to apply. A rate or bound of 0 means no limit */
+    public record Limits(
+        double playerRate, int playerBurst,
+        double gameRate, int gameBurst,
+        int maxPendingPerServer
+    ) {
+        public static final Limits UNLIMITED = new Limits(0, 0, 0, 0, 0);
+
+        /** Reads the limits from the admission.* properties */
+        public static Limits fromConfig(Properties config) {
+            return new Limits(
+                Utilities.getDoubleProperty(config, "admission.player.rate", 0),
+                Utilities.getIntProperty(config, "admission.player.burst", 0),
+                Utilities.getDoubleProperty(config, "admission.game.rate", 0),
+                Utilities.getIntProperty(config, "admission.game.burst", 0),
+                Utilities.getIntProperty(config, "admission.server.pending", 0)
+            );
+        }
+    }
+
+    /** Whether a call was admitted, and if not, the HTTP status and Retry-After to reply with */
+    public record Decision(int status, long retryAfterSeconds, String reason) {
+        static final Decision ADMITTED = new Decision(200, 0, null);
+
+        public boolean admitted() {
+            return this == ADMITTED;
+        }
+
+        /** The body to send back with a rejection */
+        public JsonObject toJson() {
+            return new JsonObject().put("error", reason).put("retryAfter", retryAfterSeconds);
+        }
+    }
+
+    /** A token bucket. Starts full, and refills continuously at rate tokens per second up to burst */
+    static class TokenBucket {
+        final double rate;
+        final double burst;
+        double tokens;
+        long last;
+
+        TokenBucket(double rate, int burst, long now) {
+            this.rate = rate;
+            this.burst = Math.max(burst, 1);
+            this.tokens = this.burst;
+            this.last = now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            last = now;
+        }
+
+        /** Takes a token, returning 0, or returns how many nanoseconds until one will be available */
+        synchronized long tryAcquire(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / rate * 1e9);
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(burst, tokens + 1);
+        }
+
+        /** Whether the bucket has refilled, so forgetting it would make no difference */
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+    }
+
+    /** How often (in admissions) to drop buckets that have refilled, so idle players don't use memory forever */
+    private static final int SWEEP_INTERVAL = 4096;
+
+    private final Limits limits;
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<String, TokenBucket> playerBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> gameBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+    private final AtomicLong admissions = new AtomicLong();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejectedPlayer = new LongAdder();
+    private final LongAdder rejectedGame = new LongAdder();
+    private final LongAdder rejectedOverload = new LongAdder();
+
+    public AdmissionControl(Limits limits, LongSupplier nanoClock) {
+        this.limits = limits;
+        this.clock = nanoClock;
+    }
+
+    public AdmissionControl(Limits limits) {
+        this(limits, System::nanoTime);
+    }
+
+    /** Seconds to put in Retry-After, rounded up so clients never come back too early */
+    static long retryAfter(long nanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(nanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * Decides whether a call from a player to a game may be queued.
+     * If it is admitted, it counts as pending on its GameServer until done() is called.
+     */
+    public Decision admit(String gameServer, String game, String player) {
+        if (admissions.incrementAndGet() % SWEEP_INTERVAL == 0) sweep();
+        long now = clock.getAsLong();
+
+        AtomicInteger serverPending = null;
+        if (limits.maxPendingPerServer() > 0) {
+            serverPending = pending.computeIfAbsent(gameServer, (k) -> new AtomicInteger());
+            if (serverPending.incrementAndGet() > limits.maxPendingPerServer()) {
+                serverPending.decrementAndGet();
+                rejectedOverload.increment();
+                return new Decision(503, 1, gameServer + " is overloaded");
+            }
+        }
+
+        TokenBucket playerBucket = null;
+        if (limits.playerRate() > 0) {
+            playerBucket = playerBuckets.computeIfAbsent(PlayerChannels.key(gameServer, game, player),
+                (k) -> new TokenBucket(limits.playerRate(), limits.playerBurst(), now));
+            long wait = playerBucket.tryAcquire(now);
+            if (wait > 0) {
+                if (serverPending != null) serverPending.decrementAndGet();
+                rejectedPlayer.increment();
+                return new Decision(429, retryAfter(wait), "Too many commands from " + player);
+            }
+        }
+
+        if (limits.gameRate() > 0) {
+            TokenBucket gameBucket = gameBuckets.computeIfAbsent(GameScheduler.key(gameServer, game),
+                (k) -> new TokenBucket(limits.gameRate(), limits.gameBurst(), now));
+            long wait = gameBucket.tryAcquire(now);
+            if (wait > 0) {
+                if (playerBucket != null) playerBucket.refund();
+                if (serverPending != null) serverPending.decrementAndGet();
+                rejectedGame.increment();
+                return new Decision(429, retryAfter(wait), "Too many commands for game " + game);
+            }
+        }
+
+        admitted.increment();
+        return Decision.ADMITTED;
+    }
+
+    /** Marks an admitted call to a GameServer as finished */
+    public void done(String gameServer) {
+        if (limits.maxPendingPerServer() > 0) {
+            AtomicInteger serverPending = pending.get(gameServer);
+            if (serverPending != null) serverPending.decrementAndGet();
+        }
+    }
+
+    /** Calls done() when an admitted call's Future completes, whether it succeeded or not */
+    public <T> Future<T> track(String gameServer, Future<T> call) {
+        return call.onComplete((ar) -> done(gameServer));
+    }
+
+    /** The number of admitted calls to a GameServer that haven't finished */
+    public int pending(String gameServer) {
+        AtomicInteger serverPending = pending.get(gameServer);
+        return serverPending == null ? 0 : serverPending.get();
+    }
+
+    /** Drops buckets that have refilled. They'd be recreated full, so nobody can tell */
+    void sweep() {
+        long now = clock.getAsLong();
+        playerBuckets.values().removeIf((b) -> b.isFull(now));
+        gameBuckets.values().removeIf((b) -> b.isFull(now));
+    }
+
+    /** Publishes the admission and rejection counts, and pending calls, in Metrics */
+    public void register(Metrics metrics) {
+        metrics.counter("minigames_admission_admitted_total", "Calls admitted", admitted::sum);
+        metrics.counter("minigames_admission_rejected_player_total", "Calls rejected because the player sent too fast", rejectedPlayer::sum);
+        metrics.counter("minigames_admission_rejected_game_total", "Calls rejected because the game was too busy", rejectedGame::sum);
+        metrics.counter("minigames_admission_rejected_overload_total", "Calls rejected because the GameServer was overloaded", rejectedOverload::sum);
+        metrics.gauge("minigames_admission_pending", "Admitted calls that haven't finished, by GameServer", "game_server",
+            () -> {
+                Map<String, Integer> counts = new HashMap<>();
+                pending.forEach((gameServer, n) -> counts.put(gameServer, n.get()));
+                return counts;
+            });
+    }
+
+    /** Counts of admitted and rejected calls, and the pending calls on each GameServer */
+    public JsonObject stats() {
+        JsonObject servers = new JsonObject();
+        pending.forEach((gameServer, n) -> servers.put(gameServer, n.get()));
+        return new JsonObject()
+            .put("admitted", admitted.sum())
+            .put("rejectedPlayer", rejectedPlayer.sum())
+            .put("rejectedGame", rejectedGame.sum())
+            .put("rejectedOverload", rejectedOverload.sum())
+            .put("pending", servers);
+    }
+
+}
@@ -0,0 +1,156 @@
+package minigames.server;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import minigames.server.utilities.Utilities;
+
+/**
+ * A GameServer's own share of the threads that run game calls, so that one game that blocks or floods the
+ * server with work only slows itself down.
+ *
+ * A bulkhead runs at most maxConcurrent of its GameServer's mailboxes at once, on its own executor. Mailboxes
+ * past that wait their turn inside the bulkhead, not in a queue shared with other GameServers. It also bounds
+ * the calls that can be queued or running for its GameServer: the GameScheduler turns calls past maxPending
+ * away straight away, with a FullException, rather than letting them pile up.
+ */
+public class Bulkhead implements Executor {
+
+    /** How much a GameServer may have running and queued at once. 0 means no limit */
+    public record Limits(int maxConcurrent, int maxPending) {
+
+        /** No bulkhead at all: the GameServer shares the scheduler's own threads */
+        public static final Limits SHARED = new Limits(0, 0);
+
+        /** Whether these limits call for a bulkhead of its own */
+        public boolean isolated() {
+            return maxConcurrent > 0;
+        }
+
+        /** Reads the limits from the bulkhead.* properties, which every GameServer inherits unless it declares its own */
+        public static Limits fromConfig(Properties config) {
+            return new Limits(
+                Utilities.getIntProperty(config, "bulkhead.threads", 0),
+                Utilities.getIntProperty(config, "bulkhead.pending", 0)
+            );
+        }
+    }
+
+    /** Thrown (as a failed Future) for calls a full bulkhead turns away */
+    public static class FullException extends RuntimeException {
+
+        private final String gameServer;
+
+        public FullException(String gameServer) {
+            super(gameServer + " has too many calls waiting");
+            this.gameServer = gameServer;
+        }
+
+        /** The reply to send: 503, try again in a second */
+        public AdmissionControl.Decision decision() {
+            return new AdmissionControl.Decision(503, 1, getMessage());
+        }
+
+        public String gameServer() {
+            return gameServer;
+        }
+    }
+
+    private final String gameServer;
+    private final Limits limits;
+    private final Executor executor;
+
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param gameServer The GameServer this bulkhead is for
+     * @param limits How much it may run and queue
+     * @param executor Its own threads (a pool of maxConcurrent, or virtual threads)
+     */
+    public Bulkhead(String gameServer, Limits limits, Executor executor) {
+        this.gameServer = gameServer;
+        this.limits = limits;
+        this.executor = executor;
+    }
+
+    /** Counts a call as pending, returning false if the bulkhead is full and the call should be turned away */
+    boolean tryAcquire() {
+        if (limits.maxPending() <= 0) {
+            pending.incrementAndGet();
+            return true;
+        }
+        if (pending.incrementAndGet() > limits.maxPending()) {
+            pending.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /** Marks a call that tryAcquire let in as finished */
+    void release() {
+        pending.decrementAndGet();
+    }
+
+    /** Runs a task once fewer than maxConcurrent of this bulkhead's tasks are running */
+    @Override
+    public void execute(Runnable task) {
+        waiting.add(task);
+        drain();
+    }
+
+    /** Starts waiting tasks while there's room */
+    private void drain() {
+        while (true) {
+            int n = running.get();
+            if (n >= limits.maxConcurrent()) return;
+            if (!running.compareAndSet(n, n + 1)) continue;
+
+            Runnable task = waiting.poll();
+            if (task == null) {
+                running.decrementAndGet();
+                // Something may have been added after we looked but before we gave the slot back
+                if (waiting.isEmpty()) return;
+                continue;
+            }
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    running.decrementAndGet();
+                    drain();
+                }
+            });
+        }
+    }
+
+    public String gameServer() {
+        return gameServer;
+    }
+
+    public Limits limits() {
+        return limits;
+    }
+
+    /** Mailboxes running right now */
+    public int active() {
+        return running.get();
+    }
+
+    /** Calls queued or running */
+    public int pending() {
+        return pending.get();
+    }
+
+    /** Calls turned away because the bulkhead was full */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+}
@@ -0,0 +1,167 @@
+package minigames.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Runs a batch of CommandPackages sent to POST /commands.
+ *
+ * The packages are grouped by game. Each group is queued on its game's scheduler mailbox as a single call,
+ * which runs the group's packages in the order they appeared in the batch. Different games' groups run in parallel.
+ *
+ * The result has one entry per package, in the same order as the batch: either the RenderingPackage that came back,
+ * or { "error": message } if that package could not be run. One bad package doesn't fail the rest of the batch.
+ * As with single commands, each RenderingPackage only carries what has changed for its player,
+ * and each package has to get past admission control. Packages turned away get { "error": reason, "retryAfter": seconds }.
+ * Packages can name their game and player with a handle (see PlayerHandles), as single commands can.
+ */
+public class CommandBatch {
+
+    private final GameRegistry registry;
+    private final GameScheduler scheduler;
+    private final RenderingDeltas deltas;
+    private final AdmissionControl admission;
+    private final Deadline.Policy deadlines;
+    private final PlayerHandles handles;
+
+    /** @param handles Where to look up packages' handles. Null if packages must name their game and player */
+    public CommandBatch(GameRegistry registry, GameScheduler scheduler, RenderingDeltas deltas, AdmissionControl admission,
+            Deadline.Policy deadlines, PlayerHandles handles) {
+        this.registry = registry;
+        this.scheduler = scheduler;
+        this.deltas = deltas;
+        this.admission = admission;
+        this.deadlines = deadlines;
+        this.handles = handles;
+    }
+
+    public CommandBatch(GameRegistry registry, GameScheduler scheduler, RenderingDeltas deltas, AdmissionControl admission,
+            Deadline.Policy deadlines) {
+        this(registry, scheduler, deltas, admission, deadlines, null);
+    }
+
+    public CommandBatch(GameRegistry registry, GameScheduler scheduler, RenderingDeltas deltas, AdmissionControl admission) {
+        this(registry, scheduler, deltas, admission, Deadline.Policy.NONE);
+    }
+
+    /** The result entry for a package that could not be run */
+    static JsonObject error(String message) {
+        return new JsonObject().put("error", message);
+    }
+
+    /**
+     * Runs a batch.
+     * @param batch A JSON array of CommandPackages
+     * @return A list holding a RenderingPackage or an error JsonObject for each package
+     */
+    public Future<List<Object>> run(JsonArray batch) {
+        Object[] results = new Object[batch.size()];
+
+        // Group the packages by game, remembering where each one came from in the batch
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        CommandPackage[] packages = new CommandPackage[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                packages[i] = CommandPackage.fromJson(batch.getJsonObject(i));
+            } catch (RuntimeException ex) {
+                results[i] = error("Malformed command package: " + ex.getMessage());
+                continue;
+            }
+            // Names come from the handle, if there is one, before the package is admitted or grouped by them
+            if (handles != null) packages[i] = handles.fill(packages[i]);
+            if (packages[i].gameServer() == null) {
+                results[i] = error(packages[i].handle() != 0 ? "Unknown handle" : "No game server given");
+                continue;
+            }
+            if (registry.getGameServer(packages[i].gameServer()) == null) {
+                results[i] = error("No such game server: " + packages[i].gameServer());
+                continue;
+            }
+            AdmissionControl.Decision decision = admission.admit(packages[i].gameServer(), packages[i].gameId(), packages[i].player());
+            if (!decision.admitted()) {
+                results[i] = decision.toJson();
+                continue;
+            }
+            groups.computeIfAbsent(GameScheduler.key(packages[i].gameServer(), packages[i].gameId()),
+                (k) -> new ArrayList<>()).add(i);
+        }
+
+        // The whole batch shares one deadline
+        Deadline deadline = deadlines.forRoute("commands");
+
+        List<Future> pending = new ArrayList<>();
+        for (List<Integer> group : groups.values()) {
+            CommandPackage first = packages[group.get(0)];
+            GameServer gs = registry.getGameServer(first.gameServer());
+            AtomicBoolean started = new AtomicBoolean();
+            pending.add(scheduler.submit(first.gameServer(), first.gameId(), "batch", deadline, () -> {
+                    started.set(true);
+                    return runGroup(gs, group, packages, results, deadline);
+                })
+                .recover((ex) -> {
+                    JsonObject reason = ex instanceof Bulkhead.FullException full ? full.decision().toJson()
+                        : ex instanceof Deadline.ExceededException exceeded ? exceeded.decision().toJson()
+                        : error(ex.getMessage());
+                    for (int i : group) {
+                        if (results[i] == null) {
+                            results[i] = reason;
+                            // If the group never ran, none of its packages will say they're done
+                            if (!started.get()) admission.done(packages[i].gameServer());
+                        }
+                    }
+                    return Future.succeededFuture();
+                }));
+        }
+
+        return CompositeFuture.join(pending).transform((ar) -> Future.succeededFuture(Arrays.asList(results)));
+    }
+
+    /**
+     * Runs one game's packages in batch order, each starting after the previous one's Future completes.
+     * Packages whose turn comes after the deadline has passed aren't run.
+     */
+    private Future<Void> runGroup(GameServer gs, List<Integer> group, CommandPackage[] packages, Object[] results, Deadline deadline) {
+        Future<Void> chain = Future.succeededFuture();
+        for (int i : group) {
+            chain = chain.compose((v) -> admission.track(packages[i].gameServer(), deadline.expired()
+                    ? Future.<RenderingPackage>failedFuture(new Deadline.ExceededException(packages[i].gameServer(), packages[i].gameId()))
+                    : call(gs, packages[i], deadline))
+                .map((rp) -> {
+                    results[i] = rp;
+                    return (Void) null;
+                })
+                .otherwise((ex) -> {
+                    results[i] = error(ex.getMessage() == null ? ex.toString() : ex.getMessage());
+                    return null;
+                }));
+        }
+        return chain;
+    }
+
+    /** Calls the game with the batch's deadline current, turning an exception into a failed Future */
+    private Future<RenderingPackage> call(GameServer gs, CommandPackage cp, Deadline deadline) {
+        Deadline previous = Deadline.enter(deadline);
+        try {
+            Future<RenderingPackage> f = gs.callGame(deltas.receive(cp));
+            return f == null
+                ? Future.failedFuture("GameServer returned no result")
+                : f.map((rp) -> deltas.send(cp.gameServer(), cp.gameId(), cp.player(), rp));
+        } catch (RuntimeException ex) {
+            return Future.failedFuture(ex);
+        } finally {
+            Deadline.exit(previous);
+        }
+    }
+
+}
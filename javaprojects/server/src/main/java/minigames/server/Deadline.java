@@ -0,0 +1,120 @@
+package minigames.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import minigames.server.utilities.Utilities;
+
+/**
+ * When a call into a GameServer has to be finished by.
+ *
+ * Every route gives its calls a deadline, and the GameScheduler fails a call whose deadline passes, whether it
+ * is still queued, running, or waiting on a Future the GameServer never completes. So a stuck game can't leave
+ * requests hanging.
+ *
+ * While a GameServer's method runs, Deadline.current() is the call's deadline. A GameServer that does slow work
+ * (e.g. several database queries) can check it and stop early, because nobody is waiting for the answer any more.
+ */
+public final class Deadline {
+
+    /** No deadline at all */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+    /** Thrown (as a failed Future) for calls whose deadline passed */
+    public static class ExceededException extends RuntimeException {
+
+        public ExceededException(String gameServer, String gameId) {
+            super("Call to " + gameServer + (gameId.isEmpty() ? "" : "/" + gameId) + " timed out");
+        }
+
+        /** The reply to send: 504, try again in a second */
+        public AdmissionControl.Decision decision() {
+            return new AdmissionControl.Decision(504, 1, getMessage());
+        }
+    }
+
+    /** How long calls from each route get. Routes without their own deadline get the default */
+    public record Policy(long defaultMillis, Map<String, Long> routeMillis) {
+
+        /** No deadlines on any route */
+        public static final Policy NONE = new Policy(0, Map.of());
+
+        /** The deadline for a call made now from a route (e.g. "command") */
+        public Deadline forRoute(String route) {
+            return Deadline.in(routeMillis.getOrDefault(route, defaultMillis));
+        }
+
+        /**
+         * Reads deadline.ms (the default) and deadline.route.[route]=ms for routes that need something else,
+         * e.g. deadline.route.newGame=10000
+         */
+        public static Policy fromConfig(Properties config) {
+            Map<String, Long> routes = new HashMap<>();
+            for (String key : config.stringPropertyNames()) {
+                if (key.startsWith("deadline.route.")) {
+                    routes.put(key.substring("deadline.route.".length()), (long) Utilities.getIntProperty(config, key, 0));
+                }
+            }
+            return new Policy(Utilities.getIntProperty(config, "deadline.ms", 0), Map.copyOf(routes));
+        }
+    }
+
+    /** System.nanoTime() at which the deadline passes */
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /** A deadline this many milliseconds from now. 0 or less means none */
+    public static Deadline in(long millis) {
+        if (millis <= 0) return NONE;
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /** The deadline of the call running on this thread, or NONE */
+    public static Deadline current() {
+        Deadline d = current.get();
+        return d == null ? NONE : d;
+    }
+
+    /** Makes a deadline current on this thread while a call runs, returning the one it replaced */
+    static Deadline enter(Deadline d) {
+        Deadline previous = current.get();
+        current.set(d);
+        return previous;
+    }
+
+    /** Puts back the deadline enter() replaced */
+    static void exit(Deadline previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+    public boolean isNone() {
+        return this == NONE;
+    }
+
+    public boolean expired() {
+        return !isNone() && System.nanoTime() - expiresAt >= 0;
+    }
+
+    /** Nanoseconds left, 0 if it has passed, or Long.MAX_VALUE if there's no deadline */
+    public long remainingNanos() {
+        if (isNone()) return Long.MAX_VALUE;
+        return Math.max(0, expiresAt - System.nanoTime());
+    }
+
+    /** Milliseconds left, for GameServers passing the deadline on (e.g. as a JDBC query timeout) */
+    public long remainingMillis() {
+        return isNone() ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(remainingNanos());
+    }
+
+}
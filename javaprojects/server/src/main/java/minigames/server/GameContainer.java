@@ -0,0 +1,291 @@
+package minigames.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.vertx.core.Future;
+
+/**
+ * Holds a GameServer's games in progress, and gets rid of the ones nobody is playing any more.
+ *
+ * Lookups are a ConcurrentHashMap get, with no locking. Each lookup through get() marks the game as active.
+ *
+ * Every game has a slot on a timing wheel for when it would become idle. When the slot comes round, the game is
+ * checked: if it has been used since, it goes back on the wheel for the time it has left; if not, it is evicted.
+ * Eviction runs in the game's own scheduler mailbox, so it can't happen half-way through a call, and it checks
+ * once more that nothing has used the game while the eviction was queued. The GameServer is told about each game
+ * evicted, so it can tell the players.
+ *
+ * Games can also be restored the first time they are asked for, e.g. from a snapshot saved before a restart.
+ *
+ * Every container's game counts (and, if the GameServer can estimate it, their size) are reported in Metrics.
+ *
+ * @param <G> The GameServer's game class
+ */
+public class GameContainer<G> {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(GameContainer.class);
+
+    /** Told about a game that has been evicted, from the game's own scheduler mailbox */
+    public interface EvictionListener<G> {
+        void evicted(String gameId, G game);
+    }
+
+    /** Times idle games. Games idle for minutes don't need finer ticks than a second */
+    private static final HashedWheelTimer wheel = new HashedWheelTimer(
+        new ThreadFactoryBuilder().setNameFormat("idle-game-wheel-%d").setDaemon(true).build(), 1, TimeUnit.SECONDS);
+
+    /** Every container, by GameServer, for Metrics */
+    private static final Map<String, GameContainer<?>> containers = new ConcurrentHashMap<>();
+
+    /** How many games to look at when estimating how much memory a container's games take */
+    static final int SIZE_SAMPLE = 16;
+
+    /** A game and when it was last used */
+    private final class Slot {
+        final String id;
+        final G game;
+        volatile long lastActive;
+        Timeout timeout;
+
+        Slot(String id, G game) {
+            this.id = id;
+            this.game = game;
+            this.lastActive = clock.getAsLong();
+        }
+    }
+
+    private final String gameServer;
+    private final long idleNanos;
+    private final GameScheduler scheduler;
+    private final EvictionListener<G> listener;
+    private final LongSupplier clock;
+    private volatile ToLongFunction<G> sizeOf;
+    private volatile Function<String, G> restorer;
+
+    private final ConcurrentHashMap<String, Slot> games = new ConcurrentHashMap<>();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param gameServer The GameServer whose games these are. Null for a container that isn't part of the running
+     *                   server (e.g. one games are replayed into), which isn't reported in the metrics
+     * @param idleMillis How long a game can go unused before it's evicted. 0 or less keeps games forever
+     * @param scheduler Where to run evictions, in each game's mailbox. Null runs them on the wheel's thread
+     * @param listener Told about each game evicted
+     * @param nanoClock The time, in nanoseconds
+     */
+    public GameContainer(String gameServer, long idleMillis, GameScheduler scheduler, EvictionListener<G> listener, LongSupplier nanoClock) {
+        this.gameServer = gameServer;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.clock = nanoClock;
+        if (gameServer != null) containers.put(gameServer, this);
+    }
+
+    public GameContainer(String gameServer, long idleMillis, GameScheduler scheduler, EvictionListener<G> listener) {
+        this(gameServer, idleMillis, scheduler, listener, System::nanoTime);
+    }
+
+    /** Lets the container report roughly how many bytes its games take, from an estimate of one game's size */
+    public void estimateSizeWith(ToLongFunction<G> sizeOf) {
+        this.sizeOf = sizeOf;
+    }
+
+    /**
+     * Lets the container carry on games it hasn't got, e.g. ones saved before the server restarted.
+     * When get() doesn't find a game, it asks the restorer, which returns the game or null.
+     */
+    public void restoreWith(Function<String, G> restorer) {
+        this.restorer = restorer;
+    }
+
+// Games
+
+    /** Gets a game, and marks it as active. Null if there isn't one (and it can't be restored) */
+    public G get(String gameId) {
+        Slot s = games.get(gameId);
+        if (s == null) return restore(gameId);
+        s.lastActive = clock.getAsLong();
+        return s.game;
+    }
+
+    /** Restores a game get() didn't find, if there's a restorer and it has the game */
+    private G restore(String gameId) {
+        Function<String, G> r = restorer;
+        if (r == null || gameId == null) return null;
+        G game = r.apply(gameId);
+        if (game == null) return null;
+
+        Slot s = new Slot(gameId, game);
+        Slot existing = games.putIfAbsent(gameId, s);
+        if (existing != null) return existing.game;
+        schedule(s, idleNanos);
+        return game;
+    }
+
+    /** Gets a game without marking it active, e.g. for listing games in the lobby */
+    public G peek(String gameId) {
+        Slot s = games.get(gameId);
+        return s == null ? null : s.game;
+    }
+
+    /** Adds a game, replacing any with the same id */
+    public void put(String gameId, G game) {
+        Slot s = new Slot(gameId, game);
+        Slot previous = games.put(gameId, s);
+        if (previous != null) cancel(previous);
+        schedule(s, idleNanos);
+    }
+
+    /** Removes a game, returning it (or null if there wasn't one) */
+    public G remove(String gameId) {
+        Slot s = games.remove(gameId);
+        if (s == null) return null;
+        cancel(s);
+        return s.game;
+    }
+
+    public Set<String> ids() {
+        return games.keySet();
+    }
+
+    public Collection<G> games() {
+        return games.values().stream().map((s) -> s.game).toList();
+    }
+
+    public int size() {
+        return games.size();
+    }
+
+    /** How many games have been evicted since the container was made */
+    public long evicted() {
+        return evicted.sum();
+    }
+
+// Eviction
+
+    private void schedule(Slot s, long delayNanos) {
+        if (idleNanos <= 0) return;
+        synchronized (s) {
+            s.timeout = wheel.newTimeout((t) -> check(s), delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void cancel(Slot s) {
+        synchronized (s) {
+            if (s.timeout != null) s.timeout.cancel();
+        }
+    }
+
+    /** A game's slot on the wheel has come round */
+    private void check(Slot s) {
+        if (games.get(s.id) != s) return;
+        long idle = clock.getAsLong() - s.lastActive;
+        if (idle < idleNanos) {
+            schedule(s, idleNanos - idle);
+        } else {
+            evict(s);
+        }
+    }
+
+    /** Evicts a game in its own mailbox, if it's still idle by the time the eviction gets to run */
+    private void evict(Slot s) {
+        if (scheduler == null) {
+            evictNow(s);
+            return;
+        }
+        scheduler.submit(gameServer, s.id, "evict", () -> {
+            evictNow(s);
+            return Future.<Void>succeededFuture();
+        }).onComplete((ar) -> {
+            if (ar.failed()) {
+                // e.g. the bulkhead was full. Try again next time round
+                schedule(s, idleNanos);
+            } else if (games.get(s.id) == null) {
+                scheduler.forget(gameServer, s.id);
+            }
+        });
+    }
+
+    private void evictNow(Slot s) {
+        if (games.get(s.id) != s) return;
+        long idle = clock.getAsLong() - s.lastActive;
+        if (idle < idleNanos) {
+            schedule(s, idleNanos - idle);
+            return;
+        }
+        if (!games.remove(s.id, s)) return;
+        evicted.increment();
+        logger.info("Evicting {}/{}, which nobody has played for {}s", gameServer, s.id, TimeUnit.NANOSECONDS.toSeconds(idle));
+        try {
+            listener.evicted(s.id, s.game);
+        } catch (RuntimeException ex) {
+            logger.error("Eviction listener for {} failed", gameServer, ex);
+        }
+    }
+
+    /** Evicts every idle game now, rather than waiting for the wheel */
+    void reap() {
+        for (Slot s : new ArrayList<>(games.values())) {
+            if (clock.getAsLong() - s.lastActive >= idleNanos && idleNanos > 0) {
+                cancel(s);
+                evict(s);
+            }
+        }
+    }
+
+    /** Roughly how many bytes the games take, estimated from a sample of them. 0 if there's no estimate */
+    long estimatedBytes() {
+        ToLongFunction<G> f = sizeOf;
+        if (f == null) return 0;
+        List<Slot> sample = new ArrayList<>(SIZE_SAMPLE);
+        for (Slot s : games.values()) {
+            if (sample.size() == SIZE_SAMPLE) break;
+            sample.add(s);
+        }
+        if (sample.isEmpty()) return 0;
+        long total = 0;
+        for (Slot s : sample) total += f.applyAsLong(s.game);
+        return total * games.size() / sample.size();
+    }
+
+// Metrics
+
+    /** Reports every container's games in Metrics */
+    public static void register(Metrics metrics) {
+        metrics.gauge("minigames_games", "Games in progress, by GameServer", "game_server",
+            () -> stat(GameContainer::size));
+        metrics.gauge("minigames_games_estimated_bytes", "Rough memory taken by games in progress, by GameServer", "game_server",
+            () -> stat(GameContainer::estimatedBytes));
+        metrics.counter("minigames_games_evicted_total", "Games evicted because nobody was playing them, by GameServer", "game_server",
+            () -> stat(GameContainer::evicted));
+        Runtime runtime = Runtime.getRuntime();
+        metrics.gauge("minigames_heap_used_bytes", "Heap in use", () -> runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    private static Map<String, Number> stat(ToLongFunction<GameContainer<?>> stat) {
+        Map<String, Number> values = new HashMap<>();
+        containers.forEach((gameServer, c) -> values.put(gameServer, stat.applyAsLong(c)));
+        return values;
+    }
+
+}
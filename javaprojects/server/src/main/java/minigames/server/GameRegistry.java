@@ -1,23 +1,120 @@
 package minigames.server;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import io.vertx.core.buffer.Buffer;
+import minigames.codec.JsonWriter;
+import minigames.rendering.GameServerDetails;
 
 /**
  * Holds information on which games are available and can be served up to clients.
+ *
+ * The registry is shared by every instance of the server verticle, so it has to be safe to use from several
+ * event loops at once.
+ *
+ * Clients ask for the games available to them on every lobby refresh, but GameServers are only registered at
+ * startup. So for each ClientType the registry keeps a ready-made Listing: the GameServers, their details,
+ * and the JSON body and ETag to send. Registering or unregistering a GameServer builds new Listings and swaps
+ * them in all at once, so readers never see a half-updated index and never need a lock.
+ *
+ * A GameServer can be registered with its own Bulkhead.Limits, to give it its own threads and queue.
+ * Otherwise it inherits the registry's default limits.
+ *
+ * A GameServer can also say how to label its commands in metrics. Players type what they like, so labels come
+ * from the GameServer's own, fixed set of commands, never from what was typed.
  */
 public class GameRegistry {
 
-    private HashMap<String, GameServer> gameServers = new HashMap<>();
+    /** What a client of one type can play, ready to send */
+    public record Listing(List<GameServer> gameServers, List<GameServerDetails> details, Buffer body, String etag) {}
+
+    private ConcurrentHashMap<String, GameServer> gameServers = new ConcurrentHashMap<>();
+
+    /** Registration order, for listing games in the order they were added. Only touched while holding the lock */
+    private final LinkedHashMap<String, GameServer> registered = new LinkedHashMap<>();
+
+    private volatile Map<ClientType, Listing> listings = buildListings(Map.of());
+
+    /** Bulkhead limits declared by GameServers when they registered */
+    private final ConcurrentHashMap<String, Bulkhead.Limits> bulkheadLimits = new ConcurrentHashMap<>();
+
+    /** Turns a GameServer's command text into one of its fixed command names, for metrics */
+    private final ConcurrentHashMap<String, Function<String, String>> commandLabels = new ConcurrentHashMap<>();
+
+    /** The limits GameServers that don't declare their own get */
+    private volatile Bulkhead.Limits defaultLimits = Bulkhead.Limits.SHARED;
 
     /**
      * Called by your GameServer to register it as being available to play
-     * @param name 
+     * @param name
      * @param gs
      */
-    public void registerGameServer(String name, GameServer gs) {
+    public synchronized void registerGameServer(String name, GameServer gs) {
+        registered.put(name, gs);
         gameServers.put(name, gs);
+        listings = buildListings(registered);
+    }
+
+    /**
+     * Registers a GameServer that runs in a bulkhead with its own limits, rather than the default ones
+     * @param name
+     * @param gs
+     * @param limits How many of its calls may run at once, and how many may be waiting
+     */
+    public synchronized void registerGameServer(String name, GameServer gs, Bulkhead.Limits limits) {
+        bulkheadLimits.put(name, limits);
+        registerGameServer(name, gs);
+    }
+
+    /** Removes a GameServer, so it's no longer offered to clients */
+    public synchronized void unregisterGameServer(String name) {
+        if (registered.remove(name) == null) return;
+        gameServers.remove(name);
+        bulkheadLimits.remove(name);
+        listings = buildListings(registered);
+    }
+
+    /** Sets the bulkhead limits inherited by GameServers that don't declare their own */
+    public void setDefaultBulkheadLimits(Bulkhead.Limits limits) {
+        this.defaultLimits = limits;
+    }
+
+    /** The bulkhead limits a GameServer runs with: its own if it declared some, otherwise the default */
+    public Bulkhead.Limits getBulkheadLimits(String name) {
+        return bulkheadLimits.getOrDefault(name, defaultLimits);
+    }
+
+    /**
+     * Says how to label a GameServer's commands in metrics
+     * @param labels Turns a command's text into its name, e.g. "take lamp" into "take". It must only ever return
+     *               names from a small, fixed set, and null for anything it doesn't recognise
+     */
+    public void setCommandLabels(String name, Function<String, String> labels) {
+        commandLabels.put(name, labels);
+    }
+
+    /**
+     * The label a command's metrics are recorded under: its name if its GameServer recognises it, "other" if it
+     * doesn't, and "command" if the GameServer hasn't said how to label its commands
+     */
+    public String commandLabel(String name, String command) {
+        Function<String, String> labels = commandLabels.get(name);
+        if (labels == null) return "command";
+        String label = labels.apply(command);
+        return label == null ? Metrics.OTHER : label;
+    }
+
+    /** Every registered GameServer, by name, in the order they were registered */
+    public synchronized Map<String, GameServer> getGameServers() {
+        return new LinkedHashMap<>(registered);
     }
 
     /** Gets a GameServer from the registry */
@@ -31,9 +128,42 @@ public class GameRegistry {
      * @return
      */
     public List<GameServer> getGamesForPlatform(ClientType platform) {
-        return gameServers.values().stream()
-            .filter((gs) -> Arrays.asList(gs.getSupportedClients()).contains(platform))
-            .toList();
+        return listings.get(platform).gameServers();
+    }
+
+    /** The details of each game available for a platform, with the encoded response body and its ETag */
+    public Listing getListing(ClientType platform) {
+        return listings.get(platform);
     }
-    
+
+    private static Map<ClientType, Listing> buildListings(Map<String, GameServer> servers) {
+        EnumMap<ClientType, Listing> result = new EnumMap<>(ClientType.class);
+        for (ClientType ct : ClientType.values()) {
+            List<GameServer> available = new ArrayList<>();
+            for (GameServer gs : servers.values()) {
+                ClientType[] supported = gs.getSupportedClients();
+                if (supported == null) continue;
+                for (ClientType s : supported) {
+                    if (s == ct) {
+                        available.add(gs);
+                        break;
+                    }
+                }
+            }
+            List<GameServerDetails> details = new ArrayList<>(available.size());
+            for (GameServer gs : available) details.add(gs.getDetails());
+
+            Buffer body = JsonWriter.encode(details, 64 * details.size() + 2);
+            result.put(ct, new Listing(List.copyOf(available), Collections.unmodifiableList(details), body, etag(body)));
+        }
+        return result;
+    }
+
+    /** A strong ETag from the body's contents, so every server instance (and restart) gives the same one */
+    static String etag(Buffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes());
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length()) + "\"";
+    }
+
 }
@@ -0,0 +1,507 @@
+package minigames.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+/**
+ * Runs calls into GameServers so that calls for the same game happen one at a time, in the order they arrived,
+ * while calls for different games run in parallel.
+ *
+ * Each game (keyed by gameServer + gameId) has a mailbox. Submitting a call puts it in the game's mailbox, and
+ * whenever a mailbox has work it is drained by one thread of the executor. So a game's own state never sees two
+ * threads at once and doesn't need any locking, but a busy game can't hold up the others.
+ *
+ * If a call returns a Future that isn't complete yet, the mailbox waits for it before running the next call.
+ * Results are handed back on the Vert.x context that submitted the call (usually an event loop).
+ *
+ * A GameServer can have a Bulkhead: its own threads, and a bound on its queued calls. Its mailboxes then run
+ * there rather than on the shared executor, so a GameServer that blocks or floods the scheduler only holds up
+ * its own games. Calls to a full bulkhead fail straight away with a Bulkhead.FullException.
+ *
+ * Calls can have a Deadline. If it passes before the call finishes, the caller gets a Deadline.ExceededException
+ * and the mailbox moves on to its next call, even if the GameServer never completes its Future. Calls still queued
+ * when their deadline passes are skipped. Deadlines are timed on one hashed wheel timer shared by every scheduler,
+ * so a deadline costs a slot on the wheel rather than a timer of its own.
+ *
+ * A game's mailbox is dropped once it has nothing queued, and made again by its next call, so games that have
+ * ended (or never existed, if a client made up an id) don't keep one. Each game's statistics are kept apart from
+ * its mailbox, so they last while it is idle. They go when the game ends, and only the games that have had
+ * calls most recently are kept, so made-up ids can't pile them up either.
+ *
+ * How long calls wait and run is recorded in Metrics, by GameServer and by command.
+ */
+public class GameScheduler {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(GameScheduler.class);
+
+    /** How many calls a mailbox runs before giving its thread back, so that a busy game can't starve others */
+    static final int BATCH = 32;
+
+    /** Calls that create a game don't have a gameId yet, so they queue in the GameServer's own mailbox under this id */
+    public static final String NEW_GAMES = "";
+
+    /** Queue and timing statistics for one game */
+    public record GameStats(
+        String gameServer,
+        String gameId,
+        int queueDepth,
+        long completed,
+        double meanQueueMillis,
+        double meanServiceMillis,
+        double maxServiceMillis,
+        long timedOut
+    ) {
+    }
+
+    /** How many games' statistics are kept. The games that have had calls least recently are dropped first */
+    static final int TRACKED_GAMES = 10_000;
+
+    /** The command label for calls submitted without one */
+    static final String UNLABELLED = "call";
+
+    /** Times every deadline. A tick of 10ms is plenty for deadlines measured in seconds */
+    private static final HashedWheelTimer wheel = new HashedWheelTimer(
+        new ThreadFactoryBuilder().setNameFormat("deadline-wheel-%d").setDaemon(true).build(), 10, TimeUnit.MILLISECONDS);
+
+    /** Stands in for "no bulkhead" in the map, which can't hold nulls */
+    private static final Bulkhead SHARED = new Bulkhead("", Bulkhead.Limits.SHARED, Runnable::run);
+
+    private final Executor executor;
+    private final Function<String, Bulkhead> bulkheadFor;
+    private final ConcurrentHashMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    /** Statistics for each game, by key, in the order their mailboxes were last made. Guarded by its own lock */
+    private final LinkedHashMap<String, GameCounters> counters = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GameCounters> eldest) {
+            return size() > TRACKED_GAMES;
+        }
+    };
+
+    /** Where GameServers say their games have ended, or null if nothing does */
+    private final LobbyEvents lobbyEvents;
+
+    /** Calls that timed out, by GameServer. Kept here rather than in mailboxes, which come and go */
+    private final ConcurrentHashMap<String, LongAdder> timeouts = new ConcurrentHashMap<>();
+
+    private final Metrics.HistogramFamily queueTime;
+    private final Metrics.HistogramFamily callTime;
+
+    /**
+     * @param executor Runs the mailboxes. Either a pool with about as many threads as there are cores, or (if
+     *                 GameServers block, e.g. on the database) a virtual thread per task.
+     * @param metrics Where to record queue and call times
+     * @param bulkheadFor Makes the Bulkhead for a GameServer, the first time it has a call, or returns null
+     *                    if the GameServer should share the executor
+     * @param lobbyEvents Where GameServers say their games have ended, so their statistics can go. Null if nothing does
+     */
+    public GameScheduler(Executor executor, Metrics metrics, Function<String, Bulkhead> bulkheadFor, LobbyEvents lobbyEvents) {
+        this.executor = executor;
+        this.bulkheadFor = bulkheadFor;
+        this.lobbyEvents = lobbyEvents;
+        this.queueTime = metrics.timer("minigames_scheduler_queue_seconds",
+            "Time calls wait in their game's mailbox before starting", "game_server", "command");
+        this.callTime = metrics.timer("minigames_game_call_seconds",
+            "Time from a GameServer call starting to its Future completing", "game_server", "command");
+        metrics.gauge("minigames_scheduler_calls_in_flight", "Calls queued or running, by GameServer", "game_server",
+            () -> {
+                Map<String, Integer> depths = new HashMap<>();
+                for (Mailbox m : mailboxes.values()) depths.merge(m.gameServer, m.depth.get(), Integer::sum);
+                return depths;
+            });
+        metrics.counter("minigames_game_call_timeouts_total", "Calls whose deadline passed before they finished, by GameServer", "game_server",
+            () -> {
+                Map<String, Long> counts = new HashMap<>();
+                timeouts.forEach((gameServer, n) -> counts.put(gameServer, n.sum()));
+                return counts;
+            });
+        metrics.gauge("minigames_bulkhead_active", "Mailboxes running in each GameServer's bulkhead", "game_server",
+            () -> bulkheadStat(Bulkhead::active));
+        metrics.gauge("minigames_bulkhead_pending", "Calls queued or running in each GameServer's bulkhead", "game_server",
+            () -> bulkheadStat(Bulkhead::pending));
+        metrics.gauge("minigames_bulkhead_saturation", "Running mailboxes as a fraction of each bulkhead's threads", "game_server",
+            () -> bulkheadStat((b) -> (double) b.active() / b.limits().maxConcurrent()));
+        metrics.counter("minigames_bulkhead_rejected_total", "Calls turned away because a GameServer's bulkhead was full", "game_server",
+            () -> bulkheadStat(Bulkhead::rejected));
+    }
+
+    /** A scheduler whose games' statistics only go when they are evicted or dropped for newer games */
+    public GameScheduler(Executor executor, Metrics metrics, Function<String, Bulkhead> bulkheadFor) {
+        this(executor, metrics, bulkheadFor, null);
+    }
+
+    /** A scheduler where every GameServer shares the executor */
+    public GameScheduler(Executor executor, Metrics metrics) {
+        this(executor, metrics, (gameServer) -> null);
+    }
+
+    /** A scheduler whose metrics aren't published anywhere */
+    public GameScheduler(Executor executor) {
+        this(executor, new Metrics());
+    }
+
+    static String key(String gameServer, String gameId) {
+        return gameServer + "/" + gameId;
+    }
+
+    /**
+     * Queues a call for a game. The call runs on one of the scheduler's threads, after any calls already
+     * queued for that game have finished.
+     *
+     * @param gameServer Name of the GameServer
+     * @param gameId The game the call is for (or NEW_GAMES if it creates one)
+     * @param call The call to make, e.g. () -> gs.callGame(cp)
+     * @return A Future that completes with the call's result, on the caller's Vert.x context if it had one
+     */
+    public <T> Future<T> submit(String gameServer, String gameId, Supplier<Future<T>> call) {
+        return submit(gameServer, gameId, UNLABELLED, call);
+    }
+
+    /**
+     * Queues a call for a game, as above, recording its timings under the given command name
+     * (e.g. the first command in the CommandPackage, or "newGame").
+     */
+    public <T> Future<T> submit(String gameServer, String gameId, String command, Supplier<Future<T>> call) {
+        return submit(gameServer, gameId, command, Deadline.NONE, call);
+    }
+
+    /**
+     * Queues a call for a game, as above, that fails with a Deadline.ExceededException if it hasn't finished
+     * by its deadline. The GameServer can see the deadline as Deadline.current() while it runs.
+     */
+    public <T> Future<T> submit(String gameServer, String gameId, String command, Deadline deadline, Supplier<Future<T>> call) {
+        Bulkhead bulkhead = bulkhead(gameServer);
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            return Future.failedFuture(new Bulkhead.FullException(gameServer));
+        }
+
+        while (true) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(key(gameServer, gameId), (k) -> new Mailbox(gameServer, gameId, bulkhead));
+            synchronized (mailbox) {
+                // It emptied and was dropped after we found it. The next one we find is new
+                if (mailbox.retired) continue;
+
+                Task<T> task = new Task<>(call, Vertx.currentContext(), bulkhead, deadline, mailbox,
+                    queueTime.get(gameServer, command), callTime.get(gameServer, command));
+                if (!deadline.isNone()) {
+                    task.timeout = wheel.newTimeout((t) -> task.expire(), deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                }
+                mailbox.enqueue(task);
+                return task.promise.future();
+            }
+        }
+    }
+
+    /** The bulkhead a GameServer's calls run in, or null if they run on the shared executor */
+    public Bulkhead bulkhead(String gameServer) {
+        Bulkhead b = bulkheads.computeIfAbsent(gameServer, (k) -> {
+            // The first call for a GameServer, so start listening for its games ending
+            if (lobbyEvents != null) lobbyEvents.onGameEnded(k, (game) -> forget(k, game));
+            Bulkhead made = bulkheadFor.apply(k);
+            return made == null ? SHARED : made;
+        });
+        return b == SHARED ? null : b;
+    }
+
+    /** A number for each GameServer that has a bulkhead */
+    private Map<String, Number> bulkheadStat(Function<Bulkhead, Number> stat) {
+        Map<String, Number> values = new HashMap<>();
+        bulkheads.forEach((gameServer, b) -> {
+            if (b != SHARED) values.put(gameServer, stat.apply(b));
+        });
+        return values;
+    }
+
+    /**
+     * Stops tracking a game that has ended, dropping its statistics, and its mailbox if nothing is queued for it.
+     * If something is (e.g. a command that arrived just as the game was evicted), the mailbox stays to run it,
+     * and goes once it's empty.
+     */
+    public void forget(String gameServer, String gameId) {
+        String key = key(gameServer, gameId);
+        synchronized (counters) {
+            counters.remove(key);
+        }
+        Mailbox m = mailboxes.get(key);
+        if (m != null) m.retireIfEmpty();
+    }
+
+    /** The statistics for a game, kept (or started again) as its mailbox is made */
+    private GameCounters counters(String gameServer, String gameId) {
+        synchronized (counters) {
+            return counters.computeIfAbsent(key(gameServer, gameId), (k) -> new GameCounters(gameServer, gameId));
+        }
+    }
+
+    /** Number of calls waiting or running for a game */
+    public int queueDepth(String gameServer, String gameId) {
+        Mailbox m = mailboxes.get(key(gameServer, gameId));
+        return m == null ? 0 : m.depth.get();
+    }
+
+    /** Calls for a GameServer that have timed out */
+    long timedOut(String gameServer) {
+        LongAdder n = timeouts.get(gameServer);
+        return n == null ? 0 : n.sum();
+    }
+
+    /** Number of games with a mailbox, i.e. with calls queued or running */
+    int mailboxCount() {
+        return mailboxes.size();
+    }
+
+    /** Statistics for the games that have had calls, most recent last */
+    public List<GameStats> stats() {
+        List<GameCounters> games;
+        synchronized (counters) {
+            games = new ArrayList<>(counters.values());
+        }
+        return games.stream().map((c) -> c.stats(queueDepth(c.gameServer, c.gameId))).toList();
+    }
+
+    /** A game's statistics. They outlive its mailbox, which goes whenever the game is idle */
+    private static class GameCounters {
+        final String gameServer;
+        final String gameId;
+        final LongAdder completed = new LongAdder();
+        final LongAdder timedOut = new LongAdder();
+        final LongAdder queueNanos = new LongAdder();
+        final LongAdder serviceNanos = new LongAdder();
+        final AtomicLong maxServiceNanos = new AtomicLong();
+
+        GameCounters(String gameServer, String gameId) {
+            this.gameServer = gameServer;
+            this.gameId = gameId;
+        }
+
+        GameStats stats(int queueDepth) {
+            long n = completed.sum();
+            return new GameStats(
+                gameServer, gameId, queueDepth, n,
+                n == 0 ? 0 : queueNanos.sum() / 1e6 / n,
+                n == 0 ? 0 : serviceNanos.sum() / 1e6 / n,
+                maxServiceNanos.get() / 1e6,
+                timedOut.sum()
+            );
+        }
+    }
+
+    /** A queued call, and the promise to complete when it has run */
+    private static class Task<T> {
+        final Supplier<Future<T>> call;
+        final Context context;
+        final Bulkhead bulkhead;
+        final Deadline deadline;
+        final Mailbox mailbox;
+        final Promise<T> promise = Promise.promise();
+        final long queuedAt = System.nanoTime();
+        final Metrics.Histogram queueTime;
+        final Metrics.Histogram callTime;
+
+        /** Set once the caller has been answered, by the call finishing or its deadline passing */
+        final AtomicBoolean settled = new AtomicBoolean();
+
+        /** Completed if the deadline passes first, so a mailbox waiting on the call can move on */
+        final Promise<Void> expired = Promise.promise();
+
+        /** The deadline's slot on the wheel, if it has one */
+        volatile Timeout timeout;
+
+        Task(Supplier<Future<T>> call, Context context, Bulkhead bulkhead, Deadline deadline, Mailbox mailbox,
+                Metrics.Histogram queueTime, Metrics.Histogram callTime) {
+            this.call = call;
+            this.context = context;
+            this.bulkhead = bulkhead;
+            this.deadline = deadline;
+            this.mailbox = mailbox;
+            this.queueTime = queueTime;
+            this.callTime = callTime;
+        }
+
+        /** Makes the call. Exceptions thrown by the GameServer become a failed Future. */
+        Future<T> run() {
+            // If nobody is waiting for this any more, don't bother the GameServer with it
+            if (!settled.get() && deadline.expired()) expire();
+            if (settled.get()) return Future.failedFuture(exceeded());
+
+            Deadline previous = Deadline.enter(deadline);
+            try {
+                Future<T> f = call.get();
+                return f == null ? Future.failedFuture("GameServer returned no result") : f;
+            } catch (Throwable t) {
+                return Future.failedFuture(t);
+            } finally {
+                Deadline.exit(previous);
+            }
+        }
+
+        Deadline.ExceededException exceeded() {
+            return new Deadline.ExceededException(mailbox.gameServer, mailbox.gameId);
+        }
+
+        /** Called on the wheel's thread when the deadline passes. Fails the call if it hasn't finished */
+        void expire() {
+            if (!settled.compareAndSet(false, true)) return;
+            mailbox.counters.timedOut.increment();
+            mailbox.serverTimedOut.increment();
+            deliver(Future.failedFuture(exceeded()));
+            expired.tryComplete();
+        }
+
+        /** Completes the caller's promise with the call's result, unless its deadline has already failed it */
+        void complete(AsyncResult<T> result) {
+            if (!settled.compareAndSet(false, true)) return;
+            Timeout t = timeout;
+            if (t != null) t.cancel();
+            deliver(result);
+        }
+
+        /** Hands a result to the caller, back on the caller's context */
+        private void deliver(AsyncResult<T> result) {
+            if (context == null) {
+                promise.handle(result);
+            } else {
+                context.runOnContext((v) -> promise.handle(result));
+            }
+        }
+    }
+
+    /** The queue of calls for one game */
+    private class Mailbox implements Runnable {
+        final String gameServer;
+        final String gameId;
+
+        /** Where the mailbox runs: its GameServer's bulkhead, or the shared executor */
+        final Executor runOn;
+        final ConcurrentLinkedQueue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+
+        /** Calls queued or running. Whoever takes this from 0 to 1 schedules the mailbox. */
+        final AtomicInteger depth = new AtomicInteger();
+
+        /** Set, under the mailbox's lock, once it has been dropped from the map. Nothing can be queued in it then */
+        boolean retired;
+
+        final GameCounters counters;
+        final LongAdder serverTimedOut;
+
+        Mailbox(String gameServer, String gameId, Bulkhead bulkhead) {
+            this.gameServer = gameServer;
+            this.gameId = gameId;
+            this.runOn = bulkhead == null ? executor : bulkhead;
+            this.counters = counters(gameServer, gameId);
+            this.serverTimedOut = timeouts.computeIfAbsent(gameServer, (k) -> new LongAdder());
+        }
+
+        void enqueue(Task<?> task) {
+            queue.add(task);
+            if (depth.getAndIncrement() == 0) {
+                runOn.execute(this);
+            }
+        }
+
+        /** Drains the mailbox. Only ever running on one thread at a time, because of the depth counter. */
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                Task<?> task = queue.poll();
+                if (!runTask(task)) {
+                    // The call is still going. Its completion handler picks the mailbox back up.
+                    return;
+                }
+                if (depth.decrementAndGet() == 0) {
+                    retireIfEmpty();
+                    return;
+                }
+            }
+            // Still more to do, but let other games have a turn first
+            runOn.execute(this);
+        }
+
+        /** Runs a task, returning true if it finished synchronously */
+        private <T> boolean runTask(Task<T> task) {
+            long start = System.nanoTime();
+            counters.queueNanos.add(start - task.queuedAt);
+            task.queueTime.record(start - task.queuedAt);
+
+            Future<T> f = task.run();
+            if (f.isComplete()) {
+                finish(task, f, start);
+                return true;
+            }
+
+            // Moves on when the call finishes or its deadline passes, whichever comes first
+            AtomicBoolean movedOn = new AtomicBoolean();
+            f.onComplete((ar) -> moveOn(task, f, start, movedOn));
+            if (!task.deadline.isNone()) {
+                task.expired.future().onComplete((ar) -> moveOn(task, f, start, movedOn));
+            }
+            return false;
+        }
+
+        /** Finishes a call that didn't finish synchronously, and picks the mailbox back up */
+        private <T> void moveOn(Task<T> task, Future<T> f, long start, AtomicBoolean movedOn) {
+            if (!movedOn.compareAndSet(false, true)) return;
+            finish(task, f.isComplete() ? f : Future.<T>failedFuture(task.exceeded()), start);
+            if (depth.decrementAndGet() > 0) {
+                runOn.execute(this);
+            } else {
+                retireIfEmpty();
+            }
+        }
+
+        /**
+         * Drops the mailbox from the map if nothing has been queued since it emptied. Calls are only queued under
+         * the same lock, so a call either lands before this (and the mailbox stays) or finds it retired and makes
+         * a new one. Either way there is never more than one mailbox running a game's calls.
+         */
+        void retireIfEmpty() {
+            synchronized (this) {
+                if (retired || depth.get() > 0) return;
+                retired = true;
+                mailboxes.remove(key(gameServer, gameId), this);
+            }
+        }
+
+        private <T> void finish(Task<T> task, Future<T> f, long start) {
+            long service = System.nanoTime() - start;
+            counters.serviceNanos.add(service);
+            task.callTime.record(service);
+            counters.maxServiceNanos.accumulateAndGet(service, Math::max);
+            counters.completed.increment();
+            if (f.failed()) {
+                logger.warn("Call to {}/{} failed: {}", gameServer, gameId, f.cause().getMessage());
+            }
+            if (task.bulkhead != null) task.bulkhead.release();
+            task.complete(f);
+        }
+    }
+
+}
@@ -0,0 +1,290 @@
+package minigames.server;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.Future;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Moves real-time games on at a fixed rate, whether or not anybody sends a command.
+ *
+ * A game starts ticking by calling start() with its rate, in ticks per second. Games with the same rate share a
+ * lane: one timer task that wakes once a tick and ticks all of them. Lanes run on a small pool of ticker threads,
+ * but the ticks themselves run in each game's GameScheduler mailbox, in turn with its calls, so a game's state
+ * still only sees one thread at a time.
+ *
+ * Each game's ticks are due at fixed times from when it started. If a game falls behind (because the ticker was
+ * late, or its mailbox was busy), it catches up by running the ticks it owes one after another, up to MAX_CATCH_UP
+ * at a time. Ticks owed beyond that are dropped, rather than letting the game fall further and further behind.
+ * If a game's ticks are still queued or running when it's due again, it is skipped that time round and counted as
+ * an overrun; it catches up next time.
+ *
+ * Whatever a tick returns is pushed to the game's players through PlayerChannels.
+ */
+public class GameTicker {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(GameTicker.class);
+
+    /** A game that moves on by itself */
+    public interface Simulation {
+
+        /**
+         * Moves the game on by one tick (1 / ticksPerSecond seconds).
+         * Runs in the game's scheduler mailbox, like the GameServer's other calls for the game.
+         *
+         * @param tick How many ticks the game has had before this one
+         * @return What to push to each player, by name. Null or empty if there's nothing to send
+         */
+        Map<String, RenderingPackage> tick(long tick);
+    }
+
+    /** The most ticks a game runs in a row to catch up */
+    static final int MAX_CATCH_UP = 5;
+
+    /** The fastest a game can tick */
+    public static final int MAX_TICKS_PER_SECOND = 1000;
+
+    /** A game that is ticking */
+    private final class Game {
+        final String gameServer;
+        final String gameId;
+        final Simulation simulation;
+        final Lane lane;
+
+        /** Only touched by the lane, which runs one pass at a time */
+        long nextDue;
+        long ticks;
+
+        /** Whether ticks for the game are queued or running in its mailbox */
+        final AtomicBoolean busy = new AtomicBoolean();
+        volatile boolean stopped;
+
+        Game(String gameServer, String gameId, Simulation simulation, Lane lane, long now) {
+            this.gameServer = gameServer;
+            this.gameId = gameId;
+            this.simulation = simulation;
+            this.lane = lane;
+            this.nextDue = now + lane.periodNanos;
+        }
+    }
+
+    /** The games ticking at one rate */
+    private final class Lane implements Runnable {
+        final long periodNanos;
+        final List<Game> games = new CopyOnWriteArrayList<>();
+
+        Lane(long periodNanos) {
+            this.periodNanos = periodNanos;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long now = clock.getAsLong();
+                for (Game g : games) due(g, now);
+            } catch (RuntimeException ex) {
+                // An exception would stop the lane's timer, and every game in it
+                logger.error("Ticker lane failed", ex);
+            }
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+    private final GameScheduler scheduler;
+    private final PlayerChannels channels;
+    private final LongSupplier clock;
+
+    private final Map<String, Game> games = new ConcurrentHashMap<>();
+    private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> ticks = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> overruns = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> dropped = new ConcurrentHashMap<>();
+    private final Metrics.HistogramFamily tickTime;
+
+    /**
+     * @param executor The ticker threads, which wake the lanes. Null doesn't start any timers (the lanes can still be run with runDue)
+     * @param scheduler Where to run ticks, in each game's mailbox. Null runs them on the ticker thread
+     * @param channels Where to push what the ticks return
+     * @param metrics Where to report ticks, overruns and how long ticks take
+     * @param nanoClock The time, in nanoseconds
+     */
+    public GameTicker(ScheduledExecutorService executor, GameScheduler scheduler, PlayerChannels channels, Metrics metrics, LongSupplier nanoClock) {
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.channels = channels;
+        this.clock = nanoClock;
+        this.tickTime = metrics.timer("minigames_tick_seconds", "Time a game's tick takes to run", "game_server");
+        metrics.gauge("minigames_ticking_games", "Games ticking, by GameServer", "game_server",
+            () -> {
+                Map<String, Integer> counts = new HashMap<>();
+                for (Game g : games.values()) counts.merge(g.gameServer, 1, Integer::sum);
+                return counts;
+            });
+        metrics.counter("minigames_ticks_total", "Ticks run, by GameServer", "game_server", () -> sums(ticks));
+        metrics.counter("minigames_tick_overruns_total", "Times a game was due to tick while its last ticks hadn't finished, by GameServer", "game_server",
+            () -> sums(overruns));
+        metrics.counter("minigames_ticks_dropped_total", "Ticks skipped because a game had fallen too far behind to catch up, by GameServer", "game_server",
+            () -> sums(dropped));
+    }
+
+    public GameTicker(ScheduledExecutorService executor, GameScheduler scheduler, PlayerChannels channels, Metrics metrics) {
+        this(executor, scheduler, channels, metrics, System::nanoTime);
+    }
+
+// Games
+
+    /**
+     * Starts a game ticking, replacing its simulation if it's ticking already.
+     * The GameServer should stop() it when the game ends or is exported.
+     *
+     * @param ticksPerSecond How often to tick, from 1 to MAX_TICKS_PER_SECOND
+     */
+    public void start(String gameServer, String gameId, int ticksPerSecond, Simulation simulation) {
+        if (ticksPerSecond < 1 || ticksPerSecond > MAX_TICKS_PER_SECOND) {
+            throw new IllegalArgumentException("Games tick from 1 to " + MAX_TICKS_PER_SECOND + " times a second, not " + ticksPerSecond);
+        }
+        stop(gameServer, gameId);
+        Lane lane = lane(TimeUnit.SECONDS.toNanos(1) / ticksPerSecond);
+        Game g = new Game(gameServer, gameId, simulation, lane, clock.getAsLong());
+        games.put(GameScheduler.key(gameServer, gameId), g);
+        lane.games.add(g);
+        logger.info("{}/{} ticking {} times a second", gameServer, gameId, ticksPerSecond);
+    }
+
+    /** Stops a game ticking. Ticks already queued in its mailbox don't run */
+    public void stop(String gameServer, String gameId) {
+        Game g = games.remove(GameScheduler.key(gameServer, gameId));
+        if (g == null) return;
+        g.stopped = true;
+        g.lane.games.remove(g);
+    }
+
+    public boolean isTicking(String gameServer, String gameId) {
+        return games.containsKey(GameScheduler.key(gameServer, gameId));
+    }
+
+    /** How many games are ticking */
+    public int size() {
+        return games.size();
+    }
+
+    /** Stops the ticker threads */
+    public void shutdown() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+// Ticking
+
+    /** The lane for a tick period, starting it if it isn't running yet. Lanes are kept once made; there are few rates */
+    private Lane lane(long periodNanos) {
+        return lanes.computeIfAbsent(periodNanos, (p) -> {
+            Lane lane = new Lane(p);
+            if (executor != null) executor.scheduleAtFixedRate(lane, p, p, TimeUnit.NANOSECONDS);
+            return lane;
+        });
+    }
+
+    /** Queues the ticks a game owes, if it's due */
+    private void due(Game g, long now) {
+        if (g.stopped || now < g.nextDue) return;
+        if (!g.busy.compareAndSet(false, true)) {
+            counter(overruns, g.gameServer).increment();
+            return;
+        }
+
+        long owed = (now - g.nextDue) / g.lane.periodNanos + 1;
+        int run = (int) Math.min(owed, MAX_CATCH_UP);
+        if (owed > run) counter(dropped, g.gameServer).add(owed - run);
+        long first = g.ticks;
+        g.ticks += run;
+        g.nextDue += owed * g.lane.periodNanos;
+
+        Supplier<Future<Void>> call = () -> {
+            runTicks(g, first, run);
+            return Future.succeededFuture();
+        };
+        if (scheduler == null) {
+            try {
+                call.get();
+            } finally {
+                g.busy.set(false);
+            }
+            return;
+        }
+        scheduler.submit(g.gameServer, g.gameId, "tick", call).onComplete((ar) -> {
+            g.busy.set(false);
+            if (ar.failed()) {
+                // e.g. the bulkhead was full. The game catches up next time round
+                logger.debug("Ticks for {}/{} didn't run: {}", g.gameServer, g.gameId, ar.cause().getMessage());
+            }
+        });
+    }
+
+    /** Runs ticks one after another, in the game's mailbox, and pushes what they return */
+    private void runTicks(Game g, long first, int count) {
+        Metrics.Histogram time = tickTime.get(g.gameServer);
+        LongAdder ran = counter(ticks, g.gameServer);
+        for (int i = 0; i < count && !g.stopped; i++) {
+            long start = System.nanoTime();
+            Map<String, RenderingPackage> pushes;
+            try {
+                pushes = g.simulation.tick(first + i);
+            } catch (RuntimeException ex) {
+                logger.error("Tick {} of {}/{} failed", first + i, g.gameServer, g.gameId, ex);
+                continue;
+            } finally {
+                time.recordSince(start);
+                ran.increment();
+            }
+            if (pushes != null) {
+                pushes.forEach((player, rp) -> channels.push(g.gameServer, g.gameId, player, rp));
+            }
+        }
+    }
+
+    /** Ticks every game that's due now, rather than waiting for the lanes' timers */
+    void runDue() {
+        for (Lane lane : lanes.values()) lane.run();
+    }
+
+// Metrics
+
+    private static LongAdder counter(Map<String, LongAdder> counters, String gameServer) {
+        LongAdder c = counters.get(gameServer);
+        return c != null ? c : counters.computeIfAbsent(gameServer, (k) -> new LongAdder());
+    }
+
+    private static Map<String, Number> sums(Map<String, LongAdder> counters) {
+        Map<String, Number> values = new HashMap<>();
+        counters.forEach((gameServer, c) -> values.put(gameServer, c.sum()));
+        return values;
+    }
+
+    long ticks(String gameServer) {
+        return counter(ticks, gameServer).sum();
+    }
+
+    long overruns(String gameServer) {
+        return counter(overruns, gameServer).sum();
+    }
+
+    long dropped(String gameServer) {
+        return counter(dropped, gameServer).sum();
+    }
+
+}
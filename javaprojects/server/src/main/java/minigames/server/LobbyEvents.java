@@ -0,0 +1,150 @@
+package minigames.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import minigames.codec.JsonWriter;
+import minigames.rendering.GameMetadata;
+
+/**
+ * Keeps track of the games in progress on each GameServer, for the lobby, and tells lobby viewers when they change.
+ *
+ * GameServers call gameCreated, gameUpdated and gameEnded as their games change. Viewers (e.g. the Server-Sent
+ * Events stream at /lobby/:gameServer/stream) get a snapshot of the games when they subscribe, and then one event
+ * per change. Each event is encoded once and the same Buffer goes to every viewer, so a change costs one encoding
+ * however many people are watching, and a viewer costs nothing at all while nothing changes.
+ *
+ * A GameServer that doesn't send notifications still works: its viewers get a snapshot from getGamesInProgress()
+ * and then nothing more, the same as a single GET /games.
+ */
+public class LobbyEvents {
+
+    /** One GameServer's games, and who's watching them. Everything in here is guarded by the Lobby's lock */
+    private static class Lobby {
+        final LinkedHashMap<String, GameMetadata> games = new LinkedHashMap<>();
+        final List<Consumer<Buffer>> viewers = new ArrayList<>();
+
+        /** Whether the GameServer has ever told us about a game, i.e. whether games is worth anything */
+        boolean tracked = false;
+    }
+
+    private final ConcurrentHashMap<String, Lobby> lobbies = new ConcurrentHashMap<>();
+
+    /** Parts of the server that need to know when a GameServer's games end, by GameServer */
+    private final ConcurrentHashMap<String, List<Consumer<String>>> endListeners = new ConcurrentHashMap<>();
+
+    private Lobby lobby(String gameServer) {
+        return lobbies.computeIfAbsent(gameServer, (k) -> new Lobby());
+    }
+
+    /** Called by a GameServer when it starts a game */
+    public void gameCreated(String gameServer, GameMetadata game) {
+        changed(gameServer, game.name(), game, "created");
+    }
+
+    /** Called by a GameServer when something the lobby shows about a game (e.g. its players) changes */
+    public void gameUpdated(String gameServer, GameMetadata game) {
+        changed(gameServer, game.name(), game, "updated");
+    }
+
+    /** Called by a GameServer when a game finishes */
+    public void gameEnded(String gameServer, String game) {
+        changed(gameServer, game, null, "ended");
+        List<Consumer<String>> listeners = endListeners.get(gameServer);
+        if (listeners != null) {
+            for (Consumer<String> listener : listeners) listener.accept(game);
+        }
+    }
+
+    /**
+     * Tells a listener the id of each of a GameServer's games that ends (or moves to another node), on the thread
+     * that ended it. For parts of the server that keep something for each game, so they can tidy it up.
+     */
+    public void onGameEnded(String gameServer, Consumer<String> listener) {
+        endListeners.computeIfAbsent(gameServer, (k) -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    private void changed(String gameServer, String name, GameMetadata game, String type) {
+        Lobby lobby = lobby(gameServer);
+        synchronized (lobby) {
+            lobby.tracked = true;
+            if (game == null) {
+                if (lobby.games.remove(name) == null) return;
+            } else {
+                lobby.games.put(name, game);
+            }
+            if (lobby.viewers.isEmpty()) return;
+
+            Buffer event = event(type, game == null ? new JsonObject().put("name", name) : game);
+            for (Consumer<Buffer> viewer : lobby.viewers) {
+                viewer.accept(event);
+            }
+        }
+    }
+
+    /** Whether a GameServer sends notifications, so games() is up to date */
+    public boolean isTracked(String gameServer) {
+        Lobby lobby = lobbies.get(gameServer);
+        if (lobby == null) return false;
+        synchronized (lobby) {
+            return lobby.tracked;
+        }
+    }
+
+    /** The games in progress on a GameServer, as far as its notifications have told us */
+    public List<GameMetadata> games(String gameServer) {
+        Lobby lobby = lobby(gameServer);
+        synchronized (lobby) {
+            return List.copyOf(lobby.games.values());
+        }
+    }
+
+    /**
+     * Starts sending lobby events for a GameServer to a viewer. The first is a "snapshot" of every game in progress;
+     * after that come "created", "updated" and "ended" events. Events are passed to the viewer in order, on whichever
+     * thread made the change, so the viewer should hand them off rather than do any work.
+     *
+     * @param inProgress Where to get the snapshot if the GameServer doesn't send notifications
+     * @return A Runnable that stops the events, to call when the viewer goes away
+     */
+    public Runnable subscribe(String gameServer, Supplier<GameMetadata[]> inProgress, Consumer<Buffer> viewer) {
+        Lobby lobby = lobby(gameServer);
+        synchronized (lobby) {
+            // Taking the snapshot inside the lock means no change can fall between it and the first event
+            Object snapshot = lobby.tracked ? new ArrayList<>(lobby.games.values()) : inProgress.get();
+            viewer.accept(event("snapshot", snapshot));
+            lobby.viewers.add(viewer);
+        }
+        return () -> {
+            synchronized (lobby) {
+                lobby.viewers.remove(viewer);
+            }
+        };
+    }
+
+    /** The number of viewers watching a GameServer's lobby */
+    public int viewers(String gameServer) {
+        Lobby lobby = lobbies.get(gameServer);
+        if (lobby == null) return 0;
+        synchronized (lobby) {
+            return lobby.viewers.size();
+        }
+    }
+
+    /** Encodes a Server-Sent Event. JsonWriter escapes newlines, so the data always fits on one line */
+    static Buffer event(String type, Object data) {
+        Buffer b = Buffer.buffer(128);
+        b.appendString("event: ").appendString(type).appendString("\ndata: ");
+        JsonWriter.write(b, data);
+        b.appendString("\n\n");
+        return b;
+    }
+
+}
@@ -2,11 +2,28 @@ package minigames.server;
 
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Promise;
+import minigames.server.cluster.Cluster;
+import minigames.server.cluster.GameHandoff;
 import minigames.server.database.DerbyDatabase;
+import minigames.server.gamelog.GameLog;
+import minigames.server.gamelog.LoggedGameServer;
 import minigames.server.highscore.*;
 import minigames.server.muddle.MuddleServer;
+import minigames.server.snapshots.DerbySnapshotStorage;
+import minigames.server.snapshots.GameSnapshots;
+import minigames.server.utilities.Utilities;
 import io.vertx.core.Launcher;
 
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -27,12 +44,85 @@ public class Main extends AbstractVerticle {
      */
     public static int port = 8080;
 
+    /**
+     * The other server nodes, if we're running as a cluster, and which of them owns each game.
+     * Set up in main, from config.properties and the command line. Until then, this node owns every game.
+     */
+    public static Cluster cluster = new Cluster(Cluster.Config.single(port));
+
+    /**
+     * Moves games between nodes when the cluster changes.
+     */
+    public static GameHandoff gameHandoff;
+
+    /**
+     * Latency histograms, counters and gauges, served on /metrics.
+     */
+    public static final Metrics metrics = new Metrics();
+
     /**
      * The games that are available for each client. Static so that game servers and Main gan register them
      * without needing to worry about whether the server has started yet.
      */
     public static final GameRegistry gameRegistry = new GameRegistry();
 
+    /**
+     * The games in progress on each GameServer, for the lobby. GameServers tell this when games start, change
+     * and finish, and it passes that on to anyone watching the lobby.
+     */
+    public static final LobbyEvents lobbyEvents = new LobbyEvents();
+
+    /**
+     * Remembers what each player has been sent, so that RenderingPackages can be cut down to what has changed.
+     * Rules for each game server's rendering commands are set up in doWiring.
+     */
+    public static final RenderingDeltas renderingDeltas = new RenderingDeltas(lobbyEvents);
+
+    /**
+     * Open push connections to players. GameServers can use this to send a RenderingPackage to a player
+     * who did not just make a move (e.g. because somebody else did).
+     */
+    public static final PlayerChannels playerChannels = new PlayerChannels(renderingDeltas);
+
+    /**
+     * Numbers that stand for a player in a game. Players get one when they join, and can send it with their
+     * commands instead of looking their game up by name.
+     */
+    public static final PlayerHandles playerHandles = new PlayerHandles(lobbyEvents);
+
+    /**
+     * Recent pushes to players who long-poll GET /events rather than holding a WebSocket open.
+     * Sizes are read from config.properties in doWiring.
+     */
+    public static PlayerOutboxes playerOutboxes;
+
+    /**
+     * Writes JSON response bodies straight into Buffers, and counts the bytes that allocates.
+     */
+    public static final ResponseWriter responseWriter = new ResponseWriter();
+
+    /**
+     * Runs calls into GameServers. Calls for the same game run one at a time, so games don't need to lock their state.
+     */
+    public static GameScheduler gameScheduler;
+
+    /**
+     * Ticks real-time games at a fixed rate, so they move on without waiting for commands.
+     * GameServers start and stop their games ticking. Its threads are set up in doWiring.
+     */
+    public static GameTicker gameTicker;
+
+    /**
+     * How long each route gives GameServers to answer. Read from config.properties in doWiring.
+     */
+    public static Deadline.Policy deadlines = Deadline.Policy.NONE;
+
+    /**
+     * Turns calls away when a player, a game or a GameServer has more work than it can keep up with.
+     * Limits are read from config.properties in doWiring.
+     */
+    public static AdmissionControl admissionControl;
+
     /**
      * Represents the application's (current) primary database, utilising the Derby embedded database system.
      * This instance provides pooled connections and should be initialised during application startup.
@@ -40,6 +130,18 @@ public class Main extends AbstractVerticle {
      */
     public static DerbyDatabase derbyDatabase;
 
+    /**
+     * Saves games in progress to the database a while after they change, so they carry on after a restart.
+     * Null if snapshots.enabled is false in config.properties.
+     */
+    public static GameSnapshots gameSnapshots;
+
+    /**
+     * Logs every command each game runs, with a snapshot every so often, so games can be rebuilt or replayed.
+     * An alternative to gameSnapshots. Null if gamelog.enabled is false in config.properties, as it is by default.
+     */
+    public static GameLog gameLog;
+
     /**
      * Provides a set of APIs to manage and retrieve high scores from the database.
      * This instance interacts directly with the DerbyDatabase to execute database operations.
@@ -51,28 +153,106 @@ public class Main extends AbstractVerticle {
      * A place for groups to put code that registers their GameServer with the GameRegistry, etc.
      */
     private static void doWiring() {
+        Properties config = Utilities.getProperties();
+
+        // Threads that run the GameServers
+        if ("virtual".equals(config.getProperty("scheduler.mode", "platform"))) {
+            // A virtual thread for each mailbox run, so a game blocked on the database only holds up itself
+            ExecutorService virtual = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("game-scheduler-", 0).factory());
+            gameScheduler = new GameScheduler(virtual, metrics, (name) -> bulkhead(name, virtual), lobbyEvents);
+            logger.info("Running GameServer calls on virtual threads");
+        } else {
+            int threads = Utilities.getIntProperty(config, "scheduler.threads", 0);
+            if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("game-scheduler-%d").setDaemon(true).build());
+            gameScheduler = new GameScheduler(pool, metrics, (name) -> bulkhead(name, null), lobbyEvents);
+            metrics.gauge("minigames_scheduler_threads", "Threads running GameServer calls", pool::getMaximumPoolSize);
+            metrics.gauge("minigames_scheduler_threads_busy", "Scheduler threads currently running a mailbox", pool::getActiveCount);
+            metrics.gauge("minigames_scheduler_backlog", "Mailboxes waiting for a free scheduler thread", () -> pool.getQueue().size());
+        }
+
+        // A few threads of their own to wake real-time games. The ticks themselves run in the games' mailboxes
+        int tickerThreads = Math.max(1, Utilities.getIntProperty(config, "ticker.threads", 1));
+        gameTicker = new GameTicker(Executors.newScheduledThreadPool(tickerThreads,
+            new ThreadFactoryBuilder().setNameFormat("game-ticker-%d").setDaemon(true).build()), gameScheduler, playerChannels, metrics);
+
+        // How long GameServers get to answer each route
+        deadlines = Deadline.Policy.fromConfig(config);
+
+        // Bulkhead limits for GameServers that don't register with their own
+        gameRegistry.setDefaultBulkheadLimits(Bulkhead.Limits.fromConfig(config));
+
+        // Limits on how fast players and games can send commands, and how much work can queue up
+        admissionControl = new AdmissionControl(AdmissionControl.Limits.fromConfig(config));
+        admissionControl.register(metrics);
+
+        // Pushes kept for players who long-poll for them
+        playerOutboxes = new PlayerOutboxes(playerChannels,
+            Utilities.getIntProperty(config, "events.outbox.size", 64),
+            TimeUnit.SECONDS.toNanos(Utilities.getIntProperty(config, "events.outbox.idleSeconds", 120)));
+        metrics.gauge("minigames_event_polls_waiting", "Long-polls waiting for something to be pushed", playerOutboxes::waiting);
+
+        // Hand games on to their new owner when nodes join or leave the cluster
+        gameHandoff = new GameHandoff(cluster, gameRegistry, gameScheduler);
+        cluster.onRingChange(gameHandoff::ringChanged);
+        cluster.onHeartbeat(gameHandoff::retryKept);
+
         // Initialise the Derby Database singleton.
         derbyDatabase = DerbyDatabase.getInstance();
 
+        // Save games as they change, off the request path, so a restart doesn't lose them
+        if (Boolean.parseBoolean(config.getProperty("snapshots.enabled", "true"))) {
+            gameSnapshots = new GameSnapshots(new DerbySnapshotStorage(derbyDatabase), gameScheduler,
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("game-snapshots-%d").setDaemon(true).build()),
+                TimeUnit.SECONDS.toMillis(Utilities.getIntProperty(config, "snapshots.intervalSeconds", 5)), metrics);
+        }
+
+        // Log every command games run, so a game can be rebuilt exactly or replayed
+        if (Boolean.parseBoolean(config.getProperty("gamelog.enabled", "false"))) {
+            if (gameSnapshots != null) logger.warn("gamelog.enabled and snapshots.enabled are both on, so games are saved twice");
+            gameLog = new GameLog(Path.of(config.getProperty("gamelog.directory", "gamelog")),
+                Utilities.getIntProperty(config, "gamelog.segmentBytes", 262144),
+                Utilities.getIntProperty(config, "gamelog.snapshotEvery", 100), metrics);
+        }
+
+        // How many games each GameServer holds, and how long they're kept when nobody plays them
+        GameContainer.register(metrics);
+        metrics.gauge("minigames_player_handles", "Player handles in use", playerHandles::size);
+        long idleMillis = TimeUnit.SECONDS.toMillis(Utilities.getIntProperty(config, "games.idleSeconds", 1800));
+
         // Register our first demo game
-        gameRegistry.registerGameServer("Muddle", new MuddleServer());
+        MuddleServer muddle = new MuddleServer(idleMillis);
+        gameRegistry.registerGameServer("Muddle", gameLog == null ? muddle : new LoggedGameServer("Muddle", muddle, gameLog, lobbyEvents));
+        // Label Muddle's timings by verb, never by what players typed
+        gameRegistry.setCommandLabels("Muddle", MuddleServer::commandLabel);
 
-        // Initialize the HighScoreAPI
-        HighScoreStorage highScoreStorage = new StubHighScoreStorage();
-        HighScoreManager highScoreManager = new HighScoreManager(highScoreStorage);
-        GlobalLeaderboard globalLeaderboard = new GlobalLeaderboard(highScoreStorage);
-        highScoreAPI = new HighScoreAPI(highScoreManager, globalLeaderboard);
+        // Only send Muddle players the parts of their screen that have changed
+        if (Boolean.parseBoolean(config.getProperty("deltas.enabled", "true"))) {
+            renderingDeltas.rules("Muddle")
+                .reset("clearText", "appendText")
+                .setter("setDirections");
+        }
 
         // Initialise the HighScoreAPI
         highScoreAPI = new HighScoreAPI();
+    }
+
+    /**
+     * Makes the Bulkhead for a GameServer, from the limits it registered with, or returns null if it shares the
+     * scheduler's threads. Bulkheads get their own pool of platform threads, or run on virtual threads if given some.
+     * Names that aren't registered never get a pool, as nothing would ever shut it down.
+     */
+    private static Bulkhead bulkhead(String gameServer, Executor virtual) {
+        if (gameRegistry.getGameServer(gameServer) == null) return null;
+        Bulkhead.Limits limits = gameRegistry.getBulkheadLimits(gameServer);
+        if (!limits.isolated()) return null;
 
-        //adding some dummy/default names to the player list
-        players.add("James");
-        players.add("Sarah");
-        players.add("Andrew");
-        players.add("Amy");
-        players.add("Robert");
-        players.add("Georgia");
+        Executor executor = virtual != null ? virtual : Executors.newFixedThreadPool(limits.maxConcurrent(),
+            new ThreadFactoryBuilder().setNameFormat("bulkhead-" + gameServer + "-%d").setDaemon(true).build());
+        logger.info("{} runs in a bulkhead of {} threads", gameServer, limits.maxConcurrent());
+        return new Bulkhead(gameServer, limits, executor);
     }
 
     public static void main(String... args) {
@@ -89,26 +269,62 @@ public class Main extends AbstractVerticle {
             }
         }
 
+        // Cluster with other nodes if there are seeds, either in config.properties or as the second argument
+        Cluster.Config clusterConfig = Cluster.Config.fromConfig(Utilities.getProperties(), port);
+        if (args.length > 1) clusterConfig = clusterConfig.withSeeds(args[1]);
+        cluster = new Cluster(clusterConfig);
+        if (cluster.enabled()) {
+            // Hand our games on before going, rather than leaving them to be lost
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    cluster.leave().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+                } catch (Exception ex) {
+                    logger.warn("Did not leave the cluster cleanly: {}", ex.toString());
+                }
+            }));
+        }
+
         // Register games and services
         doWiring();
 
+        // How many copies of the server verticle to run. Each has its own event loop, and they share the port.
+        int instances = Utilities.getIntProperty(Utilities.getProperties(), "server.instances", 0);
+        if (instances <= 0) instances = Runtime.getRuntime().availableProcessors();
+
         // Ask the Vertx launcher to launch our "Verticle".
-        // This will cause Vert.x to start itself up, and then create a Main object and call our Main::start method
-        logger.info("About to launch the server");
-        Launcher.executeCommand("run", "minigames.server.Main");
+        // This will cause Vert.x to start itself up, and then create Main objects and call their Main::start methods
+        logger.info("About to launch the server with {} instances", instances);
+        Launcher.executeCommand("run", "minigames.server.Main", "-instances", String.valueOf(instances));
     }
 
     MinigameNetworkServer gameServer;
 
     /**
      * The start method is called by vertx to initialise this Verticle.
+     * It is called once for each instance, each on its own event loop.
      */
     @Override
     public void start(Promise<Void> promise) {
         logger.info("Our Verticle is being started by Vert.x");
         gameServer = new MinigameNetworkServer(vertx);
-        gameServer.start(port);
+        gameServer.start(port)
+            .onSuccess((http) -> cluster.start(vertx))
+            .onSuccess((http) -> promise.complete())
+            .onFailure(promise::fail);
     }
 
+    /**
+     * The stop method is called by vertx when the Verticle is undeployed, e.g. when the server shuts down.
+     * Games that have changed since they were last saved are queued to be saved, and game logs written to disk.
+     */
+    @Override
+    public void stop(Promise<Void> promise) {
+        if (gameLog != null) gameLog.force();
+        if (gameSnapshots == null) {
+            promise.complete();
+            return;
+        }
+        gameSnapshots.flush().onComplete((ar) -> promise.complete());
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,222 @@
+package minigames.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Latency and size histograms, counters and gauges for the server, served as Prometheus text on GET /metrics.
+ *
+ * Recording is lock-free and allocation-free, so it can stay on in production: a histogram is an array of atomic
+ * bucket counts, and finding the histogram for a set of labels is a map lookup on strings the caller already has.
+ * Anything more expensive (gauges reading pool sizes, formatting the text) happens when /metrics is scraped.
+ *
+ * Labels that come from players (e.g. command names) are capped per family. Past the cap, new label values are
+ * counted under "other", so a client sending random commands can't make the server track a million series.
+ */
+public class Metrics {
+
+    /** Bucket bounds for timings, in nanoseconds: 50us to 10s */
+    static final long[] LATENCY_BUCKETS = {
+        50_000L, 100_000L, 250_000L, 500_000L,
+        1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+        100_000_000L, 250_000_000L, 500_000_000L,
+        1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    /** Bucket bounds for sizes, in bytes: 64B to 1MB */
+    static final long[] SIZE_BUCKETS = {
+        64, 128, 256, 512, 1024, 2048, 4096, 8192, 16384, 65536, 262144, 1048576
+    };
+
+    /** How many label values a family tracks before lumping the rest into "other" */
+    static final int MAX_SERIES = 100;
+
+    static final String OTHER = "other";
+
+    /** A histogram: counts of values at or below each bound, plus a running sum */
+    public static class Histogram {
+        final long[] bounds;
+        final AtomicLongArray counts;
+        final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        /** Records a value (nanoseconds for timings, bytes for sizes) */
+        public void record(long value) {
+            int lo = 0;
+            int hi = bounds.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (bounds[mid] < value) lo = mid + 1; else hi = mid;
+            }
+            counts.incrementAndGet(lo);
+            sum.add(value);
+        }
+
+        /** Records the time since start, from System.nanoTime() */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public long count() {
+            long n = 0;
+            for (int i = 0; i < counts.length(); i++) n += counts.get(i);
+            return n;
+        }
+    }
+
+    /** Histograms with the same name, one for each combination of (up to two) label values */
+    public class HistogramFamily {
+        final String name;
+        final String help;
+        final String[] labels;
+        final long[] bounds;
+
+        /** Divides recorded values into the unit Prometheus expects (e.g. 1e9 for nanoseconds to seconds) */
+        final double scale;
+
+        /** Label value, to histogram or (for two labels) to a map of second label value to histogram */
+        final ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<>();
+        final LongAdder size = new LongAdder();
+
+        HistogramFamily(String name, String help, long[] bounds, double scale, String... labels) {
+            this.name = name;
+            this.help = help;
+            this.labels = labels;
+            this.bounds = bounds;
+            this.scale = scale;
+        }
+
+        /** The histogram for one label value */
+        public Histogram get(String value) {
+            Object h = series.get(value);
+            if (h == null) h = series.computeIfAbsent(capped(value), (k) -> newSeries());
+            return (Histogram) h;
+        }
+
+        /** The histogram for two label values */
+        @SuppressWarnings("unchecked")
+        public Histogram get(String first, String second) {
+            Object inner = series.get(first);
+            if (inner == null) inner = series.computeIfAbsent(capped(first), (k) -> new ConcurrentHashMap<String, Histogram>());
+            ConcurrentHashMap<String, Histogram> map = (ConcurrentHashMap<String, Histogram>) inner;
+            Histogram h = map.get(second);
+            if (h == null) h = map.computeIfAbsent(capped(second), (k) -> (Histogram) newSeries());
+            return h;
+        }
+
+        private Object newSeries() {
+            size.increment();
+            return new Histogram(bounds);
+        }
+
+        private String capped(String value) {
+            if (value == null) return OTHER;
+            return size.sum() < MAX_SERIES ? value : OTHER;
+        }
+    }
+
+    /** A counter or gauge read when /metrics is scraped, optionally with one label */
+    private record Sampled(String name, String help, String type, String label, Supplier<Map<String, ? extends Number>> values) {}
+
+    private final List<HistogramFamily> histograms = new CopyOnWriteArrayList<>();
+    private final List<Sampled> sampled = new CopyOnWriteArrayList<>();
+
+    /** Adds a family of timing histograms. Values are recorded in nanoseconds and reported in seconds */
+    public HistogramFamily timer(String name, String help, String... labels) {
+        HistogramFamily f = new HistogramFamily(name, help, LATENCY_BUCKETS, 1e9, labels);
+        histograms.add(f);
+        return f;
+    }
+
+    /** Adds a family of size histograms, in bytes */
+    public HistogramFamily sizes(String name, String help, String... labels) {
+        HistogramFamily f = new HistogramFamily(name, help, SIZE_BUCKETS, 1, labels);
+        histograms.add(f);
+        return f;
+    }
+
+    /** Adds a gauge, read when /metrics is scraped */
+    public void gauge(String name, String help, LongSupplier value) {
+        sampled.add(new Sampled(name, help, "gauge", null, () -> Map.of("", value.getAsLong())));
+    }
+
+    /** Adds a gauge with one label, read when /metrics is scraped */
+    public void gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+        sampled.add(new Sampled(name, help, "gauge", label, values));
+    }
+
+    /** Adds a counter kept somewhere else (e.g. a LongAdder), read when /metrics is scraped */
+    public void counter(String name, String help, LongSupplier value) {
+        sampled.add(new Sampled(name, help, "counter", null, () -> Map.of("", value.getAsLong())));
+    }
+
+    /** Adds a counter with one label, read when /metrics is scraped */
+    public void counter(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+        sampled.add(new Sampled(name, help, "counter", label, values));
+    }
+
+// Prometheus text format
+
+    /** Everything, in the Prometheus text exposition format */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (HistogramFamily f : histograms) {
+            header(sb, f.name, f.help, "histogram");
+            f.series.forEach((first, value) -> {
+                if (value instanceof Histogram h) {
+                    writeHistogram(sb, f, h, f.labels[0] + "=\"" + escape(first) + "\"");
+                } else {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Histogram> inner = (Map<String, Histogram>) value;
+                    inner.forEach((second, h) -> writeHistogram(sb, f, h,
+                        f.labels[0] + "=\"" + escape(first) + "\"," + f.labels[1] + "=\"" + escape(second) + "\""));
+                }
+            });
+        }
+        for (Sampled s : sampled) {
+            header(sb, s.name(), s.help(), s.type());
+            s.values().get().forEach((labelValue, n) -> {
+                sb.append(s.name());
+                if (s.label() != null) sb.append('{').append(s.label()).append("=\"").append(escape(labelValue)).append("\"}");
+                sb.append(' ').append(number(n.doubleValue())).append('\n');
+            });
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeHistogram(StringBuilder sb, HistogramFamily f, Histogram h, String labels) {
+        long cumulative = 0;
+        for (int i = 0; i <= f.bounds.length; i++) {
+            cumulative += h.counts.get(i);
+            String le = i < f.bounds.length ? number(f.bounds[i] / f.scale) : "+Inf";
+            sb.append(f.name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                .append(cumulative).append('\n');
+        }
+        sb.append(f.name).append("_sum{").append(labels).append("} ").append(number(h.sum.sum() / f.scale)).append('\n');
+        sb.append(f.name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    private static String number(double d) {
+        return d == Math.rint(d) && Math.abs(d) < 1e15 ? Long.toString((long) d) : Double.toString(d);
+    }
+
+    static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
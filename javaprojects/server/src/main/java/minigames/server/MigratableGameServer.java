@@ -0,0 +1,32 @@
+package minigames.server;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * A GameServer whose games can move from one server node to another.
+ *
+ * In a cluster, each game lives on the node that owns it (see minigames.server.cluster.Cluster). When nodes join
+ * or leave, some games get a new owner. If their GameServer implements this, the old owner exports them and the
+ * new owner imports them, and players carry on where they were. Games of other GameServers can't move, so they
+ * are lost when ownership changes.
+ *
+ * exportGame and importGame are called from the game's scheduler mailbox, like any other call for that game.
+ */
+public interface MigratableGameServer extends GameServer {
+
+    /**
+     * Takes a game out of this server, returning everything needed to carry it on elsewhere,
+     * or null if there's no such game.
+     */
+    public JsonObject exportGame(String gameId);
+
+    /** Carries on a game that another node exported */
+    public void importGame(String gameId, JsonObject state);
+
+    /**
+     * Whether this server has a game in memory, so that calls for it can be told apart from calls for a game still
+     * on its way from another node. Called from any thread, so it must be cheap and not block
+     */
+    public boolean hasGame(String gameId);
+
+}
@@ -1,23 +1,44 @@
 package minigames.server;
 
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.CorsHandler;
+import io.vertx.ext.web.handler.HttpException;
 
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import minigames.codec.BinaryCodec;
+import minigames.codec.JsonWriter;
 import minigames.commands.CommandPackage;
 import minigames.rendering.GameMetadata;
 import minigames.rendering.RenderingPackage;
+import minigames.server.cluster.Cluster;
+import minigames.server.cluster.GameHandoff;
 
 
 public class MinigameNetworkServer {
@@ -25,18 +46,49 @@ public class MinigameNetworkServer {
     /** A logger for logging output */
     private static final Logger logger = LogManager.getLogger(MinigameNetworkServer.class);
 
+    /** Shared by every server instance, because they all serve the same routes */
+    static final Metrics.HistogramFamily requestTime = Main.metrics.timer("minigames_http_request_seconds",
+        "Time from a request arriving to its response being sent", "route");
+    static final Metrics.HistogramFamily responseSize = Main.metrics.sizes("minigames_http_response_bytes",
+        "Size of response bodies", "route");
+    static final Metrics.HistogramFamily serialisationTime = Main.metrics.timer("minigames_serialisation_seconds",
+        "Time taken to encode a response body", "route", "format");
+    static final LongAdder inFlight = new LongAdder();
+    static {
+        Main.metrics.gauge("minigames_http_requests_in_flight", "Requests received but not yet answered", inFlight::sum);
+    }
+
     Vertx vertx;
     HttpServer server;
     Router router;
+    CommandBatch batch;
 
     public MinigameNetworkServer(Vertx vertx) {
         this.vertx = vertx;
         this.server = vertx.createHttpServer();
         this.router = Router.router(vertx);
+        this.batch = new CommandBatch(Main.gameRegistry, Main.gameScheduler, Main.renderingDeltas, Main.admissionControl,
+            Main.deadlines, Main.playerHandles);
     }
 
-    /** Starts the server on the given port */
-    public void start(int port) {
+    /**
+     * Starts the server on the given port.
+     * Several instances can listen on the same port; Vert.x shares incoming connections between them.
+     */
+    public Future<HttpServer> start(int port) {
+        // Times every request and measures every response, by the route that answered it
+        router.route().handler((ctx) -> {
+          long start = System.nanoTime();
+          inFlight.increment();
+          ctx.addEndHandler((ar) -> {
+            inFlight.decrement();
+            String route = routeName(ctx);
+            requestTime.get(route).recordSince(start);
+            responseSize.get(route).record(ctx.response().bytesWritten());
+          });
+          ctx.next();
+        });
+
         router.route()
           .handler(CorsHandler.create().allowedMethod(HttpMethod.POST))
           .handler(BodyHandler.create());
@@ -53,41 +105,98 @@ public class MinigameNetworkServer {
         });
 
         // Gets the list of game servers for this client type
-        router.get("/gameServers/:clientType").respond((ctx) -> {
-          String clientStr = ctx.pathParam("clientType");
-          ClientType ct = ClientType.valueOf(clientStr);
-          List<GameServer> servers = Main.gameRegistry.getGamesForPlatform(ct);
+        router.get("/gameServers/:clientType").handler((ctx) -> {
+          ClientType ct;
+          try {
+            ct = ClientType.valueOf(ctx.pathParam("clientType"));
+          } catch (IllegalArgumentException ex) {
+            ctx.fail(404);
+            return;
+          }
 
-          /** Vertx/Jackson should turn this into a JSON list, because we're just outputing a simple List<record> */
-          return Future.succeededFuture(servers.stream().map((gs) -> gs.getDetails()).toList());
+          /*
+           * The registry keeps this list encoded and ready to go. If the client already has it, it doesn't even get sent.
+           */
+          GameRegistry.Listing listing = Main.gameRegistry.getListing(ct);
+          ctx.response()
+            .putHeader(HttpHeaders.ETAG, listing.etag())
+            .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+          if (etagMatches(ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH), listing.etag())) {
+            ctx.response().setStatusCode(304).end();
+          } else {
+            ctx.response().putHeader(HttpHeaders.CONTENT_TYPE, JsonWriter.MEDIA_TYPE).end(listing.body());
+          }
         });
 
         // Gets the list of game servers for this client type
         router.get("/games/:gameServer").respond((ctx) -> {
           String serverName = ctx.pathParam("gameServer");
-          GameServer gs = Main.gameRegistry.getGameServer(serverName);
-          GameMetadata[] games = gs.getGamesInProgress();
+          List<Object> games = new ArrayList<>(localGames(serverName));
+          if (!Main.cluster.enabled() || isForwarded(ctx)) {
+            return Future.succeededFuture(games);
+          }
+
+          // Each node only has its own games, so ask the others for theirs. Nodes that don't answer are left out.
+          List<Future> others = new ArrayList<>();
+          for (String node : Main.cluster.nodes()) {
+            if (node.equals(Main.cluster.self())) continue;
+            others.add(Main.cluster.send(node, HttpMethod.GET, ctx.request().uri(), null)
+              .onSuccess((body) -> {
+                synchronized (games) {
+                  body.toJsonArray().forEach(games::add);
+                }
+              }));
+          }
+          return CompositeFuture.join(others).transform((ar) -> Future.succeededFuture(games));
+        });
+
+        // A live feed of the games in progress on a game server, as Server-Sent Events
+        router.get("/lobby/:gameServer/stream").handler(this::streamLobby);
+
+
+        // Waits for RenderingPackages pushed to a player, for clients that can't hold a WebSocket open
+        router.get("/events/:gameServer/:game/:player").handler(this::pollEvents);
+
 
-          /** Vertx/Jackson should turn this into a JSON list, because we're just outputing a simple List<record> */
-          return Future.succeededFuture(Arrays.asList(games));
+        // Which node a game lives on, so that clients can open WebSockets and long-polls there
+        router.get("/cluster/owner/:gameServer/:game").respond((ctx) -> {
+          return Future.succeededFuture(new JsonObject()
+            .put("node", Main.cluster.owner(ctx.pathParam("gameServer"), ctx.pathParam("game"))));
         });
 
+        // Heartbeats between cluster nodes. Answers with every node this one knows is alive
+        router.get("/cluster/members").respond((ctx) -> {
+          if (!Main.cluster.isTrusted(ctx.request())) return notInCluster(ctx);
+          String from = ctx.request().getParam("from");
+          if (from != null) Main.cluster.contacted(from, "true".equals(ctx.request().getParam("leaving")));
+          return Future.succeededFuture(Main.cluster.membersJson());
+        });
+
+        // Takes in a game another cluster node is handing on
+        router.post("/cluster/games/:gameServer/:game").respond((ctx) -> {
+          if (!Main.cluster.isTrusted(ctx.request())) return notInCluster(ctx);
+          return Main.gameHandoff.accept(ctx.pathParam("gameServer"), ctx.pathParam("game"), ctx.body().asJsonObject())
+            .map((v) -> new JsonObject().put("accepted", true));
+        });
 
         // Starts a new game on the server
         router.post("/newGame/:gameServer").respond((ctx) -> {
           String serverName = ctx.pathParam("gameServer");
           GameServer gs = Main.gameRegistry.getGameServer(serverName);
+          if (gs == null) return noSuchGameServer(ctx, serverName);
 
           String playerName = ctx.body().asString();
 
+          AdmissionControl.Decision admission = Main.admissionControl.admit(serverName, GameScheduler.NEW_GAMES, playerName);
+          if (!admission.admitted()) return reject(ctx, admission);
+
           /*
-           * executeBlocking moves this onto a background thread
+           * The scheduler runs this on a background thread, after anything else queued for new games on this server
            */
-          Future<RenderingPackage> resp = vertx.executeBlocking((promise) -> gs.newGame(playerName).onSuccess((r) -> {
-            logger.info("package {}", r);
-            promise.complete(r);
-          }));
-          return resp;
+          return encodeFor(ctx, Main.admissionControl.track(serverName,
+              Main.gameScheduler.submit(serverName, GameScheduler.NEW_GAMES, "newGame", Main.deadlines.forRoute("newGame"), () -> gs.newGame(playerName)
+                .map((rp) -> Main.renderingDeltas.send(serverName, rp.metadata().name(), playerName, Main.playerHandles.issue(serverName, gs, rp)))))
+            .onSuccess((r) -> logger.debug("package {}", r)));
         });
 
         // Starts a new game on the server
@@ -95,46 +204,495 @@ public class MinigameNetworkServer {
           String serverName = ctx.pathParam("gameServer");
           String gameName = ctx.pathParam("game");
           GameServer gs = Main.gameRegistry.getGameServer(serverName);
+          if (gs == null) return noSuchGameServer(ctx, serverName);
+
+          String owner = forwardTo(ctx, serverName, gameName);
+          if (owner != null) return forward(ctx, owner);
+          if (inTransit(serverName, gameName)) return reject(ctx, GameHandoff.MOVING);
 
           String playerName = ctx.body().asString();
 
+          AdmissionControl.Decision admission = Main.admissionControl.admit(serverName, gameName, playerName);
+          if (!admission.admitted()) return reject(ctx, admission);
+
           /*
-            * executeBlocking moves this onto a background thread
-            */
-          Future<RenderingPackage> resp = vertx.executeBlocking((promise) -> gs.joinGame(gameName, playerName).onSuccess((r) -> {
-            logger.info("package {}", r);
-            promise.complete(r);
-          }));
-          return resp;
+           * The scheduler runs this on a background thread, after anything else queued for this game
+           */
+          return encodeFor(ctx, Main.admissionControl.track(serverName,
+              Main.gameScheduler.submit(serverName, gameName, "joinGame", Main.deadlines.forRoute("joinGame"), () -> gs.joinGame(gameName, playerName)
+                .map((rp) -> Main.renderingDeltas.send(serverName, gameName, playerName, Main.playerHandles.issue(serverName, gs, rp)))))
+            .onSuccess((r) -> logger.debug("package {}", r)));
         });
         
         // Sends a command package to a game on the server
         router.post("/command").respond((ctx) -> {
-          JsonObject data = ctx.body().asJsonObject();
-          CommandPackage cp = CommandPackage.fromJson(data);
+          CommandPackage sent = sentBinary(ctx)
+            ? BinaryCodec.decodeCommandPackage(ctx.body().buffer())
+            : CommandPackage.fromJson(ctx.body().asJsonObject());
+
+          // A handle this node issued finds the game without any lookups. Anything else goes by name
+          PlayerHandles.Entry handle = Main.playerHandles.resolve(sent);
+          CommandPackage cp = handle == null ? sent : handle.fill(sent);
+          if (cp.gameServer() == null || cp.gameId() == null) return reject(ctx, new AdmissionControl.Decision(404, 0, "Unknown handle"));
+
+          GameServer gs;
+          if (handle != null) {
+            gs = handle.gameServer();
+          } else {
+            gs = Main.gameRegistry.getGameServer(cp.gameServer());
+            if (gs == null) return noSuchGameServer(ctx, cp.gameServer());
+            String owner = forwardTo(ctx, cp.gameServer(), cp.gameId());
+            if (owner != null) return forward(ctx, owner);
+          }
+          if (inTransit(cp.gameServer(), cp.gameId())) return reject(ctx, GameHandoff.MOVING);
 
-          GameServer gs = Main.gameRegistry.getGameServer(cp.gameServer());
+          AdmissionControl.Decision admission = Main.admissionControl.admit(cp.gameServer(), cp.gameId(), cp.player());
+          if (!admission.admitted()) return reject(ctx, admission);
 
           /*
-            * executeBlocking moves this onto a background thread
-            */
-          Future<RenderingPackage> resp = vertx.executeBlocking((promise) -> gs.callGame(cp).onSuccess((r) -> {
-            logger.info("package {}", r);
-            promise.complete(r);
+           * The scheduler runs this on a background thread, after anything else queued for this game
+           */
+          return encodeFor(ctx, Main.admissionControl.track(cp.gameServer(), callGame(gs, cp.gameServer(), cp, Main.deadlines.forRoute("command")))
+            .onSuccess((r) -> logger.debug("package {}", r)));
+        });
+
+        // Sends several command packages at once, returning a result for each in the same order
+        router.post("/commands").respond((ctx) -> {
+          JsonArray data = ctx.body().asJsonArray();
+          return runBatch(ctx, data).map((results) -> {
+            ctx.response().putHeader(HttpHeaders.CONTENT_TYPE, JsonWriter.MEDIA_TYPE);
+            return Main.responseWriter.write(results);
+          });
+        });
+        // Queue depths and timings for each game that has had calls and hasn't ended
+        // Queue depths and timings for each game with calls queued or running
+        router.get("/scheduler/games").respond((ctx) -> {
+          return Future.succeededFuture(Main.gameScheduler.stats());
+        });
+
+        // Everything in Metrics, for Prometheus to scrape
+        router.get("/metrics").handler((ctx) -> {
+          ctx.response()
+            .putHeader(HttpHeaders.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8")
+            .end(Main.metrics.scrape());
+        });
+
+        // How many calls admission control has let in and turned away, and how many are pending on each server
+        router.get("/admission/stats").respond((ctx) -> {
+          return Future.succeededFuture(Main.admissionControl.stats());
+        });
+
+        // How many bytes responses take, and how many bytes writing them allocates
+        router.get("/stats/serialisation").respond((ctx) -> {
+          return Future.succeededFuture(Main.responseWriter.stats());
+        });
+
+        // Persistent push channel. WebSocket upgrades don't go through the router, so they skip CORS and BodyHandler
+        server.webSocketHandler(this::handleWebSocket);
+
+        return server.requestHandler(router).listen(port)
+          .onSuccess((http) -> logger.info("Server started on {}", port))
+          .onFailure((ex) -> logger.error("Server failed to start", ex));
+    }
+
+    /**
+     * Streams a GameServer's lobby as Server-Sent Events: a "snapshot" event with every game in progress,
+     * then "created", "updated" and "ended" events as games change. Nothing is sent while nothing changes.
+     *
+     * Events are written on this request's own event loop. A viewer who can't keep up is disconnected rather than
+     * buffered for; their EventSource reconnects and gets a fresh snapshot.
+     */
+    void streamLobby(RoutingContext ctx) {
+        String serverName = ctx.pathParam("gameServer");
+        GameServer gs = Main.gameRegistry.getGameServer(serverName);
+        if (gs == null) {
+            ctx.fail(404);
+            return;
+        }
+
+        HttpServerResponse response = ctx.response();
+        response.setChunked(true)
+          .putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream")
+          .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+
+        Context context = vertx.getOrCreateContext();
+        Runnable unsubscribe = Main.lobbyEvents.subscribe(serverName, gs::getGamesInProgress, (event) ->
+          context.runOnContext((v) -> {
+            if (response.ended() || response.closed()) return;
+            if (response.writeQueueFull()) {
+              logger.info("Disconnecting a lobby viewer for {} who isn't keeping up", serverName);
+              response.close();
+            } else {
+              response.write(event);
+            }
           }));
-          return resp;
+        response.closeHandler((v) -> unsubscribe.run());
+    }
+
+    /** How long a long-poll waits by default, and at most, before answering with nothing */
+    static final long POLL_TIMEOUT_MS = 25_000;
+
+    /**
+     * Answers GET /events/:gameServer/:game/:player?cursor=n&timeout=ms with what has been pushed to the player
+     * since cursor, as { "cursor": n, "missed": bool, "packages": [...] }. The client sends the cursor it gets back
+     * with its next poll. Without a cursor, the poll waits for whatever is pushed next.
+     *
+     * If nothing has been pushed yet, the request is parked until something is or the timeout passes.
+     * A parked request holds no thread; it's woken by the push itself. "missed" means some packages were
+     * dropped before the player saw them, and they should send a "server.resync" command.
+     */
+    void pollEvents(RoutingContext ctx) {
+        String serverName = ctx.pathParam("gameServer");
+        String gameName = ctx.pathParam("game");
+        String playerName = ctx.pathParam("player");
+        if (Main.gameRegistry.getGameServer(serverName) == null) {
+            ctx.fail(404);
+            return;
+        }
+
+        long cursor;
+        long timeout;
+        try {
+            String c = ctx.request().getParam("cursor");
+            cursor = c == null ? Main.playerOutboxes.latest(serverName, gameName, playerName) : Long.parseLong(c);
+            String t = ctx.request().getParam("timeout");
+            timeout = t == null ? POLL_TIMEOUT_MS : Math.min(Math.max(Long.parseLong(t), 0), POLL_TIMEOUT_MS);
+        } catch (NumberFormatException ex) {
+            ctx.fail(400);
+            return;
+        }
+
+        HttpServerResponse response = ctx.response()
+          .putHeader(HttpHeaders.CONTENT_TYPE, JsonWriter.MEDIA_TYPE)
+          .putHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+
+        // Woken on the pushing thread, so it hops back to this request's event loop to answer
+        Context context = vertx.getOrCreateContext();
+        AtomicBoolean answered = new AtomicBoolean();
+        long[] timer = { -1 };
+        Runnable wakeup = new Runnable() {
+            @Override
+            public void run() {
+                context.runOnContext((v) -> {
+                    if (!answered.compareAndSet(false, true)) return;
+                    if (timer[0] >= 0) vertx.cancelTimer(timer[0]);
+                    if (response.ended() || response.closed()) return;
+                    PlayerOutboxes.Batch batch = Main.playerOutboxes.poll(serverName, gameName, playerName, cursor, null);
+                    response.end(Main.responseWriter.write(batch.toJson()));
+                });
+            }
+        };
+
+        PlayerOutboxes.Batch ready = Main.playerOutboxes.poll(serverName, gameName, playerName, cursor, timeout == 0 ? null : wakeup);
+        if (ready != null) {
+            answered.set(true);
+            response.end(Main.responseWriter.write(ready.toJson()));
+            return;
+        }
+
+        timer[0] = vertx.setTimer(timeout, (id) -> {
+            Main.playerOutboxes.cancel(serverName, gameName, playerName, wakeup);
+            wakeup.run();
+        });
+        response.closeHandler((v) -> {
+            if (answered.compareAndSet(false, true)) {
+                vertx.cancelTimer(timer[0]);
+                Main.playerOutboxes.cancel(serverName, gameName, playerName, wakeup);
+            }
         });
+    }
+
+    /** The games in progress on a GameServer on this node */
+    static List<?> localGames(String serverName) {
+        GameServer gs = Main.gameRegistry.getGameServer(serverName);
+
+        // If the GameServer keeps the lobby up to date, we don't need to ask it
+        if (Main.lobbyEvents.isTracked(serverName)) {
+            return Main.lobbyEvents.games(serverName);
+        }
+        GameMetadata[] games = gs.getGamesInProgress();
+
+        /** Vertx/Jackson should turn this into a JSON list, because we're just outputing a simple List<record> */
+        return Arrays.asList(games);
+    }
+
+    /**
+     * Whether another cluster node sent us this request, in which case we handle it ourselves.
+     * Anybody can send the header, so it only counts with the cluster's secret
+     */
+    static boolean isForwarded(RoutingContext ctx) {
+        return ctx.request().getHeader(Cluster.FORWARDED) != null && Main.cluster.isTrusted(ctx.request());
+    }
+
+    /** Fails a cluster route called by something that isn't a node of this cluster, with a 403 */
+    static <T> Future<T> notInCluster(RoutingContext ctx) {
+        return Future.failedFuture(new HttpException(403, "Only nodes of this cluster can do that"));
+    }
+
+    /** Whether a game is on its way between cluster nodes, so its calls should be tried again shortly */
+    static boolean inTransit(String gameServer, String gameId) {
+        return Main.gameHandoff != null && gameServer != null && gameId != null && Main.gameHandoff.inTransit(gameServer, gameId);
+    }
+
+    /** The node to forward a request for a game to, or null if this node should handle it */
+    static String forwardTo(RoutingContext ctx, String gameServer, String gameId) {
+        if (!Main.cluster.enabled() || isForwarded(ctx) || gameServer == null || gameId == null) return null;
+        if (Main.gameHandoff != null && Main.gameHandoff.isKept(gameServer, gameId)) return null;
+        String owner = Main.cluster.owner(gameServer, gameId);
+        return owner == null || owner.equals(Main.cluster.self()) ? null : owner;
+    }
+
+    /** Sends a request on to the node that owns its game, and passes its answer back */
+    static Future<Buffer> forward(RoutingContext ctx, String owner) {
+        return Main.cluster.forward(ctx, owner).recover((ex) -> {
+            logger.warn("Could not forward {} to {}: {}", ctx.request().uri(), owner, ex.getMessage());
+            return reject(ctx, new AdmissionControl.Decision(503, 1, "The server running this game can't be reached"));
+        });
+    }
+
+    /**
+     * Runs a batch of CommandPackages. In a cluster, packages for games on other nodes are sent to those nodes
+     * as smaller batches, and the results put back in the order of the original batch.
+     */
+    Future<List<Object>> runBatch(RoutingContext ctx, JsonArray data) {
+        if (!Main.cluster.enabled()) return batch.run(data);
+
+        Object[] results = new Object[data.size()];
+        Map<String, List<Integer>> byNode = new LinkedHashMap<>();
+        for (int i = 0; i < data.size(); i++) {
+            Object entry = data.getValue(i);
+            String owner = null;
+            if (entry instanceof JsonObject cp) {
+                owner = forwardTo(ctx, cp.getString("gameServer"), cp.getString("gameId"));
+                if (owner == null && inTransit(cp.getString("gameServer"), cp.getString("gameId"))) {
+                    results[i] = GameHandoff.MOVING.toJson();
+                    continue;
+                }
+            }
+            byNode.computeIfAbsent(owner == null ? Main.cluster.self() : owner, (k) -> new ArrayList<>()).add(i);
+        }
+
+        // Raw, because CompositeFuture.join takes a List<Future>
+        List<Future> parts = new ArrayList<>();
+        byNode.forEach((node, indexes) -> {
+            JsonArray part = new JsonArray();
+            for (int i : indexes) part.add(data.getValue(i));
+
+            Future<List<Object>> run = node.equals(Main.cluster.self())
+                ? batch.run(part)
+                : Main.cluster.send(node, HttpMethod.POST, "/commands", part.toBuffer())
+                    .map((body) -> {
+                        List<Object> answers = new ArrayList<>(indexes.size());
+                        body.toJsonArray().forEach(answers::add);
+                        return answers;
+                    })
+                    .otherwise((ex) -> Collections.<Object>nCopies(indexes.size(),
+                        new JsonObject().put("error", "The server running this game can't be reached")));
+            parts.add(run.onSuccess((answers) -> {
+                for (int j = 0; j < indexes.size(); j++) results[indexes.get(j)] = answers.get(j);
+            }));
+        });
+        return CompositeFuture.join(parts).transform((ar) -> Future.succeededFuture(Arrays.asList(results)));
+    }
+
+    /** Whether an If-None-Match header includes an ETag (weak or strong, as a GET only needs a weak match) */
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag) || tag.equals("*")) return true;
+        }
+        return false;
+    }
 
-        server.requestHandler(router).listen(port, (http) -> {
-            if (http.succeeded()) {
-              logger.info("Server started on {}", port);
+    /** Whether the request body is in the binary wire format rather than JSON */
+    static boolean sentBinary(RoutingContext ctx) {
+        String type = ctx.request().getHeader(HttpHeaders.CONTENT_TYPE);
+        return type != null && type.startsWith(BinaryCodec.MEDIA_TYPE);
+    }
+
+    /** Whether the client has asked for responses in the binary wire format */
+    static boolean acceptsBinary(RoutingContext ctx) {
+        String accept = ctx.request().getHeader(HttpHeaders.ACCEPT);
+        return accept != null && accept.contains(BinaryCodec.MEDIA_TYPE);
+    }
+
+    /**
+     * Sends a RenderingPackage back in the format the client asked for.
+     * JSON (written straight into a Buffer) unless the Accept header asks for the binary format.
+     * Calls turned away by a full bulkhead get a 503, and calls that run past their deadline a 504,
+     * with the same kind of body as admission control's rejections.
+     */
+    static Future<Buffer> encodeFor(RoutingContext ctx, Future<RenderingPackage> resp) {
+        return encode(ctx, resp).recover((ex) -> {
+            if (ex instanceof Bulkhead.FullException full) return reject(ctx, full.decision());
+            if (ex instanceof Deadline.ExceededException exceeded) return reject(ctx, exceeded.decision());
+            return Future.failedFuture(ex);
+        });
+    }
+
+    private static Future<Buffer> encode(RoutingContext ctx, Future<RenderingPackage> resp) {
+        if (!acceptsBinary(ctx)) {
+            return resp.map((rp) -> {
+                long start = System.nanoTime();
+                ctx.response().putHeader(HttpHeaders.CONTENT_TYPE, JsonWriter.MEDIA_TYPE);
+                Buffer b = Main.responseWriter.write(rp);
+                serialisationTime.get(routeName(ctx), "json").recordSince(start);
+                return b;
+            });
+        }
+        return resp.map((rp) -> {
+            long start = System.nanoTime();
+            ctx.response().putHeader(HttpHeaders.CONTENT_TYPE, BinaryCodec.MEDIA_TYPE);
+            Buffer b = BinaryCodec.encode(rp);
+            serialisationTime.get(routeName(ctx), "binary").recordSince(start);
+            return b;
+        });
+    }
+
+    /** The route that answered a request, as its path pattern (e.g. /newGame/:gameServer) so it's a bounded label */
+    static String routeName(RoutingContext ctx) {
+        if (ctx.currentRoute() == null || ctx.currentRoute().getPath() == null) return "unmatched";
+        return ctx.currentRoute().getPath();
+    }
+
+    /**
+     * The name a CommandPackage's timings are recorded under: its first command, as its GameServer labels it.
+     * Never the text the player sent, which could be anything (e.g. what they said in chat)
+     */
+    static String commandName(String serverName, CommandPackage cp) {
+        if (cp.commands() == null || cp.commands().isEmpty()) return "none";
+        JsonObject first = cp.commands().get(0);
+        if (first.getValue("command") instanceof String command) return Main.gameRegistry.commandLabel(serverName, command);
+        return first.containsKey("nativeCommand") ? "native" : "unknown";
+    }
+
+    /**
+     * Replies to a call that admission control turned away: 429 if the player or game is sending too fast,
+     * 503 if the GameServer is overloaded (or 504 if the call ran past its deadline).
+     * Either way with a Retry-After header and a JSON body saying why.
+     */
+    static Future<Buffer> reject(RoutingContext ctx, AdmissionControl.Decision admission) {
+        ctx.response()
+          .setStatusCode(admission.status())
+          .putHeader("Retry-After", String.valueOf(admission.retryAfterSeconds()))
+          .putHeader(HttpHeaders.CONTENT_TYPE, JsonWriter.MEDIA_TYPE);
+        return Future.succeededFuture(Main.responseWriter.write(admission.toJson()));
+    }
+
+    /**
+     * Replies to a call for a GameServer that isn't registered, with a 404 and the same kind of body as a rejection.
+     * It's answered before admission control or the scheduler see the name, as they keep state for every name they see
+     */
+    static Future<Buffer> noSuchGameServer(RoutingContext ctx, String serverName) {
+        return reject(ctx, new AdmissionControl.Decision(404, 0, "No such game server: " + serverName));
+    }
+
+    /**
+     * Handles a WebSocket opened at /ws/:gameServer/:game/:player
+     *
+     * The socket accepts CommandPackages as text (JSON) or binary frames, and replies to each in the same format.
+     * As well as the replies to its own commands, it receives anything the GameServer pushes to that player
+     * through Main.playerChannels. Pushes are sent as text frames, or as binary frames if the socket was opened
+     * with ?format=binary
+     *
+     * Frames turned away by admission control (or a full bulkhead) get a text frame of { "error": reason, "retryAfter": seconds } back.
+     * So do frames whose gameServer, gameId and player (or handle) aren't the ones in the socket's path.
+     */
+    void handleWebSocket(ServerWebSocket ws) {
+        String[] parts = ws.path().split("/");
+        if (parts.length != 5 || !"ws".equals(parts[1])) {
+            ws.reject(404);
+            return;
+        }
+        String serverName = URLDecoder.decode(parts[2], StandardCharsets.UTF_8);
+        String gameName = URLDecoder.decode(parts[3], StandardCharsets.UTF_8);
+        String playerName = URLDecoder.decode(parts[4], StandardCharsets.UTF_8);
+
+        GameServer gs = Main.gameRegistry.getGameServer(serverName);
+        if (gs == null) {
+            ws.reject(404);
+            return;
+        }
+
+        boolean binaryPushes = "format=binary".equals(ws.query());
+        Runnable unsubscribe = Main.playerChannels.subscribe(serverName, gameName, playerName, (rp) -> {
+            if (binaryPushes) {
+                ws.writeBinaryMessage(BinaryCodec.encode(rp));
             } else {
-              logger.error("Server failed to start");
+                ws.writeTextMessage(Main.responseWriter.write(rp).toString());
             }
-          });
+        });
+        ws.closeHandler((v) -> unsubscribe.run());
+        logger.info("Push channel opened for {} in {}/{}", playerName, serverName, gameName);
+
+        ws.textMessageHandler((text) -> {
+          CommandPackage cp;
+          try {
+            cp = Main.playerHandles.fill(CommandPackage.fromJson(new JsonObject(text)));
+          } catch (RuntimeException ex) {
+            logger.warn("Ignoring malformed frame from {}: {}", playerName, ex.getMessage());
+            return;
+          }
+          runFrame(ws, gs, serverName, gameName, playerName, cp).onSuccess((r) -> ws.writeTextMessage(Main.responseWriter.write(r).toString()));
+        });
+
+        ws.binaryMessageHandler((buffer) -> {
+          CommandPackage cp;
+          try {
+            cp = Main.playerHandles.fill(BinaryCodec.decodeCommandPackage(buffer));
+          } catch (RuntimeException ex) {
+            logger.warn("Ignoring malformed frame from {}: {}", playerName, ex.getMessage());
+            return;
+          }
+          runFrame(ws, gs, serverName, gameName, playerName, cp).onSuccess((r) -> ws.writeBinaryMessage(BinaryCodec.encode(r)));
+        });
+    }
+
+    /**
+     * Queues a CommandPackage on its game's scheduler mailbox, to be answered by the deadline.
+     * The reply only carries what has changed for the player, unless the package asked for a resync.
+     */
+    static Future<RenderingPackage> callGame(GameServer gs, String serverName, CommandPackage cp, Deadline deadline) {
+        return Main.gameScheduler.submit(serverName, cp.gameId(), commandName(serverName, cp), deadline, () -> gs.callGame(Main.renderingDeltas.receive(cp))
+            .map((rp) -> Main.renderingDeltas.send(serverName, cp.gameId(), cp.player(), rp)));
     }
-   
 
+    /**
+     * Runs a CommandPackage that arrived on a WebSocket, if it is for the game and player the socket was opened for
+     * and admission control lets it in
+     */
+    private Future<RenderingPackage> runFrame(ServerWebSocket ws, GameServer gs, String serverName, String gameName, String playerName, CommandPackage cp) {
+        // Otherwise one player's socket could play as anyone, in any game
+        if (!serverName.equals(cp.gameServer()) || !gameName.equals(cp.gameId()) || !playerName.equals(cp.player())) {
+            AdmissionControl.Decision elsewhere = new AdmissionControl.Decision(403, 0,
+                "This socket is for " + playerName + " in " + serverName + "/" + gameName);
+            ws.writeTextMessage(elsewhere.toJson().encode());
+            return Future.failedFuture(elsewhere.reason());
+        }
+
+        AdmissionControl.Decision admission = inTransit(serverName, cp.gameId())
+            ? GameHandoff.MOVING
+            : Main.admissionControl.admit(serverName, cp.gameId(), playerName);
+        if (!admission.admitted()) {
+            ws.writeTextMessage(admission.toJson().encode());
+            return Future.failedFuture(admission.reason());
+        }
 
+        long start = System.nanoTime();
+        return Main.admissionControl.track(serverName, callGame(gs, serverName, cp, Main.deadlines.forRoute("ws")))
+            .onComplete((ar) -> requestTime.get("/ws").recordSince(start))
+            .onSuccess((r) -> logger.debug("package {}", r))
+            .onFailure((ex) -> {
+                if (ex instanceof Bulkhead.FullException full) {
+                    ws.writeTextMessage(full.decision().toJson().encode());
+                } else if (ex instanceof Deadline.ExceededException exceeded) {
+                    ws.writeTextMessage(exceeded.decision().toJson().encode());
+                } else {
+                    logger.error("Command from {} failed", playerName, ex);
+                }
+            });
+    }
 
 }
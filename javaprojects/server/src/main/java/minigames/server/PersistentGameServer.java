@@ -0,0 +1,33 @@
+package minigames.server;
+
+import java.util.List;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+
+/**
+ * A GameServer whose games can be saved as they go, so they carry on after the server restarts.
+ *
+ * Games are saved by minigames.server.snapshots.GameSnapshots, a while after they change. Saved games are carried
+ * on through importGame, the same as games moving in from another node.
+ *
+ * snapshotGame is called from the game's scheduler mailbox, like any other call for that game.
+ */
+public interface PersistentGameServer extends MigratableGameServer {
+
+    /**
+     * Everything needed to carry a game on, as exportGame would return it, but leaving the game where it is.
+     * Null if there's no such game. The JsonObject must not share anything the game will change afterwards,
+     * as it is saved on another thread.
+     */
+    public JsonObject snapshotGame(String gameId);
+
+    /**
+     * Carries a game on, as importGame does, from its state and the commands it ran after that state was taken
+     * (e.g. from a log of them). The commands have been run before, so they are only applied: nothing is pushed to
+     * players, and the game is saved and listed once, when it's rebuilt.
+     */
+    public Future<Void> rebuildGame(String gameId, JsonObject state, List<CommandPackage> commands);
+
+}
@@ -0,0 +1,87 @@
+package minigames.server;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Holds the open push connections (e.g. WebSockets) for each player in each game.
+ *
+ * This lets a GameServer send a RenderingPackage to a player who did not just make a move,
+ * for instance to tell everyone else in the game that somebody has joined.
+ * A player can have more than one connection open (e.g. two browser tabs), and every one of them gets the package.
+ *
+ * Pushes go through RenderingDeltas on their way out, so players are only sent what has changed.
+ */
+public class PlayerChannels {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(PlayerChannels.class);
+
+    private final ConcurrentHashMap<String, List<Consumer<RenderingPackage>>> channels = new ConcurrentHashMap<>();
+
+    private final RenderingDeltas deltas;
+
+    public PlayerChannels(RenderingDeltas deltas) {
+        this.deltas = deltas;
+    }
+
+    /** Push channels that send every package in full */
+    public PlayerChannels() {
+        this(new RenderingDeltas());
+    }
+
+    /** The key we file a player's connections under */
+    static String key(String gameServer, String game, String player) {
+        return gameServer + "/" + game + "/" + player;
+    }
+
+    /**
+     * Registers a connection for a player. Returns a Runnable that removes it again, which should be
+     * called when the connection closes.
+     */
+    public Runnable subscribe(String gameServer, String game, String player, Consumer<RenderingPackage> sink) {
+        String key = key(gameServer, game, player);
+        channels.computeIfAbsent(key, (k) -> new CopyOnWriteArrayList<>()).add(sink);
+
+        return () -> channels.computeIfPresent(key, (k, sinks) -> {
+            sinks.remove(sink);
+            return sinks.isEmpty() ? null : sinks;
+        });
+    }
+
+    /** Whether a player currently has any push connection open */
+    public boolean isConnected(String gameServer, String game, String player) {
+        return channels.containsKey(key(gameServer, game, player));
+    }
+
+    /**
+     * Sends a RenderingPackage to every connection a player has open.
+     * Safe to call from any thread.
+     *
+     * @return true if at least one connection received it
+     */
+    public boolean push(String gameServer, String game, String player, RenderingPackage rp) {
+        List<Consumer<RenderingPackage>> sinks = channels.get(key(gameServer, game, player));
+        if (sinks == null) return false;
+
+        RenderingPackage delta = deltas.send(gameServer, game, player, rp);
+        if (delta != rp && delta.renderingCommands().isEmpty()) return true; // Nothing they don't already have
+
+        for (Consumer<RenderingPackage> sink : sinks) {
+            try {
+                sink.accept(delta);
+            } catch (RuntimeException ex) {
+                logger.warn("Could not push to {} in {}/{}: {}", player, gameServer, game, ex.getMessage());
+            }
+        }
+        return true;
+    }
+
+}
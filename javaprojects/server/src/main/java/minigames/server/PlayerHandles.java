@@ -0,0 +1,191 @@
+package minigames.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Numbers that stand for a player in a game, so that commands can find them without looking up any names.
+ *
+ * When a player joins a game, the server gives them a handle in their LoadClient command, and the client sends it
+ * back in each CommandPackage. A handle is an index into a table, so finding the GameServer, game and player from
+ * it is one array read. The names in the table are the same String objects the game keeps, so the game's own
+ * lookups by name hit straight away too.
+ *
+ * A handle is [generation:21][slot:32], so it fits in the 53 bits a JSON number (a double in JavaScript) holds
+ * exactly. The generation goes up each time a slot is reused, so a handle for a game that has ended doesn't find
+ * the next game in its slot. Generations start from a number picked at random when the server starts, so handles
+ * from another server (or from before a restart) are very unlikely to be taken for this one's. Packages that
+ * still carry the names are checked against them as well.
+ *
+ * Handles are freed when LobbyEvents says their game has ended (or moved to another server).
+ *
+ * Names keep working. A package without a handle, or with one this server doesn't know, goes by its names.
+ */
+public class PlayerHandles {
+
+    /** What a handle stands for */
+    public record Entry(long handle, String gameServerName, GameServer gameServer, String gameId, String player) {
+
+        /** Whether a package's names (the ones it has) agree with this entry */
+        boolean matches(CommandPackage cp) {
+            return (cp.gameServer() == null || cp.gameServer().equals(gameServerName))
+                && (cp.gameId() == null || cp.gameId().equals(gameId))
+                && (cp.player() == null || cp.player().equals(player));
+        }
+
+        /** The package, with this entry's names */
+        public CommandPackage fill(CommandPackage cp) {
+            return new CommandPackage(gameServerName, gameId, player, cp.commands(), handle);
+        }
+    }
+
+    private static final int INITIAL_SLOTS = 1024;
+
+    /** The generation takes the 21 bits above the slot, so handles stay below 2^53 */
+    private static final int GENERATION_BITS = 21;
+    private static final int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+
+    /** Where every slot's generations start counting from. Never 0, so no handle is 0 */
+    private final int firstGeneration;
+
+    /** Where GameServers say their games have ended, or null if nothing does */
+    private final LobbyEvents lobbyEvents;
+
+    /** Read without locking. Only replaced (when it grows) or written while holding the lock */
+    private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(INITIAL_SLOTS);
+
+    // Only touched while holding the lock
+    private int[] generations = new int[INITIAL_SLOTS];
+    private int used = 0;
+    private int[] free = new int[64];
+    private int freeCount = 0;
+    private final Map<String, List<Entry>> byGame = new HashMap<>();
+    private final Map<String, Entry> byPlayer = new HashMap<>();
+    private final Set<String> watched = new HashSet<>();
+
+    /** @param lobbyEvents Where GameServers say their games have ended. Null if nothing does */
+    public PlayerHandles(LobbyEvents lobbyEvents) {
+        this(1 + ThreadLocalRandom.current().nextInt(GENERATION_MASK), lobbyEvents);
+    }
+
+    /** Handles that are only freed by calling releaseGame */
+    public PlayerHandles() {
+        this(null);
+    }
+
+    PlayerHandles(int firstGeneration, LobbyEvents lobbyEvents) {
+        this.firstGeneration = firstGeneration & GENERATION_MASK;
+        if (this.firstGeneration == 0) throw new IllegalArgumentException("The first generation can't be 0");
+        this.lobbyEvents = lobbyEvents;
+    }
+
+    PlayerHandles(int firstGeneration) {
+        this(firstGeneration, null);
+    }
+
+    /** A slot's current generation, as it appears in handles */
+    private int generation(int slot) {
+        return (firstGeneration + generations[slot]) & GENERATION_MASK;
+    }
+
+    /** The handle for a player in a game, issuing one if they don't have one yet */
+    public synchronized long issue(String gameServerName, GameServer gameServer, String gameId, String player) {
+        String playerKey = PlayerChannels.key(gameServerName, gameId, player);
+        Entry existing = byPlayer.get(playerKey);
+        if (existing != null) return existing.handle();
+        if (lobbyEvents != null && watched.add(gameServerName)) {
+            lobbyEvents.onGameEnded(gameServerName, (game) -> releaseGame(gameServerName, game));
+        }
+
+        int slot = freeCount > 0 ? free[--freeCount] : used++;
+        if (slot >= table.length()) grow();
+        long handle = ((long) generation(slot) << 32) | (slot & 0xFFFFFFFFL);
+        Entry e = new Entry(handle, gameServerName, gameServer, gameId, player);
+        table.set(slot, e);
+        byPlayer.put(playerKey, e);
+        byGame.computeIfAbsent(GameScheduler.key(gameServerName, gameId), (k) -> new ArrayList<>()).add(e);
+        return handle;
+    }
+
+    /**
+     * Gives the player joining in a RenderingPackage (the one its LoadClient command loads) a handle, and
+     * returns the package with the handle added to the LoadClient command. Packages without one come back as they were.
+     */
+    public RenderingPackage issue(String gameServerName, GameServer gameServer, RenderingPackage rp) {
+        List<JsonObject> commands = rp == null ? null : rp.renderingCommands();
+        if (commands == null) return rp;
+        for (int i = 0; i < commands.size(); i++) {
+            JsonObject json = commands.get(i);
+            if (!"client.loadClient".equals(json.getValue("nativeCommand"))) continue;
+
+            long handle = issue(gameServerName, gameServer, json.getString("game"), json.getString("player"));
+            List<JsonObject> withHandle = new ArrayList<>(commands);
+            withHandle.set(i, json.copy().put("handle", handle));
+            return new RenderingPackage(rp.metadata(), withHandle);
+        }
+        return rp;
+    }
+
+    /** What a handle stands for, or null if it isn't one of this server's current handles */
+    public Entry get(long handle) {
+        long slot = handle & 0xFFFFFFFFL;
+        AtomicReferenceArray<Entry> t = table;
+        if (slot >= t.length()) return null;
+        Entry e = t.get((int) slot);
+        return e != null && e.handle() == handle ? e : null;
+    }
+
+    /** The entry for a package's handle, if it has one this server knows and its names (if any) agree */
+    public Entry resolve(CommandPackage cp) {
+        if (cp.handle() == 0) return null;
+        Entry e = get(cp.handle());
+        return e != null && e.matches(cp) ? e : null;
+    }
+
+    /** Fills in a package's names from its handle, if it has one this server knows */
+    public CommandPackage fill(CommandPackage cp) {
+        Entry e = resolve(cp);
+        return e == null ? cp : e.fill(cp);
+    }
+
+    /** Frees the handles of everyone in a game that has ended (or moved to another server) */
+    public synchronized void releaseGame(String gameServerName, String gameId) {
+        List<Entry> entries = byGame.remove(GameScheduler.key(gameServerName, gameId));
+        if (entries == null) return;
+        for (Entry e : entries) {
+            int slot = (int) (e.handle() & 0xFFFFFFFFL);
+            table.set(slot, null);
+            generations[slot]++;
+            // Generation 0 would make slot 0's handle 0, which means "no handle"
+            if (generation(slot) == 0) generations[slot]++;
+            byPlayer.remove(PlayerChannels.key(gameServerName, gameId, e.player()));
+            if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = slot;
+        }
+    }
+
+    /** How many handles are in use */
+    public synchronized int size() {
+        return byPlayer.size();
+    }
+
+    private void grow() {
+        AtomicReferenceArray<Entry> old = table;
+        AtomicReferenceArray<Entry> bigger = new AtomicReferenceArray<>(old.length() * 2);
+        for (int i = 0; i < old.length(); i++) bigger.set(i, old.get(i));
+        generations = Arrays.copyOf(generations, bigger.length());
+        table = bigger;
+    }
+
+}
@@ -0,0 +1,181 @@
+package minigames.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import io.vertx.core.json.JsonObject;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Outboxes of pushed RenderingPackages, for players who can't hold a WebSocket open and long-poll
+ * GET /events/:gameServer/:game/:player instead.
+ *
+ * Each player who polls gets an outbox, which subscribes to PlayerChannels just as a WebSocket would. It keeps the
+ * last few packages pushed to the player, each numbered. A poll says which number it has seen up to (its cursor)
+ * and gets everything after that. If there is nothing yet, the poll leaves a wakeup to be run when something
+ * arrives, so a waiting poll is just a small object, not a thread.
+ *
+ * Outboxes are bounded. If a player falls so far behind that packages they haven't seen have been dropped,
+ * their next poll is marked as having missed some, and they should ask for a resync.
+ * Outboxes nobody has polled for a while are removed.
+ */
+public class PlayerOutboxes {
+
+    /** What a poll gets back: packages after its cursor, and the cursor to send next time */
+    public record Batch(long cursor, boolean missed, List<RenderingPackage> packages) {
+
+        /** The response body for a poll */
+        public JsonObject toJson() {
+            return new JsonObject()
+                .put("cursor", cursor)
+                .put("missed", missed)
+                .put("packages", packages);
+        }
+    }
+
+    private record Entry(long seq, RenderingPackage rp) {}
+
+    private class Outbox {
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        final List<Runnable> waiters = new ArrayList<>();
+        long lastSeq = 0;
+        long lastPolled;
+
+        /** Set, under the outbox's lock, as the outbox is published, so a sweep always finds it */
+        Runnable unsubscribe;
+
+        void push(RenderingPackage rp) {
+            List<Runnable> wake;
+            synchronized (this) {
+                entries.addLast(new Entry(++lastSeq, rp));
+                if (entries.size() > capacity) entries.removeFirst();
+                if (waiters.isEmpty()) return;
+                wake = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            waiting.addAndGet(-wake.size());
+            for (Runnable r : wake) r.run();
+        }
+    }
+
+    /** How often (in polls) to look for outboxes nobody is polling any more */
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private final PlayerChannels channels;
+    private final int capacity;
+    private final long idleNanos;
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<String, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong waiting = new AtomicLong();
+
+    /**
+     * @param channels Where pushes to players come from
+     * @param capacity How many packages to keep for each player
+     * @param idleNanos How long an outbox is kept after its last poll
+     */
+    public PlayerOutboxes(PlayerChannels channels, int capacity, long idleNanos, LongSupplier nanoClock) {
+        this.channels = channels;
+        this.capacity = Math.max(capacity, 1);
+        this.idleNanos = idleNanos;
+        this.clock = nanoClock;
+    }
+
+    public PlayerOutboxes(PlayerChannels channels, int capacity, long idleNanos) {
+        this(channels, capacity, idleNanos, System::nanoTime);
+    }
+
+    private Outbox outbox(String gameServer, String game, String player) {
+        String key = PlayerChannels.key(gameServer, game, player);
+        Outbox existing = outboxes.get(key);
+        if (existing != null) return existing;
+
+        Outbox created = new Outbox();
+        synchronized (created) {
+            created.lastPolled = clock.getAsLong();
+            Outbox winner = outboxes.putIfAbsent(key, created);
+            if (winner != null) return winner;
+            created.unsubscribe = channels.subscribe(gameServer, game, player, created::push);
+            return created;
+        }
+    }
+
+    /** The cursor of the latest package for a player, for polls that only want what happens from now on */
+    public long latest(String gameServer, String game, String player) {
+        Outbox outbox = outbox(gameServer, game, player);
+        synchronized (outbox) {
+            return outbox.lastSeq;
+        }
+    }
+
+    /**
+     * Gets the packages pushed to a player after a cursor.
+     * If there are none and wakeup isn't null, wakeup is kept and run (once, on the pushing thread) when a package
+     * arrives, and this returns null. With a null wakeup, this returns an empty batch instead.
+     */
+    public Batch poll(String gameServer, String game, String player, long cursor, Runnable wakeup) {
+        if (polls.incrementAndGet() % SWEEP_INTERVAL == 0) sweep();
+
+        Outbox outbox = outbox(gameServer, game, player);
+        synchronized (outbox) {
+            outbox.lastPolled = clock.getAsLong();
+
+            // A cursor from the future is from an outbox that has since gone (or a different server)
+            if (cursor > outbox.lastSeq) {
+                return new Batch(outbox.lastSeq, true, List.of());
+            }
+            if (cursor < outbox.lastSeq) {
+                List<RenderingPackage> packages = new ArrayList<>();
+                long first = 0;
+                for (Entry e : outbox.entries) {
+                    if (e.seq() > cursor) {
+                        if (first == 0) first = e.seq();
+                        packages.add(e.rp());
+                    }
+                }
+                return new Batch(outbox.lastSeq, first > cursor + 1, packages);
+            }
+            if (wakeup == null) {
+                return new Batch(cursor, false, List.of());
+            }
+            outbox.waiters.add(wakeup);
+            waiting.incrementAndGet();
+            return null;
+        }
+    }
+
+    /** Forgets a wakeup left by poll, e.g. because the poll timed out or the client went away */
+    public void cancel(String gameServer, String game, String player, Runnable wakeup) {
+        Outbox outbox = outboxes.get(PlayerChannels.key(gameServer, game, player));
+        if (outbox == null) return;
+        synchronized (outbox) {
+            if (outbox.waiters.remove(wakeup)) waiting.decrementAndGet();
+        }
+    }
+
+    /** How many polls are waiting for something to arrive */
+    public long waiting() {
+        return waiting.get();
+    }
+
+    /** Removes outboxes that nobody has polled for a while and nobody is waiting on */
+    void sweep() {
+        long now = clock.getAsLong();
+        outboxes.entrySet().removeIf((e) -> {
+            Outbox outbox = e.getValue();
+            Runnable unsubscribe;
+            synchronized (outbox) {
+                if (!outbox.waiters.isEmpty() || now - outbox.lastPolled < idleNanos) return false;
+                unsubscribe = outbox.unsubscribe;
+            }
+            unsubscribe.run();
+            return true;
+        });
+    }
+
+}
@@ -0,0 +1,240 @@
+package minigames.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Cuts RenderingPackages down to the commands that change what a player can see.
+ *
+ * Most games resend their whole state on every call. Muddle, for instance, sends clearText, the full room
+ * description and setDirections every time. This remembers what has already been sent to each player of each game,
+ * and drops the commands that would not change anything. GameServers don't need to know it's happening.
+ *
+ * It only touches commands it has been given rules for (per game server, see rules()):
+ * - A setter (e.g. setDirections) replaces a piece of state. It is dropped if it is the same as the last one sent.
+ * - A reset (e.g. clearText) starts a block of state that its append commands (e.g. appendText) add to.
+ *   If a package rebuilds the block the player already has, the block is dropped. If it only adds to it,
+ *   only the new commands are sent.
+ * Everything else passes through untouched. Loading a client or quitting to the menu forgets what the player had.
+ * When a game ends (or is evicted, or moves to another node), LobbyEvents says so, and what all its players had
+ * is forgotten. Nothing is kept for a player until they have been sent something it needs to remember, so calls
+ * for games that don't exist leave nothing behind.
+ *
+ * A client that thinks it has missed an update can add CommandPackage.RESYNC to a CommandPackage. That forgets
+ * what the player had, so the reply carries the full state.
+ *
+ * A player's packages need to go through here in the order they reach the player, i.e. from the game's
+ * scheduler mailbox.
+ */
+public class RenderingDeltas {
+
+    enum Kind { SETTER, RESET, APPEND }
+
+    /** How to treat one command. block is the name of the reset command the state belongs to */
+    record Rule(Kind kind, String block) {}
+
+    /** The rules for one game server's rendering commands */
+    public static class Rules {
+        private final Map<String, Rule> rules = new ConcurrentHashMap<>();
+
+        /** A command whose latest value replaces the previous one, like setDirections */
+        public Rules setter(String command) {
+            rules.put(command, new Rule(Kind.SETTER, command));
+            return this;
+        }
+
+        /** A command that clears a block of state, like clearText, followed by commands that add to it, like appendText */
+        public Rules reset(String command, String... appends) {
+            rules.put(command, new Rule(Kind.RESET, command));
+            for (String append : appends) {
+                rules.put(append, new Rule(Kind.APPEND, command));
+            }
+            return this;
+        }
+
+        Rule get(String command) {
+            return command == null ? null : rules.get(command);
+        }
+    }
+
+    /** What has been sent to one player */
+    private static class PlayerState {
+        final Map<String, JsonObject> setters = new HashMap<>();
+        final Map<String, List<JsonObject>> blocks = new HashMap<>();
+    }
+
+    /** A block being rebuilt by the package we're working on */
+    private static class Block {
+        final String name;
+        final List<JsonObject> commands = new ArrayList<>();
+
+        /** How many of the block's leading commands the player already has */
+        int skip = 0;
+
+        Block(String name) {
+            this.name = name;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Rules> rules = new ConcurrentHashMap<>();
+    private final LobbyEvents lobbyEvents;
+    /** What has been sent to each player, by game (gameServer/gameId) and then by player */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, PlayerState>> games = new ConcurrentHashMap<>();
+
+    /** @param lobbyEvents Where game servers say their games have ended. Null if nothing does */
+    public RenderingDeltas(LobbyEvents lobbyEvents) {
+        this.lobbyEvents = lobbyEvents;
+    }
+
+    public RenderingDeltas() {
+        this(null);
+    }
+
+    /** The rules for a game server's commands, to add to. A game server with no rules has its packages sent as they are */
+    public Rules rules(String gameServer) {
+        return rules.computeIfAbsent(gameServer, (k) -> {
+            if (lobbyEvents != null) lobbyEvents.onGameEnded(gameServer, (game) -> forgetGame(gameServer, game));
+            return new Rules();
+        });
+    }
+
+    /** Forgets what has been sent to a player, so the next package they get is sent in full */
+    public void forget(String gameServer, String game, String player) {
+        String key = GameScheduler.key(gameServer, game);
+        Map<String, PlayerState> players = games.get(key);
+        if (players == null || player == null) return;
+        players.remove(player);
+        // A game's players are only changed from its scheduler mailbox, so nobody is added while this runs
+        games.computeIfPresent(key, (k, p) -> p.isEmpty() ? null : p);
+    }
+
+    /** Forgets what has been sent to every player of a game, because it has ended */
+    public void forgetGame(String gameServer, String game) {
+        games.remove(GameScheduler.key(gameServer, game));
+    }
+
+    /** How many games have players whose state is remembered */
+    int gameCount() {
+        return games.size();
+    }
+
+    static boolean isResync(JsonObject json) {
+        return CommandPackage.RESYNC.equals(json.getValue("command"));
+    }
+
+    /**
+     * Called with each CommandPackage before it goes to the game.
+     * If it asks for a resync, forgets what the player had and returns the package without the resync command.
+     */
+    public CommandPackage receive(CommandPackage cp) {
+        if (cp.commands() == null || cp.commands().stream().noneMatch(RenderingDeltas::isResync)) return cp;
+
+        forget(cp.gameServer(), cp.gameId(), cp.player());
+        return new CommandPackage(cp.gameServer(), cp.gameId(), cp.player(),
+            cp.commands().stream().filter((json) -> !isResync(json)).toList(), cp.handle());
+    }
+
+    /**
+     * Called with each RenderingPackage on its way to a player.
+     * Returns the package with the commands the player doesn't need taken out, and remembers what they now have.
+     * The same package comes back if nothing could be taken out.
+     */
+    public RenderingPackage send(String gameServer, String game, String player, RenderingPackage rp) {
+        Rules r = rules.get(gameServer);
+        if (r == null || rp == null || rp.renderingCommands() == null || player == null) return rp;
+
+        // A player we know nothing about gets a state of their own, which is only kept if it has anything in it
+        String key = GameScheduler.key(gameServer, game);
+        Map<String, PlayerState> players = games.get(key);
+        PlayerState known = players == null ? null : players.get(player);
+        PlayerState state = known != null ? known : new PlayerState();
+        List<JsonObject> commands = rp.renderingCommands();
+
+        synchronized (state) {
+            // Each output command, and the block it belongs to (null if it doesn't belong to one)
+            List<JsonObject> out = new ArrayList<>(commands.size());
+            List<Block> owners = new ArrayList<>(commands.size());
+            Map<String, Block> open = new LinkedHashMap<>();
+            boolean quit = false;
+
+            for (JsonObject json : commands) {
+                Object nativeCommand = json.getValue("nativeCommand");
+                if ("client.loadClient".equals(nativeCommand) || "client.quitToMGNMenu".equals(nativeCommand)) {
+                    // The client starts again from nothing. Blocks before this point are sent in full.
+                    state.setters.clear();
+                    state.blocks.clear();
+                    open.clear();
+                    quit = "client.quitToMGNMenu".equals(nativeCommand);
+                }
+
+                Object command = json.getValue("command");
+                Rule rule = command instanceof String s ? r.get(s) : null;
+                Block owner = null;
+
+                if (rule != null) {
+                    switch (rule.kind()) {
+                        case SETTER -> {
+                            if (json.equals(state.setters.get(rule.block()))) continue;
+                            state.setters.put(rule.block(), json.copy());
+                        }
+                        case RESET -> {
+                            owner = new Block(rule.block());
+                            owner.commands.add(json.copy());
+                            open.put(rule.block(), owner);
+                        }
+                        case APPEND -> {
+                            owner = open.get(rule.block());
+                            if (owner != null) {
+                                owner.commands.add(json.copy());
+                            } else {
+                                // Adds to what's already on screen (e.g. a push announcing a new player)
+                                List<JsonObject> existing = state.blocks.get(rule.block());
+                                if (existing != null) existing.add(json.copy());
+                            }
+                        }
+                    }
+                }
+
+                out.add(json);
+                owners.add(owner);
+            }
+
+            // Compare the rebuilt blocks with what the player already has
+            for (Block block : open.values()) {
+                List<JsonObject> previous = state.blocks.get(block.name);
+                if (previous != null && previous.size() <= block.commands.size()
+                        && block.commands.subList(0, previous.size()).equals(previous)) {
+                    block.skip = previous.size();
+                }
+                state.blocks.put(block.name, block.commands);
+            }
+
+            if (quit) {
+                if (known != null) forget(gameServer, game, player);
+            } else if (known == null && (!state.setters.isEmpty() || !state.blocks.isEmpty())) {
+                games.computeIfAbsent(key, (k) -> new ConcurrentHashMap<>()).put(player, state);
+            }
+
+            List<JsonObject> delta = new ArrayList<>(out.size());
+            for (int i = 0; i < out.size(); i++) {
+                Block owner = owners.get(i);
+                if (owner != null && owner.skip > 0) {
+                    owner.skip--;
+                    continue;
+                }
+                delta.add(out.get(i));
+            }
+
+            return delta.size() == commands.size() ? rp : new RenderingPackage(rp.metadata(), delta);
+        }
+    }
+
+}
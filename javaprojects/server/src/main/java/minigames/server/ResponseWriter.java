@@ -0,0 +1,84 @@
+package minigames.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import minigames.codec.JsonWriter;
+
+/**
+ * Writes response bodies with JsonWriter, and keeps count of what that costs.
+ *
+ * Buffers are allocated at a size taken from a running average of recent responses, so that most responses
+ * are written into a buffer that never has to grow. Where the JVM supports it, the bytes each thread allocates
+ * while writing are counted too, so GET /stats/serialisation shows how much garbage a response makes.
+ */
+public class ResponseWriter {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(ResponseWriter.class);
+
+    /** Present if the JVM can tell us how much each thread has allocated */
+    private static final com.sun.management.ThreadMXBean threads = allocationCounter();
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean t
+                    && t.isThreadAllocatedMemorySupported()) {
+                t.setThreadAllocatedMemoryEnabled(true);
+                return t;
+            }
+        } catch (RuntimeException ex) {
+            logger.warn("Cannot count allocations: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    /** Running average of response sizes. Doesn't need to be exact, so races between threads don't matter */
+    private final AtomicInteger averageSize = new AtomicInteger(256);
+
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+
+    /** The size to allocate a buffer at: a bit over the average, so most responses fit */
+    int sizeHint() {
+        int average = averageSize.get();
+        return average + average / 4;
+    }
+
+    /** Writes a value (usually a RenderingPackage) as a JSON response body */
+    public Buffer write(Object value) {
+        long before = threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+
+        Buffer b = JsonWriter.encode(value, sizeHint());
+
+        if (threads != null) allocated.add(threads.getCurrentThreadAllocatedBytes() - before);
+        int average = averageSize.get();
+        averageSize.lazySet(average + (b.length() - average) / 8);
+        responses.increment();
+        bytes.add(b.length());
+        return b;
+    }
+
+    /** Counts of responses written, their size, and the bytes allocated writing them */
+    public JsonObject stats() {
+        long n = responses.sum();
+        JsonObject stats = new JsonObject()
+            .put("responses", n)
+            .put("bytes", bytes.sum())
+            .put("meanBytes", n == 0 ? 0 : bytes.sum() / n)
+            .put("sizeHint", sizeHint());
+        if (threads != null) {
+            stats.put("allocatedBytes", allocated.sum())
+                .put("meanAllocatedBytes", n == 0 ? 0 : allocated.sum() / n);
+        }
+        return stats;
+    }
+
+}
@@ -0,0 +1,372 @@
+package minigames.server.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.web.RoutingContext;
+import minigames.server.utilities.Utilities;
+
+/**
+ * Splits games between several server nodes, so that we aren't limited to what one JVM can hold.
+ *
+ * Every node knows the other live nodes, and they all build the same ConsistentHashRing from them, so they all
+ * agree which node owns each game without asking anyone. A node that gets a request for a game it doesn't own
+ * forwards it to the owner over plain HTTP (the same routes, marked with the FORWARDED header so that they are
+ * never forwarded again).
+ *
+ * Nodes share a secret (cluster.secret), which they send with every request to each other. Only requests that
+ * carry it count as forwarded, or can change who is in the cluster or hand a game in.
+ *
+ * Membership needs no outside service. Each node is started with a few seed addresses, and every heartbeat it
+ * asks each node it knows of (GET /cluster/members) who they know. Nodes that answer are members; nodes that
+ * haven't answered for failAfterMillis aren't any more. Whenever the members change, the ring is rebuilt and
+ * onRingChange listeners are told, so that games can be handed to their new owners.
+ *
+ * With clustering switched off there is one node, which owns everything.
+ */
+public class Cluster {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(Cluster.class);
+
+    /** Marks a request that one node has forwarded to another. Its value is the node that forwarded it */
+    public static final String FORWARDED = "X-Minigames-Forwarded";
+
+    /** Carries the cluster's shared secret, so a node can tell requests from other nodes from anyone else's */
+    public static final String SECRET = "X-Minigames-Cluster-Secret";
+
+    /** How clustering is set up */
+    public record Config(boolean enabled, String self, List<String> seeds, long heartbeatMillis, long failAfterMillis, String secret) {
+
+        /** No clustering */
+        public static Config single(int port) {
+            return new Config(false, "localhost:" + port, List.of(), 1000, 3000, "");
+        }
+
+        /**
+         * Reads the cluster.* properties. Clustering is on if there are any seeds.
+         * @param port The port this node serves on, for its default address
+         */
+        public static Config fromConfig(Properties config, int port) {
+            String self = config.getProperty("cluster.self", "").trim();
+            return new Config(
+                !config.getProperty("cluster.seeds", "").isBlank(),
+                self.isEmpty() ? "localhost:" + port : self,
+                parseNodes(config.getProperty("cluster.seeds", "")),
+                Utilities.getIntProperty(config, "cluster.heartbeatMillis", 1000),
+                Utilities.getIntProperty(config, "cluster.failAfterMillis", 3000),
+                config.getProperty("cluster.secret", "").trim()
+            );
+        }
+
+        /** This config, with seeds given on the command line (e.g. "localhost:8081,localhost:8082") */
+        public Config withSeeds(String seeds) {
+            return new Config(true, self, parseNodes(seeds), heartbeatMillis, failAfterMillis, secret);
+        }
+
+        static List<String> parseNodes(String nodes) {
+            return Arrays.stream(nodes.split(",")).map(String::trim).filter((s) -> !s.isEmpty()).toList();
+        }
+    }
+
+    private final Config config;
+    private final LongSupplier clock;
+
+    /** Other nodes that have answered us (or contacted us), and when we last heard from them */
+    private final ConcurrentHashMap<String, Long> members = new ConcurrentHashMap<>();
+
+    /** Nodes we've been told about but haven't heard from ourselves yet */
+    private final Set<String> candidates = ConcurrentHashMap.newKeySet();
+
+    private final List<Function<ConsistentHashRing, Future<?>>> listeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> heartbeatListeners = new CopyOnWriteArrayList<>();
+
+    /** When the ring last changed (or the node started, as nobody knows about it yet), by the clock */
+    private volatile long changedAt;
+
+    /** What the listeners are still doing about the last ring change */
+    private volatile Future<?> settling = Future.succeededFuture();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private volatile ConsistentHashRing ring;
+    private volatile boolean leaving = false;
+
+    private HttpClient client;
+
+    public Cluster(Config config, LongSupplier millisClock) {
+        if (config.enabled() && config.secret().isBlank()) {
+            throw new IllegalArgumentException("cluster.secret has to be set to run as a cluster");
+        }
+        this.config = config;
+        this.clock = millisClock;
+        this.ring = new ConsistentHashRing(List.of(config.self()));
+        this.changedAt = millisClock.getAsLong();
+        candidates.addAll(config.seeds());
+        candidates.remove(config.self());
+    }
+
+    public Cluster(Config config) {
+        this(config, System::currentTimeMillis);
+    }
+
+    public boolean enabled() {
+        return config.enabled();
+    }
+
+    /** This node's address, host:port */
+    public String self() {
+        return config.self();
+    }
+
+    /** The node that owns a game */
+    public String owner(String gameServer, String gameId) {
+        return enabled() ? ring.owner(gameServer, gameId) : self();
+    }
+
+    /** Whether this node owns a game, and should run its calls rather than forward them */
+    public boolean isLocal(String gameServer, String gameId) {
+        return self().equals(owner(gameServer, gameId));
+    }
+
+    /** Every live node, including this one (unless it's leaving) */
+    public Set<String> nodes() {
+        return ring.nodes();
+    }
+
+    public ConsistentHashRing ring() {
+        return ring;
+    }
+
+    /**
+     * Whether the nodes may not agree on who owns each game yet: the ring has changed recently enough that other
+     * nodes might not have noticed, or games are still being handed on because of it
+     */
+    public boolean converging() {
+        if (!enabled()) return false;
+        return !settling.isComplete() || clock.getAsLong() - changedAt < config.failAfterMillis() + config.heartbeatMillis();
+    }
+
+    /** Whether a request came from another node in this cluster, i.e. it carries the cluster's secret */
+    public boolean isTrusted(HttpServerRequest request) {
+        String secret = request.getHeader(SECRET);
+        if (!enabled() || secret == null) return false;
+        return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), config.secret().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds something to tell (on the heartbeat's thread) whenever the ring changes.
+     * It returns a Future for the work it starts (e.g. handing games on), so that leave() can wait for it.
+     */
+    public void onRingChange(Function<ConsistentHashRing, Future<?>> listener) {
+        listeners.add(listener);
+    }
+
+    /** Adds something to run (on the heartbeat's thread) after every heartbeat, e.g. to retry work that failed */
+    public void onHeartbeat(Runnable listener) {
+        heartbeatListeners.add(listener);
+    }
+
+// Membership
+
+    /** We've heard from a node directly, so it's alive */
+    void heard(String node) {
+        if (node == null || node.equals(self())) return;
+        candidates.remove(node);
+        if (members.put(node, clock.getAsLong()) == null) {
+            logger.info("{} has joined the cluster", node);
+            rebuild();
+        }
+    }
+
+    /** Another node has told us about some nodes. We'll only count them once they answer us */
+    void learned(Collection<String> nodes) {
+        for (String node : nodes) {
+            if (!node.equals(self()) && !members.containsKey(node)) candidates.add(node);
+        }
+    }
+
+    /** A node has said it's leaving, or has stopped answering */
+    void left(String node) {
+        if (members.remove(node) != null) {
+            logger.info("{} has left the cluster", node);
+            rebuild();
+        }
+    }
+
+    /** Drops members we haven't heard from for too long */
+    void expire() {
+        long now = clock.getAsLong();
+        List<String> gone = new ArrayList<>();
+        members.forEach((node, seen) -> {
+            if (now - seen > config.failAfterMillis()) gone.add(node);
+        });
+        gone.forEach(this::left);
+    }
+
+    private synchronized void rebuild() {
+        Set<String> nodes = new TreeSet<>(members.keySet());
+        if (!leaving) nodes.add(self());
+        if (nodes.equals(ring.nodes())) return;
+        ConsistentHashRing next = new ConsistentHashRing(nodes);
+        ring = next;
+        changedAt = clock.getAsLong();
+        logger.info("Cluster is now {}", nodes);
+        List<Future> work = new ArrayList<>();
+        for (Function<ConsistentHashRing, Future<?>> listener : listeners) {
+            try {
+                work.add(listener.apply(next));
+            } catch (RuntimeException ex) {
+                logger.error("Ring change listener failed", ex);
+            }
+        }
+        settling = CompositeFuture.join(work);
+    }
+
+    /** Who this node knows is alive, to answer another node's heartbeat */
+    public JsonArray membersJson() {
+        return new JsonArray(new ArrayList<>(nodes()));
+    }
+
+    /** Handles a heartbeat (or a goodbye) from another node */
+    public void contacted(String from, boolean leavingNow) {
+        if (leavingNow) {
+            left(from);
+        } else {
+            heard(from);
+        }
+    }
+
+// Network
+
+    /** Starts heartbeats, once, whichever server instance gets here first */
+    public void start(Vertx vertx) {
+        if (!enabled() || !started.compareAndSet(false, true)) return;
+        this.client = vertx.createHttpClient(new HttpClientOptions().setKeepAlive(true));
+        vertx.setPeriodic(config.heartbeatMillis(), (id) -> heartbeat());
+        heartbeat();
+        logger.info("{} is joining the cluster through {}", self(), config.seeds());
+    }
+
+    /** Asks every node we know of who they know, and drops any that have gone quiet */
+    private void heartbeat() {
+        if (leaving) return;
+        Set<String> targets = new TreeSet<>(members.keySet());
+        targets.addAll(candidates);
+        targets.addAll(config.seeds());
+        targets.remove(self());
+        for (String node : targets) {
+            send(node, HttpMethod.GET, "/cluster/members?from=" + self(), null)
+                .onSuccess((body) -> {
+                    heard(node);
+                    learned(body.toJsonArray().stream().map(String::valueOf).toList());
+                })
+                .onFailure((ex) -> {
+                    if (!members.containsKey(node)) candidates.remove(node);
+                });
+        }
+        expire();
+        for (Runnable listener : heartbeatListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException ex) {
+                logger.error("Heartbeat listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Leaves the cluster: takes this node off the ring, waits for listeners to hand its games on, and tells the
+     * others. Used when the server is shutting down.
+     */
+    public Future<Void> leave() {
+        if (!enabled() || client == null) return Future.succeededFuture();
+        leaving = true;
+        rebuild();
+        List<Future> goodbyes = new ArrayList<>();
+        goodbyes.add(settling);
+        for (String node : members.keySet()) {
+            goodbyes.add(send(node, HttpMethod.GET, "/cluster/members?from=" + self() + "&leaving=true", null));
+        }
+        return CompositeFuture.join(goodbyes).mapEmpty();
+    }
+
+    /** Sends a request to another node, failing unless it answers 2xx */
+    public Future<Buffer> send(String node, HttpMethod method, String uri, Buffer body) {
+        if (client == null) return Future.failedFuture("Can't reach " + node + " before this node has started");
+        return client.request(options(node, method, uri))
+            .compose((req) -> {
+                req.putHeader(FORWARDED, self());
+                req.putHeader(SECRET, config.secret());
+                if (body == null) return req.send();
+                req.putHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+                return req.send(body);
+            })
+            .compose((resp) -> resp.statusCode() / 100 == 2
+                ? resp.body()
+                : Future.failedFuture(node + " answered " + resp.statusCode() + " to " + uri));
+    }
+
+    /**
+     * Forwards the request being routed to the node that owns its game, and copies the owner's status and headers
+     * onto our response. The returned Buffer is the owner's response body.
+     */
+    public Future<Buffer> forward(RoutingContext ctx, String node) {
+        return client.request(options(node, ctx.request().method(), ctx.request().uri()))
+            .compose((req) -> {
+                copy(ctx.request().headers(), req.headers(), HttpHeaders.CONTENT_TYPE, HttpHeaders.ACCEPT);
+                req.putHeader(FORWARDED, self());
+                req.putHeader(SECRET, config.secret());
+                Buffer body = ctx.body().buffer();
+                return body == null ? req.send() : req.send(body);
+            })
+            .compose((resp) -> {
+                ctx.response().setStatusCode(resp.statusCode());
+                copy(resp.headers(), ctx.response().headers(), HttpHeaders.CONTENT_TYPE, "Retry-After");
+                return resp.body();
+            });
+    }
+
+    private static void copy(MultiMap from, MultiMap to, CharSequence... names) {
+        for (CharSequence name : names) {
+            String value = from.get(name);
+            if (value != null) to.set(name, value);
+        }
+    }
+
+    private static RequestOptions options(String node, HttpMethod method, String uri) {
+        int colon = node.lastIndexOf(':');
+        return new RequestOptions()
+            .setMethod(method)
+            .setHost(node.substring(0, colon))
+            .setPort(Integer.parseInt(node.substring(colon + 1)))
+            .setURI(uri);
+    }
+
+}
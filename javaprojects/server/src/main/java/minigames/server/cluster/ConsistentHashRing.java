@@ -0,0 +1,61 @@
+package minigames.server.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Decides which node owns each game, by consistent hashing on "gameServer/gameId".
+ *
+ * Each node is put on a ring of 64-bit hashes at several points (virtual nodes), and a game belongs to the first
+ * node at or after the game's own hash. When a node joins or leaves, only the games next to its points change
+ * hands (about 1/n of them); everything else stays where it is.
+ *
+ * Rings are immutable. The cluster builds a new one whenever its membership changes and swaps it in.
+ */
+public final class ConsistentHashRing {
+
+    /** Points per node. Enough that games spread evenly between a handful of nodes */
+    static final int VIRTUAL_NODES = 128;
+
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> nodes;
+
+    public ConsistentHashRing(Collection<String> nodes) {
+        this.nodes = new TreeSet<>(nodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /** The node that owns a game, or null if the ring is empty */
+    public String owner(String gameServer, String gameId) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, String> e = ring.ceilingEntry(hash(gameServer + "/" + gameId));
+        return e == null ? ring.firstEntry().getValue() : e.getValue();
+    }
+
+    public Set<String> nodes() {
+        return nodes;
+    }
+
+    /** 64-bit FNV-1a, then mixed so that similar keys land far apart */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
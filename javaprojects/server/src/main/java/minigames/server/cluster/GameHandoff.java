@@ -0,0 +1,150 @@
+package minigames.server.cluster;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import minigames.rendering.GameMetadata;
+import minigames.server.AdmissionControl;
+import minigames.server.GameRegistry;
+import minigames.server.GameScheduler;
+import minigames.server.GameServer;
+import minigames.server.MigratableGameServer;
+
+/**
+ * Moves games to their new owner when the cluster's ring changes.
+ *
+ * For every game this node holds that now belongs to another node, it exports the game (in the game's own
+ * scheduler mailbox, so no call is half-way through) and POSTs it to the new owner's /cluster/games route,
+ * which imports it. If the new owner can't be reached, the game is imported back here so it isn't lost, and kept
+ * here (calls for it aren't forwarded) until a later heartbeat hands it on.
+ *
+ * While a game is on its way, or while the nodes don't yet agree who owns what, a call can reach a node that
+ * hasn't got the game. Those calls are answered with MOVING (a 503 to try again shortly) rather than handed to
+ * the GameServer, which would say the game has ended.
+ */
+public class GameHandoff {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(GameHandoff.class);
+
+    private final Cluster cluster;
+    private final GameRegistry registry;
+    private final GameScheduler scheduler;
+
+    /** What a call for a game that's on its way between nodes gets */
+    public static final AdmissionControl.Decision MOVING = new AdmissionControl.Decision(503, 1, "This game is moving to another server");
+
+    /** A game, by its GameServer and id */
+    record Game(String serverName, String gameId) {}
+
+    /** Games exported from here that their new owner hasn't taken in yet */
+    private final Set<Game> moving = ConcurrentHashMap.newKeySet();
+
+    /** Games this node couldn't hand on, so keeps for now, and the node they were meant for */
+    private final Map<Game, String> kept = new ConcurrentHashMap<>();
+
+    public GameHandoff(Cluster cluster, GameRegistry registry, GameScheduler scheduler) {
+        this.cluster = cluster;
+        this.registry = registry;
+        this.scheduler = scheduler;
+    }
+
+    /** Hands on every game this node no longer owns. Registered with Cluster.onRingChange */
+    public Future<?> ringChanged(ConsistentHashRing ring) {
+        List<Future> handoffs = new ArrayList<>();
+        for (Map.Entry<String, GameServer> e : registry.getGameServers().entrySet()) {
+            String serverName = e.getKey();
+            for (GameMetadata game : e.getValue().getGamesInProgress()) {
+                String owner = ring.owner(serverName, game.name());
+                if (owner == null || owner.equals(cluster.self())) continue;
+
+                if (e.getValue() instanceof MigratableGameServer m) {
+                    handoffs.add(handOff(serverName, m, game.name(), owner));
+                } else {
+                    logger.warn("{}/{} now belongs to {}, but {} games can't move", serverName, game.name(), owner, serverName);
+                }
+            }
+        }
+        return CompositeFuture.join(handoffs);
+    }
+
+    /** Hands on the games this node kept because their new owner couldn't be reached. Registered with Cluster.onHeartbeat */
+    public void retryKept() {
+        kept.forEach((game, intended) -> {
+            String owner = cluster.owner(game.serverName(), game.gameId());
+            if (owner == null || owner.equals(cluster.self())) {
+                kept.remove(game);
+            } else if (!moving.contains(game) && registry.getGameServer(game.serverName()) instanceof MigratableGameServer m) {
+                handOff(game.serverName(), m, game.gameId(), owner);
+            }
+        });
+    }
+
+    /** Whether this node is keeping a game it couldn't hand on, so should run its calls rather than forward them */
+    public boolean isKept(String serverName, String gameId) {
+        return kept.containsKey(new Game(serverName, gameId));
+    }
+
+    /**
+     * Whether a call for a game should be answered with MOVING rather than run here: the game is being handed on
+     * from here, or the nodes don't agree who owns what yet and it hasn't arrived
+     */
+    public boolean inTransit(String serverName, String gameId) {
+        Game key = new Game(serverName, gameId);
+        if (moving.contains(key)) return true;
+        if (!cluster.converging() || kept.containsKey(key)) return false;
+        return registry.getGameServer(serverName) instanceof MigratableGameServer m && !m.hasGame(gameId);
+    }
+
+    /** Exports a game and sends it to its new owner */
+    Future<Void> handOff(String serverName, MigratableGameServer gs, String gameId, String owner) {
+        Game key = new Game(serverName, gameId);
+        if (!moving.add(key)) return Future.succeededFuture();
+        return scheduler.submit(serverName, gameId, "handoff", () -> Future.succeededFuture(gs.exportGame(gameId)))
+            .compose((state) -> {
+                if (state == null) return Future.<Void>succeededFuture();
+                return cluster.send(owner, HttpMethod.POST, uri(serverName, gameId), state.toBuffer())
+                    .<Void>mapEmpty()
+                    .onSuccess((v) -> {
+                        kept.remove(key);
+                        scheduler.forget(serverName, gameId);
+                        logger.info("Handed {}/{} on to {}", serverName, gameId, owner);
+                    })
+                    .recover((ex) -> {
+                        logger.error("Could not hand {}/{} on to {}, keeping it here: {}", serverName, gameId, owner, ex.getMessage());
+                        kept.put(key, owner);
+                        return accept(serverName, gameId, state);
+                    });
+            })
+            .onComplete((ar) -> moving.remove(key));
+    }
+
+    /** Takes in a game another node has handed on, in the game's own mailbox */
+    public Future<Void> accept(String serverName, String gameId, JsonObject state) {
+        if (!(registry.getGameServer(serverName) instanceof MigratableGameServer gs)) {
+            return Future.failedFuture(serverName + " games can't move");
+        }
+        return scheduler.submit(serverName, gameId, "handoff", () -> {
+            gs.importGame(gameId, state);
+            return Future.<Void>succeededFuture();
+        });
+    }
+
+    static String uri(String serverName, String gameId) {
+        return "/cluster/games/" + URLEncoder.encode(serverName, StandardCharsets.UTF_8)
+            + "/" + URLEncoder.encode(gameId, StandardCharsets.UTF_8);
+    }
+
+}
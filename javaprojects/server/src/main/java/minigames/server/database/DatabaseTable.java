@@ -338,7 +338,7 @@ public abstract class DatabaseTable<T> implements DatabaseCRUDOperations<T> {
      * @param mapper Function to map results.
      * @return List of mapped results.
      */
-    private synchronized <R> List<R> executeQuery(String sql, List<Object> values, ResultSetMapper<R> mapper) {
+    protected synchronized <R> List<R> executeQuery(String sql, List<Object> values, ResultSetMapper<R> mapper) {
         createTable();
         List<R> results = new ArrayList<>();
         executeTransactional(connection -> {
@@ -415,7 +415,7 @@ public abstract class DatabaseTable<T> implements DatabaseCRUDOperations<T> {
      * @param <R> the type of record object the result will be mapped to.
      */
     @FunctionalInterface
-    private interface ResultSetMapper<R> {
+    protected interface ResultSetMapper<R> {
         R map(ResultSet rs) throws SQLException;
     }
 
@@ -0,0 +1,285 @@
+package minigames.server.gamelog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import minigames.codec.BinaryCodec;
+import minigames.commands.CommandPackage;
+import minigames.server.Metrics;
+
+/**
+ * An append-only log of the commands each game has run, with a snapshot of its state every so often.
+ *
+ * Each game has a directory of its own, holding memory-mapped segment files of CommandPackages (see LogSegment),
+ * each numbered with a sequence number, and its latest snapshot. A snapshot records the sequence number it was
+ * taken at, so a game can be rebuilt exactly from its snapshot and the commands logged after it. Segments older
+ * than the latest snapshot are deleted, so the log only holds what replaying needs.
+ *
+ * Each game's log is written from its scheduler mailbox, one call at a time. It is still locked, so that a game
+ * can be read (e.g. to replay it for debugging) while it's being played.
+ */
+public class GameLog {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(GameLog.class);
+
+    /** A logged CommandPackage */
+    public record Entry(long seq, CommandPackage commands) {}
+
+    /**
+     * What it takes to rebuild a game
+     * @param snapshotSeq The last command the snapshot includes (0 if it was taken before any)
+     * @param state The game's state, as its GameServer's snapshotGame returned it
+     * @param tail The commands logged after the snapshot
+     */
+    public record Recovery(long snapshotSeq, JsonObject state, List<Entry> tail) {}
+
+    static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    /** One game's files. Guarded by its own lock */
+    private final class GameFiles {
+        final Path dir;
+        final List<Path> segments = new ArrayList<>();
+        LogSegment active;
+        long nextSeq = 1;
+        long snapshotSeq = 0;
+        Path snapshot;
+
+        GameFiles(Path dir) throws IOException {
+            this.dir = dir;
+            Files.createDirectories(dir);
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path p : files.sorted().toList()) {
+                    String name = p.getFileName().toString();
+                    if (name.endsWith(".log")) {
+                        segments.add(p);
+                    } else if (name.endsWith(SNAPSHOT_SUFFIX)) {
+                        snapshot = p;
+                        snapshotSeq = Long.parseLong(name.substring(0, name.indexOf('.')));
+                    }
+                }
+            }
+            if (!segments.isEmpty()) {
+                active = LogSegment.open(segments.get(segments.size() - 1));
+                nextSeq = Math.max(active.lastSeq(), snapshotSeq) + 1;
+            } else {
+                nextSeq = snapshotSeq + 1;
+            }
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int snapshotEvery;
+    private final Map<String, GameFiles> games = new ConcurrentHashMap<>();
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder appendedBytes = new LongAdder();
+    private final LongAdder snapshots = new LongAdder();
+
+    /**
+     * @param directory Where to keep the logs
+     * @param segmentBytes How big each segment file is. Bigger means fewer files, but each game maps at least one
+     * @param snapshotEvery How many commands a game runs between snapshots
+     * @param metrics Where to report what's logged
+     */
+    public GameLog(Path directory, int segmentBytes, int snapshotEvery, Metrics metrics) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.snapshotEvery = snapshotEvery;
+        metrics.gauge("minigames_gamelog_open_games", "Games with their command log open", () -> games.size());
+        metrics.counter("minigames_gamelog_appends_total", "Commands appended to game logs", appended::sum);
+        metrics.counter("minigames_gamelog_appended_bytes_total", "Bytes appended to game logs", appendedBytes::sum);
+        metrics.counter("minigames_gamelog_snapshots_total", "Snapshots written to game logs", snapshots::sum);
+    }
+
+    private Path dir(String gameServer, String gameId) {
+        return directory.resolve(URLEncoder.encode(gameServer, StandardCharsets.UTF_8))
+            .resolve(URLEncoder.encode(gameId, StandardCharsets.UTF_8));
+    }
+
+    /** A game's files, opening them if they're on disk or making them if create is set. Null if there aren't any */
+    private GameFiles files(String gameServer, String gameId, boolean create) {
+        String key = gameServer + "/" + gameId;
+        GameFiles f = games.get(key);
+        if (f != null) return f;
+        Path dir = dir(gameServer, gameId);
+        if (!create && !Files.isDirectory(dir)) return null;
+        return games.computeIfAbsent(key, (k) -> {
+            try {
+                return new GameFiles(dir);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+// Writing
+
+    /**
+     * Logs a command package a game has run
+     * @return Its sequence number
+     */
+    public long append(String gameServer, String gameId, CommandPackage cp) {
+        GameFiles f = files(gameServer, gameId, true);
+        // The handle only means anything to this process
+        byte[] payload = BinaryCodec.encode(cp.handle() == 0 ? cp
+            : new CommandPackage(cp.gameServer(), cp.gameId(), cp.player(), cp.commands())).getBytes();
+        synchronized (f) {
+            long seq = f.nextSeq;
+            try {
+                if (f.active == null || !f.active.append(seq, payload)) {
+                    f.active = LogSegment.create(f.dir, seq, Math.max(segmentBytes, LogSegment.HEADER + payload.length));
+                    f.segments.add(f.active.path);
+                    f.active.append(seq, payload);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            f.nextSeq++;
+            appended.increment();
+            appendedBytes.add(payload.length);
+            return seq;
+        }
+    }
+
+    /** Whether a game has run enough commands since its last snapshot that it should have another */
+    public boolean snapshotDue(String gameServer, String gameId) {
+        GameFiles f = files(gameServer, gameId, false);
+        if (f == null) return true;
+        synchronized (f) {
+            return f.nextSeq - 1 - f.snapshotSeq >= snapshotEvery;
+        }
+    }
+
+    /**
+     * Saves a game's state, as of the last command logged, and deletes the segments it makes unnecessary.
+     * The snapshot is written to a new file and then moved into place, so there's always one whole snapshot.
+     */
+    public void snapshot(String gameServer, String gameId, JsonObject state) {
+        GameFiles f = files(gameServer, gameId, true);
+        byte[] bytes = BinaryCodec.encode(state).getBytes();
+        synchronized (f) {
+            long seq = f.nextSeq - 1;
+            try {
+                Path temp = f.dir.resolve("snapshot.tmp");
+                Files.write(temp, bytes);
+                Path path = f.dir.resolve(String.format("%020d", seq) + SNAPSHOT_SUFFIX);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (f.snapshot != null && !f.snapshot.equals(path)) Files.deleteIfExists(f.snapshot);
+                f.snapshot = path;
+                f.snapshotSeq = seq;
+
+                // A segment can go once the next one starts at or before the first command after the snapshot
+                while (f.segments.size() > 1 && firstSeq(f.segments.get(1)) <= seq + 1) {
+                    Files.deleteIfExists(f.segments.remove(0));
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            snapshots.increment();
+        }
+    }
+
+    /** Deletes a game's log, because it has ended or moved to another process */
+    public void delete(String gameServer, String gameId) {
+        GameFiles f = games.remove(gameServer + "/" + gameId);
+        Path dir = f != null ? f.dir : dir(gameServer, gameId);
+        if (f != null) {
+            synchronized (f) {
+                f.active = null;
+                deleteDirectory(dir);
+            }
+        } else {
+            deleteDirectory(dir);
+        }
+    }
+
+    private static void deleteDirectory(Path dir) {
+        if (!Files.isDirectory(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        } catch (IOException ex) {
+            logger.warn("Could not delete game log {}: {}", dir, ex.getMessage());
+        }
+    }
+
+// Reading
+
+    /** Whether a game has a log, on disk or open */
+    public boolean exists(String gameServer, String gameId) {
+        GameFiles f = files(gameServer, gameId, false);
+        if (f == null) return false;
+        synchronized (f) {
+            return f.snapshot != null;
+        }
+    }
+
+    /** The sequence number of the last command logged for a game, or 0 if there hasn't been one */
+    public long lastSeq(String gameServer, String gameId) {
+        GameFiles f = files(gameServer, gameId, false);
+        if (f == null) return 0;
+        synchronized (f) {
+            return f.nextSeq - 1;
+        }
+    }
+
+    /**
+     * What it takes to rebuild a game as it was after command upTo: its latest snapshot, and the commands after it.
+     * Null if the game has no snapshot, or its latest snapshot is after upTo.
+     */
+    public Recovery read(String gameServer, String gameId, long upTo) {
+        GameFiles f = files(gameServer, gameId, false);
+        if (f == null) return null;
+        synchronized (f) {
+            if (f.snapshot == null || f.snapshotSeq > upTo) return null;
+            try {
+                JsonObject state = BinaryCodec.decodeObject(Buffer.buffer(Files.readAllBytes(f.snapshot)));
+                List<Entry> tail = new ArrayList<>();
+                for (Path p : f.segments) {
+                    LogSegment segment = f.active != null && p.equals(f.active.path) ? f.active : LogSegment.open(p);
+                    segment.forEach((seq, payload) -> {
+                        if (seq > f.snapshotSeq && seq <= upTo) {
+                            tail.add(new Entry(seq, BinaryCodec.decodeCommandPackage(Buffer.buffer(payload))));
+                        }
+                    });
+                }
+                return new Recovery(f.snapshotSeq, state, tail);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /** Writes every open game's log through to disk, e.g. before shutting down */
+    public void force() {
+        for (GameFiles f : games.values()) {
+            synchronized (f) {
+                if (f.active != null) f.active.force();
+            }
+        }
+    }
+
+    private static long firstSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+}
@@ -0,0 +1,113 @@
+package minigames.server.gamelog;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a game's command log, memory-mapped.
+ *
+ * Entries are [length:4][crc:4][seq:8][payload], one after another from the start of the file. The rest of the
+ * file is zeros, so the first length of 0 marks the end. Appending writes the payload first and the length last,
+ * so a process that dies part way through an append leaves an entry that readers skip (as does one whose CRC doesn't
+ * match). Writes go to the page cache straight away, so a crashed process loses nothing that was appended.
+ *
+ * Files are named after the first sequence number they can hold.
+ */
+final class LogSegment {
+
+    static final int HEADER = 16;
+
+    /** Reads an entry */
+    interface EntryReader {
+        void read(long seq, byte[] payload);
+    }
+
+    final Path path;
+    final long firstSeq;
+    private final MappedByteBuffer buf;
+
+    /** Where the next entry goes */
+    private int end;
+    private long lastSeq;
+
+    private LogSegment(Path path, long firstSeq, MappedByteBuffer buf) {
+        this.path = path;
+        this.firstSeq = firstSeq;
+        this.buf = buf;
+        this.lastSeq = firstSeq - 1;
+        this.end = scan((seq, payload) -> lastSeq = seq);
+    }
+
+    static String fileName(long firstSeq) {
+        return String.format("%020d.log", firstSeq);
+    }
+
+    /** Makes a new, empty segment */
+    static LogSegment create(Path dir, long firstSeq, int size) throws IOException {
+        Path path = dir.resolve(fileName(firstSeq));
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new LogSegment(path, firstSeq, ch.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /** Opens a segment written before, e.g. before a restart */
+    static LogSegment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long firstSeq = Long.parseLong(name.substring(0, name.indexOf('.')));
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new LogSegment(path, firstSeq, ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size()));
+        }
+    }
+
+    /** The last sequence number written, or firstSeq - 1 if the segment is empty */
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    /** Appends an entry. False if it doesn't fit */
+    boolean append(long seq, byte[] payload) {
+        if (end + HEADER + payload.length > buf.capacity()) return false;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buf.putInt(end + 4, (int) crc.getValue());
+        buf.putLong(end + 8, seq);
+        buf.put(end + HEADER, payload);
+        buf.putInt(end, payload.length);
+        end += HEADER + payload.length;
+        lastSeq = seq;
+        return true;
+    }
+
+    /** Reads every entry written, in order */
+    void forEach(EntryReader reader) {
+        scan(reader);
+    }
+
+    /** Reads entries up to the end of what was written, returning where that is */
+    private int scan(EntryReader reader) {
+        int pos = 0;
+        CRC32 crc = new CRC32();
+        while (pos + HEADER <= buf.capacity()) {
+            int length = buf.getInt(pos);
+            if (length <= 0 || pos + HEADER + length > buf.capacity()) break;
+            byte[] payload = new byte[length];
+            buf.get(pos + HEADER, payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != buf.getInt(pos + 4)) break;
+            reader.read(buf.getLong(pos + 8), payload);
+            pos += HEADER + length;
+        }
+        return pos;
+    }
+
+    /** Writes what has been appended through to the disk, rather than leaving it to the OS */
+    void force() {
+        buf.force();
+    }
+
+}
@@ -0,0 +1,212 @@
+package minigames.server.gamelog;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.GameServerDetails;
+import minigames.rendering.RenderingPackage;
+import minigames.server.ClientType;
+import minigames.server.LobbyEvents;
+import minigames.server.PersistentGameServer;
+
+/**
+ * Wraps a GameServer so that every game's commands are kept in a GameLog, and games can be rebuilt from it.
+ *
+ * Each CommandPackage a game runs successfully is appended to its log. The game's state is snapshotted when it
+ * starts, when somebody joins, and every so many commands after that. So a game can be rebuilt exactly, from its
+ * latest snapshot and the commands logged since, through the GameServer's rebuildGame. That applies the commands
+ * without pushing anything to players again.
+ *
+ * The first call for a game that isn't in memory (e.g. after the process restarted) rebuilds it from its log, if
+ * it has one. A game can also be replayed, up to any command, into a GameServer apart from the running one (e.g.
+ * MuddleServer.isolated()) to see what happened.
+ *
+ * Games that end, or move to another node, have their logs deleted.
+ *
+ * The GameServer doesn't need to know any of this. It only needs to be a PersistentGameServer, and to tell
+ * LobbyEvents when its games end.
+ */
+public class LoggedGameServer implements PersistentGameServer {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(LoggedGameServer.class);
+
+    private final String name;
+    private final PersistentGameServer delegate;
+    private final GameLog log;
+
+    /** Games known to be in memory in this process, so they don't need rebuilding */
+    private final Set<String> live = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param name The name the GameServer is registered under
+     * @param delegate The GameServer whose games to log
+     * @param log Where to log them
+     * @param lobbyEvents Where the GameServer says its games have ended. Null if it doesn't, in which case logs are
+     *                    only deleted when games are exported
+     */
+    public LoggedGameServer(String name, PersistentGameServer delegate, GameLog log, LobbyEvents lobbyEvents) {
+        this.name = name;
+        this.delegate = delegate;
+        this.log = log;
+        if (lobbyEvents != null) lobbyEvents.onGameEnded(name, this::ended);
+    }
+
+    /** The GameServer being logged */
+    public PersistentGameServer delegate() {
+        return delegate;
+    }
+
+    @Override
+    public GameServerDetails getDetails() {
+        return delegate.getDetails();
+    }
+
+    @Override
+    public ClientType[] getSupportedClients() {
+        return delegate.getSupportedClients();
+    }
+
+    @Override
+    public GameMetadata[] getGamesInProgress() {
+        return delegate.getGamesInProgress();
+    }
+
+// Calls
+
+    @Override
+    public Future<RenderingPackage> newGame(String playerName) {
+        return delegate.newGame(playerName).onSuccess((rp) -> {
+            if (rp.metadata() == null) return;
+            live.add(rp.metadata().name());
+            snapshot(rp.metadata().name());
+        });
+    }
+
+    @Override
+    public Future<RenderingPackage> joinGame(String game, String player) {
+        return rebuild(game)
+            .compose((v) -> delegate.joinGame(game, player))
+            .onSuccess((rp) -> { if (isLive(game)) snapshot(game); });
+    }
+
+    @Override
+    public Future<RenderingPackage> callGame(CommandPackage cp) {
+        return rebuild(cp.gameId())
+            .compose((v) -> delegate.callGame(cp))
+            .onSuccess((rp) -> { if (isLive(cp.gameId())) record(cp); });
+    }
+
+    @Override
+    public JsonObject exportGame(String gameId) {
+        live.remove(gameId);
+        JsonObject state = delegate.exportGame(gameId);
+        log.delete(name, gameId);
+        return state;
+    }
+
+    @Override
+    public void importGame(String gameId, JsonObject state) {
+        // Whatever was logged for the game here before is out of date
+        log.delete(name, gameId);
+        delegate.importGame(gameId, state);
+        live.add(gameId);
+        snapshot(gameId);
+    }
+
+    @Override
+    public Future<Void> rebuildGame(String gameId, JsonObject state, List<CommandPackage> commands) {
+        log.delete(name, gameId);
+        return delegate.rebuildGame(gameId, state, commands).onSuccess((v) -> {
+            live.add(gameId);
+            snapshot(gameId);
+        });
+    }
+
+    @Override
+    public boolean hasGame(String gameId) {
+        return delegate.hasGame(gameId) || log.exists(name, gameId);
+    }
+
+    @Override
+    public JsonObject snapshotGame(String gameId) {
+        return delegate.snapshotGame(gameId);
+    }
+
+// Logging
+
+    /** Logs a command package the game has run, and snapshots the game if it's due */
+    private void record(CommandPackage cp) {
+        try {
+            log.append(name, cp.gameId(), cp);
+            if (log.snapshotDue(name, cp.gameId())) snapshot(cp.gameId());
+        } catch (RuntimeException ex) {
+            // The game goes on. It just can't be rebuilt past here until its next snapshot
+            logger.warn("Could not log a command for {}/{}: {}", name, cp.gameId(), ex.getMessage());
+        }
+    }
+
+    private void snapshot(String gameId) {
+        try {
+            JsonObject state = delegate.snapshotGame(gameId);
+            if (state != null) log.snapshot(name, gameId, state);
+        } catch (RuntimeException ex) {
+            logger.warn("Could not snapshot {}/{}: {}", name, gameId, ex.getMessage());
+        }
+    }
+
+    private void ended(String gameId) {
+        live.remove(gameId);
+        log.delete(name, gameId);
+    }
+
+// Rebuilding
+
+    /**
+     * Whether a game is in memory, so its calls are logged. Calls for games that have ended, or never existed,
+     * aren't, so a made-up gameId doesn't get a log of its own
+     */
+    private boolean isLive(String gameId) {
+        if (live.contains(gameId)) return true;
+        if (delegate.snapshotGame(gameId) == null) return false;
+        live.add(gameId);
+        return true;
+    }
+
+    /** Rebuilds a game from its log, if this is the first call for it and it isn't in memory */
+    private Future<Void> rebuild(String gameId) {
+        if (gameId == null || isLive(gameId) || !log.exists(name, gameId)) return Future.succeededFuture();
+        return replay(gameId, Long.MAX_VALUE, delegate).map((seq) -> {
+            logger.info("Rebuilt {}/{} from its log, up to command {}", name, gameId, seq);
+            live.add(gameId);
+            return null;
+        });
+    }
+
+    /**
+     * Rebuilds a game, as it was after a command, in a GameServer: its latest snapshot from before then, and the
+     * commands logged after it. Replaying into a GameServer apart from the running one (e.g. MuddleServer.isolated())
+     * leaves the game being played alone, e.g. to look at how it got into a state.
+     *
+     * @param upTo The sequence number of the last command to run
+     * @return The sequence number of the last command run
+     */
+    public Future<Long> replay(String gameId, long upTo, PersistentGameServer into) {
+        GameLog.Recovery recovery = log.read(name, gameId, upTo);
+        if (recovery == null) return Future.failedFuture(new NoSuchElementException("No log for " + name + "/" + gameId + " up to " + upTo));
+
+        List<GameLog.Entry> tail = recovery.tail();
+        long last = tail.isEmpty() ? recovery.snapshotSeq() : tail.get(tail.size() - 1).seq();
+        return into.rebuildGame(gameId, recovery.state(), tail.stream().map(GameLog.Entry::commands).toList()).map(last);
+    }
+
+}
@@ -0,0 +1,87 @@
+package minigames.server.muddle;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads Muddle's text commands ("north", "take lamp", "say hello") into verbs the game can apply.
+ *
+ * Every word a player may type, and every prefix of it ("n", "nor", "inv"), is put in one table
+ * when the class loads. Parsing a command is then splitting off its first word and one lookup. Words earlier in
+ * WORDS win the prefixes they share with later ones, so "s" is south rather than say, as players expect.
+ */
+final class MuddleCommands {
+
+    enum Verb { MOVE, LOOK, TAKE, DROP, SAY, INVENTORY, UNKNOWN }
+
+    /**
+     * A parsed command.
+     * @param direction For MOVE, the direction as a MuddleWorld exit bit
+     * @param argument What the verb applies to, e.g. "lamp" in "take lamp". Empty if there isn't anything
+     */
+    record Command(Verb verb, int direction, String argument) {}
+
+    /** What a word means: a verb, and for the direction words, the direction */
+    private record Word(Verb verb, int direction) {}
+
+    /** "go", which is followed by a direction rather than being a verb of its own */
+    private static final Word GO = new Word(Verb.MOVE, 0);
+
+    /** Every word, in priority order for shared prefixes */
+    private static final Map<String, Word> WORDS = new LinkedHashMap<>();
+    static {
+        WORDS.put("north", new Word(Verb.MOVE, MuddleWorld.NORTH));
+        WORDS.put("south", new Word(Verb.MOVE, MuddleWorld.SOUTH));
+        WORDS.put("east", new Word(Verb.MOVE, MuddleWorld.EAST));
+        WORDS.put("west", new Word(Verb.MOVE, MuddleWorld.WEST));
+        WORDS.put("look", new Word(Verb.LOOK, 0));
+        WORDS.put("inventory", new Word(Verb.INVENTORY, 0));
+        WORDS.put("take", new Word(Verb.TAKE, 0));
+        WORDS.put("get", new Word(Verb.TAKE, 0));
+        WORDS.put("drop", new Word(Verb.DROP, 0));
+        WORDS.put("say", new Word(Verb.SAY, 0));
+        WORDS.put("go", GO);
+    }
+
+    /** Every word and prefix, compiled from WORDS */
+    private static final Map<String, Word> TABLE = compile(WORDS);
+
+    static final Command UNKNOWN = new Command(Verb.UNKNOWN, 0, "");
+
+    private MuddleCommands() {}
+
+    private static Map<String, Word> compile(Map<String, Word> words) {
+        Map<String, Word> table = new HashMap<>();
+        // Whole words first, so that no word loses itself to another word's prefix (e.g. "go" to "get")
+        table.putAll(words);
+        words.forEach((word, meaning) -> {
+            for (int i = 1; i < word.length(); i++) {
+                table.putIfAbsent(word.substring(0, i), meaning);
+            }
+        });
+        return Map.copyOf(table);
+    }
+
+    /** Parses one command. Anything it doesn't recognise is UNKNOWN */
+    static Command parse(String text) {
+        if (text == null) return UNKNOWN;
+        text = text.strip();
+        int space = text.indexOf(' ');
+        String first = (space < 0 ? text : text.substring(0, space)).toLowerCase(Locale.ROOT);
+        String rest = space < 0 ? "" : text.substring(space + 1).strip();
+
+        Word w = TABLE.get(first);
+        if (w == null) return UNKNOWN;
+
+        if (w == GO) {
+            // "go north": the direction is the next word
+            Word direction = TABLE.get(rest.toLowerCase(Locale.ROOT));
+            if (direction == null || direction.verb() != Verb.MOVE || direction == GO) return UNKNOWN;
+            return new Command(Verb.MOVE, direction.direction(), "");
+        }
+        return new Command(w.verb(), w.direction(), rest);
+    }
+
+}
@@ -1,14 +1,17 @@
 package minigames.server.muddle;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import minigames.commands.CommandPackage;
 import minigames.rendering.*;
 import minigames.rendering.NativeCommands.LoadClient;
+import minigames.server.Main;
 
 /**
  * Represents an actual Muddle game in progress
@@ -18,9 +21,6 @@ public class MuddleGame {
     /** A logger for logging output */
     private static final Logger logger = LogManager.getLogger(MuddleGame.class);
 
-    static int WIDTH = 2;
-    static int HEIGHT = 2;
-
     record MuddlePlayer(
         String name,
         int x, int y,
@@ -31,22 +31,32 @@ public class MuddleGame {
     /** Uniquely identifies this game */
     String name;
 
+    /** The rooms this game is played in, with their renderings already built */
+    final MuddleWorld world = MuddleWorld.DEFAULT;
+
+    /** What is lying in each room, by room index. Only changed from the game's own scheduler mailbox */
+    final List<List<String>> items = new ArrayList<>();
+
     public MuddleGame(String name) {
         this.name = name;
+        for (int i = 0; i < world.size(); i++) {
+            items.add(new ArrayList<>(world.room(i).items()));
+        }
     }
 
-    String[][] rooms = new String[][] {
-        {
-            "You are in a maze of twisting passages, all alike",
-            "You are in a maze of twisting passages that weren't so alike after all"
-        },
-        {
-            "You are standing in an open field west of a white house, with a boarded front door. There is a small mailbox here.",
-            "You wake up. The room is very gently spinning around your head. Or at least it would be if you could see it which you can't. It is pitch black."
-        }
-    };
+    // Replies that are always the same
+    static final JsonObject NO_EXIT = MuddleWorld.appendText("You can't go that way.");
+    static final JsonObject NOT_UNDERSTOOD = MuddleWorld.appendText("I don't understand that.");
+    static final JsonObject EMPTY_HANDED = MuddleWorld.appendText("You aren't carrying anything.");
+    static final JsonObject NOT_HERE = MuddleWorld.appendText("You can't see that here.");
+    static final JsonObject NOT_CARRIED = MuddleWorld.appendText("You aren't carrying that.");
+    static final JsonObject NOT_PLAYING = MuddleWorld.appendText("You aren't playing in this game.");
 
-    HashMap<String, MuddlePlayer> players = new HashMap<>();
+    /** Set while the game runs commands it has run before (e.g. rebuilding it from a log), so nothing is pushed */
+    boolean quiet;
+
+    /** Only changed from the game's own scheduler mailbox, but read by lobby listings from other threads */
+    Map<String, MuddlePlayer> players = new ConcurrentHashMap<>();
 
     /** The players currently playing this game */
     public String[] getPlayerNames() {
@@ -58,39 +68,164 @@ public class MuddleGame {
         return new GameMetadata("Muddle", name, getPlayerNames(), true);
     }
 
-    /** Describes the state of a player */
-    private String describeState(MuddlePlayer p) {
-        StringBuilder sb = new StringBuilder();
+    /** The commands that show a player the room they're in. Shared and read-only */
+    private List<JsonObject> view(MuddlePlayer p) {
+        return world.room(p.x(), p.y()).view();
+    }
 
-        sb.append(String.format("[%d,%d] \n\n", p.x, p.y));
-        sb.append(rooms[p.x()][p.y()]);
+    /**
+     * Runs a player's commands, one after another.
+     * The reply is only what the player needs: the room, if they moved or looked (anything before that is
+     * cleared off the screen anyway), and a line for each thing that happened after.
+     */
+    public RenderingPackage runCommands(CommandPackage cp) {   
+        logger.debug("Received command package {}", cp);     
+        MuddlePlayer p = players.get(cp.player());
 
-        return sb.toString();
+        // e.g. a name nobody joined with. They aren't anywhere, so nothing can happen to them
+        if (p == null) {
+            return new RenderingPackage(this.gameMetadata(), List.of(NOT_PLAYING, new NativeCommands.QuitToMenu().toJson()));
+        }
+
+        List<JsonObject> out = new ArrayList<>(4);
+        for (JsonObject json : cp.commands()) {
+            MuddleCommands.Command c = MuddleCommands.parse(json.getString("command"));
+            switch (c.verb()) {
+                case MOVE -> {
+                    MuddleWorld.Room here = world.room(p.x(), p.y());
+                    if (here.hasExit(c.direction())) {
+                        MuddleWorld.Room there = world.step(here, c.direction());
+                        p = new MuddlePlayer(p.name(), there.x(), there.y(), p.inventory());
+                        players.put(p.name(), p);
+                        show(there, out);
+                    } else {
+                        out.add(NO_EXIT);
+                    }
+                }
+                case LOOK -> show(world.room(p.x(), p.y()), out);
+                case INVENTORY -> out.add(p.inventory().isEmpty()
+                    ? EMPTY_HANDED
+                    : MuddleWorld.appendText("You are carrying: " + String.join(", ", p.inventory())));
+                case TAKE -> p = take(p, c.argument(), out);
+                case DROP -> p = drop(p, c.argument(), out);
+                case SAY -> {
+                    announce(p.name() + " says \"" + c.argument() + "\"", p.name());
+                    out.add(MuddleWorld.appendText("You say \"" + c.argument() + "\""));
+                }
+                default -> out.add(NOT_UNDERSTOOD);
+            }
+        }
+
+        // Nothing else to show (e.g. a resync on its own), so show them where they are
+        if (out.isEmpty()) out.addAll(view(p));
+
+        return new RenderingPackage(this.gameMetadata(), out);
     }
 
-    private String directions(int x, int y) {
-        String d = "";
-        if (x > 0) d += "W";
-        if (y > 0) d += "N";
-        if (x < WIDTH - 1) d += "E";
-        if (x < HEIGHT - 1) d += "S";
+    /** Replaces the player's screen with a room, and what's lying in it */
+    private void show(MuddleWorld.Room room, List<JsonObject> out) {
+        out.clear();
+        out.addAll(room.view());
+        List<String> here = items.get(room.index());
+        if (!here.isEmpty()) out.add(MuddleWorld.appendText("You can see: " + String.join(", ", here)));
+    }
 
-        return d;
+    private MuddlePlayer take(MuddlePlayer p, String item, List<JsonObject> out) {
+        List<String> here = items.get(world.index(p.x(), p.y()));
+        if (!here.remove(item)) {
+            out.add(NOT_HERE);
+            return p;
+        }
+        List<String> inventory = new ArrayList<>(p.inventory());
+        inventory.add(item);
+        MuddlePlayer taken = new MuddlePlayer(p.name(), p.x(), p.y(), List.copyOf(inventory));
+        players.put(p.name(), taken);
+        out.add(MuddleWorld.appendText("You take the " + item + "."));
+        return taken;
     }
 
+    private MuddlePlayer drop(MuddlePlayer p, String item, List<JsonObject> out) {
+        if (!p.inventory().contains(item)) {
+            out.add(NOT_CARRIED);
+            return p;
+        }
+        List<String> inventory = new ArrayList<>(p.inventory());
+        inventory.remove(item);
+        items.get(world.index(p.x(), p.y())).add(item);
+        MuddlePlayer dropped = new MuddlePlayer(p.name(), p.x(), p.y(), List.copyOf(inventory));
+        players.put(p.name(), dropped);
+        out.add(MuddleWorld.appendText("You drop the " + item + "."));
+        return dropped;
+    }
 
-    public RenderingPackage runCommands(CommandPackage cp) {   
-        logger.info("Received command package {}", cp);     
-        MuddlePlayer p = players.get(cp.player());
+    /** Pushes a line of text to every player in the game who has a push channel open */
+    private void announce(String text) {
+        announce(text, null);
+    }
+
+    /** Pushes a line of text to every player in the game except one (e.g. the one who said it) */
+    private void announce(String text, String except) {
+        if (quiet) return;
+        RenderingPackage rp = new RenderingPackage(gameMetadata(), List.of(MuddleWorld.appendText(text)));
+        for (String player : players.keySet()) {
+            if (!player.equals(except)) Main.playerChannels.push("Muddle", name, player, rp);
+        }
+    }
+
+    /** Tells everyone in the game that it has ended, and sends them back to the menu */
+    void end(String why) {
+        if (quiet) return;
+        RenderingPackage rp = new RenderingPackage(gameMetadata(), List.of(
+            MuddleWorld.appendText(why),
+            new NativeCommands.QuitToMenu().toJson()
+        ));
+        for (String player : players.keySet()) {
+            Main.playerChannels.push("Muddle", name, player, rp);
+        }
+    }
 
-        // FIXME: Need to actually run the commands!
+    /** A rough guess at how many bytes of heap this game takes, for the server's metrics */
+    long estimatedBytes() {
+        long bytes = 256;
+        for (MuddlePlayer p : players.values()) {
+            bytes += 128 + 2L * p.name().length() + 64L * p.inventory().size();
+        }
+        for (List<String> here : items) bytes += 32 + 48L * here.size();
+        return bytes;
+    }
 
-        ArrayList<JsonObject> renderingCommands = new ArrayList<>();
-        renderingCommands.add(new JsonObject().put("command", "clearText"));
-        renderingCommands.add(new JsonObject().put("command", "appendText").put("text", describeState(p)));
-        renderingCommands.add(new JsonObject().put("command", "setDirections").put("directions", directions(p.x(), p.y())));
+    /** Everything about this game that isn't the same in every game, so that it can move to another server */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        for (MuddlePlayer p : players.values()) {
+            json.put(p.name(), new JsonObject()
+                .put("x", p.x())
+                .put("y", p.y())
+                .put("inventory", new JsonArray(p.inventory())));
+        }
+        JsonArray rooms = new JsonArray();
+        for (List<String> here : items) rooms.add(new JsonArray(new ArrayList<>(here)));
+        return new JsonObject().put("players", json).put("items", rooms);
+    }
 
-        return new RenderingPackage(this.gameMetadata(), renderingCommands);
+    /** A game carried on from the JSON toJson made */
+    public static MuddleGame fromJson(String name, JsonObject json) {
+        MuddleGame g = new MuddleGame(name);
+        JsonObject players = json.getJsonObject("players", new JsonObject());
+        for (String player : players.fieldNames()) {
+            JsonObject p = players.getJsonObject(player);
+            List<String> inventory = p.getJsonArray("inventory", new JsonArray()).stream().map(String::valueOf).toList();
+            g.players.put(player, new MuddlePlayer(player, p.getInteger("x", 0), p.getInteger("y", 0), inventory));
+        }
+        JsonArray rooms = json.getJsonArray("items");
+        if (rooms != null) {
+            for (int i = 0; i < rooms.size() && i < g.items.size(); i++) {
+                List<String> here = g.items.get(i);
+                here.clear();
+                rooms.getJsonArray(i).forEach((item) -> here.add(String.valueOf(item)));
+            }
+        }
+        return g;
     }
 
     /** Joins this game */
@@ -104,13 +239,12 @@ public class MuddleGame {
             );
         } else {
             MuddlePlayer p = new MuddlePlayer(playerName, 0, 0, List.of());
+            announce(playerName + " has joined the game.");
             players.put(playerName, p);
 
             ArrayList<JsonObject> renderingCommands = new ArrayList<>();
             renderingCommands.add(new LoadClient("MuddleText", "Muddle", name, playerName).toJson());
-            renderingCommands.add(new JsonObject().put("command", "clearText"));
-            renderingCommands.add(new JsonObject().put("command", "appendText").put("text", describeState(p)));
-            renderingCommands.add(new JsonObject().put("command", "setDirections").put("directions", directions(p.x(), p.y())));
+            renderingCommands.addAll(view(p));
 
             return new RenderingPackage(gameMetadata(), renderingCommands);
         }
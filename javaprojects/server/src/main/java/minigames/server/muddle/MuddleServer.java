@@ -1,36 +1,145 @@
 package minigames.server.muddle;
 
 import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
 import minigames.commands.CommandPackage;
 import minigames.rendering.GameMetadata;
 import minigames.rendering.GameServerDetails;
+import minigames.rendering.NativeCommands;
 import minigames.rendering.RenderingPackage;
 import minigames.server.ClientType;
-import minigames.server.GameServer;
+import minigames.server.GameContainer;
+import minigames.server.Main;
+import minigames.server.PersistentGameServer;
+import minigames.server.snapshots.GameSnapshots;
 
-import java.util.HashMap;
-import java.util.Random;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Our MuddleServer holds MuddleGames. 
  * When it receives a CommandPackage, it finds the MuddleGame and calls it.
  */
-public class MuddleServer implements GameServer {
+public class MuddleServer implements PersistentGameServer {
 
     static final String chars = "abcdefghijklmopqrstuvwxyz";
 
+    /** A random name for a game that this node owns, so that its calls come here */
+    static String localName() {
+        String name = randomName();
+        while (!Main.cluster.isLocal("Muddle", name)) name = randomName();
+        return name;
+    }
+
     /** A random name. We could do with something more memorable, like Docker has */
     static String randomName() {
-        Random r = new Random();
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < 12; i++) {
-            sb.append(chars.charAt(r.nextInt(chars.length())));
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        char[] name = new char[12];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = chars.charAt(r.nextInt(chars.length()));
         }
-        return sb.toString();
+        return new String(name);
+    }
+
+    /**
+     * The verb a command is labelled with in metrics (e.g. "move" for "n" and "go north"), or null if it isn't one.
+     * Players can type anything, so this never returns what they typed
+     */
+    public static String commandLabel(String text) {
+        MuddleCommands.Verb verb = MuddleCommands.parse(text).verb();
+        return verb == MuddleCommands.Verb.UNKNOWN ? null : verb.name().toLowerCase(Locale.ROOT);
     }
 
-    /** Holds the games in progress in memory (no db) */
-    HashMap<String, MuddleGame> games = new HashMap<>();
+    /** How long a game nobody plays is kept, by default */
+    static final long IDLE_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * Holds the games in progress in memory (no db).
+     * Each game's calls are run one at a time by the GameScheduler, but different games run in parallel,
+     * so the container is concurrent. Games nobody has played for idleMillis are evicted.
+     */
+    final GameContainer<MuddleGame> games;
+
+    /** Saves games as they change, so they survive a restart. Null if saving is turned off */
+    final GameSnapshots snapshots;
+
+    /** Whether this server is apart from the running one (see isolated()) */
+    final boolean isolated;
+
+    public MuddleServer() {
+        this(IDLE_MILLIS);
+    }
+
+    /** @param idleMillis How long a game nobody plays is kept. 0 keeps them forever */
+    public MuddleServer(long idleMillis) {
+        this(idleMillis, Main.gameSnapshots);
+    }
+
+    /**
+     * @param idleMillis How long a game nobody plays is kept. 0 keeps them forever
+     * @param snapshots Where to save games as they change. Null doesn't save them
+     */
+    public MuddleServer(long idleMillis, GameSnapshots snapshots) {
+        this(idleMillis, snapshots, false);
+    }
+
+    private MuddleServer(long idleMillis, GameSnapshots snapshots, boolean isolated) {
+        this.snapshots = snapshots;
+        this.isolated = isolated;
+        games = new GameContainer<>(isolated ? null : "Muddle", idleMillis, Main.gameScheduler, (id, game) -> {
+            game.end("This game has ended, as nobody has played it for a while.");
+            ended(id);
+        });
+        games.estimateSizeWith(MuddleGame::estimatedBytes);
+
+        if (snapshots != null) {
+            snapshots.register("Muddle", this);
+            // Games saved before a restart carry on the first time somebody calls them
+            games.restoreWith((id) -> {
+                JsonObject state = snapshots.restore("Muddle", id);
+                if (state == null) return null;
+                MuddleGame g = MuddleGame.fromJson(id, state);
+                Main.lobbyEvents.gameCreated("Muddle", g.gameMetadata());
+                return g;
+            });
+        }
+    }
+
+    /**
+     * A MuddleServer apart from the running one, e.g. to replay a game into and see how it got the way it is.
+     * Its games are kept until it's dropped, and aren't saved, listed in the lobby, or pushed to players
+     */
+    public static MuddleServer isolated() {
+        return new MuddleServer(0, null, true);
+    }
+
+    /** Marks a game as needing saving */
+    private void changed(String gameId) {
+        if (snapshots != null) snapshots.dirty("Muddle", gameId);
+    }
+
+    /** Tidies up after a game that has ended here */
+    private void ended(String gameId) {
+        if (isolated) return;
+        if (snapshots != null) snapshots.forget("Muddle", gameId);
+        Main.lobbyEvents.gameEnded("Muddle", gameId);
+    }
+
+    /**
+     * What a player gets for a game that isn't here: it has ended, been evicted, or never existed.
+     * @param playing Whether they were in the game (so they go back to the menu) or joining it from the menu
+     */
+    static RenderingPackage gone(String gameId, boolean playing) {
+        GameMetadata metadata = new GameMetadata("Muddle", gameId, new String[0], false);
+        if (!playing) {
+            return new RenderingPackage(metadata, List.of(new NativeCommands.ShowMenuError("That game has ended").toJson()));
+        }
+        return new RenderingPackage(metadata, List.of(
+            MuddleWorld.appendText("This game has ended."),
+            new NativeCommands.QuitToMenu().toJson()
+        ));
+    }
 
     @Override
     public GameServerDetails getDetails() {
@@ -44,28 +153,78 @@ public class MuddleServer implements GameServer {
 
     @Override
     public GameMetadata[] getGamesInProgress() {
-        return games.keySet().stream().map((name) -> {
-            return new GameMetadata("Muddle", name, games.get(name).getPlayerNames(), true);
-        }).toArray(GameMetadata[]::new);
+        return games.games().stream().map(MuddleGame::gameMetadata).toArray(GameMetadata[]::new);
     }
 
     @Override
     public Future<RenderingPackage> newGame(String playerName) {
-        MuddleGame g = new MuddleGame(randomName());
+        MuddleGame g = new MuddleGame(localName());
+        g.quiet = isolated;
         games.put(g.name, g);
-        return Future.succeededFuture(g.joinGame(playerName));
+        RenderingPackage rp = g.joinGame(playerName);
+        changed(g.name);
+        if (!isolated) Main.lobbyEvents.gameCreated("Muddle", g.gameMetadata());
+        return Future.succeededFuture(rp);
     }
 
     @Override
     public Future<RenderingPackage> joinGame(String game, String playerName) {
         MuddleGame g = games.get(game);
-        return Future.succeededFuture(g.joinGame(playerName));
+        if (g == null) return Future.succeededFuture(gone(game, false));
+        RenderingPackage rp = g.joinGame(playerName);
+        changed(game);
+        if (!isolated) Main.lobbyEvents.gameUpdated("Muddle", g.gameMetadata());
+        return Future.succeededFuture(rp);
     }
 
     @Override
     public Future<RenderingPackage> callGame(CommandPackage cp) {
         MuddleGame g = games.get(cp.gameId());
-        return Future.succeededFuture(g.runCommands(cp));
+        if (g == null) return Future.succeededFuture(gone(cp.gameId(), true));
+        RenderingPackage rp = g.runCommands(cp);
+        changed(cp.gameId());
+        return Future.succeededFuture(rp);
+    }
+
+    @Override
+    public JsonObject exportGame(String gameId) {
+        MuddleGame g = games.remove(gameId);
+        if (g == null) return null;
+        ended(gameId);
+        return g.toJson();
+    }
+
+    @Override
+    public void importGame(String gameId, JsonObject state) {
+        MuddleGame g = MuddleGame.fromJson(gameId, state);
+        g.quiet = isolated;
+        games.put(gameId, g);
+        changed(gameId);
+        if (!isolated) Main.lobbyEvents.gameCreated("Muddle", g.gameMetadata());
+    }
+
+    @Override
+    public Future<Void> rebuildGame(String gameId, JsonObject state, List<CommandPackage> commands) {
+        // The game is only put where players can reach it once it has caught up
+        MuddleGame g = MuddleGame.fromJson(gameId, state);
+        g.quiet = true;
+        for (CommandPackage cp : commands) g.runCommands(cp);
+        g.quiet = isolated;
+        games.put(gameId, g);
+        changed(gameId);
+        if (!isolated) Main.lobbyEvents.gameCreated("Muddle", g.gameMetadata());
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public boolean hasGame(String gameId) {
+        return games.peek(gameId) != null;
+    }
+
+    @Override
+    public JsonObject snapshotGame(String gameId) {
+        MuddleGame g = games.peek(gameId);
+        return g == null ? null : g.toJson();
     }
     
 }
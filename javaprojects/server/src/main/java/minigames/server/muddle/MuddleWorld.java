@@ -0,0 +1,150 @@
+package minigames.server.muddle;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The rooms of a Muddle world, compiled once into everything a game needs to show a player where they are.
+ *
+ * Rooms and their exits never change, so each room's rendering commands (its description and its directions)
+ * are built here up front and shared by every game and every move. They are read-only JsonObjects, so sharing
+ * them is safe: anything that tried to change one would get an UnsupportedOperationException.
+ *
+ * Rooms are numbered x * height + y.
+ */
+final class MuddleWorld {
+
+    /** Exits, as bits of a room's direction mask */
+    static final int NORTH = 1, EAST = 2, SOUTH = 4, WEST = 8;
+
+    /** Clears the player's text. The same for every room. Declared before DEFAULT, which uses it */
+    static final JsonObject CLEAR_TEXT = frozen(Map.of("command", "clearText"));
+
+    /** The world every Muddle game is played in */
+    static final MuddleWorld DEFAULT = new MuddleWorld(new String[][] {
+        {
+            "You are in a maze of twisting passages, all alike",
+            "You are in a maze of twisting passages that weren't so alike after all"
+        },
+        {
+            "You are standing in an open field west of a white house, with a boarded front door. There is a small mailbox here.",
+            "You wake up. The room is very gently spinning around your head. Or at least it would be if you could see it which you can't. It is pitch black."
+        }
+    }, Map.of(
+        0, List.of("lamp"),
+        2, List.of("leaflet")
+    ));
+
+    /**
+     * One room, ready to render.
+     * @param directions Which exits it has (NORTH | EAST ...)
+     * @param view The commands that show a player this room: clearText, appendText, setDirections
+     * @param items What is lying in the room when a game starts
+     */
+    record Room(int index, int x, int y, int directions, List<JsonObject> view, List<String> items) {
+
+        boolean hasExit(int direction) {
+            return (directions & direction) != 0;
+        }
+    }
+
+    final int width;
+    final int height;
+    private final Room[] rooms;
+
+    /** Compiles a world from room descriptions, given as descriptions[x][y], with nothing lying around */
+    MuddleWorld(String[][] descriptions) {
+        this(descriptions, Map.of());
+    }
+
+    /**
+     * Compiles a world from room descriptions, given as descriptions[x][y]
+     * @param items What lies in each room when a game starts, by room index
+     */
+    MuddleWorld(String[][] descriptions, Map<Integer, List<String>> items) {
+        this.width = descriptions.length;
+        this.height = descriptions[0].length;
+        this.rooms = new Room[width * height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int mask = exits(x, y);
+                rooms[index(x, y)] = new Room(index(x, y), x, y, mask, List.of(
+                    CLEAR_TEXT,
+                    command("appendText", "text", String.format("[%d,%d] \n\n", x, y) + descriptions[x][y]),
+                    command("setDirections", "directions", directionLetters(mask))
+                ), List.copyOf(items.getOrDefault(index(x, y), List.of())));
+            }
+        }
+    }
+
+    int index(int x, int y) {
+        return x * height + y;
+    }
+
+    /** The room at x, y */
+    Room room(int x, int y) {
+        return rooms[index(x, y)];
+    }
+
+    /** The room with an index */
+    Room room(int index) {
+        return rooms[index];
+    }
+
+    /** How many rooms there are */
+    int size() {
+        return rooms.length;
+    }
+
+    /** The room a step from another, in a direction it has an exit */
+    Room step(Room from, int direction) {
+        return switch (direction) {
+            case NORTH -> room(from.x(), from.y() - 1);
+            case SOUTH -> room(from.x(), from.y() + 1);
+            case EAST -> room(from.x() + 1, from.y());
+            default -> room(from.x() - 1, from.y());
+        };
+    }
+
+    /** The exits from x, y, as a direction mask */
+    private int exits(int x, int y) {
+        int mask = 0;
+        if (y > 0) mask |= NORTH;
+        if (x < width - 1) mask |= EAST;
+        if (y < height - 1) mask |= SOUTH;
+        if (x > 0) mask |= WEST;
+        return mask;
+    }
+
+    /** A direction mask as the client's setDirections expects it, e.g. "WNE" */
+    static String directionLetters(int mask) {
+        StringBuilder sb = new StringBuilder(4);
+        if ((mask & WEST) != 0) sb.append('W');
+        if ((mask & NORTH) != 0) sb.append('N');
+        if ((mask & EAST) != 0) sb.append('E');
+        if ((mask & SOUTH) != 0) sb.append('S');
+        return sb.toString();
+    }
+
+    /** Adds a paragraph to the player's text. Read-only, so it can be kept and reused */
+    static JsonObject appendText(String text) {
+        return command("appendText", "text", "\n\n" + text);
+    }
+
+    private static JsonObject command(String command, String key, String value) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("command", command);
+        map.put(key, value);
+        return frozen(map);
+    }
+
+    /** A JsonObject that can't be changed */
+    private static JsonObject frozen(Map<String, Object> map) {
+        return new JsonObject(Collections.unmodifiableMap(new LinkedHashMap<>(map)));
+    }
+
+}
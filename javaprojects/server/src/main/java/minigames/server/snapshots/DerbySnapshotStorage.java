@@ -0,0 +1,100 @@
+package minigames.server.snapshots;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import minigames.server.database.*;
+
+
+/**
+ * Derby Database implementation of SnapshotStorage.
+ */
+public class DerbySnapshotStorage implements SnapshotStorage {
+
+    private SnapshotTable snapshotTable;
+
+    /** Games known to have a row already, so saving them is an update without looking first */
+    private final Set<String> saved = ConcurrentHashMap.newKeySet();
+
+
+    /**
+     * @param database Database for operations.
+     */
+    public DerbySnapshotStorage(DerbyDatabase database) {
+        this.snapshotTable = new SnapshotTable(database);
+    }
+
+
+    /**
+     * For testing only.
+     * @param snapshotTable Snapshot table reference.
+     */
+    DerbySnapshotStorage(DatabaseTable snapshotTable) {
+        this.snapshotTable = (SnapshotTable) snapshotTable;
+    }
+
+
+    /**
+     * Inserts or updates a game's snapshot.
+     *
+     * @param snapshot Snapshot to save.
+     */
+    @Override
+    public void save(GameSnapshot snapshot) {
+        String key = snapshot.gameServer() + "/" + snapshot.gameId();
+        if (saved.contains(key)) {
+            snapshotTable.update(snapshot);
+            return;
+        }
+        try {
+            snapshotTable.create(snapshot);
+        } catch (RuntimeException e) {
+            // Saved before the server restarted
+            snapshotTable.update(snapshot);
+        }
+        saved.add(key);
+    }
+
+
+    /**
+     * Retrieves a game's snapshot.
+     *
+     * @param gameServer GameServer name.
+     * @param gameId Game ID.
+     * @return Snapshot, or null.
+     */
+    @Override
+    public GameSnapshot load(String gameServer, String gameId) {
+        GameSnapshot snapshot = snapshotTable.retrieveOne(GameSnapshot.key(gameServer, gameId));
+        if (snapshot != null) saved.add(gameServer + "/" + gameId);
+        return snapshot;
+    }
+
+
+    /**
+     * Deletes a game's snapshot.
+     *
+     * @param gameServer GameServer name.
+     * @param gameId Game ID.
+     */
+    @Override
+    public void delete(String gameServer, String gameId) {
+        saved.remove(gameServer + "/" + gameId);
+        snapshotTable.delete(GameSnapshot.key(gameServer, gameId));
+    }
+
+
+    /**
+     * Retrieves the ids of a GameServer's saved games.
+     *
+     * @param gameServer GameServer name.
+     * @return Game IDs.
+     */
+    @Override
+    public Set<String> gameIds(String gameServer) {
+        Set<String> ids = new HashSet<>(snapshotTable.retrieveGameIds(gameServer));
+        for (String id : ids) saved.add(gameServer + "/" + id);
+        return ids;
+    }
+}
@@ -0,0 +1,16 @@
+package minigames.server.snapshots;
+
+
+/**
+ * A game's state, as saved to carry it on after a restart.
+ *
+ * @param state The game's exported state, in the BinaryCodec format. Null when the record is only used as a key
+ * @param savedAt When it was saved, in milliseconds since the epoch
+ */
+public record GameSnapshot(String gameServer, String gameId, byte[] state, long savedAt) {
+
+    /** A record to look a game's snapshot up by */
+    static GameSnapshot key(String gameServer, String gameId) {
+        return new GameSnapshot(gameServer, gameId, null, 0);
+    }
+}
@@ -0,0 +1,233 @@
+package minigames.server.snapshots;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import minigames.codec.BinaryCodec;
+import minigames.server.GameScheduler;
+import minigames.server.Metrics;
+import minigames.server.PersistentGameServer;
+
+/**
+ * Saves games in progress every so often, so that they carry on after the server restarts.
+ *
+ * GameServers mark a game dirty when it changes. That is one map put, so it costs a call nothing. Every interval,
+ * the writer thread goes through the dirty games: it asks each one's GameServer for a snapshot (in the game's
+ * scheduler mailbox, in turn with its calls), encodes it with BinaryCodec and saves it. However often a game
+ * changes in an interval, it is saved once.
+ *
+ * Saving, deleting and encoding all happen on the one writer thread, in the order they were asked for, so a
+ * snapshot taken just before a game ended can't be saved after its snapshot is deleted.
+ *
+ * Saved games aren't loaded at startup. A GameServer asks for a game with restore() the first time a call for it
+ * arrives, and carries it on from there (see GameContainer.restoreWith). Only the ids of the saved games are loaded,
+ * on the writer thread when a GameServer registers, so that a call for a game that was never saved (such as a
+ * made-up id) is answered from memory rather than with a query on the caller's thread.
+ *
+ * A crash loses whatever changed since the last interval.
+ */
+public class GameSnapshots {
+
+    /** A logger for logging output */
+    private static final Logger logger = LogManager.getLogger(GameSnapshots.class);
+
+    /** A game waiting to be saved */
+    private record Dirty(String gameServer, String gameId) {}
+
+    private final SnapshotStorage storage;
+    private final GameScheduler scheduler;
+    private final ScheduledExecutorService writer;
+
+    private final Map<String, PersistentGameServer> servers = new ConcurrentHashMap<>();
+    private final Map<String, Dirty> dirty = new ConcurrentHashMap<>();
+
+    /** The ids of the games each GameServer has saved. Absent until loaded */
+    private final Map<String, Set<String>> savedIds = new ConcurrentHashMap<>();
+
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder restored = new LongAdder();
+    private final Metrics.HistogramFamily snapshotBytes;
+    private final Metrics.HistogramFamily saveTime;
+
+    /**
+     * @param storage Where to save games
+     * @param scheduler Where to take snapshots, in each game's mailbox. Null takes them on the writer thread
+     * @param writer The thread that takes, encodes and saves snapshots. It must have only one thread.
+     *               Null does everything on the calling thread, and doesn't save on a timer (see flush)
+     * @param intervalMillis How often to save dirty games
+     * @param metrics Where to report saves
+     */
+    public GameSnapshots(SnapshotStorage storage, GameScheduler scheduler, ScheduledExecutorService writer, long intervalMillis, Metrics metrics) {
+        this.storage = storage;
+        this.scheduler = scheduler;
+        this.writer = writer;
+        this.snapshotBytes = metrics.sizes("minigames_snapshot_bytes", "Size of each game saved", "game_server");
+        this.saveTime = metrics.timer("minigames_snapshot_save_seconds", "Time to write a game's snapshot to storage", "game_server");
+        metrics.gauge("minigames_snapshots_dirty", "Games changed since they were last saved", () -> dirty.size());
+        metrics.counter("minigames_snapshots_saved_total", "Games saved", saved::sum);
+        metrics.counter("minigames_snapshots_failed_total", "Saves that failed, and will be tried again", failed::sum);
+        metrics.counter("minigames_snapshots_restored_total", "Games carried on from a snapshot", restored::sum);
+
+        if (writer != null && intervalMillis > 0) {
+            writer.scheduleWithFixedDelay(this::flushNow, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static String key(String gameServer, String gameId) {
+        return gameServer + "/" + gameId;
+    }
+
+    /** Lets a GameServer's games be saved, and loads the ids of the ones that have been */
+    public void register(String gameServer, PersistentGameServer server) {
+        servers.put(gameServer, server);
+        onWriter(() -> {
+            try {
+                Set<String> ids = ConcurrentHashMap.newKeySet();
+                ids.addAll(storage.gameIds(gameServer));
+                savedIds.put(gameServer, ids);
+            } catch (RuntimeException ex) {
+                // restore() looks in storage for every game instead
+                logger.error("Could not load the ids of {}'s saved games", gameServer, ex);
+            }
+        });
+    }
+
+// Games
+
+    /** Marks a game as changed, so it is saved next time round. Safe to call from any thread */
+    public void dirty(String gameServer, String gameId) {
+        String k = key(gameServer, gameId);
+        if (!dirty.containsKey(k)) dirty.put(k, new Dirty(gameServer, gameId));
+    }
+
+    /**
+     * A game's saved state, or null if it hasn't got one. Games that weren't saved are answered from the loaded ids.
+     * Saved games are read from storage on the calling thread, so this is for the first call to a game after a
+     * restart, not for every call.
+     */
+    public JsonObject restore(String gameServer, String gameId) {
+        Set<String> ids = savedIds.get(gameServer);
+        if (ids != null && !ids.contains(gameId)) return null;
+
+        GameSnapshot snapshot;
+        try {
+            snapshot = storage.load(gameServer, gameId);
+        } catch (RuntimeException ex) {
+            logger.error("Could not load {}/{}", gameServer, gameId, ex);
+            return null;
+        }
+        if (snapshot == null || snapshot.state() == null) return null;
+        JsonObject state = BinaryCodec.decodeObject(Buffer.buffer(snapshot.state()));
+        restored.increment();
+        logger.info("Restored {}/{}, saved at {}", gameServer, gameId, snapshot.savedAt());
+        return state;
+    }
+
+    /** Deletes a game's snapshot, because it has ended or moved to another node */
+    public void forget(String gameServer, String gameId) {
+        dirty.remove(key(gameServer, gameId));
+        // Straight away, so the game can't be restored while its delete waits its turn
+        Set<String> ids = savedIds.get(gameServer);
+        if (ids != null) ids.remove(gameId);
+        onWriter(() -> {
+            // And again, in case a save that was already queued put it back
+            Set<String> current = savedIds.get(gameServer);
+            if (current != null) current.remove(gameId);
+            storage.delete(gameServer, gameId);
+        });
+    }
+
+    /** How many games have changed since they were last saved */
+    public int dirtyCount() {
+        return dirty.size();
+    }
+
+// Saving
+
+    /** Saves every dirty game now, e.g. before shutting down. Completes once the snapshots are queued to be written */
+    public Future<Void> flush() {
+        if (writer == null) {
+            flushNow();
+            return Future.succeededFuture();
+        }
+        return Future.fromCompletionStage(CompletableFuture.runAsync(this::flushNow, writer));
+    }
+
+    /** Takes a snapshot of every dirty game, and saves them. Runs on the writer thread */
+    void flushNow() {
+        for (String k : dirty.keySet()) {
+            Dirty d = dirty.remove(k);
+            if (d == null) continue;
+            PersistentGameServer server = servers.get(d.gameServer());
+            if (server == null) continue;
+
+            if (scheduler == null) {
+                save(d, Future.succeededFuture(server.snapshotGame(d.gameId())));
+            } else {
+                scheduler.submit(d.gameServer(), d.gameId(), "snapshot", () -> Future.succeededFuture(server.snapshotGame(d.gameId())))
+                    .onComplete((ar) -> onWriter(() -> save(d, ar)));
+            }
+        }
+    }
+
+    /** Encodes and saves a snapshot. Runs on the writer thread */
+    private void save(Dirty d, AsyncResult<JsonObject> snapshot) {
+        if (snapshot.failed()) {
+            // e.g. the game's bulkhead was full. Try again next time round
+            failed.increment();
+            dirty(d.gameServer(), d.gameId());
+            return;
+        }
+        JsonObject state = snapshot.result();
+        if (state == null) return; // The game has gone
+
+        long start = System.nanoTime();
+        try {
+            byte[] bytes = BinaryCodec.encode(state).getBytes();
+            storage.save(new GameSnapshot(d.gameServer(), d.gameId(), bytes, System.currentTimeMillis()));
+            Set<String> ids = savedIds.get(d.gameServer());
+            if (ids != null) ids.add(d.gameId());
+            snapshotBytes.get(d.gameServer()).record(bytes.length);
+            saveTime.get(d.gameServer()).recordSince(start);
+            saved.increment();
+        } catch (RuntimeException ex) {
+            logger.warn("Could not save {}/{}: {}", d.gameServer(), d.gameId(), ex.getMessage());
+            failed.increment();
+            dirty(d.gameServer(), d.gameId());
+        }
+    }
+
+    private void onWriter(Runnable r) {
+        if (writer == null) {
+            r.run();
+        } else {
+            writer.execute(r);
+        }
+    }
+
+    long saved() {
+        return saved.sum();
+    }
+
+    long failed() {
+        return failed.sum();
+    }
+
+    long restored() {
+        return restored.sum();
+    }
+
+}
@@ -0,0 +1,26 @@
+package minigames.server.snapshots;
+
+import java.util.Set;
+
+/**
+ * Defines methods for saved game storage.
+ * Implementations may vary (e.g. database, memory, etc).
+ */
+public interface SnapshotStorage {
+
+
+    /** Saves a game, replacing any earlier snapshot of it. */
+    void save(GameSnapshot snapshot);
+
+
+    /** Gets a game's snapshot, or null if it hasn't got one. */
+    GameSnapshot load(String gameServer, String gameId);
+
+
+    /** Deletes a game's snapshot, if it has one. */
+    void delete(String gameServer, String gameId);
+
+
+    /** Gets the ids of every game of a GameServer that has a snapshot. */
+    Set<String> gameIds(String gameServer);
+}
@@ -0,0 +1,199 @@
+package minigames.server.snapshots;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import minigames.server.database.*;
+
+
+/**
+ * Handles database operations for saved games.
+ */
+public class SnapshotTable extends DatabaseTable<GameSnapshot> {
+
+    public static final String TABLE_NAME = "GAME_SNAPSHOTS";
+    public static final String COLUMN_GAME_SERVER = "game_server";
+    public static final String COLUMN_GAME_ID = "game_id";
+    public static final String COLUMN_STATE = "state";
+    public static final String COLUMN_SAVED_AT = "saved_at";
+
+
+    /**
+     * Constructor.
+     * @param database The database instance.
+     */
+    public SnapshotTable(Database database) {
+        super(database, TABLE_NAME);
+    }
+
+
+    @Override
+    public List<String> getColumnNames() {
+        return Arrays.asList(
+            COLUMN_GAME_SERVER,
+            COLUMN_GAME_ID,
+            COLUMN_STATE,
+            COLUMN_SAVED_AT
+        );
+    }
+
+    @Override
+    public List<String> getKeyColumnNames() {
+        return Arrays.asList(
+            COLUMN_GAME_SERVER,
+            COLUMN_GAME_ID
+        );
+    }
+
+    @Override
+    protected List<Object> getPrimaryKeyValues(Object record) {
+        return Arrays.asList(
+            ((GameSnapshot) record).gameServer(),
+            ((GameSnapshot) record).gameId()
+        );
+    }
+
+    @Override
+    protected String getTableCreationSQL() {
+        return (
+            "CREATE TABLE " +
+                TABLE_NAME +
+            " (" +
+                COLUMN_GAME_SERVER + " VARCHAR(255) NOT NULL, " +
+                COLUMN_GAME_ID + " VARCHAR(255) NOT NULL, " +
+                COLUMN_STATE + " BLOB(16M), " +
+                COLUMN_SAVED_AT + " BIGINT, " +
+                "PRIMARY KEY (" + COLUMN_GAME_SERVER + ", " + COLUMN_GAME_ID + ")" +
+            ")"
+        );
+    }
+
+    @Override
+    protected String getInsertSQL() {
+        return (
+            "INSERT INTO " +
+                TABLE_NAME +
+            " (" +
+                COLUMN_GAME_SERVER + ", " +
+                COLUMN_GAME_ID + ", " +
+                COLUMN_STATE + ", " +
+                COLUMN_SAVED_AT +
+            ") VALUES (?, ?, ?, ?)"
+        );
+    }
+    @Override
+    protected List<Object> getInsertValues(GameSnapshot record) {
+        return Arrays.asList(
+            record.gameServer(),
+            record.gameId(),
+            record.state(),
+            record.savedAt()
+        );
+    }
+
+    @Override
+    protected String getUpdateSQL() {
+        return  "UPDATE " +
+                    TABLE_NAME +
+                " SET " +
+                    COLUMN_STATE + " = ?, " +
+                    COLUMN_SAVED_AT + " = ? " +
+                "WHERE " +
+                    COLUMN_GAME_SERVER + " = ? AND " +
+                    COLUMN_GAME_ID + " = ?";
+    }
+    @Override
+    protected List<Object> getUpdateSetValues(GameSnapshot record) {
+        return Arrays.asList(
+            record.state(),
+            record.savedAt()
+        );
+    }
+
+    @Override
+    protected String getRetrieveOneSQL() {
+        return (
+            "SELECT " +
+                COLUMN_GAME_SERVER + ", " +
+                COLUMN_GAME_ID + ", " +
+                COLUMN_STATE + ", " +
+                COLUMN_SAVED_AT +
+            " FROM " +
+                TABLE_NAME +
+            " WHERE " +
+                COLUMN_GAME_SERVER + " = ? AND " +
+                COLUMN_GAME_ID + " = ?"
+        );
+    }
+
+    @Override
+    protected String getRetrieveManySQL() {
+        return (
+            "SELECT " +
+                COLUMN_GAME_SERVER + ", " +
+                COLUMN_GAME_ID + ", " +
+                COLUMN_STATE + ", " +
+                COLUMN_SAVED_AT +
+            " FROM " +
+                TABLE_NAME +
+            " WHERE " +
+                COLUMN_GAME_SERVER + " = ?"
+        );
+    }
+    @Override
+    protected List<Object> getRetrieveManyKeyValues(Object filterCriteria) {
+        return Arrays.asList(
+            (String) filterCriteria
+        );
+    }
+
+    /**
+     * Gets the ids of a GameServer's saved games, without their state.
+     * @param gameServer GameServer name.
+     * @return Game IDs.
+     */
+    public synchronized List<String> retrieveGameIds(String gameServer) {
+        return executeQuery(
+            "SELECT " + COLUMN_GAME_ID + " FROM " + TABLE_NAME + " WHERE " + COLUMN_GAME_SERVER + " = ?",
+            Arrays.asList(gameServer),
+            rs -> rs.getString(COLUMN_GAME_ID)
+        );
+    }
+
+    @Override
+    protected String getRetrieveAllSQL() {
+        return (
+            "SELECT " +
+                COLUMN_GAME_SERVER + ", " +
+                COLUMN_GAME_ID + ", " +
+                COLUMN_STATE + ", " +
+                COLUMN_SAVED_AT +
+            " FROM " +
+                TABLE_NAME
+        );
+    }
+
+    @Override
+    protected String getDeleteSQL() {
+        return (
+            "DELETE FROM " +
+                TABLE_NAME +
+            " WHERE " +
+                COLUMN_GAME_SERVER + " = ? AND " +
+                COLUMN_GAME_ID + " = ?"
+        );
+    }
+
+    @Override
+    protected GameSnapshot mapResultSetToEntity(ResultSet rs) throws SQLException {
+        return new GameSnapshot(
+            rs.getString(COLUMN_GAME_SERVER),
+            rs.getString(COLUMN_GAME_ID),
+            rs.getBytes(COLUMN_STATE),
+            rs.getLong(COLUMN_SAVED_AT)
+        );
+    }
+}
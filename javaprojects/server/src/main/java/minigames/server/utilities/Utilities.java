@@ -84,4 +84,28 @@ public class Utilities {
         }
         return properties;
     }
+
+    // Get an int property, falling back to a default if it is missing or malformed
+    public static int getIntProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Property {}={} is not a number, using {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    // Get a decimal property, such as a rate, falling back to a default if it is missing or malformed
+    public static double getDoubleProperty(Properties properties, String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Property {}={} is not a number, using {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
 }
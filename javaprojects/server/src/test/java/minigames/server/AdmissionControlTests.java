@@ -0,0 +1,111 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Promise;
+
+/**
+ * Tests of admission control.
+ */
+public class AdmissionControlTests {
+
+    private AtomicLong now;
+
+    @BeforeEach
+    public void setUp() {
+        now = new AtomicLong(0);
+    }
+
+    AdmissionControl control(AdmissionControl.Limits limits) {
+        return new AdmissionControl(limits, now::get);
+    }
+
+    @Test
+    @DisplayName("A player who sends too fast gets 429 until their bucket refills")
+    public void playerBucket() {
+        AdmissionControl admission = control(new AdmissionControl.Limits(2, 3, 0, 0, 0));
+
+        for (int i = 0; i < 3; i++) assertTrue(admission.admit("Test", "game", "Alice").admitted());
+        AdmissionControl.Decision rejected = admission.admit("Test", "game", "Alice");
+        assertEquals(429, rejected.status());
+        assertEquals(1, rejected.retryAfterSeconds());
+
+        // Other players have their own buckets
+        assertTrue(admission.admit("Test", "game", "Bob").admitted());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(admission.admit("Test", "game", "Alice").admitted());
+        assertEquals(1, admission.stats().getLong("rejectedPlayer"));
+    }
+
+    @Test
+    @DisplayName("A busy game turns everyone away, without using up the players' tokens")
+    public void gameBucket() {
+        AdmissionControl admission = control(new AdmissionControl.Limits(1, 1, 0.1, 1, 0));
+
+        assertTrue(admission.admit("Test", "game", "Alice").admitted());
+        AdmissionControl.Decision rejected = admission.admit("Test", "game", "Bob");
+        assertEquals(429, rejected.status());
+        assertEquals(10, rejected.retryAfterSeconds());
+
+        // Bob's token was refunded, so he can still play in another game
+        assertTrue(admission.admit("Test", "other", "Bob").admitted());
+    }
+
+    @Test
+    @DisplayName("A full GameServer gets 503 until its pending calls finish")
+    public void pendingBound() {
+        AdmissionControl admission = control(new AdmissionControl.Limits(0, 0, 0, 0, 2));
+
+        Promise<Void> first = Promise.promise();
+        assertTrue(admission.admit("Test", "a", "Alice").admitted());
+        admission.track("Test", first.future());
+        assertTrue(admission.admit("Test", "b", "Bob").admitted());
+
+        AdmissionControl.Decision rejected = admission.admit("Test", "c", "Carol");
+        assertEquals(503, rejected.status());
+        assertEquals(2, admission.pending("Test"));
+
+        first.complete();
+        assertEquals(1, admission.pending("Test"));
+        assertTrue(admission.admit("Test", "c", "Carol").admitted());
+        assertEquals(1, admission.stats().getLong("rejectedOverload"));
+    }
+
+    @Test
+    @DisplayName("Buckets that have refilled are forgotten")
+    public void sweepForgetsIdleBuckets() {
+        AdmissionControl admission = control(new AdmissionControl.Limits(1, 1, 0, 0, 0));
+        admission.admit("Test", "game", "Alice");
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        admission.sweep();
+
+        // A forgotten bucket comes back full
+        assertTrue(admission.admit("Test", "game", "Alice").admitted());
+        assertFalse(admission.admit("Test", "game", "Alice").admitted());
+    }
+
+    @Test
+    @DisplayName("Rates can be configured as fractions of a call per second")
+    public void fractionalRatesFromConfig() {
+        Properties config = new Properties();
+        config.setProperty("admission.player.rate", "0.5");
+        config.setProperty("admission.player.burst", "1");
+        config.setProperty("admission.game.rate", "2.5");
+        AdmissionControl.Limits limits = AdmissionControl.Limits.fromConfig(config);
+        assertEquals(0.5, limits.playerRate());
+        assertEquals(2.5, limits.gameRate());
+
+        AdmissionControl admission = control(limits);
+        assertTrue(admission.admit("Test", "game", "Alice").admitted());
+        assertEquals(429, admission.admit("Test", "game", "Alice").status(), "0.5 is a limit, not 0 (no limit)");
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertTrue(admission.admit("Test", "game", "Alice").admitted());
+    }
+
+}
@@ -0,0 +1,113 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.vertx.core.Future;
+
+/**
+ * Tests of per-GameServer bulkheads in the GameScheduler.
+ */
+public class BulkheadTests {
+
+    private final List<ExecutorService> executors = new ArrayList<>();
+
+    private ExecutorService pool(int threads) {
+        ExecutorService e = Executors.newFixedThreadPool(threads);
+        executors.add(e);
+        return e;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executors.forEach(ExecutorService::shutdownNow);
+    }
+
+    /** Blocks until released, as a game stuck on a slow query would */
+    static Future<String> block(CountDownLatch release) {
+        try {
+            release.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return Future.succeededFuture("done");
+    }
+
+    @Test
+    @DisplayName("A GameServer whose bulkhead is blocked doesn't hold up other GameServers")
+    public void noisyGameOnlyHurtsItself() throws Exception {
+        ExecutorService noisyPool = pool(2);
+        GameScheduler scheduler = new GameScheduler(pool(2), new Metrics(),
+            (name) -> name.equals("Noisy") ? new Bulkhead(name, new Bulkhead.Limits(2, 0), noisyPool) : null);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch quiet = new CountDownLatch(1);
+
+        for (int i = 0; i < 10; i++) {
+            scheduler.submit("Noisy", "game-" + i, () -> block(release));
+        }
+        scheduler.submit("Quiet", "game", () -> Future.succeededFuture("ok")).onComplete((ar) -> quiet.countDown());
+
+        try {
+            assertTrue(quiet.await(5, TimeUnit.SECONDS));
+            assertEquals(2, scheduler.bulkhead("Noisy").active());
+            assertEquals(10, scheduler.bulkhead("Noisy").pending());
+            assertNull(scheduler.bulkhead("Quiet"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    @DisplayName("No more than maxConcurrent of a bulkhead's games run at once")
+    public void boundsConcurrency() throws Exception {
+        GameScheduler scheduler = new GameScheduler(pool(1), new Metrics(),
+            (name) -> new Bulkhead(name, new Bulkhead.Limits(3, 0), pool(8)));
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(50);
+
+        for (int i = 0; i < 50; i++) {
+            scheduler.submit("Test", "game-" + i, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return Future.succeededFuture();
+            }).onComplete((ar) -> done.countDown());
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 3);
+        assertEquals(0, scheduler.bulkhead("Test").pending());
+    }
+
+    @Test
+    @DisplayName("Calls past maxPending are turned away with a FullException, and counted")
+    public void rejectsWhenFull() throws Exception {
+        GameScheduler scheduler = new GameScheduler(pool(1), new Metrics(),
+            (name) -> new Bulkhead(name, new Bulkhead.Limits(1, 2), pool(1)));
+        CountDownLatch release = new CountDownLatch(1);
+
+        scheduler.submit("Test", "game", () -> block(release));
+        scheduler.submit("Test", "game", () -> Future.succeededFuture("queued"));
+        Future<String> rejected = scheduler.submit("Test", "game", () -> Future.succeededFuture("rejected"));
+
+        assertTrue(rejected.failed());
+        assertInstanceOf(Bulkhead.FullException.class, rejected.cause());
+        assertEquals(503, ((Bulkhead.FullException) rejected.cause()).decision().status());
+        assertEquals(1, scheduler.bulkhead("Test").rejected());
+        release.countDown();
+    }
+
+}
@@ -0,0 +1,121 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Tests of batched command handling.
+ */
+public class CommandBatchTests {
+
+    private ExecutorService executor;
+    private GameRegistry registry;
+    private CommandBatch batch;
+    private List<String> calls;
+
+    @BeforeEach
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        registry = new GameRegistry();
+        batch = new CommandBatch(registry, new GameScheduler(executor), new RenderingDeltas(),
+            new AdmissionControl(AdmissionControl.Limits.UNLIMITED));
+        calls = Collections.synchronizedList(new ArrayList<>());
+
+        GameServer gs = mock(GameServer.class);
+        when(gs.getSupportedClients()).thenReturn(new ClientType[] { ClientType.Swing });
+        when(gs.callGame(any())).thenAnswer((inv) -> {
+            CommandPackage cp = inv.getArgument(0);
+            String command = cp.commands().get(0).getString("command");
+            if (command.equals("fail")) throw new IllegalStateException("bad move");
+            calls.add(cp.gameId() + ":" + command);
+            return Future.succeededFuture(new RenderingPackage(
+                new GameMetadata("Test", cp.gameId(), new String[] { cp.player() }, true),
+                List.of(new JsonObject().put("echo", command))
+            ));
+        });
+        registry.registerGameServer("Test", gs);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    static JsonObject command(String gameServer, String game, String command) {
+        return new JsonObject()
+            .put("gameServer", gameServer)
+            .put("gameId", game)
+            .put("player", "Alice")
+            .put("commands", new JsonArray().add(new JsonObject().put("command", command)));
+    }
+
+    @Test
+    @DisplayName("Results come back in batch order, and each game sees its commands in order")
+    public void resultsMatchBatchOrder() throws Exception {
+        JsonArray data = new JsonArray()
+            .add(command("Test", "a", "1"))
+            .add(command("Test", "b", "2"))
+            .add(command("Test", "a", "3"));
+
+        List<Object> results = batch.run(data).toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals(3, results.size());
+        assertEquals("3", ((RenderingPackage) results.get(2)).renderingCommands().get(0).getString("echo"));
+        assertTrue(calls.indexOf("a:1") < calls.indexOf("a:3"));
+    }
+
+    @Test
+    @DisplayName("A failing package reports an error without failing the rest of the batch")
+    public void errorsArePerItem() throws Exception {
+        JsonArray data = new JsonArray()
+            .add(command("Test", "a", "fail"))
+            .add(command("Missing", "a", "1"))
+            .add(new JsonObject().put("gameServer", "Test"))
+            .add(command("Test", "a", "2"));
+
+        List<Object> results = batch.run(data).toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals("bad move", ((JsonObject) results.get(0)).getString("error"));
+        assertTrue(((JsonObject) results.get(1)).containsKey("error"));
+        assertTrue(((JsonObject) results.get(2)).containsKey("error"));
+        assertTrue(results.get(3) instanceof RenderingPackage);
+    }
+
+    @Test
+    @DisplayName("Packages that only send a handle are run in the game and as the player it stands for")
+    public void handles() throws Exception {
+        PlayerHandles handles = new PlayerHandles();
+        long handle = handles.issue("Test", registry.getGameServer("Test"), "a", "Alice");
+        CommandBatch withHandles = new CommandBatch(registry, new GameScheduler(executor), new RenderingDeltas(),
+            new AdmissionControl(AdmissionControl.Limits.UNLIMITED), Deadline.Policy.NONE, handles);
+
+        JsonObject handleOnly = new JsonObject()
+            .put("handle", handle)
+            .put("commands", new JsonArray().add(new JsonObject().put("command", "1")));
+        JsonObject unknown = handleOnly.copy().put("handle", handle + 1);
+        List<Object> results = withHandles.run(new JsonArray().add(handleOnly).add(unknown))
+            .toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        RenderingPackage rp = (RenderingPackage) results.get(0);
+        assertEquals("a", rp.metadata().name());
+        assertEquals(List.of("Alice"), List.of(rp.metadata().players()));
+        assertEquals(List.of("a:1"), calls);
+        assertEquals("Unknown handle", ((JsonObject) results.get(1)).getString("error"));
+    }
+
+}
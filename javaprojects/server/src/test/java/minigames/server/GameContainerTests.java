@@ -0,0 +1,188 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Future;
+
+/**
+ * Tests of holding games and evicting the idle ones.
+ */
+public class GameContainerTests {
+
+    @Test
+    @DisplayName("Games nobody has used for the idle time are evicted, and the GameServer is told")
+    public void evictsIdleGames() {
+        AtomicLong now = new AtomicLong();
+        List<String> evicted = new CopyOnWriteArrayList<>();
+        GameContainer<String> games = new GameContainer<>("Test", 1000, null, (id, game) -> evicted.add(id + "=" + game), now::get);
+
+        games.put("a", "A");
+        games.put("b", "B");
+        now.set(TimeUnit.MILLISECONDS.toNanos(600));
+        assertEquals("A", games.get("a"));
+
+        // b has been idle for a second, but a was used 400ms ago
+        now.set(TimeUnit.MILLISECONDS.toNanos(1000));
+        games.reap();
+        assertEquals(List.of("b=B"), evicted);
+        assertNull(games.peek("b"));
+        assertEquals(1, games.size());
+        assertEquals(1, games.evicted());
+
+        now.set(TimeUnit.MILLISECONDS.toNanos(1600));
+        games.reap();
+        assertEquals(List.of("b=B", "a=A"), evicted);
+        assertEquals(0, games.size());
+    }
+
+    @Test
+    @DisplayName("Looking at games for the lobby doesn't keep them alive, and 0 keeps games forever")
+    public void peekingAndForever() {
+        AtomicLong now = new AtomicLong();
+        GameContainer<String> games = new GameContainer<>("Test", 1000, null, (id, game) -> {}, now::get);
+        games.put("a", "A");
+        now.set(TimeUnit.MILLISECONDS.toNanos(999));
+        assertEquals("A", games.peek("a"));
+        now.set(TimeUnit.MILLISECONDS.toNanos(1000));
+        games.reap();
+        assertEquals(0, games.size());
+
+        GameContainer<String> forever = new GameContainer<>("Forever", 0, null, (id, game) -> fail("evicted"), now::get);
+        forever.put("a", "A");
+        now.set(TimeUnit.DAYS.toNanos(365));
+        forever.reap();
+        assertEquals("A", forever.get("a"));
+    }
+
+    @Test
+    @DisplayName("Eviction waits for the game's calls to finish, and doesn't evict a game they used")
+    public void evictionRunsInTheMailbox() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            GameScheduler scheduler = new GameScheduler(executor);
+            AtomicLong now = new AtomicLong();
+            List<String> evicted = new CopyOnWriteArrayList<>();
+            GameContainer<String> games = new GameContainer<>("Test", 1000, scheduler, (id, game) -> evicted.add(id), now::get);
+            games.put("a", "A");
+
+            // A call is running when the game's idle time comes round, and it uses the game
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            scheduler.submit("Test", "a", () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                games.get("a");
+                return Future.succeededFuture();
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            now.set(TimeUnit.MILLISECONDS.toNanos(1000));
+            games.reap();
+            now.set(TimeUnit.MILLISECONDS.toNanos(1500));
+            release.countDown();
+
+            CountDownLatch after = new CountDownLatch(1);
+            scheduler.submit("Test", "a", () -> Future.succeededFuture()).onComplete((ar) -> after.countDown());
+            assertTrue(after.await(5, TimeUnit.SECONDS));
+            assertTrue(evicted.isEmpty());
+            assertEquals("A", games.peek("a"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("Games the container hasn't got are restored the first time get() asks for them, and then kept")
+    public void restoresOnFirstGet() {
+        AtomicLong now = new AtomicLong();
+        List<String> asked = new CopyOnWriteArrayList<>();
+        GameContainer<String> games = new GameContainer<>("Restoring", 1000, null, (id, game) -> {}, now::get);
+        games.restoreWith((id) -> {
+            asked.add(id);
+            return id.startsWith("saved") ? id.toUpperCase() : null;
+        });
+
+        assertNull(games.peek("saved1"), "Peeking doesn't restore");
+        assertEquals("SAVED1", games.get("saved1"));
+        assertEquals("SAVED1", games.get("saved1"));
+        assertNull(games.get("unknown"));
+        assertEquals(List.of("saved1", "unknown"), asked);
+        assertEquals(1, games.size());
+
+        now.set(TimeUnit.MILLISECONDS.toNanos(1000));
+        games.reap();
+        assertEquals(0, games.size(), "Restored games are evicted like any other");
+    }
+
+    @Test
+    @DisplayName("A call queued behind an eviction keeps the game's mailbox, so it never runs alongside a new one")
+    public void callsQueuedBehindAnEviction() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            GameScheduler scheduler = new GameScheduler(executor);
+            AtomicLong now = new AtomicLong();
+            GameContainer<String> games = new GameContainer<>("Test", 1000, scheduler, (id, game) -> {}, now::get);
+            games.put("a", "A");
+
+            // The eviction queues behind a running call, and another call queues behind it
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch releaseQueued = new CountDownLatch(1);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            scheduler.submit("Test", "a", () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return Future.succeededFuture();
+            });
+            now.set(TimeUnit.MILLISECONDS.toNanos(1000));
+            games.reap();
+            CountDownLatch queuedStarted = new CountDownLatch(1);
+            scheduler.submit("Test", "a", () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                queuedStarted.countDown();
+                try {
+                    releaseQueued.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return Future.succeededFuture();
+            });
+            release.countDown();
+            assertTrue(queuedStarted.await(5, TimeUnit.SECONDS));
+            assertNull(games.peek("a"), "The game was evicted");
+
+            // The queued call is still running, so the next call waits for it rather than getting a mailbox of its own
+            CountDownLatch next = new CountDownLatch(1);
+            scheduler.submit("Test", "a", () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                running.decrementAndGet();
+                return Future.succeededFuture();
+            }).onComplete((ar) -> next.countDown());
+            assertFalse(next.await(50, TimeUnit.MILLISECONDS));
+            assertEquals(1, scheduler.mailboxCount());
+
+            releaseQueued.countDown();
+            assertTrue(next.await(5, TimeUnit.SECONDS));
+            assertEquals(1, maxRunning.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -5,6 +5,9 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 import java.util.List;
 
+import minigames.rendering.GameServerDetails;
+import minigames.server.muddle.MuddleServer;
+
 /**
  * Tests of the GameRegistry. Also ensures there's at least one example test containing mockito.
  */
@@ -27,5 +30,54 @@ public class GameRegistryTests {
         assertTrue(available.contains(gs1));
         assertFalse(available.contains(gs2));
     }
-    
+
+    @Test
+    @DisplayName("Listings are kept encoded, and change (with their ETag) when a GameServer is registered or unregistered")
+    public void listingsFollowRegistrations() {
+        GameRegistry gr = new GameRegistry();
+        String empty = gr.getListing(ClientType.Swing).etag();
+        assertEquals("[]", gr.getListing(ClientType.Swing).body().toString());
+
+        GameServer gs = mock(GameServer.class);
+        when(gs.getSupportedClients()).thenReturn(new ClientType[] { ClientType.Swing, ClientType.Scalajs });
+        when(gs.getDetails()).thenReturn(new GameServerDetails("Muddle", "A \"text\" adventure"));
+        gr.registerGameServer("Muddle", gs);
+
+        GameRegistry.Listing listing = gr.getListing(ClientType.Swing);
+        assertEquals(List.of(new GameServerDetails("Muddle", "A \"text\" adventure")), listing.details());
+        assertEquals("[{\"name\":\"Muddle\",\"description\":\"A \\\"text\\\" adventure\"}]", listing.body().toString());
+        assertNotEquals(empty, listing.etag());
+        assertSame(listing, gr.getListing(ClientType.Swing), "Reads shouldn't rebuild anything");
+        assertTrue(gr.getListing(ClientType.Scalafx).details().isEmpty());
+
+        gr.unregisterGameServer("Muddle");
+        assertNull(gr.getGameServer("Muddle"));
+        assertEquals(empty, gr.getListing(ClientType.Swing).etag());
+    }
+
+    @Test
+    @DisplayName("GameServers inherit the default bulkhead limits unless they declare their own")
+    public void bulkheadLimits() {
+        GameRegistry gr = new GameRegistry();
+        gr.setDefaultBulkheadLimits(new Bulkhead.Limits(4, 100));
+        gr.registerGameServer("Inherits", mock(GameServer.class));
+        gr.registerGameServer("Declares", mock(GameServer.class), new Bulkhead.Limits(1, 10));
+
+        assertEquals(new Bulkhead.Limits(4, 100), gr.getBulkheadLimits("Inherits"));
+        assertEquals(new Bulkhead.Limits(1, 10), gr.getBulkheadLimits("Declares"));
+    }
+
+    @Test
+    @DisplayName("Commands are labelled from the GameServer's own set, never by what the player typed")
+    public void commandLabels() {
+        GameRegistry gr = new GameRegistry();
+        assertEquals("command", gr.commandLabel("Muddle", "say my password is hunter2"));
+
+        gr.setCommandLabels("Muddle", MuddleServer::commandLabel);
+        assertEquals("move", gr.commandLabel("Muddle", "n"));
+        assertEquals("move", gr.commandLabel("Muddle", "go north"));
+        assertEquals("say", gr.commandLabel("Muddle", "say my password is hunter2"));
+        assertEquals("other", gr.commandLabel("Muddle", "xyzzy"));
+    }
+
 }
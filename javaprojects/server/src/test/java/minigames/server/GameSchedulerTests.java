@@ -0,0 +1,240 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+/**
+ * Tests of the GameScheduler's per-game ordering.
+ */
+public class GameSchedulerTests {
+
+    private ExecutorService executor;
+    private GameScheduler scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        scheduler = new GameScheduler(executor);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("Calls for the same game run one at a time, in the order they were submitted")
+    public void sameGameRunsSerially() throws Exception {
+        int calls = 500;
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(calls);
+
+        for (int i = 0; i < calls; i++) {
+            int n = i;
+            scheduler.submit("Test", "game", () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                order.add(n);
+                running.decrementAndGet();
+                return Future.succeededFuture(n);
+            }).onComplete((ar) -> done.countDown());
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+        for (int i = 0; i < calls; i++) {
+            assertEquals(i, order.get(i));
+        }
+    }
+
+    @Test
+    @DisplayName("A game waits for an incomplete Future before running its next call")
+    public void waitsForAsyncCalls() throws Exception {
+        Promise<String> slow = Promise.promise();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+
+        scheduler.submit("Test", "game", () -> slow.future().onSuccess(order::add));
+        scheduler.submit("Test", "game", () -> {
+            order.add("second");
+            return Future.succeededFuture("second");
+        }).onComplete((ar) -> done.countDown());
+
+        Thread.sleep(50);
+        assertTrue(order.isEmpty());
+        assertEquals(2, scheduler.queueDepth("Test", "game"));
+
+        slow.complete("first");
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("first", "second"), order);
+    }
+
+    @Test
+    @DisplayName("Exceptions thrown by a GameServer fail the Future without stopping the mailbox")
+    public void exceptionsFailTheFuture() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        List<Boolean> results = Collections.synchronizedList(new ArrayList<>());
+
+        scheduler.<String>submit("Test", "game", () -> { throw new IllegalStateException("boom"); })
+            .onComplete((ar) -> { results.add(ar.succeeded()); done.countDown(); });
+        scheduler.submit("Test", "game", () -> Future.succeededFuture("ok"))
+            .onComplete((ar) -> { results.add(ar.succeeded()); done.countDown(); });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(false, true), results);
+    }
+
+    @Test
+    @DisplayName("On virtual threads, games blocked in a call don't hold up other games")
+    public void virtualThreadsDontBlockOtherGames() throws Exception {
+        ExecutorService virtual = Executors.newVirtualThreadPerTaskExecutor();
+        GameScheduler vs = new GameScheduler(virtual);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Far more blocked games than the fixed pool above has threads
+        for (int i = 0; i < 100; i++) {
+            vs.submit("Test", "blocked-" + i, () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return Future.succeededFuture();
+            });
+        }
+        vs.submit("Test", "other", () -> Future.succeededFuture("ok")).onComplete((ar) -> done.countDown());
+
+        try {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            virtual.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("A call whose Future never completes times out, and the game's next call still runs")
+    public void deadlineUnblocksTheMailbox() throws Exception {
+        Promise<String> never = Promise.promise();
+        CountDownLatch done = new CountDownLatch(2);
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+        scheduler.submit("Test", "game", "stuck", Deadline.in(50), never::future)
+            .onComplete((ar) -> { failures.add(ar.cause()); done.countDown(); });
+        scheduler.submit("Test", "game", () -> Future.succeededFuture("next"))
+            .onComplete((ar) -> done.countDown());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertInstanceOf(Deadline.ExceededException.class, failures.get(0));
+        assertEquals(1, scheduler.timedOut("Test"));
+    }
+
+    @Test
+    @DisplayName("Calls still queued when their deadline passes aren't made, and GameServers can see the deadline")
+    public void expiredCallsAreSkipped() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger made = new AtomicInteger();
+        List<Deadline> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2);
+
+        Deadline deadline = Deadline.in(5000);
+        scheduler.submit("Test", "game", "slow", deadline, () -> {
+            seen.add(Deadline.current());
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return Future.succeededFuture("slow");
+        }).onComplete((ar) -> done.countDown());
+        Future<Object> skipped = scheduler.submit("Test", "game", "skipped", Deadline.in(20), () -> {
+            made.incrementAndGet();
+            return Future.succeededFuture();
+        }).onComplete((ar) -> done.countDown());
+
+        Thread.sleep(100);
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(skipped.failed());
+        assertEquals(0, made.get());
+        assertEquals(List.of(deadline), seen);
+        assertSame(Deadline.NONE, Deadline.current());
+    }
+
+    @Test
+    @DisplayName("Stats are kept for each game with calls queued or running")
+    public void keepsStatsPerGame() throws Exception {
+        CountDownLatch done = new CountDownLatch(3);
+        scheduler.submit("Test", "a", () -> Future.succeededFuture(1)).onComplete((ar) -> done.countDown());
+        scheduler.submit("Test", "a", () -> Future.succeededFuture(2)).onComplete((ar) -> done.countDown());
+        scheduler.submit("Test", "b", () -> Future.succeededFuture(3)).onComplete((ar) -> done.countDown());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // The games are idle once their mailboxes have gone, but their stats stay
+        long until = System.currentTimeMillis() + 5000;
+        while (scheduler.mailboxCount() > 0 && System.currentTimeMillis() < until) Thread.sleep(10);
+
+        GameScheduler.GameStats a = scheduler.stats().stream()
+            .filter((s) -> s.gameId().equals("a")).findFirst().orElseThrow();
+        assertEquals(2, a.completed());
+        assertEquals(0, a.queueDepth());
+        assertEquals(2, scheduler.stats().size());
+    }
+
+    @Test
+    @DisplayName("A game's stats go when it ends, and only the most recent games' are kept")
+    public void dropsStatsForEndedGames() throws Exception {
+        LobbyEvents lobby = new LobbyEvents();
+        GameScheduler scheduler = new GameScheduler(executor, new Metrics(), (gameServer) -> null, lobby);
+
+        int games = GameScheduler.TRACKED_GAMES + 100;
+        CountDownLatch done = new CountDownLatch(games);
+        for (int i = 0; i < games; i++) {
+            scheduler.submit("Test", "game" + i, () -> Future.succeededFuture(1)).onComplete((ar) -> done.countDown());
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(GameScheduler.TRACKED_GAMES, scheduler.stats().size());
+        assertTrue(scheduler.stats().stream().noneMatch((s) -> s.gameId().equals("game0")));
+
+        String last = "game" + (games - 1);
+        lobby.gameEnded("Test", last);
+        assertEquals(GameScheduler.TRACKED_GAMES - 1, scheduler.stats().size());
+        assertTrue(scheduler.stats().stream().noneMatch((s) -> s.gameId().equals(last)));
+    }
+
+    @Test
+    @DisplayName("A game's mailbox is dropped once it's empty, so made-up game ids don't pile up")
+    public void dropsEmptyMailboxes() throws Exception {
+        int games = 1000;
+        CountDownLatch done = new CountDownLatch(games);
+        for (int i = 0; i < games; i++) {
+            scheduler.submit("Test", "nosuchgame" + i, () -> Future.failedFuture("No such game"))
+                .onComplete((ar) -> done.countDown());
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // Callers hear back just before the mailbox notices it's empty
+        long until = System.currentTimeMillis() + 5000;
+        while (scheduler.mailboxCount() > 0 && System.currentTimeMillis() < until) Thread.sleep(10);
+        assertEquals(0, scheduler.mailboxCount());
+
+        CountDownLatch again = new CountDownLatch(1);
+        scheduler.submit("Test", "nosuchgame0", () -> Future.succeededFuture("back")).onComplete((ar) -> again.countDown());
+        assertTrue(again.await(5, TimeUnit.SECONDS), "A game whose mailbox was dropped gets a new one");
+    }
+
+}
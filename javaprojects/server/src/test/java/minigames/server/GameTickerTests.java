@@ -0,0 +1,129 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.json.JsonObject;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Tests of ticking real-time games.
+ */
+public class GameTickerTests {
+
+    static long millis(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    static RenderingPackage frame(long tick) {
+        return new RenderingPackage(new GameMetadata("Test", "game", new String[] { "Alice" }, true),
+            List.of(new JsonObject().put("command", "frame").put("tick", tick)));
+    }
+
+    @Test
+    @DisplayName("Games tick at their rate, catch up on ticks they missed, and push what the ticks return")
+    public void ticksAndCatchesUp() {
+        AtomicLong now = new AtomicLong();
+        PlayerChannels channels = new PlayerChannels();
+        GameTicker ticker = new GameTicker(null, null, channels, new Metrics(), now::get);
+        List<Long> ticked = new CopyOnWriteArrayList<>();
+        List<RenderingPackage> pushed = new CopyOnWriteArrayList<>();
+        channels.subscribe("Test", "game", "Alice", pushed::add);
+
+        ticker.start("Test", "game", 10, (tick) -> {
+            ticked.add(tick);
+            return Map.of("Alice", frame(tick));
+        });
+        assertTrue(ticker.isTicking("Test", "game"));
+
+        now.set(millis(50));
+        ticker.runDue();
+        assertEquals(List.of(), ticked, "Not due yet");
+
+        now.set(millis(100));
+        ticker.runDue();
+        assertEquals(List.of(0L), ticked);
+
+        // Woken late: the ticks due at 200, 300 and 400ms all run now
+        now.set(millis(450));
+        ticker.runDue();
+        assertEquals(List.of(0L, 1L, 2L, 3L), ticked);
+        assertEquals(4, pushed.size());
+        assertEquals(3L, pushed.get(3).renderingCommands().get(0).getLong("tick"));
+
+        // Too far behind: only MAX_CATCH_UP run, and the rest are dropped
+        now.set(millis(1450));
+        ticker.runDue();
+        assertEquals(4 + GameTicker.MAX_CATCH_UP, ticked.size());
+        assertEquals(10 - GameTicker.MAX_CATCH_UP, ticker.dropped("Test"));
+        assertEquals(4 + GameTicker.MAX_CATCH_UP, ticker.ticks("Test"));
+
+        // And it carries on from where it got to
+        now.set(millis(1500));
+        ticker.runDue();
+        assertEquals(9L, ticked.get(ticked.size() - 1));
+
+        ticker.stop("Test", "game");
+        now.set(millis(5000));
+        ticker.runDue();
+        assertEquals(10, ticked.size());
+        assertEquals(0, ticker.size());
+    }
+
+    @Test
+    @DisplayName("Games with different rates tick independently")
+    public void differentRates() {
+        AtomicLong now = new AtomicLong();
+        GameTicker ticker = new GameTicker(null, null, new PlayerChannels(), new Metrics(), now::get);
+        AtomicLong fast = new AtomicLong();
+        AtomicLong slow = new AtomicLong();
+        ticker.start("Test", "fast", 50, (tick) -> { fast.incrementAndGet(); return null; });
+        ticker.start("Test", "slow", 2, (tick) -> { slow.incrementAndGet(); return null; });
+
+        for (int ms = 20; ms <= 1000; ms += 20) {
+            now.set(millis(ms));
+            ticker.runDue();
+        }
+        assertEquals(50, fast.get());
+        assertEquals(2, slow.get());
+        assertThrows(IllegalArgumentException.class, () -> ticker.start("Test", "bad", 0, (tick) -> null));
+    }
+
+    @Test
+    @DisplayName("Ticks run in the game's mailbox, and a game still busy when it's due again is an overrun")
+    public void overruns() {
+        AtomicLong now = new AtomicLong();
+        List<Runnable> queued = new ArrayList<>();
+        GameScheduler scheduler = new GameScheduler(queued::add);
+        GameTicker ticker = new GameTicker(null, scheduler, new PlayerChannels(), new Metrics(), now::get);
+        List<Long> ticked = new CopyOnWriteArrayList<>();
+        ticker.start("Test", "game", 10, (tick) -> { ticked.add(tick); return null; });
+
+        now.set(millis(100));
+        ticker.runDue();
+        assertEquals(List.of(), ticked, "Queued in the mailbox, not run on the ticker");
+        assertEquals(1, scheduler.queueDepth("Test", "game"));
+
+        now.set(millis(200));
+        ticker.runDue();
+        assertEquals(1, ticker.overruns("Test"));
+
+        queued.remove(0).run();
+        assertEquals(List.of(0L), ticked);
+
+        // The tick missed while it was busy is caught up
+        now.set(millis(300));
+        ticker.runDue();
+        queued.remove(0).run();
+        assertEquals(List.of(0L, 1L, 2L), ticked);
+    }
+
+}
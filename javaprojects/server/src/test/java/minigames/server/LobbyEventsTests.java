@@ -0,0 +1,69 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+import minigames.rendering.GameMetadata;
+
+/**
+ * Tests of the lobby event feed.
+ */
+public class LobbyEventsTests {
+
+    static GameMetadata game(String name, String... players) {
+        return new GameMetadata("Muddle", name, players, true);
+    }
+
+    @Test
+    @DisplayName("Viewers get a snapshot, then one event per change, with every viewer sharing the same Buffer")
+    public void snapshotThenChanges() {
+        LobbyEvents lobby = new LobbyEvents();
+        lobby.gameCreated("Muddle", game("first", "Alice"));
+
+        List<Buffer> alice = new ArrayList<>();
+        List<Buffer> bob = new ArrayList<>();
+        lobby.subscribe("Muddle", () -> { throw new AssertionError("Tracked lobbies shouldn't ask the GameServer"); }, alice::add);
+        lobby.subscribe("Muddle", () -> new GameMetadata[0], bob::add);
+
+        assertEquals("event: snapshot\ndata: [{\"gameServer\":\"Muddle\",\"name\":\"first\",\"players\":[\"Alice\"],\"joinable\":true}]\n\n",
+            alice.get(0).toString());
+
+        lobby.gameUpdated("Muddle", game("first", "Alice", "Bob"));
+        lobby.gameEnded("Muddle", "first");
+
+        assertEquals(3, alice.size());
+        assertTrue(alice.get(1).toString().startsWith("event: updated\ndata: "));
+        assertEquals("event: ended\ndata: {\"name\":\"first\"}\n\n", alice.get(2).toString());
+        assertSame(alice.get(1), bob.get(1));
+        assertTrue(lobby.games("Muddle").isEmpty());
+    }
+
+    @Test
+    @DisplayName("Unsubscribed viewers get nothing more")
+    public void unsubscribe() {
+        LobbyEvents lobby = new LobbyEvents();
+        List<Buffer> events = new ArrayList<>();
+        Runnable unsubscribe = lobby.subscribe("Muddle", () -> new GameMetadata[0], events::add);
+        unsubscribe.run();
+
+        lobby.gameCreated("Muddle", game("first", "Alice"));
+        assertEquals(1, events.size());
+        assertEquals(0, lobby.viewers("Muddle"));
+    }
+
+    @Test
+    @DisplayName("GameServers that don't send notifications are asked for a snapshot")
+    public void untrackedServersGiveASnapshot() {
+        LobbyEvents lobby = new LobbyEvents();
+        List<Buffer> events = new ArrayList<>();
+        lobby.subscribe("Other", () -> new GameMetadata[] { game("g") }, events::add);
+
+        assertFalse(lobby.isTracked("Other"));
+        assertTrue(events.get(0).toString().contains("\"name\":\"g\""));
+    }
+
+}
@@ -0,0 +1,78 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Tests of the metrics registry and its Prometheus output.
+ */
+public class MetricsTests {
+
+    @Test
+    @DisplayName("Histograms are written as cumulative Prometheus buckets")
+    public void prometheusHistogram() {
+        Metrics metrics = new Metrics();
+        Metrics.HistogramFamily calls = metrics.timer("test_seconds", "Test timings", "game_server", "command");
+        calls.get("Muddle", "NORTH").record(1_000_000L);    // 1ms, on the bound
+        calls.get("Muddle", "NORTH").record(3_000_000L);    // 3ms
+        calls.get("Muddle", "NORTH").record(60_000_000_000L); // a minute, past the last bound
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        assertTrue(text.contains("test_seconds_bucket{game_server=\"Muddle\",command=\"NORTH\",le=\"0.001\"} 1\n"), text);
+        assertTrue(text.contains("test_seconds_bucket{game_server=\"Muddle\",command=\"NORTH\",le=\"0.005\"} 2\n"), text);
+        assertTrue(text.contains("test_seconds_bucket{game_server=\"Muddle\",command=\"NORTH\",le=\"+Inf\"} 3\n"), text);
+        assertTrue(text.contains("test_seconds_count{game_server=\"Muddle\",command=\"NORTH\"} 3\n"), text);
+        assertTrue(text.contains("test_seconds_sum{game_server=\"Muddle\",command=\"NORTH\"} 60.004\n"), text);
+    }
+
+    @Test
+    @DisplayName("Gauges and counters are read when scraped, and label values are escaped")
+    public void gaugesAndEscaping() {
+        Metrics metrics = new Metrics();
+        long[] value = { 1 };
+        metrics.gauge("test_gauge", "A gauge", () -> value[0]);
+        metrics.gauge("test_labelled", "A labelled gauge", "game_server", () -> Map.of("a \"quoted\" name", 2));
+        value[0] = 5;
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("test_gauge 5\n"), text);
+        assertTrue(text.contains("test_labelled{game_server=\"a \\\"quoted\\\" name\"} 2\n"), text);
+    }
+
+    @Test
+    @DisplayName("Label values past the cap are counted as other")
+    public void cardinalityCap() {
+        Metrics metrics = new Metrics();
+        Metrics.HistogramFamily sizes = metrics.sizes("test_bytes", "Test sizes", "command");
+        for (int i = 0; i < Metrics.MAX_SERIES + 50; i++) {
+            sizes.get("command" + i).record(10);
+        }
+        assertTrue(sizes.series.size() <= Metrics.MAX_SERIES + 1);
+        assertEquals(50, sizes.get(Metrics.OTHER).count());
+    }
+
+    @Test
+    @DisplayName("Recording doesn't allocate")
+    public void recordingIsAllocationFree() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        Metrics metrics = new Metrics();
+        Metrics.HistogramFamily calls = metrics.timer("test_seconds", "Test timings", "game_server", "command");
+        String gameServer = "Muddle";
+        String command = "NORTH";
+        for (int i = 0; i < 20_000; i++) calls.get(gameServer, command).record(i);
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 100_000; i++) calls.get(gameServer, command).record(i);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        // Allow a little for the measurement itself
+        assertTrue(allocated < 1024, "Recording allocated " + allocated + " bytes");
+    }
+
+}
@@ -0,0 +1,48 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import minigames.rendering.GameMetadata;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Tests of the PlayerChannels push registry.
+ */
+public class PlayerChannelsTests {
+
+    static final RenderingPackage rp = new RenderingPackage(
+        new GameMetadata("Test", "game", new String[] { "Alice" }, true), List.of()
+    );
+
+    @Test
+    @DisplayName("Pushes reach only the player they were sent to")
+    public void pushesToSubscribedPlayer() {
+        PlayerChannels channels = new PlayerChannels();
+        List<RenderingPackage> alice = new ArrayList<>();
+        List<RenderingPackage> bob = new ArrayList<>();
+        channels.subscribe("Test", "game", "Alice", alice::add);
+        channels.subscribe("Test", "game", "Bob", bob::add);
+
+        assertTrue(channels.push("Test", "game", "Alice", rp));
+        assertEquals(List.of(rp), alice);
+        assertTrue(bob.isEmpty());
+    }
+
+    @Test
+    @DisplayName("Unsubscribing removes the connection")
+    public void unsubscribeRemovesConnection() {
+        PlayerChannels channels = new PlayerChannels();
+        List<RenderingPackage> alice = new ArrayList<>();
+        Runnable unsubscribe = channels.subscribe("Test", "game", "Alice", alice::add);
+        unsubscribe.run();
+
+        assertFalse(channels.isConnected("Test", "game", "Alice"));
+        assertFalse(channels.push("Test", "game", "Alice", rp));
+        assertTrue(alice.isEmpty());
+    }
+
+}
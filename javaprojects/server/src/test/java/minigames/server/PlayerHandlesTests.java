@@ -0,0 +1,126 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.NativeCommands.LoadClient;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Tests of player handles.
+ */
+public class PlayerHandlesTests {
+
+    static final List<JsonObject> commands = List.of(new JsonObject().put("command", "NORTH"));
+
+    @Test
+    @DisplayName("A handle finds its game and player, and fills in a package's names")
+    public void resolves() {
+        PlayerHandles handles = new PlayerHandles(7);
+        String game = new String("abcdefghijkl");
+        long alice = handles.issue("Muddle", null, game, "Alice");
+        long bob = handles.issue("Muddle", null, game, "Bob");
+
+        assertNotEquals(alice, bob);
+        assertEquals(alice, handles.issue("Muddle", null, game, "Alice"), "Rejoining keeps the same handle");
+        assertEquals(2, handles.size());
+
+        CommandPackage filled = handles.fill(new CommandPackage(null, null, null, commands, alice));
+        assertEquals("Muddle", filled.gameServer());
+        assertSame(game, filled.gameId(), "Names come from the table, so they're the ones the game keeps");
+        assertEquals("Alice", filled.player());
+        assertEquals(commands, filled.commands());
+    }
+
+    @Test
+    @DisplayName("Handles that don't agree with a package's names, or from another server, are ignored")
+    public void ignoresMismatches() {
+        PlayerHandles handles = new PlayerHandles(7);
+        long alice = handles.issue("Muddle", null, "game", "Alice");
+
+        CommandPackage wrongPlayer = new CommandPackage("Muddle", "game", "Mallory", commands, alice);
+        assertNull(handles.resolve(wrongPlayer));
+        assertSame(wrongPlayer, handles.fill(wrongPlayer));
+
+        assertNull(new PlayerHandles(8).get(alice));
+        assertNull(handles.get(alice + 1));
+        assertNull(handles.resolve(new CommandPackage("Muddle", "game", "Alice", commands)));
+        assertNotNull(handles.resolve(new CommandPackage("Muddle", "game", "Alice", commands, alice)));
+    }
+
+    @Test
+    @DisplayName("Handles for a game that has ended stop working, even once their slots are reused")
+    public void releases() {
+        PlayerHandles handles = new PlayerHandles(7);
+        long alice = handles.issue("Muddle", null, "old", "Alice");
+        handles.releaseGame("Muddle", "old");
+
+        assertNull(handles.get(alice));
+        assertEquals(0, handles.size());
+
+        long bob = handles.issue("Muddle", null, "new", "Bob");
+        assertEquals(alice & 0xFFFFFFFFL, bob & 0xFFFFFFFFL, "The slot is reused");
+        assertNull(handles.get(alice));
+        assertEquals("new", handles.get(bob).gameId());
+    }
+
+    @Test
+    @DisplayName("Handles are freed when the lobby hears their game has ended")
+    public void releasesEndedGames() {
+        LobbyEvents lobby = new LobbyEvents();
+        PlayerHandles handles = new PlayerHandles(lobby);
+        long alice = handles.issue("Muddle", null, "game", "Alice");
+        handles.issue("Muddle", null, "other", "Bob");
+
+        lobby.gameEnded("Muddle", "game");
+        assertNull(handles.get(alice));
+        assertEquals(1, handles.size());
+    }
+
+    @Test
+    @DisplayName("Handles survive being sent as JSON numbers, which JavaScript reads as doubles")
+    public void survivesDoubles() {
+        PlayerHandles handles = new PlayerHandles(0x1FFFFF);
+        for (int i = 0; i < 3; i++) {
+            // The highest generation there is, then wrapping round past 0
+            long handle = handles.issue("Muddle", null, "game", "Alice");
+            assertTrue(handle > 0 && handle < (1L << 53));
+            assertEquals(handle, (long) (double) handle);
+
+            JsonObject json = new JsonObject(new JsonObject().put("handle", (double) handle).encode());
+            assertEquals("Alice", handles.get(json.getLong("handle")).player());
+            handles.releaseGame("Muddle", "game");
+        }
+    }
+
+    @Test
+    @DisplayName("The table grows past its first size")
+    public void grows() {
+        PlayerHandles handles = new PlayerHandles(7);
+        long[] issued = new long[3000];
+        for (int i = 0; i < issued.length; i++) issued[i] = handles.issue("Muddle", null, "game" + (i % 10), "p" + i);
+        for (int i = 0; i < issued.length; i++) assertEquals("p" + i, handles.get(issued[i]).player());
+    }
+
+    @Test
+    @DisplayName("Joining adds the handle to the LoadClient command")
+    public void addsHandleToLoadClient() {
+        PlayerHandles handles = new PlayerHandles(7);
+        RenderingPackage rp = new RenderingPackage(
+            new GameMetadata("Muddle", "game", new String[] { "Alice" }, true),
+            List.of(new LoadClient("MuddleText", "Muddle", "game", "Alice").toJson(), new JsonObject().put("command", "clearText")));
+
+        RenderingPackage withHandle = handles.issue("Muddle", null, rp);
+        LoadClient lc = LoadClient.tryParsing(withHandle.renderingCommands().get(0)).orElseThrow();
+        assertNotEquals(0, lc.handle());
+        assertEquals("Alice", handles.get(lc.handle()).player());
+        assertEquals(rp.renderingCommands().get(1), withHandle.renderingCommands().get(1));
+        assertFalse(rp.renderingCommands().get(0).containsKey("handle"), "The game's own command is left alone");
+    }
+
+}
@@ -0,0 +1,108 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.json.JsonObject;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Tests of the outboxes behind the long-poll event route.
+ */
+public class PlayerOutboxesTests {
+
+    static RenderingPackage rp(String text) {
+        return new RenderingPackage(
+            new GameMetadata("Test", "game", new String[] { "Alice" }, true),
+            List.of(new JsonObject().put("command", "appendText").put("text", text))
+        );
+    }
+
+    @Test
+    @DisplayName("A poll gets everything pushed after its cursor")
+    public void replaysAfterCursor() {
+        PlayerChannels channels = new PlayerChannels();
+        PlayerOutboxes outboxes = new PlayerOutboxes(channels, 8, Long.MAX_VALUE);
+        long cursor = outboxes.latest("Test", "game", "Alice");
+
+        channels.push("Test", "game", "Alice", rp("one"));
+        channels.push("Test", "game", "Alice", rp("two"));
+
+        PlayerOutboxes.Batch batch = outboxes.poll("Test", "game", "Alice", cursor, null);
+        assertEquals(2, batch.packages().size());
+        assertFalse(batch.missed());
+
+        PlayerOutboxes.Batch again = outboxes.poll("Test", "game", "Alice", cursor + 1, null);
+        assertEquals(List.of(batch.packages().get(1)), again.packages());
+        assertEquals(batch.cursor(), again.cursor());
+    }
+
+    @Test
+    @DisplayName("A poll with nothing to get waits, and is woken once by the next push")
+    public void parksUntilPushed() {
+        PlayerChannels channels = new PlayerChannels();
+        PlayerOutboxes outboxes = new PlayerOutboxes(channels, 8, Long.MAX_VALUE);
+        long cursor = outboxes.latest("Test", "game", "Alice");
+        AtomicInteger woken = new AtomicInteger();
+
+        assertNull(outboxes.poll("Test", "game", "Alice", cursor, woken::incrementAndGet));
+        assertEquals(1, outboxes.waiting());
+
+        channels.push("Test", "game", "Alice", rp("one"));
+        channels.push("Test", "game", "Alice", rp("two"));
+        assertEquals(1, woken.get());
+        assertEquals(0, outboxes.waiting());
+        assertEquals(2, outboxes.poll("Test", "game", "Alice", cursor, null).packages().size());
+    }
+
+    @Test
+    @DisplayName("Cancelled polls are not woken")
+    public void cancel() {
+        PlayerChannels channels = new PlayerChannels();
+        PlayerOutboxes outboxes = new PlayerOutboxes(channels, 8, Long.MAX_VALUE);
+        AtomicInteger woken = new AtomicInteger();
+        Runnable wakeup = woken::incrementAndGet;
+
+        assertNull(outboxes.poll("Test", "game", "Alice", 0, wakeup));
+        outboxes.cancel("Test", "game", "Alice", wakeup);
+        channels.push("Test", "game", "Alice", rp("one"));
+
+        assertEquals(0, woken.get());
+        assertEquals(0, outboxes.waiting());
+    }
+
+    @Test
+    @DisplayName("A player who falls behind further than the outbox holds is told they missed some")
+    public void missedWhenOverflowed() {
+        PlayerChannels channels = new PlayerChannels();
+        PlayerOutboxes outboxes = new PlayerOutboxes(channels, 2, Long.MAX_VALUE);
+        long cursor = outboxes.latest("Test", "game", "Alice");
+
+        for (int i = 0; i < 5; i++) channels.push("Test", "game", "Alice", rp("line " + i));
+
+        PlayerOutboxes.Batch batch = outboxes.poll("Test", "game", "Alice", cursor, null);
+        assertTrue(batch.missed());
+        assertEquals(2, batch.packages().size());
+        assertEquals(cursor + 5, batch.cursor());
+    }
+
+    @Test
+    @DisplayName("Outboxes nobody polls are removed, and stop receiving pushes")
+    public void idleOutboxesAreSwept() {
+        PlayerChannels channels = new PlayerChannels();
+        AtomicLong now = new AtomicLong();
+        PlayerOutboxes outboxes = new PlayerOutboxes(channels, 8, 1000, now::get);
+        outboxes.latest("Test", "game", "Alice");
+        assertTrue(channels.isConnected("Test", "game", "Alice"));
+
+        now.set(2000);
+        outboxes.sweep();
+        assertFalse(channels.isConnected("Test", "game", "Alice"));
+    }
+
+}
@@ -0,0 +1,148 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.NativeCommands.LoadClient;
+import minigames.rendering.NativeCommands.QuitToMenu;
+import minigames.rendering.NativeCommands.ShowMenuError;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Tests of cutting RenderingPackages down to what has changed for each player.
+ */
+public class RenderingDeltasTests {
+
+    private LobbyEvents lobby;
+    private RenderingDeltas deltas;
+
+    @BeforeEach
+    public void setUp() {
+        lobby = new LobbyEvents();
+        deltas = new RenderingDeltas(lobby);
+        deltas.rules("Muddle").reset("clearText", "appendText").setter("setDirections");
+    }
+
+    static RenderingPackage screen(String text, String directions) {
+        return new RenderingPackage(new GameMetadata("Muddle", "game", new String[] { "Alice" }, true), List.of(
+            new JsonObject().put("command", "clearText"),
+            new JsonObject().put("command", "appendText").put("text", text),
+            new JsonObject().put("command", "setDirections").put("directions", directions)
+        ));
+    }
+
+    static RenderingPackage append(String text) {
+        return new RenderingPackage(new GameMetadata("Muddle", "game", new String[] { "Alice" }, true), List.of(
+            new JsonObject().put("command", "appendText").put("text", text)
+        ));
+    }
+
+    List<JsonObject> send(String player, RenderingPackage rp) {
+        return deltas.send("Muddle", "game", player, rp).renderingCommands();
+    }
+
+    @Test
+    @DisplayName("An unchanged screen is sent once, and only what changes after that")
+    public void sendsOnlyChanges() {
+        assertEquals(3, send("Alice", screen("A room", "NS")).size());
+        assertTrue(send("Alice", screen("A room", "NS")).isEmpty());
+
+        List<JsonObject> moved = send("Alice", screen("Another room", "NS"));
+        assertEquals(List.of("clearText", "appendText"), moved.stream().map((j) -> j.getString("command")).toList());
+
+        List<JsonObject> turned = send("Alice", screen("Another room", "E"));
+        assertEquals(1, turned.size());
+        assertEquals("E", turned.get(0).getString("directions"));
+    }
+
+    @Test
+    @DisplayName("Each player's state is tracked separately")
+    public void playersAreSeparate() {
+        send("Alice", screen("A room", "NS"));
+        assertEquals(3, send("Bob", screen("A room", "NS")).size());
+    }
+
+    @Test
+    @DisplayName("Text added by a push is taken into account, and a block that only grows sends just the new text")
+    public void appendsExtendTheBlock() {
+        send("Alice", screen("A room", "NS"));
+        send("Alice", append("Bob has joined"));
+
+        // Bob's arrival is on screen, so going back to just the room description must clear it
+        assertEquals(2, send("Alice", screen("A room", "NS")).size());
+
+        RenderingPackage grown = new RenderingPackage(screen("A room", "NS").metadata(), List.of(
+            new JsonObject().put("command", "clearText"),
+            new JsonObject().put("command", "appendText").put("text", "A room"),
+            new JsonObject().put("command", "appendText").put("text", "A voice speaks")
+        ));
+        List<JsonObject> sent = send("Alice", grown);
+        assertEquals(1, sent.size());
+        assertEquals("A voice speaks", sent.get(0).getString("text"));
+    }
+
+    @Test
+    @DisplayName("Loading a client and resyncing both send the full state again")
+    public void loadClientAndResyncReset() {
+        send("Alice", screen("A room", "NS"));
+
+        List<JsonObject> joined = new ArrayList<>();
+        joined.add(new LoadClient("MuddleText", "Muddle", "game", "Alice").toJson());
+        joined.addAll(screen("A room", "NS").renderingCommands());
+        assertEquals(4, send("Alice", new RenderingPackage(screen("", "").metadata(), joined)).size());
+
+        CommandPackage cp = new CommandPackage("Muddle", "game", "Alice", List.of(
+            new JsonObject().put("command", "NORTH"),
+            new JsonObject().put("command", CommandPackage.RESYNC)
+        ));
+        CommandPackage received = deltas.receive(cp);
+        assertEquals(List.of(new JsonObject().put("command", "NORTH")), received.commands());
+        assertEquals(3, send("Alice", screen("A room", "NS")).size());
+    }
+
+    @Test
+    @DisplayName("Game servers without rules have their packages passed through untouched")
+    public void noRulesPassesThrough() {
+        RenderingPackage rp = new RenderingPackage(screen("", "").metadata(), List.of(new JsonObject().put("command", "clearText")));
+        assertSame(rp, deltas.send("Other", "game", "Alice", rp));
+        assertSame(rp, deltas.send("Other", "game", "Alice", rp));
+    }
+
+    @Test
+    @DisplayName("What every player of a game had is forgotten when the game ends")
+    public void forgetsEndedGames() {
+        send("Alice", screen("A room", "NS"));
+        send("Bob", screen("A room", "NS"));
+        assertEquals(1, deltas.gameCount());
+
+        lobby.gameEnded("Muddle", "game");
+        assertEquals(0, deltas.gameCount());
+        assertEquals(3, send("Alice", screen("A room", "NS")).size());
+    }
+
+    @Test
+    @DisplayName("Replies for games that don't exist leave nothing behind")
+    public void keepsNothingForMissingGames() {
+        GameMetadata madeUp = new GameMetadata("Muddle", "madeup", new String[0], false);
+        deltas.send("Muddle", "madeup", "Alice", new RenderingPackage(madeUp, List.of(
+            new ShowMenuError("That game has ended").toJson()
+        )));
+        deltas.send("Muddle", "madeup", "Bob", new RenderingPackage(madeUp, List.of(
+            new JsonObject().put("command", "appendText").put("text", "This game has ended."),
+            new QuitToMenu().toJson()
+        )));
+        assertEquals(0, deltas.gameCount());
+
+        // Nor does a player quitting to the menu, once they were the last one remembered
+        send("Alice", screen("A room", "NS"));
+        assertEquals(1, deltas.gameCount());
+        deltas.send("Muddle", "game", "Alice", new RenderingPackage(screen("", "").metadata(), List.of(new QuitToMenu().toJson())));
+        assertEquals(0, deltas.gameCount());
+    }
+}
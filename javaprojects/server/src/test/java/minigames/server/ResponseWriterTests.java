@@ -0,0 +1,59 @@
+package minigames.server;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import minigames.rendering.GameMetadata;
+import minigames.rendering.RenderingPackage;
+
+/**
+ * Tests of writing response bodies.
+ */
+public class ResponseWriterTests {
+
+    static final RenderingPackage rp = new RenderingPackage(
+        new GameMetadata("Muddle", "abcdefghijkl", new String[] { "Alice", "Bob" }, true),
+        List.of(
+            new JsonObject().put("command", "clearText"),
+            new JsonObject().put("command", "appendText").put("text",
+                "[1,0] \n\nYou are standing in an open field west of a white house, with a boarded front door."),
+            new JsonObject().put("command", "setDirections").put("directions", "WS")
+        )
+    );
+
+    @Test
+    @DisplayName("Responses are the same JSON Jackson would write")
+    public void sameAsJackson() {
+        assertEquals(Json.encode(rp), new ResponseWriter().write(rp).toString("UTF-8"));
+    }
+
+    @Test
+    @DisplayName("Writing a response allocates less than encoding it with Jackson")
+    public void allocatesLessThanJackson() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        ResponseWriter writer = new ResponseWriter();
+        for (int i = 0; i < 20_000; i++) {
+            writer.write(rp);
+            Json.encodeToBuffer(rp);
+        }
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 1000; i++) Json.encodeToBuffer(rp);
+        long jackson = (threads.getCurrentThreadAllocatedBytes() - before) / 1000;
+
+        JsonObject warm = writer.stats();
+        for (int i = 0; i < 1000; i++) writer.write(rp);
+        long ours = (writer.stats().getLong("allocatedBytes") - warm.getLong("allocatedBytes")) / 1000;
+
+        assertTrue(ours < jackson, "Allocated " + ours + " bytes per response, Jackson allocated " + jackson);
+        assertTrue(writer.sizeHint() >= Json.encode(rp).length(), "Buffers should be sized to fit");
+    }
+
+}
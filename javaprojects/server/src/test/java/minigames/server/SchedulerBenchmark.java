@@ -0,0 +1,127 @@
+package minigames.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Future;
+
+/**
+ * Compares the GameScheduler on a fixed pool of platform threads with the same scheduler on virtual threads,
+ * when some games block on the database.
+ *
+ * Some games ("slow" games) make a database call in every command, as a game saving high scores would.
+ * The rest ("quick" games) do no I/O at all. What we want to see is how long the quick games' commands
+ * take while the slow games are busy: on a small pool of platform threads they queue behind the slow ones.
+ *
+ * By default the database call is a sleep standing in for a JDBC round trip. Run with "derby" to do real
+ * inserts and queries against an in-memory Derby database instead.
+ *
+ * Run with ./gradlew :server:schedulerBenchmark [--args="derby"]
+ */
+public class SchedulerBenchmark {
+
+    static final int SLOW_GAMES = 200;
+    static final int QUICK_GAMES = 50;
+    static final int CALLS_PER_GAME = 20;
+    static final long SIMULATED_QUERY_MILLIS = 10;
+
+    static final String DERBY_URL = "jdbc:derby:memory:schedulerBenchmark;create=true";
+
+    public static void main(String... args) throws Exception {
+        boolean derby = args.length > 0 && "derby".equals(args[0]);
+        if (derby) createTable();
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d slow games and %d quick games, %d calls each, %s%n",
+            SLOW_GAMES, QUICK_GAMES, CALLS_PER_GAME, derby ? "querying Derby" : "sleeping " + SIMULATED_QUERY_MILLIS + "ms per query");
+
+        // Once each to warm up, then measured
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            run("platform (" + threads + " threads)", Executors.newFixedThreadPool(threads), derby, print);
+            run("virtual", Executors.newVirtualThreadPerTaskExecutor(), derby, print);
+        }
+    }
+
+    static void run(String name, ExecutorService executor, boolean derby, boolean print) throws InterruptedException {
+        GameScheduler scheduler = new GameScheduler(executor);
+        long[] quickLatencies = new long[QUICK_GAMES * CALLS_PER_GAME];
+        CountDownLatch done = new CountDownLatch((SLOW_GAMES + QUICK_GAMES) * CALLS_PER_GAME);
+
+        long start = System.nanoTime();
+        for (int call = 0; call < CALLS_PER_GAME; call++) {
+            for (int g = 0; g < SLOW_GAMES; g++) {
+                String game = "slow-" + g;
+                scheduler.submit("Bench", game, () -> {
+                    query(derby, game);
+                    return Future.succeededFuture();
+                }).onComplete((ar) -> done.countDown());
+            }
+            for (int g = 0; g < QUICK_GAMES; g++) {
+                int slot = call * QUICK_GAMES + g;
+                long submitted = System.nanoTime();
+                scheduler.submit("Bench", "quick-" + g, () -> Future.succeededFuture(slot))
+                    .onComplete((ar) -> {
+                        quickLatencies[slot] = System.nanoTime() - submitted;
+                        done.countDown();
+                    });
+            }
+        }
+        done.await(5, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        executor.shutdownNow();
+
+        if (print) {
+            int calls = (SLOW_GAMES + QUICK_GAMES) * CALLS_PER_GAME;
+            Arrays.sort(quickLatencies);
+            System.out.printf("%-24s %8.0f calls/s   quick games p50 %8.2fms  p99 %8.2fms  max %8.2fms%n",
+                name, calls / (elapsed / 1e9),
+                percentile(quickLatencies, 0.5), percentile(quickLatencies, 0.99), quickLatencies[quickLatencies.length - 1] / 1e6);
+        }
+    }
+
+    static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))] / 1e6;
+    }
+
+    /** A database call: a sleep, or an insert and a query on Derby */
+    static void query(boolean derby, String game) {
+        if (!derby) {
+            try {
+                Thread.sleep(SIMULATED_QUERY_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        try (Connection c = DriverManager.getConnection(DERBY_URL);
+             PreparedStatement insert = c.prepareStatement("INSERT INTO scores (game, score) VALUES (?, ?)");
+             PreparedStatement select = c.prepareStatement("SELECT MAX(score) FROM scores WHERE game = ?")) {
+            insert.setString(1, game);
+            insert.setInt(2, game.hashCode() & 0xffff);
+            insert.executeUpdate();
+            select.setString(1, game);
+            try (ResultSet rs = select.executeQuery()) {
+                rs.next();
+            }
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static void createTable() throws SQLException {
+        try (Connection c = DriverManager.getConnection(DERBY_URL); Statement s = c.createStatement()) {
+            s.executeUpdate("CREATE TABLE scores (game VARCHAR(64), score INT)");
+        }
+    }
+
+}
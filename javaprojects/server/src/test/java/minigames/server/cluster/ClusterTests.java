@@ -0,0 +1,130 @@
+package minigames.server.cluster;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Future;
+import io.vertx.core.http.HttpServerRequest;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests of game ownership and membership in a cluster (without any network).
+ */
+public class ClusterTests {
+
+    static Cluster.Config config(String self, String... seeds) {
+        return new Cluster.Config(true, self, List.of(seeds), 1000, 3000, "secret");
+    }
+
+    @Test
+    @DisplayName("Every node computes the same owner, and a new node only takes games from the others")
+    public void ringMovesFewGames() {
+        ConsistentHashRing three = new ConsistentHashRing(List.of("a:1", "b:1", "c:1"));
+        ConsistentHashRing four = new ConsistentHashRing(List.of("c:1", "b:1", "a:1", "d:1"));
+        assertEquals(three.owner("Muddle", "game"), new ConsistentHashRing(List.of("c:1", "a:1", "b:1")).owner("Muddle", "game"));
+
+        Map<String, Integer> counts = new HashMap<>();
+        int moved = 0;
+        int games = 10_000;
+        for (int i = 0; i < games; i++) {
+            String before = three.owner("Muddle", "game" + i);
+            String after = four.owner("Muddle", "game" + i);
+            counts.merge(after, 1, Integer::sum);
+            if (!before.equals(after)) {
+                moved++;
+                assertEquals("d:1", after, "Games should only move to the node that joined");
+            }
+        }
+
+        // About a quarter should move, and each node should have about a quarter
+        assertTrue(moved > games / 8 && moved < games * 3 / 8, "moved " + moved);
+        for (int n : counts.values()) assertTrue(n > games / 8 && n < games * 3 / 8, "counts " + counts);
+    }
+
+    @Test
+    @DisplayName("Nodes join when they answer, and leave when they go quiet, rebuilding the ring each time")
+    public void membership() {
+        AtomicLong now = new AtomicLong();
+        Cluster cluster = new Cluster(config("a:1", "b:1"), now::get);
+        List<Set<String>> rings = new ArrayList<>();
+        cluster.onRingChange((ring) -> {
+            rings.add(ring.nodes());
+            return Future.succeededFuture();
+        });
+
+        assertEquals(Set.of("a:1"), cluster.nodes());
+
+        // Told about c by b, but c doesn't count until it answers
+        cluster.heard("b:1");
+        cluster.learned(List.of("a:1", "b:1", "c:1"));
+        assertEquals(Set.of("a:1", "b:1"), cluster.nodes());
+        cluster.heard("c:1");
+        assertEquals(Set.of("a:1", "b:1", "c:1"), cluster.nodes());
+
+        now.set(2000);
+        cluster.heard("c:1");
+        now.set(4000);
+        cluster.expire();
+        assertEquals(Set.of("a:1", "c:1"), cluster.nodes());
+
+        cluster.contacted("c:1", true);
+        assertEquals(List.of(Set.of("a:1", "b:1"), Set.of("a:1", "b:1", "c:1"), Set.of("a:1", "c:1"), Set.of("a:1")), rings);
+        assertTrue(cluster.isLocal("Muddle", "anything"));
+    }
+
+    @Test
+    @DisplayName("The nodes may disagree about owners until a while after the ring last changed")
+    public void converging() {
+        AtomicLong now = new AtomicLong();
+        Cluster cluster = new Cluster(config("a:1", "b:1"), now::get);
+        assertTrue(cluster.converging());
+        now.set(5000);
+        assertFalse(cluster.converging());
+
+        cluster.heard("b:1");
+        assertTrue(cluster.converging());
+        now.set(8000);
+        assertTrue(cluster.converging());
+        now.set(9001);
+        assertFalse(cluster.converging());
+
+        assertFalse(new Cluster(Cluster.Config.single(8080)).converging());
+    }
+
+    @Test
+    @DisplayName("Only requests carrying the cluster's secret come from its nodes, and a cluster needs a secret")
+    public void secret() {
+        Cluster cluster = new Cluster(config("a:1", "b:1"));
+        HttpServerRequest fromNode = mock(HttpServerRequest.class);
+        when(fromNode.getHeader(Cluster.SECRET)).thenReturn("secret");
+        HttpServerRequest guessed = mock(HttpServerRequest.class);
+        when(guessed.getHeader(Cluster.SECRET)).thenReturn("secre");
+        HttpServerRequest none = mock(HttpServerRequest.class);
+
+        assertTrue(cluster.isTrusted(fromNode));
+        assertFalse(cluster.isTrusted(guessed));
+        assertFalse(cluster.isTrusted(none));
+        assertFalse(new Cluster(Cluster.Config.single(8080)).isTrusted(fromNode));
+
+        assertThrows(IllegalArgumentException.class,
+            () -> new Cluster(new Cluster.Config(true, "a:1", List.of("b:1"), 1000, 3000, " ")));
+    }
+
+    @Test
+    @DisplayName("Without clustering, this node owns every game")
+    public void singleNode() {
+        Cluster cluster = new Cluster(Cluster.Config.single(8080));
+        assertFalse(cluster.enabled());
+        assertTrue(cluster.isLocal("Muddle", "game"));
+        assertEquals("localhost:8080", cluster.owner("Muddle", "game"));
+    }
+
+}
@@ -0,0 +1,60 @@
+package minigames.server.cluster;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.json.JsonObject;
+import minigames.server.GameRegistry;
+import minigames.server.GameScheduler;
+import minigames.server.muddle.MuddleServer;
+
+/**
+ * Tests of handing games on between cluster nodes (without any network).
+ */
+public class GameHandoffTests {
+
+    @Test
+    @DisplayName("A game that can't be handed on is kept and run here, and calls for games on their way are held off")
+    public void keepsGamesItCantHandOn() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            AtomicLong now = new AtomicLong();
+            Cluster cluster = new Cluster(new Cluster.Config(true, "a:1", List.of("b:1"), 1000, 3000, "secret"), now::get);
+            cluster.heard("b:1");
+
+            // A game that b now owns. b can't be reached, as this cluster has no network
+            String gameId = "game";
+            for (int i = 0; !cluster.owner("Muddle", gameId).equals("b:1"); i++) gameId = "game" + i;
+
+            MuddleServer muddle = new MuddleServer(0, null);
+            muddle.importGame(gameId, new JsonObject());
+            GameRegistry registry = new GameRegistry();
+            registry.registerGameServer("Muddle", muddle);
+            GameHandoff handoff = new GameHandoff(cluster, registry, new GameScheduler(executor));
+
+            handoff.handOff("Muddle", muddle, gameId, "b:1").toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+            assertTrue(muddle.hasGame(gameId));
+            assertTrue(handoff.isKept("Muddle", gameId));
+            assertFalse(handoff.inTransit("Muddle", gameId));
+
+            // While the ring is new, a game that isn't here may be on its way, so isn't reported as ended
+            assertTrue(handoff.inTransit("Muddle", "arriving"));
+            now.set(10_000);
+            assertFalse(handoff.inTransit("Muddle", "arriving"));
+
+            // Once the game is this node's again, it stops being kept
+            cluster.left("b:1");
+            handoff.retryKept();
+            assertFalse(handoff.isKept("Muddle", gameId));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
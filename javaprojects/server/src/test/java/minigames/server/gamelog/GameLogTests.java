@@ -0,0 +1,112 @@
+package minigames.server.gamelog;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.server.Metrics;
+
+/**
+ * Tests of logging games' commands, and reading them back.
+ */
+public class GameLogTests {
+
+    @TempDir
+    Path dir;
+
+    static CommandPackage command(int n) {
+        return new CommandPackage("Muddle", "game", "Alice", List.of(new JsonObject().put("command", "look " + n)));
+    }
+
+    static int segments(Path gameDir) throws IOException {
+        try (Stream<Path> files = Files.list(gameDir)) {
+            return (int) files.filter((p) -> p.toString().endsWith(".log")).count();
+        }
+    }
+
+    @Test
+    @DisplayName("Commands are read back in order after the latest snapshot, across segments and up to a command")
+    public void appendsAndReads() {
+        GameLog log = new GameLog(dir, 128, 100, new Metrics());
+        assertFalse(log.exists("Muddle", "game"));
+        log.snapshot("Muddle", "game", new JsonObject().put("turn", 0));
+
+        for (int i = 1; i <= 10; i++) assertEquals(i, log.append("Muddle", "game", command(i)));
+        assertEquals(10, log.lastSeq("Muddle", "game"));
+
+        GameLog.Recovery all = log.read("Muddle", "game", Long.MAX_VALUE);
+        assertEquals(0, all.snapshotSeq());
+        assertEquals(0, all.state().getInteger("turn"));
+        assertEquals(10, all.tail().size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, all.tail().get(i).seq());
+            assertEquals(command(i + 1), all.tail().get(i).commands());
+        }
+
+        assertEquals(4, log.read("Muddle", "game", 4).tail().size());
+    }
+
+    @Test
+    @DisplayName("A snapshot deletes the segments it covers, and replaces the one before")
+    public void snapshotsTruncate() throws IOException {
+        GameLog log = new GameLog(dir, 128, 5, new Metrics());
+        log.snapshot("Muddle", "game", new JsonObject().put("turn", 0));
+        for (int i = 1; i <= 10; i++) log.append("Muddle", "game", command(i));
+        Path gameDir = dir.resolve("Muddle").resolve("game");
+        assertTrue(segments(gameDir) > 1, "Small segments roll over");
+        assertTrue(log.snapshotDue("Muddle", "game"));
+
+        log.snapshot("Muddle", "game", new JsonObject().put("turn", 10));
+        assertFalse(log.snapshotDue("Muddle", "game"));
+        assertEquals(1, segments(gameDir));
+        GameLog.Recovery r = log.read("Muddle", "game", Long.MAX_VALUE);
+        assertEquals(10, r.snapshotSeq());
+        assertEquals(10, r.state().getInteger("turn"));
+        assertTrue(r.tail().isEmpty());
+        assertNull(log.read("Muddle", "game", 5), "The commands before the snapshot have gone");
+
+        log.delete("Muddle", "game");
+        assertFalse(log.exists("Muddle", "game"));
+        assertFalse(Files.exists(gameDir));
+    }
+
+    @Test
+    @DisplayName("A log opened after a restart carries on from the last whole entry")
+    public void reopens() throws IOException {
+        GameLog before = new GameLog(dir, 4096, 100, new Metrics());
+        before.snapshot("Muddle", "game", new JsonObject());
+        for (int i = 1; i <= 3; i++) before.append("Muddle", "game", command(i));
+        before.force();
+
+        // The process died while writing the third command: the last byte of it never made it
+        Path segment = dir.resolve("Muddle").resolve("game").resolve(LogSegment.fileName(1));
+        try (RandomAccessFile f = new RandomAccessFile(segment.toFile(), "rw")) {
+            long pos = Files.size(segment) - 1;
+            while (pos > 0) {
+                f.seek(pos);
+                if (f.read() != 0) break;
+                pos--;
+            }
+            f.seek(pos);
+            f.write(0xff);
+        }
+
+        GameLog after = new GameLog(dir, 4096, 100, new Metrics());
+        assertTrue(after.exists("Muddle", "game"));
+        assertEquals(2, after.lastSeq("Muddle", "game"));
+        assertEquals(3, after.append("Muddle", "game", command(4)), "The torn entry is written over");
+        List<GameLog.Entry> tail = after.read("Muddle", "game", Long.MAX_VALUE).tail();
+        assertEquals(3, tail.size());
+        assertEquals(command(4), tail.get(2).commands());
+    }
+
+}
@@ -0,0 +1,146 @@
+package minigames.server.gamelog;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.RenderingPackage;
+import minigames.server.Main;
+import minigames.server.Metrics;
+import minigames.server.muddle.MuddleServer;
+
+/**
+ * Tests of rebuilding and replaying games from their command logs.
+ */
+public class LoggedGameServerTests {
+
+    @TempDir
+    Path dir;
+
+    static CommandPackage command(String gameId, String player, String command) {
+        return new CommandPackage("Muddle", gameId, player, List.of(new JsonObject().put("command", command)));
+    }
+
+    @Test
+    @DisplayName("A game is rebuilt from its log after a restart, as it was after the last command")
+    public void rebuildsAfterRestart() {
+        MuddleServer before = new MuddleServer(0, null);
+        LoggedGameServer logged = new LoggedGameServer("Muddle", before, new GameLog(dir, 256, 3, new Metrics()), null);
+
+        String gameId = logged.newGame("Alice").result().metadata().name();
+        logged.joinGame(gameId, "Bob");
+        for (String c : List.of("east", "take leaflet", "north", "south", "west")) {
+            assertTrue(logged.callGame(command(gameId, "Alice", c)).succeeded());
+        }
+
+        // The process dies, and a call for the game arrives at the next one
+        MuddleServer after = new MuddleServer(0, null);
+        LoggedGameServer restarted = new LoggedGameServer("Muddle", after, new GameLog(dir, 256, 3, new Metrics()), null);
+        assertNull(after.snapshotGame(gameId));
+        assertTrue(restarted.callGame(command(gameId, "Bob", "look")).succeeded());
+        before.callGame(command(gameId, "Bob", "look"));
+
+        assertEquals(before.snapshotGame(gameId), after.snapshotGame(gameId));
+    }
+
+    @Test
+    @DisplayName("A game can be replayed up to any command, without touching the one being played")
+    public void replaysUpTo() {
+        MuddleServer server = new MuddleServer(0, null);
+        GameLog log = new GameLog(dir, 4096, 100, new Metrics());
+        LoggedGameServer logged = new LoggedGameServer("Muddle", server, log, null);
+
+        String gameId = logged.newGame("Alice").result().metadata().name();
+        logged.callGame(command(gameId, "Alice", "east"));
+        JsonObject afterOne = server.snapshotGame(gameId);
+        logged.callGame(command(gameId, "Alice", "take leaflet"));
+        logged.callGame(command(gameId, "Alice", "west"));
+        JsonObject now = server.snapshotGame(gameId);
+        assertEquals(3, log.lastSeq("Muddle", gameId));
+
+        MuddleServer scratch = MuddleServer.isolated();
+        assertEquals(1L, logged.replay(gameId, 1, scratch).result());
+        assertEquals(afterOne, scratch.snapshotGame(gameId));
+        assertEquals(now, server.snapshotGame(gameId));
+
+        assertTrue(logged.replay("nosuchgame", 1, scratch).failed());
+    }
+
+    @Test
+    @DisplayName("Rebuilding or replaying a game doesn't push what it did to players again")
+    public void replayDoesntPush() {
+        MuddleServer before = new MuddleServer(0, null);
+        LoggedGameServer logged = new LoggedGameServer("Muddle", before, new GameLog(dir, 4096, 100, new Metrics()), null);
+
+        String gameId = logged.newGame("Alice").result().metadata().name();
+        logged.joinGame(gameId, "Bob");
+        List<RenderingPackage> pushed = new ArrayList<>();
+        Runnable unsubscribe = Main.playerChannels.subscribe("Muddle", gameId, "Bob", pushed::add);
+        try {
+            logged.callGame(command(gameId, "Alice", "say hello"));
+            assertEquals(1, pushed.size());
+            pushed.clear();
+
+            // Bob is still connected when the game is rebuilt after a restart
+            MuddleServer after = new MuddleServer(0, null);
+            LoggedGameServer restarted = new LoggedGameServer("Muddle", after, new GameLog(dir, 4096, 100, new Metrics()), null);
+            assertTrue(restarted.callGame(command(gameId, "Bob", "look")).succeeded());
+            assertEquals(before.snapshotGame(gameId), after.snapshotGame(gameId));
+            assertTrue(pushed.isEmpty());
+
+            // And when it's replayed to look at
+            MuddleServer scratch = MuddleServer.isolated();
+            assertEquals(1L, restarted.replay(gameId, 1, scratch).result());
+            scratch.callGame(command(gameId, "Alice", "say again"));
+            assertTrue(pushed.isEmpty());
+
+            // While the game itself still pushes
+            restarted.callGame(command(gameId, "Alice", "say hello again"));
+            assertEquals(1, pushed.size());
+        } finally {
+            unsubscribe.run();
+        }
+    }
+
+    @Test
+    @DisplayName("Calls for games that don't exist aren't logged")
+    public void unknownGamesArentLogged() throws Exception {
+        GameLog log = new GameLog(dir, 4096, 100, new Metrics());
+        LoggedGameServer logged = new LoggedGameServer("Muddle", new MuddleServer(0, null), log, null);
+
+        assertTrue(logged.callGame(command("madeup", "Alice", "look")).succeeded());
+        assertFalse(log.exists("Muddle", "madeup"));
+        assertEquals(0, log.lastSeq("Muddle", "madeup"));
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    @DisplayName("A game's log is deleted when it ends or moves to another node")
+    public void deletesEndedGames() {
+        MuddleServer server = new MuddleServer(0, null);
+        GameLog log = new GameLog(dir, 4096, 100, new Metrics());
+        LoggedGameServer logged = new LoggedGameServer("Muddle", server, log, Main.lobbyEvents);
+
+        String gameId = logged.newGame("Alice").result().metadata().name();
+        logged.callGame(command(gameId, "Alice", "east"));
+        assertTrue(log.exists("Muddle", gameId));
+
+        JsonObject state = logged.exportGame(gameId);
+        assertFalse(log.exists("Muddle", gameId));
+
+        // And starts again when it comes back
+        logged.importGame(gameId, state);
+        assertTrue(log.exists("Muddle", gameId));
+        assertEquals(0, log.lastSeq("Muddle", gameId));
+    }
+
+}
@@ -0,0 +1,94 @@
+package minigames.server.muddle;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.rendering.RenderingPackage;
+import minigames.server.muddle.MuddleCommands.Verb;
+
+/**
+ * Tests of reading and running Muddle's commands.
+ */
+public class MuddleCommandsTests {
+
+    static CommandPackage commands(String player, String... commands) {
+        return new CommandPackage("Muddle", "test", player,
+            List.of(commands).stream().map((c) -> new JsonObject().put("command", c)).toList());
+    }
+
+    @Test
+    @DisplayName("Words and their prefixes are recognised, with the common abbreviations winning")
+    public void parsing() {
+        assertEquals(new MuddleCommands.Command(Verb.MOVE, MuddleWorld.NORTH, ""), MuddleCommands.parse("NORTH"));
+        assertEquals(new MuddleCommands.Command(Verb.MOVE, MuddleWorld.SOUTH, ""), MuddleCommands.parse("s"));
+        assertEquals(new MuddleCommands.Command(Verb.MOVE, MuddleWorld.EAST, ""), MuddleCommands.parse("go e"));
+        assertEquals(Verb.SAY, MuddleCommands.parse("sa hello").verb());
+        assertEquals("hello there", MuddleCommands.parse("say  hello there ").argument());
+        assertEquals(new MuddleCommands.Command(Verb.TAKE, 0, "lamp"), MuddleCommands.parse("g lamp"));
+        assertEquals(Verb.INVENTORY, MuddleCommands.parse("i").verb());
+        assertEquals(Verb.UNKNOWN, MuddleCommands.parse("xyzzy").verb());
+        assertEquals(Verb.UNKNOWN, MuddleCommands.parse("go look").verb());
+        assertEquals(Verb.UNKNOWN, MuddleCommands.parse(null).verb());
+    }
+
+    @Test
+    @DisplayName("Players move through exits, pick things up and put them down")
+    public void playing() {
+        MuddleGame game = new MuddleGame("test");
+        game.joinGame("Algernon");
+
+        // Moving shows the new room, and what's in it
+        RenderingPackage rp = game.runCommands(commands("Algernon", "east"));
+        assertEquals(MuddleWorld.DEFAULT.room(1, 0).view(), rp.renderingCommands().subList(0, 3));
+        assertEquals("\n\nYou can see: leaflet", rp.renderingCommands().get(3).getString("text"));
+
+        // A wall only says so
+        rp = game.runCommands(commands("Algernon", "north"));
+        assertEquals(List.of(MuddleGame.NO_EXIT), rp.renderingCommands());
+
+        rp = game.runCommands(commands("Algernon", "take leaflet", "take leaflet", "i"));
+        assertEquals(List.of("\n\nYou take the leaflet.", "\n\nYou can't see that here.", "\n\nYou are carrying: leaflet"),
+            rp.renderingCommands().stream().map((j) -> j.getString("text")).toList());
+
+        game.runCommands(commands("Algernon", "s", "drop leaflet"));
+        assertEquals(List.of("leaflet"), game.items.get(MuddleWorld.DEFAULT.index(1, 1)));
+        assertTrue(game.players.get("Algernon").inventory().isEmpty());
+
+        // Everything survives a move to another server
+        MuddleGame moved = MuddleGame.fromJson("test", game.toJson());
+        assertEquals(List.of("leaflet"), moved.items.get(MuddleWorld.DEFAULT.index(1, 1)));
+        assertEquals(1, moved.players.get("Algernon").y());
+    }
+
+    @Test
+    @DisplayName("Commands from someone who isn't in the game send them back to the menu, rather than failing")
+    public void strangers() {
+        MuddleGame game = new MuddleGame("test");
+        game.joinGame("Algernon");
+
+        for (String command : new String[] { "north", "look", "i", "take leaflet", "drop leaflet", "say hi", "xyzzy" }) {
+            RenderingPackage rp = game.runCommands(commands("Mallory", command));
+            assertEquals(MuddleGame.NOT_PLAYING, rp.renderingCommands().get(0));
+            assertEquals("client.quitToMGNMenu", rp.renderingCommands().get(1).getString("nativeCommand"));
+        }
+        RenderingPackage resync = game.runCommands(commands("Mallory"));
+        assertEquals(MuddleGame.NOT_PLAYING, resync.renderingCommands().get(0));
+        assertFalse(game.players.containsKey("Mallory"));
+    }
+
+    @Test
+    @DisplayName("Calls for a game that has gone send the player back to the menu, rather than failing")
+    public void goneGames() {
+        MuddleServer server = new MuddleServer(0, null);
+
+        RenderingPackage played = server.callGame(commands("Alice", "north")).result();
+        assertEquals("client.quitToMGNMenu", played.renderingCommands().get(played.renderingCommands().size() - 1).getString("nativeCommand"));
+
+        RenderingPackage joined = server.joinGame("nosuchgame", "Alice").result();
+        assertEquals("client.showMenuError", joined.renderingCommands().get(0).getString("nativeCommand"));
+    }
+}
@@ -0,0 +1,43 @@
+package minigames.server.muddle;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Tests of the compiled Muddle world.
+ */
+public class MuddleWorldTests {
+
+    @Test
+    @DisplayName("Each room has the exits that lead to another room")
+    public void directions() {
+        MuddleWorld world = new MuddleWorld(new String[][] {
+            { "a", "b", "c" },
+            { "d", "e", "f" }
+        });
+        assertEquals("ES", world.room(0, 0).view().get(2).getString("directions"));
+        assertEquals("NES", world.room(0, 1).view().get(2).getString("directions"));
+        assertEquals("WN", world.room(1, 2).view().get(2).getString("directions"));
+        assertEquals(MuddleWorld.WEST | MuddleWorld.NORTH | MuddleWorld.SOUTH, world.room(1, 1).directions());
+        assertEquals(5, world.room(1, 2).index());
+    }
+
+    @Test
+    @DisplayName("Rooms render the same as before, and their shared commands can't be changed")
+    public void sharedViews() {
+        List<JsonObject> view = MuddleWorld.DEFAULT.room(0, 1).view();
+        assertEquals(new JsonObject().put("command", "clearText"), view.get(0));
+        assertEquals(
+            new JsonObject().put("command", "appendText").put("text", "[0,1] \n\nYou are in a maze of twisting passages that weren't so alike after all"),
+            view.get(1)
+        );
+        assertSame(view, MuddleWorld.DEFAULT.room(0, 1).view());
+        assertThrows(UnsupportedOperationException.class, () -> view.get(1).put("text", "changed"));
+        assertThrows(UnsupportedOperationException.class, () -> view.add(new JsonObject()));
+    }
+
+}
@@ -0,0 +1,138 @@
+package minigames.server.snapshots;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.vertx.core.json.JsonObject;
+import minigames.commands.CommandPackage;
+import minigames.server.Metrics;
+import minigames.server.muddle.MuddleServer;
+
+/**
+ * Tests of saving games as they go, and carrying them on after a restart.
+ */
+public class GameSnapshotsTests {
+
+    /** Keeps snapshots in memory, and counts the writes */
+    static class MemoryStorage implements SnapshotStorage {
+        final Map<String, GameSnapshot> rows = new ConcurrentHashMap<>();
+        int writes = 0;
+        int loads = 0;
+        boolean failing = false;
+
+        @Override
+        public void save(GameSnapshot snapshot) {
+            if (failing) throw new RuntimeException("The database is down");
+            writes++;
+            rows.put(snapshot.gameServer() + "/" + snapshot.gameId(), snapshot);
+        }
+
+        @Override
+        public GameSnapshot load(String gameServer, String gameId) {
+            loads++;
+            return rows.get(gameServer + "/" + gameId);
+        }
+
+        @Override
+        public void delete(String gameServer, String gameId) {
+            rows.remove(gameServer + "/" + gameId);
+        }
+
+        @Override
+        public Set<String> gameIds(String gameServer) {
+            return rows.values().stream().filter((s) -> s.gameServer().equals(gameServer))
+                .map(GameSnapshot::gameId).collect(Collectors.toSet());
+        }
+    }
+
+    static CommandPackage command(String gameId, String player, String command) {
+        return new CommandPackage("Muddle", gameId, player, List.of(new JsonObject().put("command", command)));
+    }
+
+    @Test
+    @DisplayName("A game is saved once however often it changes, and carries on after a restart when it is next called")
+    public void savesAndRestores() {
+        MemoryStorage storage = new MemoryStorage();
+        GameSnapshots snapshots = new GameSnapshots(storage, null, null, 0, new Metrics());
+        MuddleServer before = new MuddleServer(0, snapshots);
+
+        String gameId = before.newGame("Alice").result().metadata().name();
+        before.callGame(command(gameId, "Alice", "east"));
+        before.callGame(command(gameId, "Alice", "take leaflet"));
+        assertEquals(1, snapshots.dirtyCount());
+        assertEquals(0, storage.writes, "Nothing is written while the game is being played");
+
+        snapshots.flushNow();
+        assertEquals(1, storage.writes);
+        assertEquals(0, snapshots.dirtyCount());
+        snapshots.flushNow();
+        assertEquals(1, storage.writes, "Games that haven't changed aren't saved again");
+
+        // The server restarts
+        GameSnapshots restarted = new GameSnapshots(storage, null, null, 0, new Metrics());
+        MuddleServer after = new MuddleServer(0, restarted);
+        assertEquals(0, after.getGamesInProgress().length, "Saved games aren't loaded until they're asked for");
+
+        after.callGame(command(gameId, "Alice", "look"));
+        assertEquals(1, after.getGamesInProgress().length);
+        assertEquals(before.snapshotGame(gameId), after.snapshotGame(gameId));
+        assertEquals(1, restarted.restored());
+        assertNull(after.snapshotGame("nosuchgame"));
+    }
+
+    @Test
+    @DisplayName("Failed saves are tried again, and games that end are deleted rather than saved")
+    public void retriesAndForgets() {
+        MemoryStorage storage = new MemoryStorage();
+        GameSnapshots snapshots = new GameSnapshots(storage, null, null, 0, new Metrics());
+        MuddleServer server = new MuddleServer(0, snapshots);
+        String gameId = server.newGame("Alice").result().metadata().name();
+
+        storage.failing = true;
+        snapshots.flushNow();
+        assertEquals(1, snapshots.failed());
+        assertEquals(1, snapshots.dirtyCount(), "Still waiting to be saved");
+
+        storage.failing = false;
+        snapshots.flushNow();
+        assertEquals(1, snapshots.saved());
+        assertNotNull(storage.load("Muddle", gameId));
+
+        server.callGame(command(gameId, "Alice", "south"));
+        server.exportGame(gameId);
+        snapshots.flushNow();
+        assertNull(storage.load("Muddle", gameId));
+        assertEquals(0, snapshots.dirtyCount());
+    }
+
+    @Test
+    @DisplayName("Calls for games that were never saved are answered without reading storage")
+    public void unsavedGamesDontReadStorage() {
+        MemoryStorage storage = new MemoryStorage();
+        GameSnapshots before = new GameSnapshots(storage, null, null, 0, new Metrics());
+        String gameId = new MuddleServer(0, before).newGame("Alice").result().metadata().name();
+        before.flushNow();
+
+        // The server restarts, and learns which games were saved
+        GameSnapshots restarted = new GameSnapshots(storage, null, null, 0, new Metrics());
+        MuddleServer after = new MuddleServer(0, restarted);
+        for (int i = 0; i < 100; i++) after.callGame(command("madeup" + i, "Mallory", "look"));
+        assertEquals(0, storage.loads);
+
+        after.callGame(command(gameId, "Alice", "look"));
+        assertEquals(1, storage.loads);
+        assertEquals(1, restarted.restored());
+
+        // A game that ends can't be restored, even before its delete has been written
+        after.exportGame(gameId);
+        assertNull(restarted.restore("Muddle", gameId));
+        assertEquals(1, storage.loads);
+    }
+
+}
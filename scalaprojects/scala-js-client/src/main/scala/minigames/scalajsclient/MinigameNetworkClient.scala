@@ -4,6 +4,7 @@ import org.scalajs.dom
 import org.scalajs.dom.RequestInit
 import org.scalajs.dom.HttpMethod
 
+import scala.collection.mutable
 import scala.concurrent.Future
 import scala.concurrent.ExecutionContext.Implicits.global
 import scalajs.js
@@ -74,6 +75,17 @@ trait RenderingPackage extends js.Object {
     val renderingCommands:js.Array[js.Dynamic] = js.native
 }
 
+/**
+ * What a long-poll of /events gets back: packages pushed to the player since its cursor, and the cursor to send next.
+ * If missed is true, some packages were dropped before we polled for them, so we need a resync.
+ */
+@js.native
+trait EventBatch extends js.Object {
+    val cursor:Double = js.native
+    val missed:Boolean = js.native
+    val packages:js.Array[RenderingPackage] = js.native
+}
+
 object MinigameNetworkClient {
 
     /** The currently loaded game client */
@@ -112,6 +124,33 @@ object MinigameNetworkClient {
             json.asInstanceOf[js.Array[GameMetadata]].toSeq            
     }
 
+    /**
+     * Follows the games in progress on a game server, from the Server-Sent Events at /lobby/:gameServer/stream.
+     * Calls onChange with the whole list whenever a game starts, changes or ends. The browser reconnects by itself
+     * if the stream drops, and the server starts each connection with a snapshot, so the list catches up.
+     * Close the returned EventSource to stop.
+     */
+    def followGames(gameServer:String, onChange:Seq[GameMetadata] => Unit):dom.EventSource = {
+        val games = mutable.LinkedHashMap.empty[String, GameMetadata]
+        val source = new dom.EventSource(serverRoot + s"lobby/$gameServer/stream")
+
+        def on(eventType:String)(update:js.Any => Unit):Unit =
+            source.addEventListener(eventType, (e:dom.MessageEvent) => {
+                update(JSON.parse(e.data.asInstanceOf[String]))
+                onChange(games.values.toSeq)
+            })
+
+        on("snapshot") { (data) =>
+            games.clear()
+            for g <- data.asInstanceOf[js.Array[GameMetadata]] do games(g.name) = g
+        }
+        on("created") { (data) => val g = data.asInstanceOf[GameMetadata]; games(g.name) = g }
+        on("updated") { (data) => val g = data.asInstanceOf[GameMetadata]; games(g.name) = g }
+        on("ended") { (data) => games.remove(data.asInstanceOf[GameMetadata].name) }
+
+        source
+    }
+
     /** Creates a new game */
     def newGame(gameServer:String, playerName:String):Future[RenderingPackage] = {
         for 
@@ -156,6 +195,52 @@ object MinigameNetworkClient {
 
     }
 
+    /** How long to wait before polling again if a poll fails (e.g. the server is restarting) */
+    val pollRetryMillis = 2000
+
+    /** Bumped whenever we start or stop polling, so that an older poll loop knows to stop */
+    private var pollGeneration = 0
+
+    /**
+     * Long-polls GET /events for packages pushed to a player (e.g. because somebody else moved), running each one
+     * as it arrives. Each poll waits at the server until there is something, then we poll again from where it left off.
+     * Stops when the player quits to the menu or we start polling for another game.
+     */
+    def pollEvents(gameServer:String, game:String, player:String):Unit = {
+        pollGeneration += 1
+        val generation = pollGeneration
+
+        def poll(cursor:Option[Double]):Unit = if generation == pollGeneration then
+            // With no cursor, the server starts us from whatever it pushes next
+            val query = cursor.map((c) => s"?cursor=${c.toLong}").getOrElse("")
+            val batch = for
+                response <- dom.fetch(serverRoot + s"events/$gameServer/$game/$player$query")
+                json <- if response.ok then response.json() else js.Promise.reject(s"The server answered ${response.status}")
+            yield json.asInstanceOf[EventBatch]
+
+            batch.onComplete {
+                case scala.util.Success(b) if generation == pollGeneration =>
+                    for rp <- b.packages do runRenderingPackage(rp)
+                    if b.missed then
+                        send(CommandPackage(gameServer, game, player, Seq(js.Dynamic.literal(command = "server.resync"))))
+                    poll(Some(b.cursor))
+
+                case scala.util.Success(_) =>
+                    // We've stopped polling for this game
+
+                case scala.util.Failure(ex) =>
+                    dom.console.log("Polling for events failed", ex.getMessage)
+                    js.timers.setTimeout(pollRetryMillis) { poll(cursor) }
+            }
+
+        poll(None)
+    }
+
+    /** Stops any long-poll loop */
+    def stopPolling():Unit = {
+        pollGeneration += 1
+    }
+
     /** A similar main menu sequence as the Swing client has */
     def runMainMenuSequence():Unit = {
         MainWindow.showStarfieldMessage("Minigame Network")
@@ -178,6 +263,8 @@ object MinigameNetworkClient {
                     gameClient = for gc <- ClientRegistry.getClient(lc.clientName) yield
                         gc.load(rp.metadata, lc.player)
                         gc
+                    // Moves other players make are pushed to us, so keep polling for them while we play
+                    if gameClient.nonEmpty then pollEvents(rp.metadata.gameServer, rp.metadata.name, lc.player)
 
                 case Some("client.showMenuError") =>
                     val sme = command.asInstanceOf[ShowMenuError]
@@ -189,6 +276,7 @@ object MinigameNetworkClient {
                     for gc <- gameClient do
                         gc.closeGame()
                     gameClient = None
+                    stopPolling()
                     runMainMenuSequence()
 
                 case _ => 
@@ -58,8 +58,17 @@ object MainWindow extends VHtmlComponent() {
       )
     )
 
-    /** Clears all the panel slots */
+    /** The lobby the games screen is following, if it's showing */
+    private var lobbyFeed:Option[dom.EventSource] = None
+
+    /** Clears all the panel slots, and stops following the lobby */
     def clear():Unit = {
+        for feed <- lobbyFeed do feed.close()
+        lobbyFeed = None
+        clearPanels()
+    }
+
+    private def clearPanels():Unit = {
         for panel <- Seq(north, south, east, west, center) do panel.clear()
     }
 
@@ -88,18 +97,21 @@ object MainWindow extends VHtmlComponent() {
                 <.h4(gsd.name),
                 <.p(gsd.description),
                 <.div(
-                    <.button("Open games", ^.onClick --> {
-                        for games <- MinigameNetworkClient.getGameMetadata(gsd.name) do
-                            showGames(gsd.name, games)
-                    })
+                    <.button("Open games", ^.onClick --> openGames(gsd.name))
                 )
             )
         ))
     }
 
-    /** shows a list of available game servers */
-    def showGames(gameServer:String, games:Seq[GameMetadata]):Unit = {
+    /** Shows the games in progress on a game server, redrawing the list as games start, change and end */
+    def openGames(gameServer:String):Unit = {
         clear()
+        lobbyFeed = Some(MinigameNetworkClient.followGames(gameServer, (games) => showGames(gameServer, games)))
+    }
+
+    /** shows a list of the games in progress on a game server */
+    def showGames(gameServer:String, games:Seq[GameMetadata]):Unit = {
+        clearPanels()
 
         north.add(NameWidget)
 